@@ -0,0 +1,139 @@
+package eu.europeana.thumbnail.config;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import software.amazon.awssdk.http.ExecutableHttpRequest;
+import software.amazon.awssdk.http.HttpExecuteRequest;
+import software.amazon.awssdk.http.HttpExecuteResponse;
+import software.amazon.awssdk.http.HttpMetric;
+import software.amazon.awssdk.http.SdkHttpClient;
+import software.amazon.awssdk.metrics.MetricCollection;
+import software.amazon.awssdk.metrics.MetricCollector;
+import software.amazon.awssdk.metrics.SdkMetric;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Http client that exposes the connection pool statistics of the wrapped client as metrics, tagged with the storage
+ * name. The Apache http client doesn't expose its pool, but it reports the pool statistics to the metric collector of
+ * each request, so we collect these and keep the values of the latest request.
+ */
+public class PoolMetricsHttpClient implements SdkHttpClient {
+
+    private static final String TAG_STORAGE = "storage";
+
+    // storages are recreated when the configuration is reloaded, but gauges can only be registered once
+    private static final Map<String, PoolStats> STATS = new ConcurrentHashMap<>();
+
+    private final SdkHttpClient delegate;
+    private final PoolStats stats;
+
+    /**
+     * Wrap an http client
+     * @param storageName name of the storage that uses the client
+     * @param delegate the http client to wrap
+     */
+    public PoolMetricsHttpClient(String storageName, SdkHttpClient delegate) {
+        this.delegate = delegate;
+        this.stats = STATS.computeIfAbsent(storageName, PoolStats::new);
+    }
+
+    @Override
+    public ExecutableHttpRequest prepareRequest(HttpExecuteRequest request) {
+        MetricCollector collector = MetricCollector.create("PoolMetrics");
+        ExecutableHttpRequest executable = delegate.prepareRequest(HttpExecuteRequest.builder()
+                .request(request.httpRequest())
+                .contentStreamProvider(request.contentStreamProvider().orElse(null))
+                .metricCollector(collector)
+                .build());
+        return new ExecutableHttpRequest() {
+            @Override
+            public HttpExecuteResponse call() throws IOException {
+                try {
+                    return executable.call();
+                } finally {
+                    MetricCollection metrics = collector.collect();
+                    stats.update(metrics);
+                    request.metricCollector().ifPresent(original -> report(metrics, original));
+                }
+            }
+
+            @Override
+            public void abort() {
+                executable.abort();
+            }
+        };
+    }
+
+    /**
+     * Pass the metrics on to the collector provided by the SDK, so they are still published if configured
+     */
+    private static void report(MetricCollection metrics, MetricCollector original) {
+        metrics.forEach(record -> reportRecord(record.metric(), record.value(), original));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> void reportRecord(SdkMetric<T> metric, Object value, MetricCollector original) {
+        original.reportMetric(metric, (T) value);
+    }
+
+    @Override
+    public String clientName() {
+        return delegate.clientName();
+    }
+
+    @Override
+    public void close() {
+        delegate.close();
+    }
+
+    /**
+     * @param storageName name of a storage
+     * @return the number of leased connections of the storage as reported by the latest request, -1 if unknown
+     */
+    static int getLeased(String storageName) {
+        PoolStats poolStats = STATS.get(storageName);
+        return poolStats == null ? -1 : poolStats.leased.get();
+    }
+
+    /**
+     * Latest reported pool statistics of a storage
+     */
+    private static final class PoolStats {
+
+        private final AtomicInteger leased = new AtomicInteger();
+        private final AtomicInteger pending = new AtomicInteger();
+        private final AtomicInteger available = new AtomicInteger();
+
+        private PoolStats(String storageName) {
+            register("thumbnail.storage.pool.leased", "Number of connections in use", storageName, leased);
+            register("thumbnail.storage.pool.pending", "Number of requests waiting for a connection", storageName,
+                    pending);
+            register("thumbnail.storage.pool.available", "Number of idle connections", storageName, available);
+        }
+
+        private static void register(String name, String description, String storageName, AtomicInteger value) {
+            Gauge.builder(name, value, AtomicInteger::get)
+                    .description(description)
+                    .tag(TAG_STORAGE, storageName)
+                    .register(Metrics.globalRegistry);
+        }
+
+        private void update(MetricCollection metrics) {
+            update(metrics, HttpMetric.LEASED_CONCURRENCY, leased);
+            update(metrics, HttpMetric.PENDING_CONCURRENCY_ACQUIRES, pending);
+            update(metrics, HttpMetric.AVAILABLE_CONCURRENCY, available);
+        }
+
+        private static void update(MetricCollection metrics, SdkMetric<Integer> metric, AtomicInteger value) {
+            List<Integer> values = metrics.metricValues(metric);
+            if (!values.isEmpty()) {
+                value.set(values.get(values.size() - 1));
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package eu.europeana.thumbnail.config;
+
+import io.micrometer.core.instrument.Metrics;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.crac.Context;
+import org.crac.Core;
+import org.crac.Resource;
+import org.crac.management.CRaCMXBean;
+import org.springframework.context.ApplicationListener;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.support.ServletRequestHandledEvent;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Logs and records (metric thumbnail.startup.first.request) how long it took from starting the JVM, or restoring it
+ * from a CRaC checkpoint, until the first request was handled.
+ */
+@Component
+public class StartupTimer implements ApplicationListener<ServletRequestHandledEvent>, Resource {
+
+    private static final Logger LOG = LogManager.getLogger(StartupTimer.class);
+
+    private static final String METRIC_NAME = "thumbnail.startup.first.request";
+
+    private final AtomicBoolean firstRequestHandled = new AtomicBoolean(false);
+
+    /**
+     * Initialize a new startup timer
+     */
+    public StartupTimer() {
+        // CRaC only keeps a weak reference, this bean is kept alive by the application context
+        Core.getGlobalContext().register(this);
+    }
+
+    @Override
+    public void onApplicationEvent(ServletRequestHandledEvent event) {
+        if (firstRequestHandled.compareAndSet(false, true)) {
+            long restoreUptime = CRaCMXBean.getCRaCMXBean().getUptimeSinceRestore();
+            if (restoreUptime >= 0) {
+                LOG.info("First request handled {} ms after restore", restoreUptime);
+                record(restoreUptime, "restore");
+            } else {
+                long uptime = ManagementFactory.getRuntimeMXBean().getUptime();
+                LOG.info("First request handled {} ms after JVM start", uptime);
+                record(uptime, "start");
+            }
+        }
+    }
+
+    private static void record(long millis, String startType) {
+        Metrics.timer(METRIC_NAME, "type", startType).record(millis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void beforeCheckpoint(Context<? extends Resource> context) {
+        // nothing to do
+    }
+
+    @Override
+    public void afterRestore(Context<? extends Resource> context) {
+        // time the first request after each restore
+        firstRequestHandled.set(false);
+    }
+}
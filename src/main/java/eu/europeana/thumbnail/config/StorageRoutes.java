@@ -2,28 +2,74 @@ package eu.europeana.thumbnail.config;
 
 import eu.europeana.s3.S3ObjectStorageClient;
 import eu.europeana.thumbnail.exception.ConfigurationException;
+import eu.europeana.thumbnail.model.ImageEncoding;
+import eu.europeana.thumbnail.model.ImageFormat;
+import eu.europeana.thumbnail.model.ImageSize;
+import eu.europeana.thumbnail.model.WebpEncoder;
+import eu.europeana.thumbnail.service.ListableStorage;
 import eu.europeana.thumbnail.service.UploadImageService;
 import eu.europeana.thumbnail.service.MediaReadStorageService;
+import eu.europeana.thumbnail.service.UploadListener;
+import eu.europeana.thumbnail.service.impl.FileReadStorageServiceImpl;
 import eu.europeana.thumbnail.service.impl.IiifImageReadServerImpl;
+import eu.europeana.thumbnail.service.impl.MediaReadWriteStorageServiceImpl;
+import eu.europeana.thumbnail.service.impl.S3BucketLister;
+import eu.europeana.thumbnail.service.impl.ImageDecoder;
 import eu.europeana.thumbnail.service.impl.UploadImageServiceImpl;
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.web.context.WebServerGracefulShutdownLifecycle;
+import org.springframework.context.SmartLifecycle;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.PropertySource;
+import org.springframework.core.env.ConfigurableEnvironment;
 import org.springframework.core.env.Environment;
+import org.springframework.core.env.MutablePropertySources;
+import org.springframework.core.env.PropertiesPropertySource;
+import org.springframework.core.env.PropertyResolver;
+import org.springframework.core.env.PropertySourcesPropertyResolver;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import software.amazon.awssdk.http.SdkHttpClient;
 import software.amazon.awssdk.http.apache.ApacheHttpClient;
 
 import java.net.URI;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 
 /**
- * Loads all routes and storages from configuration.
+ * Loads all routes and storages from configuration. The configuration can be reloaded at runtime, see
+ * {@link StorageRoutesWatcher}.
  *
  * @author Patrick Ehlert
  * Created on 1 sep 2020
@@ -31,7 +77,7 @@ import java.util.Map;
 @Configuration
 @PropertySource(value = "classpath:thumbnail.properties")
 @PropertySource(value = "classpath:thumbnail.user.properties", ignoreResourceNotFound = true)
-public class StorageRoutes {
+public class StorageRoutes implements SmartLifecycle {
 
     private static final Logger LOG = LogManager.getLogger(StorageRoutes.class);
 
@@ -44,30 +90,89 @@ public class StorageRoutes {
     private static final String PROP_S3_REGION     = "s3.region";
     private static final String PROP_S3_BUCKET     = "s3.bucket";
     private static final String PROP_S3_ENDPOINT   = "s3.endpoint";
+    private static final String PROP_S3_WRITABLE   = "s3.writable";
 
     private static final String PROP_MAX_CONNECTIONS = "s3.max.connections";
+    private static final String PROP_S3_CONNECT_TIMEOUT = "s3.connect.timeout";
+    private static final String PROP_S3_ACQUIRE_TIMEOUT = "s3.acquire.timeout";
+    private static final String PROP_S3_READ_TIMEOUT    = "s3.read.timeout";
+    private static final String PROP_HTTP_CONNECT_TIMEOUT = "http.connect.timeout";
+    private static final String PROP_HTTP_READ_TIMEOUT    = "http.read.timeout";
+    private static final String PROP_HTTP_MAX_CONNECTIONS = "http.max.connections";
     private static final int    DEFVAL_MAX_CONNECTIONS = 50;
+    private static final String PROP_FILE_PATH         = "file.path";
+    private static final String PROP_FILE_SHARD_LEVELS = "file.shard.levels";
+    // Cache-Control header value for thumbnails from a storage, doesn't require recreating the client when changed
+    private static final String PROP_CACHE_CONTROL     = "cache.control";
     private static final String PROPERTY_SEPARATOR = ".";
     private static final String VALUE_SEPARATOR    = ",";
 
     private static final String PROP_LOGO_UPLOAD_STORAGE = "upload.storage";
+    private static final String PROP_UPLOAD_SIZES        = "upload.sizes";
+    private static final String PROP_UPLOAD_FORMAT       = "upload.format";
+    private static final String DEFVAL_UPLOAD_FORMAT     = "webp";
+    // multiple formats (encodings), if set this replaces upload.format
+    private static final String PROP_UPLOAD_FORMATS      = "upload.formats";
+    private static final String PROP_UPLOAD_PREFIX       = "upload.";
+    private static final String PROP_QUALITY             = "quality";
+    private static final String PROP_EFFORT              = "effort";
+    private static final String PROP_UPLOAD_WEBP_ENCODER = "upload.webp.encoder";
+    private static final String DEFVAL_UPLOAD_WEBP_ENCODER = "libwebp";
+    private static final String PROP_UPLOAD_MAX_PIXELS   = "upload.max.pixels";
+    private static final long   DEFVAL_UPLOAD_MAX_PIXELS = 100_000_000L;
+    private static final String PROP_UPLOAD_MAX_FULL_DECODE_PIXELS = "upload.max.pixels.full.decode";
 
-    private String defaultRoute;
+    private static final String PROP_INIT_THREADS           = "storage.init.threads";
+    private static final int    DEFVAL_INIT_THREADS         = 4;
+    private static final String PROP_WARMUP_CONNECTIONS     = "storage.warmup.connections";
+    private static final String PROP_S3_WARMUP_CONNECTIONS  = "s3.warmup.connections";
+    private static final String WARMUP_ID                   = "thumbnail-api-warmup";
+    private static final long   WARMUP_TIMEOUT_MS           = 10_000L;
 
-    // The list of MediaStorageServices has to be an ordered list, so we can guarantee proper order of retrieval!
-    private final Map<String, List<MediaReadStorageService>> routeToStorages = new HashMap<>();
-    private final Map<String, MediaReadStorageService> storageNameToService = new HashMap<>();
+    private static final String PROP_ASYNC_THREADS     = "storage.async.threads";
+    private static final int    DEFVAL_ASYNC_THREADS   = 200;
 
-    private String logoUploadStorageName;
+    private static final String PROP_RELOAD_DRAIN      = "storage.reload.drain.ms";
+    private static final long   DEFVAL_RELOAD_DRAIN    = 30_000L;
+    private static final String RELOADED_SOURCE_NAME   = "reloaded-thumbnail-properties";
+    private static final String USER_PROPERTIES_FILE   = "thumbnail.user.properties";
+    // S3 buckets are only listed when the location index is enabled
+    private static final String PROP_LOCATION_INDEX_FILE = "location.index.file";
+
+    // all properties used to create a storage client, if any of these change the client is recreated after a reload
+    private static final List<String> STORAGE_PROPERTIES = List.of(PROP_S3_KEY, PROP_S3_SECRET, PROP_S3_REGION,
+            PROP_S3_BUCKET, PROP_S3_ENDPOINT, PROP_S3_WRITABLE, PROP_MAX_CONNECTIONS, PROP_S3_CONNECT_TIMEOUT,
+            PROP_S3_ACQUIRE_TIMEOUT, PROP_S3_READ_TIMEOUT, PROP_HTTP_CONNECT_TIMEOUT, PROP_HTTP_READ_TIMEOUT,
+            PROP_HTTP_MAX_CONNECTIONS, PROP_FILE_PATH, PROP_FILE_SHARD_LEVELS);
 
     private final Environment environment;
+    private final ObjectProvider<UploadListener> uploadListeners;
+    private final long drainMillis;
+    private final ScheduledExecutorService drainExecutor;
+    private final ThreadPoolExecutor asyncExecutor;
+
+    // all routes and storages are replaced at once when the configuration is reloaded
+    private volatile RouteConfig current;
+    private PropertyResolver currentProperties;
+    private final Set<SdkHttpClient> draining = ConcurrentHashMap.newKeySet();
+    private volatile boolean running;
+    private boolean stopped;
 
     /**
      * Initialize configuration of routes and corresponding media storages.
      * @param environment Spring-Boot environment to load the configuration from
+     * @param uploadListeners listeners that should be notified when a thumbnail is uploaded
      */
-    public StorageRoutes(Environment environment) {
+    public StorageRoutes(Environment environment, ObjectProvider<UploadListener> uploadListeners) {
         this.environment = environment;
+        this.uploadListeners = uploadListeners;
+        this.drainMillis = environment.getProperty(PROP_RELOAD_DRAIN, Long.class, DEFVAL_RELOAD_DRAIN);
+        this.drainExecutor = Executors.newSingleThreadScheduledExecutor(
+                new CustomizableThreadFactory("storage-drain-"));
+        // shared by all S3 storages for asynchronous calls, calls are rejected when all threads are busy
+        this.asyncExecutor = new ThreadPoolExecutor(0,
+                environment.getProperty(PROP_ASYNC_THREADS, Integer.class, DEFVAL_ASYNC_THREADS),
+                1, TimeUnit.MINUTES, new SynchronousQueue<>(), new CustomizableThreadFactory("storage-async-"));
     }
 
     /**
@@ -75,36 +180,192 @@ public class StorageRoutes {
      */
     @PostConstruct
     private void initRoutesToStorage() {
-        String uploadStorageName = environment.getProperty(PROP_LOGO_UPLOAD_STORAGE);
+        this.current = loadRouteConfig(environment, null);
+        this.currentProperties = environment;
+    }
+
+    /**
+     * Called when the application context is started, but also when the application is restored from a (CRaC)
+     * checkpoint. In the latter case all clients were closed before the checkpoint, so we create new ones.
+     */
+    @Override
+    public synchronized void start() {
+        if (stopped) {
+            long start = System.nanoTime();
+            this.current = loadRouteConfig(currentProperties, null);
+            LOG.info("Recreated storage clients in {} ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+        this.running = true;
+    }
+
+    /**
+     * Called when the application context is stopped, for example just before a (CRaC) checkpoint is created. We
+     * close all clients so there are no open connections, the clients are recreated when the context is started again.
+     */
+    @Override
+    public synchronized void stop() {
+        closeAll();
+        this.stopped = true;
+        this.running = false;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * The listeners are looked up for each upload instead of when the upload storage is created, because some of them
+     * depend (indirectly) on this class
+     */
+    private void notifyUploadListeners(String storageName, String id) {
+        uploadListeners.orderedStream().forEach(listener -> listener.uploaded(storageName, id));
+    }
+
+    /**
+     * Clients are started before and stopped after the web server (phase WebServerGracefulShutdownLifecycle - 1024),
+     * so they are available until the graceful shutdown has finished handling all requests in progress
+     */
+    @Override
+    public int getPhase() {
+        return WebServerGracefulShutdownLifecycle.SMART_LIFECYCLE_PHASE - 2048;
+    }
+
+    private void closeAll() {
+        for (SdkHttpClient retired : draining) {
+            retired.close();
+        }
+        draining.clear();
+        RouteConfig config = this.current;
+        if (config != null) {
+            config.listers.values().forEach(StorageRoutes::closeLister);
+            config.httpClients.values().forEach(SdkHttpClient::close);
+        }
+    }
+
+    /**
+     * Reload all routes and storages. The provided properties take precedence over the ones in the Spring environment.
+     * Clients of storages whose configuration didn't change are reused, so their connection pools stay warm. Clients
+     * of storages that were removed or changed are closed after a grace period so requests in progress can finish.
+     * If the new configuration is invalid, the current configuration remains active.
+     * @param overrides properties that override the ones in the environment, usually the (re)loaded contents of the
+     *                  thumbnail.user.properties file
+     * @throws ConfigurationException when the new configuration is invalid
+     */
+    public synchronized void reload(Properties overrides) {
+        RouteConfig previous = this.current;
+        PropertyResolver properties = createResolver(overrides);
+        RouteConfig reloaded;
+        try {
+            reloaded = loadRouteConfig(properties, previous);
+        } catch (IllegalStateException | IllegalArgumentException e) {
+            throw new ConfigurationException("Invalid configuration: " + e.getMessage());
+        }
+        this.current = reloaded;
+        this.currentProperties = properties;
+        LOG.info("Reloaded routes {}", reloaded.routeToStorages.keySet());
+
+        for (Map.Entry<String, MediaReadStorageService> entry : previous.storageNameToService.entrySet()) {
+            if (reloaded.storageNameToService.get(entry.getKey()) != entry.getValue()) {
+                retire(entry.getKey(), previous.httpClients.get(entry.getKey()), previous.listers.get(entry.getKey()));
+            }
+        }
+    }
+
+    private PropertyResolver createResolver(Properties overrides) {
+        MutablePropertySources sources = new MutablePropertySources();
+        sources.addFirst(new PropertiesPropertySource(RELOADED_SOURCE_NAME, overrides));
+        if (environment instanceof ConfigurableEnvironment configurableEnvironment) {
+            for (org.springframework.core.env.PropertySource<?> source : configurableEnvironment.getPropertySources()) {
+                // the old contents of the reloaded file shouldn't be used, otherwise removed properties would remain
+                if (!source.getName().contains(USER_PROPERTIES_FILE)) {
+                    sources.addLast(source);
+                }
+            }
+        }
+        return new PropertySourcesPropertyResolver(sources);
+    }
+
+    private void retire(String storageName, SdkHttpClient httpClient, ListableStorage lister) {
+        if (httpClient == null) {
+            return;
+        }
+        LOG.info("Closing client of retired storage {} in {} ms", storageName, drainMillis);
+        draining.add(httpClient);
+        drainExecutor.schedule(() -> {
+            if (draining.remove(httpClient)) {
+                closeLister(lister);
+                httpClient.close();
+                LOG.info("Closed client of retired storage {}", storageName);
+            }
+        }, drainMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Close all clients (including the ones of retired storages that are still draining)
+     */
+    @PreDestroy
+    public void shutdown() {
+        drainExecutor.shutdownNow();
+        asyncExecutor.shutdownNow();
+        if (!stopped) {
+            closeAll();
+        }
+    }
+
+    private RouteConfig loadRouteConfig(PropertyResolver properties, RouteConfig previous) {
+        RouteConfig config = new RouteConfig();
+        try {
+            loadRouteConfig(properties, previous, config);
+        } catch (RuntimeException e) {
+            // don't leak clients that were created for a configuration that won't be used
+            for (Map.Entry<String, SdkHttpClient> entry : config.httpClients.entrySet()) {
+                if (previous == null || previous.httpClients.get(entry.getKey()) != entry.getValue()) {
+                    closeLister(config.listers.get(entry.getKey()));
+                    entry.getValue().close();
+                }
+            }
+            throw e;
+        }
+        return config;
+    }
+
+    private void loadRouteConfig(PropertyResolver properties, RouteConfig previous, RouteConfig config) {
+        String uploadStorageName = properties.getProperty(PROP_LOGO_UPLOAD_STORAGE);
         if (!StringUtils.isBlank(uploadStorageName)) {
-            this.logoUploadStorageName = uploadStorageName.trim();
-            LOG.info("Configured logo upload storage = {}", this.logoUploadStorageName);
+            config.logoUploadStorageName = uploadStorageName.trim();
+            LOG.info("Configured logo upload storage = {}", config.logoUploadStorageName);
         }
+        initUploadSizes(properties, config);
 
         int i = 1;
         String routeKeyNr = PROP_ROUTE + i;
         String routeKeyName = routeKeyNr + PROPERTY_SEPARATOR + PROP_ROUTE_NAME;
-        List<String> createdStoragesNames = new ArrayList<>(); // tmp to check later if our upload storage was configured properly
+        Map<String, List<String>> routeToStorageNames = new LinkedHashMap<>();
+        Set<String> storageNames = new LinkedHashSet<>();
 
-        while (environment.containsProperty(routeKeyName)) {
+        while (properties.containsProperty(routeKeyName)) {
             // get routes
-            String[] routes = environment.getProperty(routeKeyName).split(VALUE_SEPARATOR);
+            String[] routes = properties.getProperty(routeKeyName).split(VALUE_SEPARATOR);
             // set first loaded route as default
-            if  (defaultRoute == null) {
-                defaultRoute = routes[0].trim();
+            if  (config.defaultRoute == null) {
+                config.defaultRoute = routes[0].trim();
             }
 
             // get storage names
             String routePropStorage = routeKeyNr + PROPERTY_SEPARATOR + PROP_ROUTE_STORAGE;
-            if (environment.containsProperty(routePropStorage)) {
-                String[] storages = environment.getProperty(routePropStorage).split(VALUE_SEPARATOR);
+            if (properties.containsProperty(routePropStorage)) {
+                List<String> storages = new ArrayList<>();
+                for (String storage : properties.getProperty(routePropStorage).split(VALUE_SEPARATOR)) {
+                    // trim values to prevent trailing space
+                    storages.add(storage.trim());
+                }
+                storageNames.addAll(storages);
                 for (String route : routes) {
                     // trim to remove spaces
                     String cleanRoute = route.trim();
                     LOG.info("Adding route {} with storage(s) {}", cleanRoute, storages);
-                    List<MediaReadStorageService> created = generateStorageServices(storages, this.logoUploadStorageName);
-                    routeToStorages.put(cleanRoute, created);
-                    created.forEach(storage -> createdStoragesNames.add(storage.getName()));
+                    routeToStorageNames.put(cleanRoute, storages);
                 }
             } else {
                 throw new ConfigurationException(("No storage defined for route(s)" + routes));
@@ -116,70 +377,322 @@ public class StorageRoutes {
         }
 
         // validation
-        if (routeToStorages.isEmpty()) {
+        if (routeToStorageNames.isEmpty()) {
             throw new ConfigurationException("No routes and storages configured!");
         }
-        if (!createdStoragesNames.contains(this.logoUploadStorageName)) {
-            LOG.error("Configured logo upload storage {} not found!", this.logoUploadStorageName);
+        if (!storageNames.contains(config.logoUploadStorageName)) {
+            LOG.error("Configured logo upload storage {} not found!", config.logoUploadStorageName);
         }
-    }
 
-    private ArrayList<MediaReadStorageService> generateStorageServices(String[] storageNames, String uploadStorageName) {
-        ArrayList<MediaReadStorageService> result = new ArrayList<>();
+        generateStorageServices(properties, storageNames, config, previous);
         for (String storageName : storageNames) {
-            // trim values to prevent trailing space
-            String name = storageName.trim();
+            String cacheControl = properties.getProperty(storageName + PROPERTY_SEPARATOR + PROP_CACHE_CONTROL);
+            if (!StringUtils.isBlank(cacheControl)) {
+                LOG.info("Configured Cache-Control for storage {} = {}", storageName, cacheControl.trim());
+                config.cacheControls.put(storageName, cacheControl.trim());
+            }
+            config.maxConnections.put(storageName, getMaxConnections(properties, storageName));
+        }
+        for (Map.Entry<String, List<String>> entry : routeToStorageNames.entrySet()) {
+            List<MediaReadStorageService> storages = new ArrayList<>();
+            for (String storageName : entry.getValue()) {
+                storages.add(config.storageNameToService.get(storageName));
+            }
+            config.routeToStorages.put(entry.getKey(), Collections.unmodifiableList(storages));
+        }
+    }
 
-            // check if we already created this storage before
-            MediaReadStorageService service = storageNameToService.get(name);
-            if (service == null) {
-                service = createNewService(name, uploadStorageName);
-            } else {
-                LOG.info("Reusing existing service {}", service.getName());
+    /**
+     * Load the widths, encodings and maximum size of the thumbnails we generate when an image is uploaded. Regardless
+     * of what is configured we always support retrieving the default 200 and 400 pixel versions.
+     */
+    private void initUploadSizes(PropertyResolver properties, RouteConfig config) {
+        List<Integer> widths = new ArrayList<>();
+        String sizes = properties.getProperty(PROP_UPLOAD_SIZES);
+        if (StringUtils.isBlank(sizes)) {
+            for (ImageSize size : ImageSize.values()) {
+                widths.add(size.getWidth());
+            }
+        } else {
+            for (String size : sizes.split(VALUE_SEPARATOR)) {
+                try {
+                    int width = Integer.parseInt(size.trim());
+                    if (width <= 0) {
+                        throw new ConfigurationException("Upload size should be a positive number, not " + width);
+                    }
+                    if (!widths.contains(width)) {
+                        widths.add(width);
+                    }
+                } catch (NumberFormatException e) {
+                    throw new ConfigurationException("Invalid upload size '" + size + "', expected width in pixels");
+                }
+            }
+        }
+        config.uploadWidths = Collections.unmodifiableList(widths);
+
+        String formats = properties.getProperty(PROP_UPLOAD_FORMATS);
+        if (StringUtils.isBlank(formats)) {
+            formats = properties.getProperty(PROP_UPLOAD_FORMAT, DEFVAL_UPLOAD_FORMAT);
+        }
+        String encoder = properties.getProperty(PROP_UPLOAD_WEBP_ENCODER, DEFVAL_UPLOAD_WEBP_ENCODER);
+        WebpEncoder webpEncoder;
+        try {
+            webpEncoder = WebpEncoder.fromName(encoder);
+        } catch (IllegalArgumentException e) {
+            throw new ConfigurationException("Unsupported webp encoder '" + encoder + "', supported encoders are "
+                    + Arrays.toString(WebpEncoder.values()));
+        }
+        List<ImageEncoding> encodings = new ArrayList<>();
+        for (String name : formats.split(VALUE_SEPARATOR)) {
+            ImageFormat format;
+            try {
+                format = ImageFormat.fromName(name);
+            } catch (IllegalArgumentException e) {
+                throw new ConfigurationException("Unsupported upload format '" + name + "', supported formats are "
+                        + Arrays.toString(ImageFormat.values()));
+            }
+            String prefix = PROP_UPLOAD_PREFIX + format.getExtension() + PROPERTY_SEPARATOR;
+            ImageEncoding encoding = new ImageEncoding(format,
+                    properties.getProperty(prefix + PROP_QUALITY, Integer.class, format.getDefaultQuality()),
+                    properties.getProperty(prefix + PROP_EFFORT, Integer.class, format.getDefaultEffort()),
+                    webpEncoder);
+            if (encoding.quality() < 0 || encoding.quality() > 100) {
+                throw new ConfigurationException("Upload quality for " + format + " should be between 0 and 100, not "
+                        + encoding.quality());
+            }
+            if (encodings.stream().noneMatch(existing -> existing.format() == format)) {
+                encodings.add(encoding);
+            }
+        }
+        config.uploadEncodings = List.copyOf(encodings);
+
+        config.uploadMaxPixels = properties.getProperty(PROP_UPLOAD_MAX_PIXELS, Long.class, DEFVAL_UPLOAD_MAX_PIXELS);
+        config.uploadMaxFullDecodePixels = properties.getProperty(PROP_UPLOAD_MAX_FULL_DECODE_PIXELS, Long.class,
+                ImageDecoder.DEFAULT_MAX_FULL_DECODE_PIXELS);
+
+        SortedSet<Integer> supported = new TreeSet<>(config.uploadWidths);
+        for (ImageSize size : ImageSize.values()) {
+            supported.add(size.getWidth());
+        }
+        config.supportedWidths = Collections.unmodifiableSortedSet(supported);
+        LOG.info("Configured upload sizes = {}, encodings = {}, maximum pixels = {} ({} without subsampling)",
+                config.uploadWidths, config.uploadEncodings, config.uploadMaxPixels, config.uploadMaxFullDecodePixels);
+    }
+
+    /**
+     * Create a service for each storage. Clients of storages whose configuration didn't change are reused, all other
+     * clients are created in parallel (setting up a client and pre-opening connections can take a while).
+     */
+    private void generateStorageServices(PropertyResolver properties, Set<String> storageNames, RouteConfig config,
+                                         RouteConfig previous) {
+        Map<String, CompletableFuture<MediaReadStorageService>> toCreate = new LinkedHashMap<>();
+        int threads = Math.max(1, Math.min(storageNames.size(),
+                properties.getProperty(PROP_INIT_THREADS, Integer.class, DEFVAL_INIT_THREADS)));
+        ExecutorService executor = Executors.newFixedThreadPool(threads,
+                new CustomizableThreadFactory("storage-init-"));
+        try {
+            for (String name : storageNames) {
+                String fingerprint = getFingerprint(properties, name, config);
+                config.storageFingerprints.put(name, fingerprint);
+                if (previous != null && previous.storageNameToService.containsKey(name)
+                        && fingerprint.equals(previous.storageFingerprints.get(name))) {
+                    LOG.info("Configuration of storage {} unchanged, reusing client", name);
+                    config.storageNameToService.put(name, previous.storageNameToService.get(name));
+                    if (previous.httpClients.containsKey(name)) {
+                        config.httpClients.put(name, previous.httpClients.get(name));
+                    }
+                    if (previous.listers.containsKey(name)) {
+                        config.listers.put(name, previous.listers.get(name));
+                    }
+                } else {
+                    toCreate.put(name, CompletableFuture.supplyAsync(() -> {
+                        MediaReadStorageService service = createNewService(properties, name, config);
+                        preOpenConnections(properties, service);
+                        return service;
+                    }, executor));
+                }
+            }
+            // wait until all are done (also when one fails), so we don't leak any clients
+            CompletableFuture.allOf(toCreate.values().toArray(new CompletableFuture[0]))
+                    .exceptionally(e -> null)
+                    .join();
+            for (Map.Entry<String, CompletableFuture<MediaReadStorageService>> entry : toCreate.entrySet()) {
+                config.storageNameToService.put(entry.getKey(), entry.getValue().join());
+            }
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException re) {
+                throw re;
+            }
+            throw e;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Open a number of connections to a storage in advance by doing concurrent requests, so that TLS handshakes are
+     * done before we receive traffic. The connections remain available in the client's connection pool.
+     */
+    private void preOpenConnections(PropertyResolver properties, MediaReadStorageService service) {
+        if (service instanceof IiifImageReadServerImpl) {
+            return;
+        }
+        int connections = properties.getProperty(service.getName() + PROPERTY_SEPARATOR + PROP_S3_WARMUP_CONNECTIONS,
+                Integer.class, properties.getProperty(PROP_WARMUP_CONNECTIONS, Integer.class, 0));
+        if (connections <= 0) {
+            return;
+        }
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(connections,
+                new CustomizableThreadFactory("storage-warmup-"));
+        try {
+            List<Callable<Boolean>> checks = new ArrayList<>();
+            for (int i = 0; i < connections; i++) {
+                checks.add(() -> service.checkIfExists(WARMUP_ID));
             }
-            storageNameToService.put(name, service);
-            result.add(service);
+            for (Future<Boolean> check : executor.invokeAll(checks, WARMUP_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                check.get();
+            }
+            LOG.info("Opened {} connections to storage {} in {} ms", connections, service.getName(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        } catch (ExecutionException | CancellationException e) {
+            // not fatal, connections will be opened when needed
+            LOG.warn("Unable to pre-open connections to storage {}", service.getName(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
         }
-        return result;
     }
 
-    private MediaReadStorageService createNewService(String storageName, String logoUploadStorageName) {
+    /**
+     * Returns a string with all configuration values that are used to create the client of a storage, so we can
+     * determine if a client needs to be recreated when the configuration is reloaded
+     */
+    private String getFingerprint(PropertyResolver properties, String storageName, RouteConfig config) {
+        StringBuilder s = new StringBuilder(storageName);
+        String prefix = storageName + PROPERTY_SEPARATOR;
+        for (String property : STORAGE_PROPERTIES) {
+            s.append(VALUE_SEPARATOR).append(properties.getProperty(prefix + property));
+        }
+        if (storageName.equalsIgnoreCase(config.logoUploadStorageName)) {
+            s.append(VALUE_SEPARATOR).append(config.uploadWidths).append(config.uploadEncodings)
+                    .append(config.uploadMaxPixels).append(config.uploadMaxFullDecodePixels);
+        }
+        return s.toString();
+    }
+
+    private MediaReadStorageService createNewService(PropertyResolver properties, String storageName,
+                                                     RouteConfig config) {
         LOG.info("Setting up new client {}...", storageName);
         if (storageName.equalsIgnoreCase(IiifImageReadServerImpl.STORAGE_NAME)) {
             LOG.info("Creating IIIF Image Server client...");
-            return new IiifImageReadServerImpl();
+            String prefix = IiifImageReadServerImpl.STORAGE_NAME + PROPERTY_SEPARATOR;
+            Long connectTimeout = properties.getProperty(prefix + PROP_HTTP_CONNECT_TIMEOUT, Long.class,
+                    IiifImageReadServerImpl.DEFAULT_CONNECT_TIMEOUT.toMillis());
+            Long readTimeout = properties.getProperty(prefix + PROP_HTTP_READ_TIMEOUT, Long.class,
+                    IiifImageReadServerImpl.DEFAULT_READ_TIMEOUT.toMillis());
+            return new IiifImageReadServerImpl(Duration.ofMillis(connectTimeout), Duration.ofMillis(readTimeout),
+                    getMaxConnections(properties, storageName));
         }
 
-        String key = environment.getRequiredProperty(storageName + PROPERTY_SEPARATOR + PROP_S3_KEY);
-        String secret = environment.getRequiredProperty(storageName + PROPERTY_SEPARATOR + PROP_S3_SECRET);
-        String region = environment.getRequiredProperty(storageName + PROPERTY_SEPARATOR + PROP_S3_REGION);
-        String bucket = environment.getRequiredProperty(storageName + PROPERTY_SEPARATOR + PROP_S3_BUCKET);
-        String endpoint = environment.getProperty(storageName + PROPERTY_SEPARATOR + PROP_S3_ENDPOINT);
+        String filePath = properties.getProperty(storageName + PROPERTY_SEPARATOR + PROP_FILE_PATH);
+        if (!StringUtils.isBlank(filePath)) {
+            LOG.info("Creating file storage {}...", storageName);
+            Integer shardLevels = properties.getProperty(storageName + PROPERTY_SEPARATOR + PROP_FILE_SHARD_LEVELS,
+                    Integer.class, FileReadStorageServiceImpl.DEFAULT_SHARD_LEVELS);
+            FileReadStorageServiceImpl fileStorage = new FileReadStorageServiceImpl(storageName,
+                    Path.of(filePath.trim()), shardLevels);
+            config.listers.put(storageName, fileStorage);
+            return fileStorage;
+        }
+
+        String key = properties.getRequiredProperty(storageName + PROPERTY_SEPARATOR + PROP_S3_KEY);
+        String secret = properties.getRequiredProperty(storageName + PROPERTY_SEPARATOR + PROP_S3_SECRET);
+        String region = properties.getRequiredProperty(storageName + PROPERTY_SEPARATOR + PROP_S3_REGION);
+        String bucket = properties.getRequiredProperty(storageName + PROPERTY_SEPARATOR + PROP_S3_BUCKET);
+        String endpoint = properties.getProperty(storageName + PROPERTY_SEPARATOR + PROP_S3_ENDPOINT);
         URI endpointUri = null;
         if (!StringUtils.isBlank(endpoint)) {
             endpointUri = URI.create(endpoint);
         }
-         Integer maxConnections = environment.getProperty(storageName + PROPERTY_SEPARATOR + PROP_MAX_CONNECTIONS,
-                Integer.class, DEFVAL_MAX_CONNECTIONS);
+        int maxConnections = getMaxConnections(properties, storageName);
         ApacheHttpClient.Builder httpClientBuilder = ApacheHttpClient.builder();
-        if (maxConnections > 1) {
-            httpClientBuilder.maxConnections(maxConnections);
-            LOG.info("Configured maximum connections = {}", maxConnections);
+        httpClientBuilder.maxConnections(maxConnections);
+        LOG.info("Configured maximum connections = {}", maxConnections);
+        configureTimeouts(properties, storageName, httpClientBuilder);
+        SdkHttpClient httpClient = new PoolMetricsHttpClient(storageName, httpClientBuilder.build());
+        config.httpClients.put(storageName, httpClient);
+        if (!StringUtils.isBlank(properties.getProperty(PROP_LOCATION_INDEX_FILE))) {
+            config.listers.put(storageName, new S3BucketLister(storageName, key, secret, region, bucket, endpointUri,
+                    httpClient));
         }
 
         if (StringUtils.isEmpty(endpoint)) {
             LOG.info("Creating Amazon storage client {}...", storageName);
             return new eu.europeana.thumbnail.service.impl.MediaReadStorageServiceImpl(storageName, 
-                    new S3ObjectStorageClient(key, secret, region, bucket, httpClientBuilder.build()));
+                    new S3ObjectStorageClient(key, secret, region, bucket, httpClient), asyncExecutor);
         }
-        if (storageName.equalsIgnoreCase(logoUploadStorageName)) {
+        if (storageName.equalsIgnoreCase(config.logoUploadStorageName)) {
             LOG.info("Creating IBM read/write storage client {}...", storageName);
             return new UploadImageServiceImpl(storageName,
-                    new S3ObjectStorageClient(key, secret, region, bucket, endpointUri, httpClientBuilder.build()));
+                    new S3ObjectStorageClient(key, secret, region, bucket, endpointUri, httpClient), asyncExecutor,
+                    config.uploadWidths, config.uploadEncodings,
+                    new ImageDecoder(config.uploadMaxPixels, config.uploadMaxFullDecodePixels),
+                    List.<UploadListener>of(this::notifyUploadListeners));
+        }
+        if (properties.getProperty(storageName + PROPERTY_SEPARATOR + PROP_S3_WRITABLE, Boolean.class, false)) {
+            LOG.info("Creating IBM read/write storage client {}...", storageName);
+            return new MediaReadWriteStorageServiceImpl(storageName,
+                    new S3ObjectStorageClient(key, secret, region, bucket, endpointUri, httpClient), asyncExecutor);
         }
         LOG.info("Creating IBM read storage client {}...", storageName);
         return new eu.europeana.thumbnail.service.impl.MediaReadStorageServiceImpl(storageName,
-                new S3ObjectStorageClient(key, secret, region, bucket, endpointUri  , httpClientBuilder.build()));
+                new S3ObjectStorageClient(key, secret, region, bucket, endpointUri  , httpClient), asyncExecutor);
+    }
+
+    /**
+     * Set the connect, connection acquisition and read (socket) timeouts of a storage, if configured. Values are in ms.
+     * These timeouts should be lower than the request deadlines, so a slow storage fails fast instead of using up the
+     * time budget for the other storages.
+     */
+    private void configureTimeouts(PropertyResolver properties, String storageName,
+                                   ApacheHttpClient.Builder httpClientBuilder) {
+        String prefix = storageName + PROPERTY_SEPARATOR;
+        Long connectTimeout = properties.getProperty(prefix + PROP_S3_CONNECT_TIMEOUT, Long.class);
+        if (connectTimeout != null) {
+            httpClientBuilder.connectionTimeout(Duration.ofMillis(connectTimeout));
+        }
+        Long acquireTimeout = properties.getProperty(prefix + PROP_S3_ACQUIRE_TIMEOUT, Long.class);
+        if (acquireTimeout != null) {
+            httpClientBuilder.connectionAcquisitionTimeout(Duration.ofMillis(acquireTimeout));
+        }
+        Long readTimeout = properties.getProperty(prefix + PROP_S3_READ_TIMEOUT, Long.class);
+        if (readTimeout != null) {
+            httpClientBuilder.socketTimeout(Duration.ofMillis(readTimeout));
+        }
+        if (connectTimeout != null || acquireTimeout != null || readTimeout != null) {
+            LOG.info("Configured timeouts connect = {} ms, acquire = {} ms, read = {} ms", connectTimeout,
+                    acquireTimeout, readTimeout);
+        }
+    }
+
+    /**
+     * Returns the size of the connection pool of a storage. Values lower than 2 are ignored for S3 storages (the
+     * default is used instead).
+     * @return maximum number of connections, 0 for file storages
+     */
+    private static int getMaxConnections(PropertyResolver properties, String storageName) {
+        if (storageName.equalsIgnoreCase(IiifImageReadServerImpl.STORAGE_NAME)) {
+            return properties.getProperty(IiifImageReadServerImpl.STORAGE_NAME + PROPERTY_SEPARATOR
+                    + PROP_HTTP_MAX_CONNECTIONS, Integer.class, IiifImageReadServerImpl.DEFAULT_MAX_CONNECTIONS);
+        }
+        if (!StringUtils.isBlank(properties.getProperty(storageName + PROPERTY_SEPARATOR + PROP_FILE_PATH))) {
+            return 0;
+        }
+        int maxConnections = properties.getProperty(storageName + PROPERTY_SEPARATOR + PROP_MAX_CONNECTIONS,
+                Integer.class, DEFVAL_MAX_CONNECTIONS);
+        return maxConnections > 1 ? maxConnections : DEFVAL_MAX_CONNECTIONS;
     }
 
     /**
@@ -187,7 +700,7 @@ public class StorageRoutes {
      * @return String containing the default route
      */
     public String getDefaultRoute() {
-        return defaultRoute;
+        return current.defaultRoute;
     }
 
     /**
@@ -195,7 +708,77 @@ public class StorageRoutes {
      * @return service, or null if nothing was configured
      */
     public UploadImageService getUploadImageService() {
-        return (UploadImageService) storageNameToService.get(this.logoUploadStorageName);
+        RouteConfig config = current;
+        return (UploadImageService) config.storageNameToService.get(config.logoUploadStorageName);
+    }
+
+    /**
+     * Returns the encodings in which thumbnails of uploaded images are stored by a particular storage
+     * @param storageName name of the storage (can be null)
+     * @return list of encodings, or an empty list if the storage is not the upload storage
+     */
+    public List<ImageEncoding> getUploadEncodings(String storageName) {
+        RouteConfig config = current;
+        if (storageName == null || !storageName.equalsIgnoreCase(config.logoUploadStorageName)) {
+            return List.of();
+        }
+        return config.uploadEncodings;
+    }
+
+    /**
+     * Returns all thumbnail widths that can be requested, so the default 200 and 400 pixels plus any additional
+     * width that is generated when uploading an image
+     * @return sorted set of widths in pixels
+     */
+    public SortedSet<Integer> getSupportedWidths() {
+        return current.supportedWidths;
+    }
+
+    /**
+     * Returns all configured storages (each storage only once, even if it's used in multiple routes)
+     * @return collection of all storage services
+     */
+    public Collection<MediaReadStorageService> getStorages() {
+        return current.storageNameToService.values();
+    }
+
+    /**
+     * Returns all storages whose contents can be listed. S3 storages can only be listed if the location index is
+     * enabled.
+     * @return collection of listable storages
+     */
+    public Collection<ListableStorage> getListableStorages() {
+        return current.listers.values();
+    }
+
+    private static void closeLister(ListableStorage lister) {
+        if (lister instanceof S3BucketLister s3BucketLister) {
+            s3BucketLister.close();
+        }
+    }
+
+    /**
+     * Returns the Cache-Control header value that is configured for thumbnails from a particular storage
+     * @param storageName name of the storage
+     * @return Cache-Control header value, or null if nothing was configured (or storageName is null)
+     */
+    public String getCacheControl(String storageName) {
+        if (storageName == null) {
+            return null;
+        }
+        return current.cacheControls.get(storageName);
+    }
+
+    /**
+     * Returns the size of the connection pool of a particular storage
+     * @param storageName name of the storage
+     * @return maximum number of connections, 0 if unknown or not applicable (e.g. file storages)
+     */
+    public int getMaxConnections(String storageName) {
+        if (storageName == null) {
+            return 0;
+        }
+        return current.maxConnections.getOrDefault(storageName, 0);
     }
 
     /**
@@ -203,7 +786,30 @@ public class StorageRoutes {
      * @return Map of route names and ordered media storage service
      */
     public Map<String, List<MediaReadStorageService>> getRoutesMap() {
-        return routeToStorages;
+        return current.routeToStorages;
+    }
+
+    /**
+     * All routes and storages loaded from one version of the configuration
+     */
+    private static final class RouteConfig {
+        private String defaultRoute;
+        // The list of MediaStorageServices has to be an ordered list, so we can guarantee proper order of retrieval!
+        private final Map<String, List<MediaReadStorageService>> routeToStorages = new HashMap<>();
+        private final Map<String, MediaReadStorageService> storageNameToService = new HashMap<>();
+        private final Map<String, String> storageFingerprints = new HashMap<>();
+        private final Map<String, String> cacheControls = new HashMap<>();
+        private final Map<String, Integer> maxConnections = new HashMap<>();
+        // filled by multiple threads when creating clients in parallel
+        private final Map<String, SdkHttpClient> httpClients = new ConcurrentHashMap<>();
+        private final Map<String, ListableStorage> listers = new ConcurrentHashMap<>();
+
+        private String logoUploadStorageName;
+        private List<Integer> uploadWidths;
+        private List<ImageEncoding> uploadEncodings;
+        private long uploadMaxPixels;
+        private long uploadMaxFullDecodePixels;
+        private SortedSet<Integer> supportedWidths;
     }
 
 }
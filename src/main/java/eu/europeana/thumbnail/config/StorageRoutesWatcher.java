@@ -0,0 +1,107 @@
+package eu.europeana.thumbnail.config;
+
+import io.micrometer.core.instrument.Metrics;
+import jakarta.annotation.PreDestroy;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches a properties file (usually the mounted thumbnail.user.properties) and reloads all routes and storages when
+ * its contents change. Checking is done in a background thread, so reloading never delays requests.
+ * Note that in Kubernetes a file mounted using a subPath is never updated, so the file should be mounted as part of a
+ * directory instead.
+ */
+@Component
+public class StorageRoutesWatcher {
+
+    private static final Logger LOG = LogManager.getLogger(StorageRoutesWatcher.class);
+
+    private static final String METRIC_NAME = "thumbnail.config.reload";
+    private static final String TAG_RESULT = "result";
+
+    private final StorageRoutes storageRoutes;
+    private final Path file;
+    private ScheduledExecutorService executor;
+    private byte[] lastContent;
+
+    /**
+     * Initialize a new watcher
+     * @param storageRoutes the routes and storages to reload
+     * @param file path of the properties file to watch, if empty nothing is watched
+     * @param intervalMillis how often to check if the file changed
+     */
+    public StorageRoutesWatcher(StorageRoutes storageRoutes,
+                                @Value("${storage.reload.file:}") String file,
+                                @Value("${storage.reload.interval.ms:10000}") long intervalMillis) {
+        this.storageRoutes = storageRoutes;
+        if (StringUtils.isBlank(file) || intervalMillis <= 0) {
+            LOG.info("Reloading of routes and storages is disabled");
+            this.file = null;
+            return;
+        }
+        this.file = Path.of(file.trim());
+        this.lastContent = readFile();
+        this.executor = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("config-watcher-"));
+        this.executor.scheduleWithFixedDelay(this::checkForChanges, intervalMillis, intervalMillis,
+                TimeUnit.MILLISECONDS);
+        LOG.info("Checking {} for route and storage changes every {} ms", this.file, intervalMillis);
+    }
+
+    /**
+     * Reload the routes and storages if the contents of the watched file changed since the last check
+     */
+    void checkForChanges() {
+        byte[] content = readFile();
+        if (content == null || Arrays.equals(content, lastContent)) {
+            return;
+        }
+        LOG.info("Detected change in {}, reloading routes and storages...", file);
+        Properties properties = new Properties();
+        try (Reader reader = new StringReader(new String(content, StandardCharsets.UTF_8))) {
+            properties.load(reader);
+            storageRoutes.reload(properties);
+            Metrics.counter(METRIC_NAME, TAG_RESULT, "success").increment();
+        } catch (IOException | RuntimeException e) {
+            // keep using the old configuration, we only try again when the file changes again
+            LOG.error("Error reloading routes and storages from {}, keeping current configuration", file, e);
+            Metrics.counter(METRIC_NAME, TAG_RESULT, "failed").increment();
+        } finally {
+            lastContent = content;
+        }
+    }
+
+    private byte[] readFile() {
+        try {
+            return Files.readAllBytes(file);
+        } catch (IOException e) {
+            LOG.warn("Unable to read {}: {}", file, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Stop watching
+     */
+    @PreDestroy
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -1,18 +1,33 @@
 package eu.europeana.thumbnail.config;
 
+import eu.europeana.thumbnail.service.RateLimitService;
+import eu.europeana.thumbnail.web.RateLimitInterceptor;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.web.servlet.config.annotation.CorsRegistry;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
 /**
- * Setup CORS for all requests
+ * Setup CORS for all requests and rate limiting of thumbnail requests
  */
 @Configuration
 public class WebMvcConfig implements WebMvcConfigurer {
 
     private static final long CORS_MAX_AGE = 1000; // in seconds
+
+    private final ObjectProvider<RateLimitService> rateLimitService;
+
+    /**
+     * Initialize the web configuration
+     * @param rateLimitService provides the rate limit service (if available, it isn't in some tests)
+     */
+    public WebMvcConfig(ObjectProvider<RateLimitService> rateLimitService) {
+        this.rateLimitService = rateLimitService;
+    }
+
     /**
      * Setup CORS for all requests.
      */
@@ -31,4 +46,12 @@ public class WebMvcConfig implements WebMvcConfigurer {
                 .maxAge(CORS_MAX_AGE);
     }
 
+    /**
+     * Setup rate limiting of thumbnail requests
+     */
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        rateLimitService.ifAvailable(service -> registry.addInterceptor(new RateLimitInterceptor(service)));
+    }
+
 }
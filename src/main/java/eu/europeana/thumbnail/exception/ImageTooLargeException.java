@@ -0,0 +1,19 @@
+package eu.europeana.thumbnail.exception;
+
+import java.io.IOException;
+
+/**
+ * Exception thrown when an uploaded image has more pixels than we are willing to decode
+ */
+public class ImageTooLargeException extends IOException {
+
+    /**
+     * Initialize a new ImageTooLargeException
+     * @param width width of the image in pixels
+     * @param height height of the image in pixels
+     * @param maxPixels maximum number of pixels allowed
+     */
+    public ImageTooLargeException(int width, int height, long maxPixels) {
+        super("Image of " + width + "x" + height + " pixels is too large, the maximum is " + maxPixels + " pixels");
+    }
+}
@@ -0,0 +1,28 @@
+package eu.europeana.thumbnail.exception;
+
+import eu.europeana.api.commons_sb3.error.EuropeanaApiException;
+import org.springframework.http.HttpStatus;
+
+/**
+ * Error thrown when the time budget of a request was used up before we could determine if a thumbnail exists
+ */
+public class ThumbnailDeadlineExceededException extends EuropeanaApiException {
+
+    /**
+     * Initialize a new ThumbnailDeadlineExceededException (504)
+     * @param id the id of the requested file
+     */
+    public ThumbnailDeadlineExceededException(String id) {
+        super("Timeout retrieving media file " + id);
+    }
+
+    @Override
+    public boolean doLog() {
+        return false;
+    }
+
+    @Override
+    public HttpStatus getResponseStatus() {
+        return HttpStatus.GATEWAY_TIMEOUT;
+    }
+}
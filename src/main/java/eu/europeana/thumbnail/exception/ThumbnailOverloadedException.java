@@ -0,0 +1,28 @@
+package eu.europeana.thumbnail.exception;
+
+import eu.europeana.api.commons_sb3.error.EuropeanaApiException;
+import org.springframework.http.HttpStatus;
+
+/**
+ * Error thrown when a thumbnail wasn't found, but not all storages were checked because they are overloaded
+ */
+public class ThumbnailOverloadedException extends EuropeanaApiException {
+
+    /**
+     * Initialize a new ThumbnailOverloadedException (503)
+     * @param id the id of the requested file
+     */
+    public ThumbnailOverloadedException(String id) {
+        super("Too many requests to storage, unable to retrieve media file " + id);
+    }
+
+    @Override
+    public boolean doLog() {
+        return false;
+    }
+
+    @Override
+    public HttpStatus getResponseStatus() {
+        return HttpStatus.SERVICE_UNAVAILABLE;
+    }
+}
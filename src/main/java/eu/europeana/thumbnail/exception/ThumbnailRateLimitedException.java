@@ -0,0 +1,27 @@
+package eu.europeana.thumbnail.exception;
+
+import eu.europeana.api.commons_sb3.error.EuropeanaApiException;
+import org.springframework.http.HttpStatus;
+
+/**
+ * Error thrown when a client sends more thumbnail requests than allowed by its rate limit
+ */
+public class ThumbnailRateLimitedException extends EuropeanaApiException {
+
+    /**
+     * Initialize a new ThumbnailRateLimitedException (429)
+     */
+    public ThumbnailRateLimitedException() {
+        super("Too many requests, please try again later");
+    }
+
+    @Override
+    public boolean doLog() {
+        return false;
+    }
+
+    @Override
+    public HttpStatus getResponseStatus() {
+        return HttpStatus.TOO_MANY_REQUESTS;
+    }
+}
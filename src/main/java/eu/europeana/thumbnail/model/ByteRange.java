@@ -0,0 +1,78 @@
+package eu.europeana.thumbnail.model;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * A single byte range as requested in an HTTP Range header (see RFC 9110, section 14).
+ * @param start position of the first byte (inclusive)
+ * @param end position of the last byte (inclusive)
+ */
+public record ByteRange(long start, long end) {
+
+    /** Returned when a range was requested that doesn't overlap with the content */
+    public static final ByteRange UNSATISFIABLE = new ByteRange(-1, -1);
+
+    private static final String BYTES_UNIT = "bytes=";
+
+    /**
+     * Parse the value of a Range header. Only single ranges are supported, if multiple ranges are requested or the
+     * header is invalid the header should be ignored (and the full content returned).
+     * @param rangeHeader the value of the Range header
+     * @param contentLength the total length of the content
+     * @return the requested range, {@link #UNSATISFIABLE} if the range doesn't overlap with the content, or null if
+     * the header should be ignored
+     */
+    public static ByteRange parse(String rangeHeader, long contentLength) {
+        if (StringUtils.isBlank(rangeHeader) || !StringUtils.startsWithIgnoreCase(rangeHeader, BYTES_UNIT)
+                || rangeHeader.indexOf(',') >= 0) {
+            return null;
+        }
+        String spec = rangeHeader.substring(BYTES_UNIT.length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            if (first.isEmpty()) {
+                // suffix range, e.g. bytes=-500 for the last 500 bytes
+                long suffixLength = Long.parseLong(last);
+                if (suffixLength <= 0 || contentLength == 0) {
+                    return UNSATISFIABLE;
+                }
+                return new ByteRange(Math.max(0, contentLength - suffixLength), contentLength - 1);
+            }
+            long start = Long.parseLong(first);
+            long end = last.isEmpty() ? contentLength - 1 : Long.parseLong(last);
+            if (start < 0 || end < start) {
+                return null;
+            }
+            if (start >= contentLength) {
+                return UNSATISFIABLE;
+            }
+            end = Math.min(end, contentLength - 1);
+            return new ByteRange(start, end);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the number of bytes in this range
+     */
+    public long length() {
+        return end - start + 1;
+    }
+
+    /**
+     * @param contentLength the total length of the content
+     * @return value for the Content-Range header
+     */
+    public String toContentRange(long contentLength) {
+        if (this.equals(UNSATISFIABLE)) {
+            return "bytes */" + contentLength;
+        }
+        return "bytes " + start + "-" + end + "/" + contentLength;
+    }
+}
@@ -0,0 +1,90 @@
+package eu.europeana.thumbnail.model;
+
+/**
+ * Time budget for handling a single request. The remaining time can be split over the storages that still need to be
+ * checked, so one slow storage can't use up all the time. Optionally a small part of the budget is reserved for each
+ * of the later storages, so the first (primary) storage gets most of the time.
+ */
+public final class Deadline {
+
+    private static final Deadline NONE = new Deadline(Long.MAX_VALUE, 0);
+    private static final long NANO_TO_MS = 1_000_000L;
+
+    private final long expiresAt;
+    private final long reserveNanos;
+
+    private Deadline(long expiresAt, long reserveNanos) {
+        this.expiresAt = expiresAt;
+        this.reserveNanos = reserveNanos;
+    }
+
+    /**
+     * Create a new deadline of which the remaining time is divided evenly over the remaining operations
+     * @param millis the time budget in milliseconds, 0 or less means there is no deadline
+     * @return new deadline
+     */
+    public static Deadline after(long millis) {
+        return after(millis, 0);
+    }
+
+    /**
+     * Create a new deadline that gives the next operation all remaining time, except for a reserve for each of the
+     * operations after it
+     * @param millis the time budget in milliseconds, 0 or less means there is no deadline
+     * @param reserveMillis the time in milliseconds to keep for each later operation, 0 to divide the time evenly
+     * @return new deadline
+     */
+    public static Deadline after(long millis, long reserveMillis) {
+        if (millis <= 0) {
+            return NONE;
+        }
+        return new Deadline(System.nanoTime() + millis * NANO_TO_MS, Math.max(0, reserveMillis) * NANO_TO_MS);
+    }
+
+    /**
+     * @return a deadline that never expires
+     */
+    public static Deadline none() {
+        return NONE;
+    }
+
+    /**
+     * @return true if there is a time limit, false if this deadline never expires
+     */
+    public boolean hasLimit() {
+        return this != NONE;
+    }
+
+    /**
+     * @return remaining time in nanoseconds (0 if the deadline has expired)
+     */
+    public long remainingNanos() {
+        if (!hasLimit()) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, expiresAt - System.nanoTime());
+    }
+
+    /**
+     * @return true if there is no time left
+     */
+    public boolean isExpired() {
+        return remainingNanos() == 0;
+    }
+
+    /**
+     * Divide the remaining time over a number of operations that still need to be done. The next operation gets the
+     * remaining time minus the reserve of each later operation, but never less than an even share. Time that is left
+     * unused by one operation is automatically available for the next ones.
+     * @param remainingOperations the number of operations that still need to be done (including the next one)
+     * @return the time budget in nanoseconds for the next operation
+     */
+    public long sliceNanos(int remainingOperations) {
+        long remaining = remainingNanos();
+        if (!hasLimit() || remainingOperations <= 1) {
+            return remaining;
+        }
+        long evenShare = remaining / remainingOperations;
+        return Math.max(evenShare, remaining - reserveNanos * (remainingOperations - 1));
+    }
+}
@@ -0,0 +1,34 @@
+package eu.europeana.thumbnail.model;
+
+import eu.europeana.s3.S3Object;
+
+import java.nio.file.Path;
+
+/**
+ * Media stream of a file on the local file system. Apart from reading the stream, the file can also be sent directly
+ * by the servlet container (sendfile), so the contents don't have to be copied to the Java heap.
+ */
+public class FileMediaStream extends MediaStream {
+
+    private final Path file;
+
+    /**
+     * Create a new media stream for a local file
+     * @param id the id (hash) of the object
+     * @param originalUrl optional, the original url of the object (only available for v2 requests)
+     * @param s3Object object with an open stream to the file and its metadata
+     * @param storageName name of the storage that the file was retrieved from
+     * @param file the location of the file
+     */
+    public FileMediaStream(String id, String originalUrl, S3Object s3Object, String storageName, Path file) {
+        super(id, originalUrl, s3Object, storageName);
+        this.file = file;
+    }
+
+    /**
+     * @return the location of the file on the local file system
+     */
+    public Path getFile() {
+        return file;
+    }
+}
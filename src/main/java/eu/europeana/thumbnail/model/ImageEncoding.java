@@ -0,0 +1,27 @@
+package eu.europeana.thumbnail.model;
+
+/**
+ * An image format with the settings used to encode thumbnails of uploaded images
+ * @param format the image format
+ * @param quality the quality (0-100), not used for png
+ * @param effort the compression effort, see {@link ImageFormat#getWriter(int, int)}
+ * @param webpEncoder the encoder used for webp images, not used for other formats
+ */
+public record ImageEncoding(ImageFormat format, int quality, int effort, WebpEncoder webpEncoder) {
+
+    /**
+     * @param format the image format
+     * @return an encoding of the format with its default settings
+     */
+    public static ImageEncoding of(ImageFormat format) {
+        return new ImageEncoding(format, format.getDefaultQuality(), format.getDefaultEffort(), WebpEncoder.LIBWEBP);
+    }
+
+    /**
+     * @param s3ObjectId the id of a thumbnail (including width)
+     * @return the id under which the thumbnail is stored in this encoding, e.g. "[id]-LARGE.webp"
+     */
+    public String getObjectId(String s3ObjectId) {
+        return s3ObjectId + "." + format.getExtension();
+    }
+}
@@ -0,0 +1,119 @@
+package eu.europeana.thumbnail.model;
+
+import com.sksamuel.scrimage.nio.ImageWriter;
+import com.sksamuel.scrimage.nio.JpegWriter;
+import com.sksamuel.scrimage.nio.PngWriter;
+import com.sksamuel.scrimage.webp.WebpWriter;
+
+import java.util.Locale;
+
+/**
+ * Enumeration of image formats (encodings) that we can generate when an image is uploaded
+ */
+public enum ImageFormat {
+
+    // quality and effort defaults are the same as those of cwebp
+    WEBP("image/webp", 75, 4, true),
+    // effort is not used for jpeg
+    JPEG("image/jpeg", 80, 0, false),
+    // quality is not used for png, effort is the zlib compression level
+    PNG("image/png", 0, 9, false);
+
+    private final String mediaType;
+    private final int defaultQuality;
+    private final int defaultEffort;
+    private final boolean explicitAcceptRequired;
+
+    ImageFormat(String mediaType, int defaultQuality, int defaultEffort, boolean explicitAcceptRequired) {
+        this.mediaType = mediaType;
+        this.defaultQuality = defaultQuality;
+        this.defaultEffort = defaultEffort;
+        this.explicitAcceptRequired = explicitAcceptRequired;
+    }
+
+    /**
+     * @return the media type (content-type) of images in this format
+     */
+    public String getMediaType() {
+        return mediaType;
+    }
+
+    /**
+     * @return the extension used for object keys of images in this format, e.g. "webp"
+     */
+    public String getExtension() {
+        return name().toLowerCase(Locale.GERMAN);
+    }
+
+    /**
+     * @return the quality used if nothing is configured
+     */
+    public int getDefaultQuality() {
+        return defaultQuality;
+    }
+
+    /**
+     * @return the effort used if nothing is configured
+     */
+    public int getDefaultEffort() {
+        return defaultEffort;
+    }
+
+    /**
+     * Not all browsers that send a wildcard (e.g. image/*) in their Accept header support all formats, so some
+     * formats should only be sent to clients that explicitly list them
+     * @return true if the media type of this format needs to be listed explicitly in the Accept header
+     */
+    public boolean isExplicitAcceptRequired() {
+        return explicitAcceptRequired;
+    }
+
+    /**
+     * @return a Scrimage writer that generates images in this format, with default settings
+     */
+    public ImageWriter getWriter() {
+        return switch (this) {
+            case JPEG -> new JpegWriter(defaultQuality, true);
+            case PNG -> PngWriter.MaxCompression;
+            default -> WebpWriter.DEFAULT;
+        };
+    }
+
+    /**
+     * @param quality the quality (0-100), not used for png
+     * @param effort the compression effort, for webp 0 (fast) to 6 (slowest, smallest), for png the zlib compression
+     *               level 0 to 9. Not used for jpeg
+     * @return a Scrimage writer that generates images in this format with the provided settings
+     */
+    public ImageWriter getWriter(int quality, int effort) {
+        return switch (this) {
+            case JPEG -> new JpegWriter(quality, true);
+            case PNG -> new PngWriter(effort);
+            default -> WebpWriter.DEFAULT.withQ(quality).withM(effort);
+        };
+    }
+
+    /**
+     * Look up the image format by its name (case-insensitive)
+     * @param name the name of the format, e.g. "webp"
+     * @return matching ImageFormat
+     * @throws IllegalArgumentException when the name doesn't match any supported format
+     */
+    public static ImageFormat fromName(String name) {
+        return ImageFormat.valueOf(name.trim().toUpperCase(Locale.GERMAN));
+    }
+
+    /**
+     * Look up the image format by its media type
+     * @param mediaType the media type, e.g. "image/webp" (can be null)
+     * @return matching ImageFormat, or null if there is no match
+     */
+    public static ImageFormat fromMediaType(String mediaType) {
+        for (ImageFormat format : values()) {
+            if (format.mediaType.equalsIgnoreCase(mediaType)) {
+                return format;
+            }
+        }
+        return null;
+    }
+}
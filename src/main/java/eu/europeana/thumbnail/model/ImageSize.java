@@ -19,4 +19,18 @@ public enum ImageSize {
     public int getWidth() {
         return width;
     }
+
+    /**
+     * Look up the image size with the provided width
+     * @param width the width in pixels
+     * @return matching ImageSize, or null if there is no predefined size with that width
+     */
+    public static ImageSize fromWidth(int width) {
+        for (ImageSize size : values()) {
+            if (size.width == width) {
+                return size;
+            }
+        }
+        return null;
+    }
 }
@@ -17,6 +17,7 @@ public class MediaStream {
     private final String id;
     private final String originalUrl;
     private final S3Object s3Object;
+    private final String storageName;
 
     private boolean closed = false;
 
@@ -27,8 +28,20 @@ public class MediaStream {
      * @param s3Object the retrieved object from S3 storage
      */
     public MediaStream(String id, String originalUrl, S3Object s3Object) {
+        this(id, originalUrl, s3Object, null);
+    }
+
+    /**
+     * Create a new media stream based on an object retrieved from a storage.
+     * @param id the id (hash) of the object
+     * @param originalUrl optional, the original url of the object (only available for v2 requests)
+     * @param s3Object the retrieved object from S3 storage
+     * @param storageName optional, name of the storage that the object was retrieved from
+     */
+    public MediaStream(String id, String originalUrl, S3Object s3Object, String storageName) {
         this.id = id;
         this.originalUrl = originalUrl;
+        this.storageName = storageName;
         this.s3Object = s3Object;
     }
 
@@ -46,6 +59,13 @@ public class MediaStream {
         return originalUrl;
     }
 
+    /**
+     * @return the name of the storage the object was retrieved from, null if unknown (e.g. for default icons)
+     */
+    public String getStorageName() {
+        return storageName;
+    }
+
     /**
      * @return the stored S3 object
      */
@@ -114,6 +134,8 @@ public class MediaStream {
     /**
      * Close the stream to the S3 Object. This must be done manually when the object is not sent out to a client
      * Failure to do so will result in connection leaks and eventually lack of connections in S3's connection pool.
+     * Leaking network streams (see {@link MediaStreamTracker#track(String, S3Object)}) are closed by the tracker, but
+     * only after they become unreachable or exceed the maximum open time.
      */
     public void close() {
         try {
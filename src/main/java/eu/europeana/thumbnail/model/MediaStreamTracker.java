@@ -0,0 +1,218 @@
+package eu.europeana.thumbnail.model;
+
+import eu.europeana.s3.S3Object;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.Cleaner;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps track of the input streams of open media streams that hold a network connection (S3 and IIIF). Such a stream
+ * that isn't closed keeps its connection leased, so leaking streams eventually exhausts the connection pool of a
+ * storage. In-memory streams (e.g. from the local cache) don't hold any resources and are not tracked. To prevent
+ * leaks:
+ * <ul>
+ *     <li>streams that are garbage collected without being closed are closed by a {@link Cleaner}</li>
+ *     <li>streams that are open longer than the maximum open time are closed by {@link #closeExpired(long)}</li>
+ * </ul>
+ * In both cases a warning is logged that includes where the stream was opened (if enabled, see
+ * {@link #setRecordOrigin(boolean)}).
+ */
+public final class MediaStreamTracker {
+
+    private static final Logger LOG = LogManager.getLogger(MediaStreamTracker.class);
+
+    private static final String METRIC_LEAKS = "thumbnail.stream.leaks";
+    private static final String TAG_REASON = "reason";
+
+    private static final Cleaner CLEANER = Cleaner.create();
+    private static final Set<State> OPEN = ConcurrentHashMap.newKeySet();
+    private static final Counter UNREACHABLE = Metrics.counter(METRIC_LEAKS, TAG_REASON, "unreachable");
+    private static final Counter EXPIRED = Metrics.counter(METRIC_LEAKS, TAG_REASON, "expired");
+
+    private static volatile boolean recordOrigin = false;
+
+    private MediaStreamTracker() {
+        // static helper class
+    }
+
+    /**
+     * Start tracking the stream of an object retrieved from a storage. This should only be used for streams that hold a
+     * network connection
+     * @param id the id of the object, used for logging
+     * @param object the retrieved object (can be null)
+     * @return an object with the same metadata and a tracked stream, or the provided object if it has no stream
+     */
+    public static S3Object track(String id, S3Object object) {
+        if (object == null || object.inputStream() == null) {
+            return object;
+        }
+        return new S3Object(id, track(id, object.inputStream()), object.metadata());
+    }
+
+    /**
+     * Start tracking the provided stream
+     * @param id the id of the media stream, used for logging
+     * @param in the stream to track
+     * @return a wrapper around the provided stream that should be used instead of the provided stream
+     */
+    static InputStream track(String id, InputStream in) {
+        State state = new State(id, in, recordOrigin ? new Throwable("MediaStream " + id + " opened here") : null);
+        TrackedInputStream tracked = new TrackedInputStream(in, state);
+        // the cleaning action (state) must not refer to the tracked stream, otherwise it never becomes unreachable
+        tracked.cleanable = CLEANER.register(tracked, state);
+        OPEN.add(state);
+        return tracked;
+    }
+
+    /**
+     * Register an action that is run once when a tracked stream is released, regardless of whether it's closed
+     * normally, because it expired or because it became unreachable. If the stream was already released the action is
+     * run right away.
+     * @param in the stream (can be null)
+     * @param action the action to run
+     * @return true if the stream is tracked and the action is registered, false if the stream is not tracked (in
+     * which case the action is not run)
+     */
+    public static boolean onRelease(InputStream in, Runnable action) {
+        if (in instanceof TrackedInputStream tracked) {
+            tracked.state.addReleaseAction(action);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Close all streams that are open longer than the provided time
+     * @param maxOpenNanos maximum time a stream may be open (in nanoseconds)
+     * @return the number of closed streams
+     */
+    public static int closeExpired(long maxOpenNanos) {
+        long now = System.nanoTime();
+        int closed = 0;
+        for (State state : OPEN) {
+            if (now - state.openedAt > maxOpenNanos && state.release()) {
+                LOG.warn("MediaStream {} was open for more than {} ms, closing it", state.id,
+                        TimeUnit.NANOSECONDS.toMillis(maxOpenNanos), state.origin);
+                EXPIRED.increment();
+                state.closeQuietly();
+                closed++;
+            }
+        }
+        return closed;
+    }
+
+    /**
+     * @return the number of streams that are currently open
+     */
+    public static int getOpenCount() {
+        return OPEN.size();
+    }
+
+    /**
+     * Set whether the location where a stream is opened should be recorded. This is included in leak warnings, but
+     * creating a stack trace for each stream has a (small) cost.
+     * @param record true to record where streams are opened, otherwise false
+     */
+    public static void setRecordOrigin(boolean record) {
+        recordOrigin = record;
+    }
+
+    /**
+     * Tracking state of a single stream, also the cleaning action that is run when the stream is unreachable
+     */
+    private static final class State implements Runnable {
+
+        private final String id;
+        private final InputStream in;
+        private final Throwable origin;
+        private final long openedAt = System.nanoTime();
+        private final AtomicBoolean released = new AtomicBoolean();
+        // guarded by this
+        private final List<Runnable> releaseActions = new ArrayList<>(1);
+
+        private State(String id, InputStream in, Throwable origin) {
+            this.id = id;
+            this.in = in;
+            this.origin = origin;
+        }
+
+        /**
+         * @return true if the stream was still open, false if it was already released
+         */
+        private boolean release() {
+            if (released.compareAndSet(false, true)) {
+                OPEN.remove(this);
+                List<Runnable> actions;
+                synchronized (this) {
+                    actions = List.copyOf(releaseActions);
+                }
+                actions.forEach(Runnable::run);
+                return true;
+            }
+            return false;
+        }
+
+        private void addReleaseAction(Runnable action) {
+            synchronized (this) {
+                if (!released.get()) {
+                    releaseActions.add(action);
+                    return;
+                }
+            }
+            action.run();
+        }
+
+        private void closeQuietly() {
+            try {
+                in.close();
+            } catch (IOException | RuntimeException e) {
+                LOG.debug("Error closing leaked MediaStream {}", id, e);
+            }
+        }
+
+        @Override
+        public void run() {
+            if (release()) {
+                LOG.warn("MediaStream {} was not closed", id, origin);
+                UNREACHABLE.increment();
+                closeQuietly();
+            }
+        }
+    }
+
+    /**
+     * Stream that stops tracking when it's closed
+     */
+    private static final class TrackedInputStream extends FilterInputStream {
+
+        private final State state;
+        private Cleaner.Cleanable cleanable;
+
+        private TrackedInputStream(InputStream in, State state) {
+            super(in);
+            this.state = state;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                state.release();
+                cleanable.clean();
+            }
+        }
+    }
+}
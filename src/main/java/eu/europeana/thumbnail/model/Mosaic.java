@@ -0,0 +1,43 @@
+package eu.europeana.thumbnail.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.util.List;
+
+/**
+ * A sprite image in which multiple thumbnails are combined, plus the position of each thumbnail in the image. Only the
+ * image size and positions are serialized to JSON.
+ * @param data the encoded image
+ * @param mediaType the media type of the encoded image
+ * @param eTag the ETag of the encoded image
+ * @param complete false if not all storages could be checked for one or more thumbnails (e.g. because of a timeout)
+ * @param createdAt the time the mosaic was generated (in ms since the epoch)
+ * @param width width of the image in pixels
+ * @param height height of the image in pixels
+ * @param tiles the position of each requested thumbnail, in the requested order
+ */
+public record Mosaic(@JsonIgnore byte[] data, @JsonIgnore String mediaType, @JsonIgnore String eTag,
+                     @JsonIgnore boolean complete, @JsonIgnore long createdAt, int width, int height,
+                     List<Tile> tiles) {
+
+    /**
+     * The position of a thumbnail in a mosaic
+     * @param id the id of the thumbnail (without width)
+     * @param x horizontal offset in pixels, null if the thumbnail wasn't found
+     * @param y vertical offset in pixels, null if the thumbnail wasn't found
+     * @param width width in pixels, null if the thumbnail wasn't found
+     * @param height height in pixels, null if the thumbnail wasn't found
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public record Tile(String id, Integer x, Integer y, Integer width, Integer height) {
+
+        /**
+         * @return true if the thumbnail was found and is part of the mosaic, otherwise false
+         */
+        @JsonIgnore
+        public boolean isPresent() {
+            return x != null;
+        }
+    }
+}
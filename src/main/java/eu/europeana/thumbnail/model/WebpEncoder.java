@@ -0,0 +1,28 @@
+package eu.europeana.thumbnail.model;
+
+import java.util.Locale;
+
+/**
+ * Enumeration of the encoders that can be used to generate webp images
+ */
+public enum WebpEncoder {
+
+    /**
+     * In-process encoding with libwebp (via JNI), falls back to CWEBP if libwebp can't be loaded on this platform
+     */
+    LIBWEBP,
+    /**
+     * Scrimage's writer, which writes the image to a temporary file and runs the bundled cwebp binary
+     */
+    CWEBP;
+
+    /**
+     * Look up the encoder by its name (case-insensitive)
+     * @param name the name of the encoder, e.g. "libwebp"
+     * @return matching WebpEncoder
+     * @throws IllegalArgumentException when the name doesn't match any encoder
+     */
+    public static WebpEncoder fromName(String name) {
+        return WebpEncoder.valueOf(name.trim().toUpperCase(Locale.GERMAN));
+    }
+}
@@ -0,0 +1,84 @@
+package eu.europeana.thumbnail.service;
+
+import eu.europeana.thumbnail.model.MediaStream;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Asynchronous variant of {@link MediaReadStorageService}, so calls to multiple storages can be composed (e.g. done
+ * in parallel) without blocking the calling thread. Errors are reported by completing the returned future
+ * exceptionally, a missing file results in an empty Optional.
+ *
+ * Storages that only implement the synchronous interface can be used via {@link #adapt(MediaReadStorageService,
+ * Executor)}.
+ */
+public interface AsyncMediaReadStorageService {
+
+    /**
+     * Retrieves a file from media storage given its id
+     *
+     * @param id the id of the file
+     * @param originalUrl the original url of the file, optional for S3 storage, required for IiifImageServer
+     * @return future that completes with the file (metadata and image content as a stream), or an empty Optional
+     * if the file wasn't found. The stream must be closed if it's not used.
+     */
+    CompletableFuture<Optional<MediaStream>> retrieveAsync(String id, String originalUrl);
+
+    /**
+     * Retrieves only the metadata of a file (e.g. content length, ETag, Last-Modified), see the constants in
+     * {@link eu.europeana.s3.S3Object} for the available keys
+     *
+     * @param id the id of the file
+     * @return future that completes with the metadata of the file, or an empty Optional if the file wasn't found
+     */
+    CompletableFuture<Optional<Map<String, Object>>> retrieveMetadataAsync(String id);
+
+    /**
+     * Checks for multiple files if they are present in the media storage
+     *
+     * @param ids the ids of the files to check
+     * @return future that completes with a map containing for each id whether the file is present
+     */
+    CompletableFuture<Map<String, Boolean>> existsAsync(Collection<String> ids);
+
+    /**
+     * Return the name of this storage, as used in the configuration
+     *
+     * @return name of this storage
+     */
+    String getName();
+
+    /**
+     * Return an asynchronous version of a storage
+     * @param storage the storage to use
+     * @param executor executor for calling the storage, only used if the storage is synchronous
+     * @return the storage itself if it implements the asynchronous interface, otherwise an adapter that calls the
+     * synchronous storage using the provided executor
+     */
+    static AsyncMediaReadStorageService adapt(MediaReadStorageService storage, Executor executor) {
+        if (storage instanceof AsyncMediaReadStorageService async) {
+            return async;
+        }
+        return new SyncStorageAdapter(storage, executor);
+    }
+
+    /**
+     * Combine the futures of multiple calls (e.g. for a batch operation) into one
+     * @param futures map of futures, for example with the id of the file as key
+     * @param <T> result type of the individual futures
+     * @return future that completes with a map containing the result for each key when all futures are completed, or
+     * that completes exceptionally if any of the futures does
+     */
+    static <T> CompletableFuture<Map<String, T>> collect(Map<String, CompletableFuture<T>> futures) {
+        return CompletableFuture.allOf(futures.values().toArray(new CompletableFuture[0])).thenApply(done -> {
+            Map<String, T> result = new LinkedHashMap<>();
+            futures.forEach((key, future) -> result.put(key, future.join()));
+            return result;
+        });
+    }
+}
@@ -0,0 +1,130 @@
+package eu.europeana.thumbnail.service;
+
+import io.micrometer.core.instrument.Metrics;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Service;
+
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Purges thumbnails from the CDN when they are (re)placed by the upload functionality, so the CDN doesn't keep
+ * serving the previous version (or a cached 404) until it expires. Thumbnails are purged by surrogate key, which is
+ * the thumbnail id (including width), see ControllerUtils.addSurrogateKeys().
+ *
+ * Purging is done by sending a request to the configured url in which {key} is replaced by the surrogate key, for
+ * example https://api.fastly.com/service/{service-id}/purge/{key}. Optionally a token is sent in a header.
+ *
+ * This listener is ordered last, so local caches are invalidated before the CDN retrieves the new version.
+ */
+@Service
+@Order(Ordered.LOWEST_PRECEDENCE)
+public class CdnPurgeService implements UploadListener {
+
+    private static final Logger LOG = LogManager.getLogger(CdnPurgeService.class);
+
+    private static final String KEY_PLACEHOLDER = "{key}";
+    private static final String METRIC_NAME = "thumbnail.cdn.purge";
+    private static final String TAG_RESULT = "result";
+    private static final int HTTP_OK_MIN = 200;
+    private static final int HTTP_OK_MAX = 299;
+
+    private final String purgeUrl;
+    private final String method;
+    private final String tokenHeader;
+    private final String token;
+    private final Duration timeout;
+    private final HttpClient httpClient;
+
+    /**
+     * Initialize a new CDN purge service
+     * @param purgeUrl url that purges a surrogate key, {key} is replaced by the key. If empty, nothing is purged
+     * @param method the http method of purge requests
+     * @param tokenHeader name of the header in which the token is sent
+     * @param token optional, token for authenticating purge requests
+     * @param timeoutMillis maximum time in ms to wait for the CDN to respond
+     */
+    public CdnPurgeService(@Value("${cdn.purge.url:}") String purgeUrl,
+                           @Value("${cdn.purge.method:POST}") String method,
+                           @Value("${cdn.purge.token.header:Fastly-Key}") String tokenHeader,
+                           @Value("${cdn.purge.token:}") String token,
+                           @Value("${cdn.purge.timeout.ms:5000}") long timeoutMillis) {
+        this.method = method;
+        this.tokenHeader = tokenHeader;
+        this.token = token;
+        this.timeout = Duration.ofMillis(timeoutMillis);
+        if (StringUtils.isBlank(purgeUrl)) {
+            LOG.info("CDN purging is disabled");
+            this.purgeUrl = null;
+            this.httpClient = null;
+            return;
+        }
+        this.purgeUrl = purgeUrl.trim();
+        this.httpClient = HttpClient.newBuilder()
+                .connectTimeout(timeout)
+                .build();
+        LOG.info("Uploaded thumbnails are purged from the CDN using {} {}", method, this.purgeUrl);
+    }
+
+    /**
+     * @return true if CDN purging is configured, otherwise false
+     */
+    public boolean isEnabled() {
+        return purgeUrl != null;
+    }
+
+    /**
+     * Purge the uploaded thumbnail from the CDN
+     * @see UploadListener#uploaded(String, String)
+     */
+    @Override
+    public void uploaded(String storageName, String id) {
+        if (isEnabled()) {
+            purge(id);
+        }
+    }
+
+    /**
+     * Send a request to the CDN to purge all content tagged with the provided surrogate key. The request is sent
+     * asynchronously, failures are logged but otherwise ignored.
+     * @param key the surrogate key to purge
+     * @return future that completes with true if the CDN confirmed the purge, otherwise false
+     */
+    public CompletableFuture<Boolean> purge(String key) {
+        if (!isEnabled()) {
+            return CompletableFuture.completedFuture(false);
+        }
+        HttpRequest.Builder request = HttpRequest.newBuilder()
+                .uri(URI.create(purgeUrl.replace(KEY_PLACEHOLDER, URLEncoder.encode(key, StandardCharsets.UTF_8))))
+                .timeout(timeout)
+                .method(method, HttpRequest.BodyPublishers.noBody());
+        if (StringUtils.isNotBlank(token)) {
+            request.header(tokenHeader, token);
+        }
+        return httpClient.sendAsync(request.build(), HttpResponse.BodyHandlers.discarding())
+                .handle((response, e) -> {
+                    boolean success = e == null && response.statusCode() >= HTTP_OK_MIN
+                            && response.statusCode() <= HTTP_OK_MAX;
+                    if (success) {
+                        LOG.debug("Purged {} from CDN", key);
+                    } else if (e == null) {
+                        LOG.warn("Error purging {} from CDN, status = {}", key, response.statusCode());
+                    } else {
+                        LOG.warn("Error purging {} from CDN", key, e);
+                    }
+                    Metrics.counter(METRIC_NAME, TAG_RESULT, success ? "success" : "failed").increment();
+                    return success;
+                });
+    }
+}
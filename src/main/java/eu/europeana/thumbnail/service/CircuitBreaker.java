@@ -0,0 +1,168 @@
+package eu.europeana.thumbnail.service;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Simple circuit breaker that keeps track of the outcome of the most recent calls to a storage. Calls that fail or
+ * take longer than the slow call threshold are counted as failures. When the failure rate in the window exceeds the
+ * threshold, the breaker opens and no calls are allowed. After the open duration has passed the breaker becomes
+ * half-open: either a successful background probe closes it, or a single trial call is allowed to decide whether it
+ * closes or opens again.
+ */
+public class CircuitBreaker {
+
+    /**
+     * Possible states of a circuit breaker
+     */
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final String name;
+    private final int minimumCalls;
+    private final int failureRatePercentage;
+    private final long slowCallNanos;
+    private final long openNanos;
+
+    // ring buffer with the outcome of the most recent calls (true = failure)
+    private final boolean[] window;
+    private int windowPosition;
+    private int windowCount;
+    private int failureCount;
+
+    private volatile State state = State.CLOSED;
+    private volatile long openedAt;
+    private final AtomicBoolean trialInProgress = new AtomicBoolean(false);
+
+    /**
+     * Create a new circuit breaker
+     * @param name name of the storage that this breaker protects
+     * @param windowSize number of most recent calls that are used to calculate the failure rate
+     * @param minimumCalls minimum number of calls in the window before the breaker can open
+     * @param failureRatePercentage percentage of failed (or slow) calls in the window at which the breaker opens
+     * @param slowCallMillis calls taking longer than this are counted as failed
+     * @param openMillis time the breaker stays open before it becomes half-open
+     */
+    public CircuitBreaker(String name, int windowSize, int minimumCalls, int failureRatePercentage, long slowCallMillis,
+                          long openMillis) {
+        this.name = name;
+        this.window = new boolean[windowSize];
+        this.minimumCalls = Math.min(minimumCalls, windowSize);
+        this.failureRatePercentage = failureRatePercentage;
+        this.slowCallNanos = slowCallMillis * 1_000_000L;
+        this.openNanos = openMillis * 1_000_000L;
+    }
+
+    /**
+     * @return true if a call to the storage is allowed, false if the storage should be skipped
+     */
+    public boolean allowRequest() {
+        State current = state;
+        if (current == State.CLOSED) {
+            return true;
+        }
+        if (current == State.OPEN) {
+            if (System.nanoTime() - openedAt < openNanos) {
+                return false;
+            }
+            toHalfOpen();
+        }
+        // half-open: only allow one trial call at a time
+        return trialInProgress.compareAndSet(false, true);
+    }
+
+    /**
+     * Register a call that completed without error
+     * @param durationNanos duration of the call in nanoseconds
+     */
+    public synchronized void recordSuccess(long durationNanos) {
+        boolean slow = durationNanos > slowCallNanos;
+        if (state == State.HALF_OPEN) {
+            if (slow) {
+                open();
+            } else {
+                close();
+            }
+        } else if (state == State.CLOSED) {
+            record(slow);
+        }
+    }
+
+    /**
+     * Register a call that failed
+     */
+    public synchronized void recordFailure() {
+        if (state == State.HALF_OPEN) {
+            open();
+        } else if (state == State.CLOSED) {
+            record(true);
+        }
+    }
+
+    /**
+     * Register the result of a background probe of the storage, done while the breaker was not closed
+     * @param success true if the probe was successful, otherwise false
+     */
+    public synchronized void recordProbe(boolean success) {
+        if (state == State.CLOSED) {
+            return;
+        }
+        if (success) {
+            close();
+        } else {
+            open();
+        }
+    }
+
+    private void record(boolean failure) {
+        if (windowCount == window.length) {
+            if (window[windowPosition]) {
+                failureCount--;
+            }
+        } else {
+            windowCount++;
+        }
+        window[windowPosition] = failure;
+        if (failure) {
+            failureCount++;
+        }
+        windowPosition = (windowPosition + 1) % window.length;
+
+        if (windowCount >= minimumCalls && failureCount * 100 >= failureRatePercentage * windowCount) {
+            open();
+        }
+    }
+
+    private synchronized void toHalfOpen() {
+        if (state == State.OPEN) {
+            state = State.HALF_OPEN;
+            trialInProgress.set(false);
+        }
+    }
+
+    private void open() {
+        openedAt = System.nanoTime();
+        state = State.OPEN;
+        trialInProgress.set(false);
+    }
+
+    private void close() {
+        windowPosition = 0;
+        windowCount = 0;
+        failureCount = 0;
+        state = State.CLOSED;
+        trialInProgress.set(false);
+    }
+
+    /**
+     * @return the name of the storage protected by this breaker
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the current state of the breaker
+     */
+    public State getState() {
+        return state;
+    }
+}
@@ -0,0 +1,126 @@
+package eu.europeana.thumbnail.service;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Adaptive limit of the number of concurrent calls to a storage (AIMD: additive increase, multiplicative decrease).
+ * Every call that completes in time while at least half of the limit is in use raises the limit by one. Every call
+ * that fails or takes longer than the latency threshold lowers the limit by the backoff ratio. That way the limit
+ * follows what the storage can handle, and calls that exceed it are rejected right away instead of queueing for a
+ * connection.
+ */
+public class ConcurrencyLimiter {
+
+    private final String name;
+    private final int minLimit;
+    private volatile int maxLimit;
+    private final long latencyThresholdNanos;
+    private final double backoffRatio;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile int limit;
+
+    /**
+     * Create a new concurrency limiter
+     * @param name name of the storage that this limiter protects
+     * @param initialLimit the limit to start with
+     * @param minLimit the limit is never lowered below this
+     * @param maxLimit the limit is never raised above this
+     * @param latencyThresholdMillis calls taking longer than this lower the limit
+     * @param backoffRatio the limit is multiplied by this when a call fails or is slow (between 0 and 1)
+     */
+    public ConcurrencyLimiter(String name, int initialLimit, int minLimit, int maxLimit, long latencyThresholdMillis,
+                              double backoffRatio) {
+        this.name = name;
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.latencyThresholdNanos = latencyThresholdMillis * 1_000_000L;
+        this.backoffRatio = backoffRatio;
+        this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+    }
+
+    /**
+     * Try to start a call
+     * @return true if the call is allowed, false if the limit is reached. Every allowed call should be followed by a
+     * call to release()
+     */
+    public boolean tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= limit) {
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Register that a call finished and adjust the limit
+     * @param durationNanos the duration of the call in nanoseconds
+     * @param success true if the call completed without errors (regardless of whether a file was found)
+     */
+    public void release(long durationNanos, boolean success) {
+        int current = inFlight.getAndDecrement();
+        if (!success || durationNanos > latencyThresholdNanos) {
+            decrease();
+        } else if (current * 2 >= limit) {
+            // only raise the limit when it's actually used, otherwise it would grow without bounds in quiet times
+            increase();
+        }
+    }
+
+    /**
+     * Give back a permit of a call that wasn't made after all, without adjusting the limit
+     */
+    public void cancel() {
+        inFlight.decrementAndGet();
+    }
+
+    private synchronized void decrease() {
+        limit = Math.max(minLimit, (int) (limit * backoffRatio));
+    }
+
+    private synchronized void increase() {
+        if (limit < maxLimit) {
+            limit++;
+        }
+    }
+
+    /**
+     * Change the maximum limit, e.g. when the size of the storage's connection pool changed. If the current limit is
+     * higher it's lowered right away.
+     * @param newMaxLimit the limit is never raised above this (never lower than the minimum limit)
+     */
+    public synchronized void setMaxLimit(int newMaxLimit) {
+        maxLimit = Math.max(minLimit, newMaxLimit);
+        limit = Math.min(limit, maxLimit);
+    }
+
+    /**
+     * @return the highest value the limit can have
+     */
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    /**
+     * @return the current maximum number of concurrent calls
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return the number of calls in progress
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ConcurrencyLimiter " + name + " (limit = " + limit + ", in flight = " + inFlight.get() + ")";
+    }
+}
@@ -0,0 +1,401 @@
+package eu.europeana.thumbnail.service;
+
+import eu.europeana.thumbnail.model.MediaStream;
+import jakarta.annotation.PreDestroy;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps track of the most requested thumbnails (the hot set) and periodically writes their ids, original urls and
+ * ETags to a snapshot file. When the application starts, the thumbnails in the snapshot are loaded into the local
+ * cache in the background, so a restart doesn't result in a burst of requests to the storages. The original url is
+ * needed to load thumbnails from an IIIF image server; the ETag is used to report thumbnails that changed since the
+ * snapshot was written.
+ *
+ * This class is also a health indicator that is included in the readiness group, so the readiness probe only reports
+ * UP after prefetching has finished (or timed out).
+ */
+@Service("hotset")
+public class HotSetService implements HealthIndicator, SmartLifecycle {
+
+    private static final Logger LOG = LogManager.getLogger(HotSetService.class);
+
+    /** Identifies a hot-set snapshot file */
+    static final int MAGIC = 0x54485353; // "THSS"
+    /** Current version of the snapshot file format */
+    static final int VERSION = 2;
+    /** Previous version of the snapshot file format, without original urls */
+    static final int VERSION_WITHOUT_URL = 1;
+
+    private static final int MAX_TRACKED_FACTOR = 10;
+
+    private final StoragesService storagesService;
+    private final LocalCacheService localCacheService;
+    private final Path file;
+    private final int size;
+    private final int prefetchThreads;
+    private final long prefetchTimeoutMillis;
+
+    private final Map<String, HotSetEntry> tracked = new ConcurrentHashMap<>();
+    private PausableScheduler scheduler;
+    private volatile boolean prefetchFinished;
+
+    /**
+     * Initialize a new hot-set service
+     * @param storagesService service for finding the storages of a route
+     * @param localCacheService cache in which the hot set is loaded at startup
+     * @param file location of the snapshot file, if empty the hot set isn't tracked
+     * @param size number of thumbnails in the hot set
+     * @param snapshotIntervalMillis how often a snapshot is written
+     * @param prefetchThreads maximum number of concurrent requests when loading the hot set into the cache
+     * @param prefetchTimeoutMillis maximum time to wait for the hot set to be loaded before reporting ready
+     */
+    @SuppressWarnings("java:S107") // all parameters are configuration values
+    public HotSetService(StoragesService storagesService, LocalCacheService localCacheService,
+                         @Value("${hotset.file:}") String file,
+                         @Value("${hotset.size:1000}") int size,
+                         @Value("${hotset.snapshot.interval.ms:300000}") long snapshotIntervalMillis,
+                         @Value("${hotset.prefetch.threads:4}") int prefetchThreads,
+                         @Value("${hotset.prefetch.timeout.ms:30000}") long prefetchTimeoutMillis) {
+        this.storagesService = storagesService;
+        this.localCacheService = localCacheService;
+        this.size = size;
+        this.prefetchThreads = Math.max(1, prefetchThreads);
+        this.prefetchTimeoutMillis = prefetchTimeoutMillis;
+        if (StringUtils.isBlank(file) || size <= 0 || !localCacheService.isEnabled()) {
+            LOG.info("Hot-set tracking is disabled");
+            this.file = null;
+            this.prefetchFinished = true;
+            return;
+        }
+        this.file = Path.of(file.trim());
+        this.scheduler = new PausableScheduler("hotset");
+        this.scheduler.scheduleWithFixedDelay(this::writeSnapshot, snapshotIntervalMillis, snapshotIntervalMillis);
+        LOG.info("Tracking hot set of {} thumbnails, writing snapshot to {} every {} ms", size, this.file,
+                snapshotIntervalMillis);
+    }
+
+    /**
+     * Register that a thumbnail was requested
+     * @param route the route (server name) of the request
+     * @param id the id of the thumbnail (including width)
+     * @param originalUrl the original url of the thumbnail (optional)
+     * @param eTag the ETag of the thumbnail (optional)
+     */
+    public void record(String route, String id, String originalUrl, String eTag) {
+        if (file == null) {
+            return;
+        }
+        String key = route + '\n' + id;
+        HotSetEntry entry = tracked.get(key);
+        if (entry == null) {
+            // don't let the map grow indefinitely, it's trimmed every time a snapshot is written
+            if (tracked.size() >= size * MAX_TRACKED_FACTOR) {
+                return;
+            }
+            entry = tracked.computeIfAbsent(key, k -> new HotSetEntry(route, id, originalUrl, eTag, 0));
+        }
+        entry.update(originalUrl, eTag);
+        entry.count.incrementAndGet();
+    }
+
+    /**
+     * Write the current hot set to the snapshot file. Afterwards all counts are halved, so the hot set follows
+     * changes in what is requested.
+     */
+    void writeSnapshot() {
+        List<HotSetEntry> hotSet = getHotSet();
+        try {
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            write(tmp, hotSet);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            LOG.debug("Wrote hot set of {} thumbnails to {}", hotSet.size(), file);
+        } catch (IOException | RuntimeException e) {
+            LOG.error("Error writing hot set snapshot to {}", file, e);
+        }
+        decay();
+    }
+
+    private List<HotSetEntry> getHotSet() {
+        return tracked.values().stream()
+                .sorted(Comparator.comparingLong((HotSetEntry e) -> e.count.get()).reversed())
+                .limit(size)
+                .toList();
+    }
+
+    private void decay() {
+        tracked.values().removeIf(entry -> entry.count.updateAndGet(c -> c / 2) == 0);
+    }
+
+    /**
+     * Write a hot-set snapshot. The format is a gzipped stream of: magic number, version, number of entries and for
+     * each entry the route, id, original url (empty if unknown), ETag (empty if unknown) and request count.
+     * @param path the file to write to
+     * @param hotSet the entries to write
+     * @throws IOException when there's a problem writing the file
+     */
+    static void write(Path path, List<HotSetEntry> hotSet) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new GZIPOutputStream(Files.newOutputStream(path))))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(hotSet.size());
+            for (HotSetEntry entry : hotSet) {
+                out.writeUTF(entry.route);
+                out.writeUTF(entry.id);
+                out.writeUTF(StringUtils.defaultString(entry.originalUrl));
+                out.writeUTF(StringUtils.defaultString(entry.eTag));
+                out.writeLong(entry.count.get());
+            }
+        }
+    }
+
+    /**
+     * Read a hot-set snapshot, snapshots of the previous version (without original urls) are also supported
+     * @param path the file to read
+     * @return the entries in the snapshot, empty if the file doesn't exist
+     * @throws IOException when the file can't be read or is not a snapshot of a supported version
+     */
+    static List<HotSetEntry> read(Path path) throws IOException {
+        List<HotSetEntry> result = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(Files.newInputStream(path))))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a hot-set snapshot file");
+            }
+            int version = in.readInt();
+            if (version != VERSION && version != VERSION_WITHOUT_URL) {
+                throw new IOException("Unsupported hot-set snapshot version " + version);
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String route = in.readUTF();
+                String id = in.readUTF();
+                String originalUrl = null;
+                if (version != VERSION_WITHOUT_URL) {
+                    originalUrl = StringUtils.defaultIfEmpty(in.readUTF(), null);
+                }
+                String eTag = StringUtils.defaultIfEmpty(in.readUTF(), null);
+                result.add(new HotSetEntry(route, id, originalUrl, eTag, in.readLong()));
+            }
+        } catch (NoSuchFileException e) {
+            LOG.info("No hot-set snapshot found at {}", path);
+        }
+        return result;
+    }
+
+    /**
+     * Load the thumbnails of the last snapshot into the local cache, in the background
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void startPrefetch() {
+        if (prefetchFinished) {
+            return;
+        }
+        Thread thread = new Thread(this::prefetch, "hotset-prefetch");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void prefetch() {
+        long start = System.nanoTime();
+        ExecutorService prefetchExecutor = Executors.newFixedThreadPool(prefetchThreads,
+                new CustomizableThreadFactory("hotset-prefetch-"));
+        AtomicInteger loaded = new AtomicInteger();
+        AtomicInteger changed = new AtomicInteger();
+        try {
+            List<HotSetEntry> hotSet = read(file);
+            for (HotSetEntry entry : hotSet) {
+                // keep the counts, so the next snapshot doesn't lose the hot set if there isn't much traffic yet
+                tracked.putIfAbsent(entry.route + '\n' + entry.id, entry);
+                prefetchExecutor.execute(() -> {
+                    PrefetchResult prefetched = prefetch(entry);
+                    if (prefetched != PrefetchResult.NOT_LOADED) {
+                        loaded.incrementAndGet();
+                    }
+                    if (prefetched == PrefetchResult.CHANGED) {
+                        changed.incrementAndGet();
+                    }
+                });
+            }
+            prefetchExecutor.shutdown();
+            if (!prefetchExecutor.awaitTermination(prefetchTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                LOG.warn("Loading hot set did not finish within {} ms", prefetchTimeoutMillis);
+            }
+        } catch (IOException e) {
+            LOG.error("Error reading hot-set snapshot {}", file, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            prefetchExecutor.shutdownNow();
+            prefetchFinished = true;
+            LOG.info("Loaded {} hot-set thumbnails into the cache in {} ms, {} changed since the snapshot", loaded.get(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), changed.get());
+        }
+    }
+
+    /**
+     * Load a hot-set thumbnail into the local cache. If its ETag differs from the one in the snapshot the thumbnail
+     * changed in the meantime (e.g. it was uploaded again), so we update the entry to keep the next snapshot correct.
+     */
+    private PrefetchResult prefetch(HotSetEntry entry) {
+        List<MediaReadStorageService> storages = storagesService.getStorages(entry.route);
+        String key = LocalCacheService.getKey(storages, entry.id);
+        if (localCacheService.contains(key)) {
+            return PrefetchResult.NOT_LOADED;
+        }
+        for (MediaReadStorageService storage : storages) {
+            try {
+                MediaStream stream = storage.retrieve(entry.id, entry.originalUrl);
+                if (stream != null) {
+                    String eTag = stream.getETag();
+                    boolean changed = entry.eTag != null && eTag != null && !entry.eTag.equals(eTag);
+                    if (changed) {
+                        LOG.debug("Thumbnail {} changed since the hot-set snapshot", entry.id);
+                    }
+                    entry.update(null, eTag);
+                    localCacheService.put(key, stream).close();
+                    return changed ? PrefetchResult.CHANGED : PrefetchResult.UNCHANGED;
+                }
+            } catch (RuntimeException e) {
+                LOG.warn("Error loading hot-set thumbnail {} from storage {}", entry.id, storage.getName(), e);
+            }
+        }
+        return PrefetchResult.NOT_LOADED;
+    }
+
+    private enum PrefetchResult { NOT_LOADED, UNCHANGED, CHANGED }
+
+    @Override
+    public Health health() {
+        if (prefetchFinished) {
+            return Health.up().build();
+        }
+        return Health.outOfService().withDetail("reason", "loading hot set").build();
+    }
+
+    /**
+     * Start writing snapshots, also called when the application is restored from a (CRaC) checkpoint
+     */
+    @Override
+    public void start() {
+        if (scheduler != null) {
+            scheduler.resume();
+        }
+    }
+
+    /**
+     * Stop writing snapshots until started again, also called before a (CRaC) checkpoint is created
+     */
+    @Override
+    public void stop() {
+        if (scheduler != null) {
+            scheduler.pause();
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return scheduler != null && scheduler.isRunning();
+    }
+
+    /**
+     * Write a final snapshot and stop tracking
+     * @throws InterruptedException when interrupted while waiting for a snapshot that is being written
+     */
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        if (scheduler != null) {
+            scheduler.shutdown();
+            writeSnapshot();
+        }
+    }
+
+    /**
+     * A thumbnail in the hot set. The original url and ETag are updated when a later request provides them
+     */
+    static final class HotSetEntry {
+
+        private final String route;
+        private final String id;
+        private volatile String originalUrl;
+        private volatile String eTag;
+        private final AtomicLong count;
+
+        /**
+         * @param route the route (server name) of the request
+         * @param id the id of the thumbnail (including width)
+         * @param originalUrl the original url of the thumbnail, can be null
+         * @param eTag the ETag of the thumbnail, can be null
+         * @param count number of requests (decays over time)
+         */
+        HotSetEntry(String route, String id, String originalUrl, String eTag, long count) {
+            this.route = route;
+            this.id = id;
+            this.originalUrl = originalUrl;
+            this.eTag = eTag;
+            this.count = new AtomicLong(count);
+        }
+
+        private void update(String newOriginalUrl, String newETag) {
+            // only write if changed, so requests for the same thumbnail don't keep invalidating each other's caches
+            if (newOriginalUrl != null && !newOriginalUrl.equals(originalUrl)) {
+                originalUrl = newOriginalUrl;
+            }
+            if (newETag != null && !newETag.equals(eTag)) {
+                eTag = newETag;
+            }
+        }
+
+        String getRoute() {
+            return route;
+        }
+
+        String getId() {
+            return id;
+        }
+
+        String getOriginalUrl() {
+            return originalUrl;
+        }
+
+        String getETag() {
+            return eTag;
+        }
+
+        long getCount() {
+            return count.get();
+        }
+    }
+}
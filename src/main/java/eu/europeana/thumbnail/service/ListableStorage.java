@@ -0,0 +1,28 @@
+package eu.europeana.thumbnail.service;
+
+import java.util.List;
+
+/**
+ * A storage whose contents can be listed, so we can keep an index of which storage contains which file
+ * (see {@link LocationIndexService})
+ */
+public interface ListableStorage {
+
+    /**
+     * Return the name of the listed storage, as used in the configuration
+     *
+     * @return name of the storage
+     */
+    String getName();
+
+    /**
+     * List the ids of the files in the storage in lexicographical order. Listing is done page by page, so it can be
+     * resumed after a restart.
+     *
+     * @param startAfter only ids after this id are returned, if null the listing starts at the beginning
+     * @param maxResults maximum number of ids to return
+     * @return the next page of ids, an empty list if there are no more ids
+     */
+    List<String> listIds(String startAfter, int maxResults);
+
+}
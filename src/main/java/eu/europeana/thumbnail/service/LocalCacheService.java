@@ -0,0 +1,397 @@
+package eu.europeana.thumbnail.service;
+
+import eu.europeana.s3.S3Object;
+import eu.europeana.s3.exception.S3ObjectStorageException;
+import eu.europeana.thumbnail.model.FileMediaStream;
+import eu.europeana.thumbnail.model.MediaStream;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Service;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * In-memory cache of thumbnails, so frequently requested thumbnails can be served without contacting a storage.
+ * The cache is bounded by the total number of bytes, the least recently used thumbnails are evicted first. Only
+ * thumbnails with a known content length that is below the configured maximum object size are cached.
+ *
+ * Lookups don't take a lock, they only record the time of access on the cached entry. When the cache is full, one
+ * thread at a time evicts the least recently used thumbnails until the cache is a bit below its maximum size, so the
+ * (linear) search for those thumbnails is only done once in a while.
+ *
+ * Optionally cached thumbnails become stale after a freshness period. Stale thumbnails are still served for a while
+ * (stale-while-revalidate) while they are revalidated in the background, see {@link RevalidationService}. When a
+ * storage fails, stale thumbnails can be served for a longer period (stale-if-error).
+ *
+ * Thumbnails from the upload storage are never cached, because an upload only invalidates the cache of the instance
+ * that handled it. Other thumbnails with the same id (e.g. found in another storage before the upload) can still be
+ * served by other instances until they become stale and are revalidated, so for at most the freshness period plus the
+ * stale-while-revalidate period.
+ */
+@Service
+@Order(Ordered.HIGHEST_PRECEDENCE) // invalidate before the CDN is purged, see CdnPurgeService
+public class LocalCacheService implements UploadListener {
+
+    private static final Logger LOG = LogManager.getLogger(LocalCacheService.class);
+
+    private static final String METRIC_REQUESTS = "thumbnail.cache.requests";
+    private static final String TAG_RESULT = "result";
+    private static final long BYTES_PER_KB = 1024L;
+    /** When evicting, the cache is reduced to this percentage of its maximum size */
+    private static final int EVICT_TO_PERCENT = 95;
+
+    private final long maxBytes;
+    private final long maxObjectBytes;
+    private final long freshMillis;
+    private final long staleWhileRevalidateMillis;
+    private final long staleIfErrorMillis;
+    private final String uploadStorageName;
+    private final Map<String, CachedThumbnail> cache = new ConcurrentHashMap<>(1024);
+    private final Set<String> revalidating = ConcurrentHashMap.newKeySet();
+    /** All primary storage prefixes of cache keys, so all keys of an id can be found without scanning the cache */
+    private final Set<String> keyPrefixes = ConcurrentHashMap.newKeySet();
+    private final AtomicLong usedBytes = new AtomicLong();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    private final Counter hits;
+    private final Counter staleHits;
+    private final Counter staleErrorHits;
+    private final Counter misses;
+
+    /**
+     * Initialize a new local cache in which thumbnails never become stale
+     * @param maxSizeMb maximum size of all cached thumbnails together in MB, 0 means caching is disabled
+     * @param maxObjectKb maximum size of a single thumbnail in KB, larger thumbnails are never cached
+     */
+    public LocalCacheService(long maxSizeMb, long maxObjectKb) {
+        this(maxSizeMb, maxObjectKb, 0, 0, 0);
+    }
+
+    /**
+     * Initialize a new local cache
+     * @param maxSizeMb maximum size of all cached thumbnails together in MB, 0 means caching is disabled
+     * @param maxObjectKb maximum size of a single thumbnail in KB, larger thumbnails are never cached
+     * @param freshMillis time in ms after which a cached thumbnail becomes stale, 0 means never
+     * @param staleWhileRevalidateMillis time in ms after becoming stale during which a thumbnail is still served
+     *                                   while it's revalidated in the background
+     * @param staleIfErrorMillis time in ms after becoming stale during which a thumbnail is served when the storages
+     *                           fail or time out
+     */
+    public LocalCacheService(long maxSizeMb, long maxObjectKb, long freshMillis, long staleWhileRevalidateMillis,
+                             long staleIfErrorMillis) {
+        this(maxSizeMb, maxObjectKb, freshMillis, staleWhileRevalidateMillis, staleIfErrorMillis, null);
+    }
+
+    /**
+     * Initialize a new local cache
+     * @param maxSizeMb maximum size of all cached thumbnails together in MB, 0 means caching is disabled
+     * @param maxObjectKb maximum size of a single thumbnail in KB, larger thumbnails are never cached
+     * @param freshMillis time in ms after which a cached thumbnail becomes stale, 0 means never
+     * @param staleWhileRevalidateMillis time in ms after becoming stale during which a thumbnail is still served
+     *                                   while it's revalidated in the background
+     * @param staleIfErrorMillis time in ms after becoming stale during which a thumbnail is served when the storages
+     *                           fail or time out
+     * @param uploadStorageName optional, name of the upload storage of which thumbnails are never cached
+     */
+    @Autowired
+    public LocalCacheService(@Value("${cache.max.size.mb:0}") long maxSizeMb,
+                             @Value("${cache.max.object.kb:512}") long maxObjectKb,
+                             @Value("${cache.fresh.ms:0}") long freshMillis,
+                             @Value("${cache.stale.while.revalidate.ms:0}") long staleWhileRevalidateMillis,
+                             @Value("${cache.stale.if.error.ms:0}") long staleIfErrorMillis,
+                             @Value("${upload.storage:}") String uploadStorageName) {
+        this.maxBytes = maxSizeMb * BYTES_PER_KB * BYTES_PER_KB;
+        this.maxObjectBytes = maxObjectKb * BYTES_PER_KB;
+        this.freshMillis = freshMillis;
+        this.staleWhileRevalidateMillis = staleWhileRevalidateMillis;
+        this.staleIfErrorMillis = staleIfErrorMillis;
+        this.uploadStorageName = StringUtils.trimToNull(uploadStorageName);
+        this.hits = Metrics.counter(METRIC_REQUESTS, TAG_RESULT, "hit");
+        this.staleHits = Metrics.counter(METRIC_REQUESTS, TAG_RESULT, "stale");
+        this.staleErrorHits = Metrics.counter(METRIC_REQUESTS, TAG_RESULT, "stale_if_error");
+        this.misses = Metrics.counter(METRIC_REQUESTS, TAG_RESULT, "miss");
+        Gauge.builder("thumbnail.cache.size", this, LocalCacheService::getUsedBytes)
+                .description("Total size of all locally cached thumbnails")
+                .baseUnit("bytes")
+                .register(Metrics.globalRegistry);
+        LOG.info("Local cache maximum size = {} MB, maximum object size = {} KB", maxSizeMb, maxObjectKb);
+        if (freshMillis > 0) {
+            LOG.info("Cached thumbnails are fresh for {} ms, stale-while-revalidate = {} ms, stale-if-error = {} ms",
+                    freshMillis, staleWhileRevalidateMillis, staleIfErrorMillis);
+        }
+    }
+
+    /**
+     * @return true if caching is enabled, otherwise false
+     */
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * Generate the key under which a thumbnail is cached. Routes that use the same primary storage share cache entries
+     * @param storages the storages of the route for which the thumbnail is requested
+     * @param id the id of the thumbnail (including width)
+     * @return cache key
+     */
+    public static String getKey(List<MediaReadStorageService> storages, String id) {
+        if (storages == null || storages.isEmpty()) {
+            return id;
+        }
+        return storages.get(0).getName() + "/" + id;
+    }
+
+    /**
+     * Retrieve a thumbnail from the cache. Stale thumbnails are only returned during the stale-while-revalidate
+     * period, use {@link #startRevalidation(String)} to check if a returned thumbnail should be revalidated.
+     * @param key the cache key, see {@link #getKey(List, String)}
+     * @param originalUrl optional, the original url of the requested thumbnail
+     * @return a new MediaStream for the cached thumbnail, or null if it is not cached (or too stale)
+     */
+    public MediaStream get(String key, String originalUrl) {
+        if (!isEnabled()) {
+            return null;
+        }
+        CachedThumbnail cached = cache.get(key);
+        if (cached != null) {
+            cached.touch();
+        }
+        long staleFor = cached == null ? 0 : getStaleMillis(cached);
+        if (cached == null || staleFor > staleWhileRevalidateMillis) {
+            misses.increment();
+            return null;
+        }
+        if (staleFor > 0) {
+            staleHits.increment();
+        } else {
+            hits.increment();
+        }
+        return cached.toMediaStream(originalUrl);
+    }
+
+    /**
+     * Retrieve a stale thumbnail from the cache, to use when the storages fail or time out
+     * @param key the cache key, see {@link #getKey(List, String)}
+     * @param originalUrl optional, the original url of the requested thumbnail
+     * @return a new MediaStream for the cached thumbnail, or null if it is not cached or stale for longer than the
+     * stale-if-error period
+     */
+    public MediaStream getIfError(String key, String originalUrl) {
+        if (!isEnabled()) {
+            return null;
+        }
+        CachedThumbnail cached = cache.get(key);
+        if (cached == null || getStaleMillis(cached) > staleIfErrorMillis) {
+            return null;
+        }
+        staleErrorHits.increment();
+        return cached.toMediaStream(originalUrl);
+    }
+
+    /**
+     * @return the time in ms that a cached thumbnail is stale, 0 if it's still fresh
+     */
+    private long getStaleMillis(CachedThumbnail cached) {
+        if (freshMillis <= 0) {
+            return 0;
+        }
+        return Math.max(0, System.currentTimeMillis() - cached.storedAt() - freshMillis);
+    }
+
+    /**
+     * Check if a cached thumbnail is stale and should be revalidated. Only one revalidation per thumbnail is done at
+     * a time, so if this returns true the caller should revalidate the thumbnail and then call
+     * {@link #finishRevalidation(String, boolean)}.
+     * @param key the cache key, see {@link #getKey(List, String)}
+     * @return true if the cached thumbnail should be revalidated by the caller, otherwise false
+     */
+    public boolean startRevalidation(String key) {
+        if (freshMillis <= 0) {
+            return false;
+        }
+        CachedThumbnail cached = cache.get(key);
+        return cached != null && getStaleMillis(cached) > 0 && revalidating.add(key);
+    }
+
+    /**
+     * Mark the revalidation of a cached thumbnail as finished
+     * @param key the cache key, see {@link #getKey(List, String)}
+     * @param unchanged true if the thumbnail didn't change, so the cached version is fresh again
+     */
+    public void finishRevalidation(String key, boolean unchanged) {
+        if (unchanged) {
+            CachedThumbnail cached = cache.get(key);
+            if (cached != null) {
+                cached.refresh();
+            }
+        }
+        revalidating.remove(key);
+    }
+
+    /**
+     * Remove a thumbnail from the cache
+     * @param key the cache key, see {@link #getKey(List, String)}
+     */
+    public void remove(String key) {
+        CachedThumbnail previous = cache.remove(key);
+        if (previous != null) {
+            usedBytes.addAndGet(-previous.data.length);
+        }
+    }
+
+    /**
+     * @param key the cache key, see {@link #getKey(List, String)}
+     * @return true if the thumbnail is cached, otherwise false
+     */
+    public boolean contains(String key) {
+        return cache.containsKey(key);
+    }
+
+    /**
+     * Add a thumbnail that was retrieved from a storage to the cache, if it's small enough, not a local file (local
+     * files are cached by the operating system) and not from the upload storage. If so, the thumbnail is read entirely
+     * and the original stream is closed.
+     * @param key the cache key, see {@link #getKey(List, String)}
+     * @param mediaStream the retrieved thumbnail
+     * @return the MediaStream to use for sending the thumbnail, either the provided one (if not cached) or a new one
+     * reading from the cached data
+     */
+    public MediaStream put(String key, MediaStream mediaStream) {
+        Long contentLength = mediaStream.getContentLength();
+        if (!isEnabled() || contentLength == null || contentLength > maxObjectBytes
+                || mediaStream instanceof FileMediaStream
+                || (uploadStorageName != null && uploadStorageName.equals(mediaStream.getStorageName()))) {
+            return mediaStream;
+        }
+        byte[] data;
+        try (InputStream in = mediaStream.getS3Object().inputStream()) {
+            data = in.readAllBytes();
+        } catch (IOException e) {
+            throw new S3ObjectStorageException("Error reading S3 object stream " + mediaStream.getId(), e);
+        }
+        Map<String, Object> metadata = new HashMap<>();
+        if (mediaStream.hasMetadata()) {
+            metadata.putAll(mediaStream.getMetadata());
+        }
+        metadata.put(S3Object.CONTENT_LENGTH, (long) data.length);
+        CachedThumbnail cached = new CachedThumbnail(mediaStream.getId(), mediaStream.getStorageName(), data,
+                metadata, System.currentTimeMillis());
+        keyPrefixes.add(key.substring(0, key.lastIndexOf('/') + 1));
+        CachedThumbnail previous = cache.put(key, cached);
+        long used = usedBytes.addAndGet(previous == null ? data.length : data.length - previous.data.length);
+        if (used > maxBytes) {
+            evict();
+        }
+        return cached.toMediaStream(mediaStream.getOriginalUrl());
+    }
+
+    /**
+     * Evict the least recently used thumbnails until the cache is below its target size. If another thread is already
+     * evicting we don't wait, as that thread also frees the space used by the thumbnail we just added.
+     */
+    private void evict() {
+        if (!evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            long target = maxBytes / 100 * EVICT_TO_PERCENT;
+            // copy the access times first, they can change while sorting
+            List<EvictionCandidate> candidates = new ArrayList<>(cache.size());
+            cache.forEach((key, cached) -> candidates.add(new EvictionCandidate(key, cached, cached.lastAccess())));
+            candidates.sort(Comparator.comparingLong(EvictionCandidate::lastAccess));
+            for (EvictionCandidate candidate : candidates) {
+                if (usedBytes.get() <= target) {
+                    break;
+                }
+                // only remove the entry if it wasn't replaced in the meantime
+                if (cache.remove(candidate.key, candidate.cached)) {
+                    usedBytes.addAndGet(-candidate.cached.data.length);
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Remove an uploaded thumbnail from the cache, so the next request retrieves the new version. As the cache key
+     * contains the primary storage of a route and not the storage that was uploaded to, we remove the thumbnail for
+     * all routes. Note that this only affects this instance.
+     * @see UploadListener#uploaded(String, String)
+     */
+    @Override
+    public void uploaded(String storageName, String id) {
+        for (String prefix : keyPrefixes) {
+            remove(prefix + id);
+        }
+    }
+
+    /**
+     * @return the total size in bytes of all cached thumbnails
+     */
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    private record EvictionCandidate(String key, CachedThumbnail cached, long lastAccess) {
+    }
+
+    private static final class CachedThumbnail {
+
+        private final String id;
+        private final String storageName;
+        private final byte[] data;
+        private final Map<String, Object> metadata;
+        private volatile long storedAt;
+        private volatile long lastAccess;
+
+        CachedThumbnail(String id, String storageName, byte[] data, Map<String, Object> metadata, long storedAt) {
+            this.id = id;
+            this.storageName = storageName;
+            this.data = data;
+            this.metadata = metadata;
+            this.storedAt = storedAt;
+            this.lastAccess = System.nanoTime();
+        }
+
+        long storedAt() {
+            return storedAt;
+        }
+
+        long lastAccess() {
+            return lastAccess;
+        }
+
+        void touch() {
+            lastAccess = System.nanoTime();
+        }
+
+        void refresh() {
+            storedAt = System.currentTimeMillis();
+        }
+
+        MediaStream toMediaStream(String originalUrl) {
+            return new MediaStream(id, originalUrl, new S3Object(id, new ByteArrayInputStream(data), metadata),
+                    storageName);
+        }
+    }
+}
@@ -0,0 +1,484 @@
+package eu.europeana.thumbnail.service;
+
+import eu.europeana.thumbnail.model.ImageSize;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Memory-mapped open-addressing hash table that records in which storages a file is present. Keys are the 128-bit MD5
+ * hash and size of a thumbnail id (e.g. 0123456789abcdef0123456789abcdef-LARGE), values are a bit set of storage
+ * ordinals. Because the table is a memory-mapped file it survives restarts and doesn't use any heap.
+ *
+ * File layout: a header with magic, version, capacity and number of entries, followed by capacity slots of 32 bytes
+ * (MD5 high and low bits, size code, unused, storage bits). A slot with size code 0 is empty. Entries are never
+ * removed, only their storage bits are cleared. The table is mapped in segments, because a single mapping can't be
+ * larger than 2 GB. When the table is 75% full it is rehashed into a new file that is twice as large.
+ *
+ * Rehashing is done by the thread that added the entry that made the table 75% full. It copies the table in chunks,
+ * holding the read lock only while copying a chunk, so lookups continue and changes only wait for one chunk. Changes
+ * made in the meantime are also logged and applied to the new table while holding the write lock, right before it
+ * replaces the current table. Only when the current table becomes 7/8 full before rehashing finished, adding a new
+ * entry waits until it's done.
+ *
+ * Ids that don't consist of a lowercase MD5 hash and size can't be stored, for those get() returns NOT_INDEXABLE.
+ */
+final class LocationIndex implements AutoCloseable {
+
+    /** Identifies a location index file */
+    static final int MAGIC = 0x544c4958; // "TLIX"
+    /** Current version of the location index file format */
+    static final int VERSION = 1;
+    /** Returned by get() for ids that can't be stored in the index */
+    static final long NOT_INDEXABLE = -1L;
+    /** Highest storage ordinal that can be stored, so the storage bits are never equal to NOT_INDEXABLE */
+    static final int MAX_ORDINAL = Long.SIZE - 2;
+
+    private static final int HEADER_SIZE = 32;
+    private static final int HEADER_CAPACITY = 8;
+    private static final int HEADER_SIZE_OFFSET = 12;
+    private static final int SLOT_SIZE = 32;
+    private static final int SLOT_LOW = 8;
+    private static final int SLOT_SIZE_CODE = 16;
+    private static final int SLOT_STORAGES = 24;
+    private static final int SEGMENT_BITS = 25; // 2^25 slots of 32 bytes = 1 GB per segment
+    private static final int MIN_CAPACITY = 1024;
+    private static final int MAX_CAPACITY = 1 << 30;
+    private static final int MD5_LENGTH = 32;
+    private static final int HEX_RADIX = 16;
+    private static final int MAX_WIDTH_DIGITS = 9;
+    private static final int RESIZE_CHUNK_SLOTS = 1 << 16;
+
+    private final Path file;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    // held while rehashing, so adding can wait for it to finish
+    private final ReentrantLock resizeLock = new ReentrantLock();
+    private final boolean created;
+    private FileChannel channel;
+    private MappedByteBuffer header;
+    private MappedByteBuffer[] segments;
+    private int capacity;
+    private int size;
+    // changes made while rehashing, null when not rehashing
+    private List<Change> changes;
+
+    private LocationIndex(Path file, int capacity, boolean create) throws IOException {
+        this.file = file;
+        this.created = create;
+        map(capacity, create);
+    }
+
+    /**
+     * Open an existing index file, or create a new one if the file doesn't exist or isn't a valid index
+     * @param file location of the index file
+     * @param initialCapacity number of slots of a newly created index (rounded up to a power of 2)
+     * @return the opened index
+     * @throws IOException when the index file can't be read or created
+     */
+    static LocationIndex open(Path file, int initialCapacity) throws IOException {
+        int existing = readCapacity(file);
+        if (existing > 0) {
+            return new LocationIndex(file, existing, false);
+        }
+        int capacity = Integer.highestOneBit(Math.min(MAX_CAPACITY, Math.max(MIN_CAPACITY, initialCapacity)));
+        if (capacity < initialCapacity && capacity < MAX_CAPACITY) {
+            capacity = capacity << 1;
+        }
+        Files.deleteIfExists(file);
+        return new LocationIndex(file, capacity, true);
+    }
+
+    /**
+     * Returns the capacity stored in the header of an existing index file, or 0 if the file isn't a valid index
+     */
+    private static int readCapacity(Path file) throws IOException {
+        if (!Files.isRegularFile(file) || Files.size(file) < HEADER_SIZE) {
+            return 0;
+        }
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+            while (buffer.hasRemaining() && in.read(buffer) >= 0) {
+                // keep reading until the header is complete
+            }
+            int capacity = buffer.getInt(HEADER_CAPACITY);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(Integer.BYTES) != VERSION || Integer.bitCount(capacity) != 1
+                    || Files.size(file) != HEADER_SIZE + (long) capacity * SLOT_SIZE) {
+                return 0;
+            }
+            return capacity;
+        }
+    }
+
+    private void map(int newCapacity, boolean create) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        this.capacity = newCapacity;
+        this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        int slotsPerSegment = Math.min(newCapacity, 1 << SEGMENT_BITS);
+        this.segments = new MappedByteBuffer[newCapacity / slotsPerSegment];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                    HEADER_SIZE + (long) i * slotsPerSegment * SLOT_SIZE, (long) slotsPerSegment * SLOT_SIZE);
+        }
+        if (create) {
+            header.putInt(0, MAGIC);
+            header.putInt(Integer.BYTES, VERSION);
+            header.putInt(HEADER_CAPACITY, newCapacity);
+            header.putInt(HEADER_SIZE_OFFSET, 0);
+            this.size = 0;
+        } else {
+            this.size = header.getInt(HEADER_SIZE_OFFSET);
+        }
+    }
+
+    /**
+     * @return true if the index file was newly created when it was opened, false if an existing index was loaded
+     */
+    boolean isCreated() {
+        return created;
+    }
+
+    /**
+     * Return the storages that contain a file
+     * @param id the id of the file (including size)
+     * @return bit set of storage ordinals (0 if the file isn't known), or NOT_INDEXABLE if the id can't be indexed
+     */
+    long get(String id) {
+        Key key = Key.parse(id);
+        if (key == null) {
+            return NOT_INDEXABLE;
+        }
+        lock.readLock().lock();
+        try {
+            int slot = find(key);
+            return isEmpty(slot) ? 0L : segment(slot).getLong(offset(slot) + SLOT_STORAGES);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Record that a file is present in a storage
+     * @param id the id of the file (including size)
+     * @param ordinal the ordinal of the storage, between 0 and MAX_ORDINAL
+     * @return false if the id can't be indexed, otherwise true
+     * @throws IOException when the index is full or resizing failed
+     */
+    boolean add(String id, int ordinal) throws IOException {
+        Key key = Key.parse(id);
+        if (key == null) {
+            return false;
+        }
+        while (true) {
+            boolean startResize = false;
+            lock.writeLock().lock();
+            try {
+                int slot = find(key);
+                if (isEmpty(slot)) {
+                    if (changes != null && (size + 1L) * 8 > capacity * 7L) {
+                        // wait below until rehashing is done
+                        slot = -1;
+                    } else if ((size + 1L) * 4 > capacity * 3L) {
+                        if (capacity >= MAX_CAPACITY) {
+                            throw new IOException("Location index " + file + " is full");
+                        }
+                        if (changes == null) {
+                            startResize = true;
+                            resizeLock.lock();
+                            changes = new ArrayList<>();
+                        }
+                    }
+                    if (slot >= 0) {
+                        write(slot, key, 0L);
+                        header.putInt(HEADER_SIZE_OFFSET, ++size);
+                    }
+                }
+                if (slot >= 0) {
+                    setBit(segment(slot), offset(slot) + SLOT_STORAGES, ordinal, true);
+                    if (changes != null) {
+                        changes.add(new Change(key, ordinal, true));
+                    }
+                }
+                if (slot >= 0 && !startResize) {
+                    return true;
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+            if (startResize) {
+                resize();
+                return true;
+            }
+            awaitResize();
+        }
+    }
+
+    private void awaitResize() {
+        resizeLock.lock();
+        resizeLock.unlock();
+    }
+
+    private static void setBit(ByteBuffer segment, int offset, int ordinal, boolean present) {
+        long storages = segment.getLong(offset);
+        segment.putLong(offset, present ? storages | (1L << ordinal) : storages & ~(1L << ordinal));
+    }
+
+    /**
+     * Record that a file is not present in a storage (anymore)
+     * @param id the id of the file (including size)
+     * @param ordinal the ordinal of the storage
+     */
+    void remove(String id, int ordinal) {
+        Key key = Key.parse(id);
+        if (key == null) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            int slot = find(key);
+            if (!isEmpty(slot)) {
+                setBit(segment(slot), offset(slot) + SLOT_STORAGES, ordinal, false);
+                if (changes != null) {
+                    changes.add(new Change(key, ordinal, false));
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of files in the index
+     */
+    int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of slots of the index
+     */
+    int capacity() {
+        lock.readLock().lock();
+        try {
+            return capacity;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Write all changes to disk
+     */
+    void force() {
+        lock.readLock().lock();
+        try {
+            header.force();
+            for (MappedByteBuffer segment : segments) {
+                segment.force();
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the slot that contains the key, or the empty slot where it should be stored (linear probing)
+     */
+    private int find(Key key) {
+        int mask = capacity - 1;
+        int slot = key.hash() & mask;
+        while (true) {
+            if (isEmpty(slot)) {
+                return slot;
+            }
+            ByteBuffer segment = segment(slot);
+            int offset = offset(slot);
+            if (segment.getInt(offset + SLOT_SIZE_CODE) == key.sizeCode() && segment.getLong(offset) == key.high()
+                    && segment.getLong(offset + SLOT_LOW) == key.low()) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private boolean isEmpty(int slot) {
+        return segment(slot).getInt(offset(slot) + SLOT_SIZE_CODE) == 0;
+    }
+
+    private void write(int slot, Key key, long storages) {
+        ByteBuffer segment = segment(slot);
+        int offset = offset(slot);
+        segment.putLong(offset, key.high());
+        segment.putLong(offset + SLOT_LOW, key.low());
+        segment.putLong(offset + SLOT_STORAGES, storages);
+        segment.putInt(offset + SLOT_SIZE_CODE, key.sizeCode());
+    }
+
+    private ByteBuffer segment(int slot) {
+        return segments[slot >>> SEGMENT_BITS];
+    }
+
+    private static int offset(int slot) {
+        return (slot & ((1 << SEGMENT_BITS) - 1)) * SLOT_SIZE;
+    }
+
+    /**
+     * Rehash all entries into a new file that is twice as large and replace the current file with it. Must be called
+     * by the thread that started rehashing (holding the resize lock) without holding the read or write lock.
+     */
+    private void resize() throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        LocationIndex larger = null;
+        try {
+            Files.deleteIfExists(tmp);
+            // only this thread changes the capacity, so we can read it without lock
+            int oldCapacity = capacity;
+            larger = new LocationIndex(tmp, oldCapacity * 2, true);
+            for (int start = 0; start < oldCapacity; start += RESIZE_CHUNK_SLOTS) {
+                copyChunk(larger, start, Math.min(oldCapacity, start + RESIZE_CHUNK_SLOTS));
+            }
+            larger.force();
+            replace(larger, tmp);
+        } catch (IOException | RuntimeException e) {
+            lock.writeLock().lock();
+            try {
+                changes = null;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            if (larger != null && larger.channel != channel) {
+                larger.channel.close();
+            }
+            Files.deleteIfExists(tmp);
+            throw e;
+        } finally {
+            resizeLock.unlock();
+        }
+    }
+
+    private void copyChunk(LocationIndex larger, int start, int end) {
+        lock.readLock().lock();
+        try {
+            for (int slot = start; slot < end; slot++) {
+                if (!isEmpty(slot)) {
+                    ByteBuffer segment = segment(slot);
+                    int offset = offset(slot);
+                    Key key = new Key(segment.getLong(offset), segment.getLong(offset + SLOT_LOW),
+                            segment.getInt(offset + SLOT_SIZE_CODE));
+                    int largerSlot = larger.find(key);
+                    if (larger.isEmpty(largerSlot)) {
+                        larger.size++;
+                    }
+                    larger.write(largerSlot, key, segment.getLong(offset + SLOT_STORAGES));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Apply the changes made while rehashing to the new table and use it instead of the current one
+     */
+    private void replace(LocationIndex larger, Path tmp) throws IOException {
+        lock.writeLock().lock();
+        try {
+            for (Change change : changes) {
+                int slot = larger.find(change.key);
+                if (larger.isEmpty(slot)) {
+                    larger.write(slot, change.key, 0L);
+                    larger.size++;
+                }
+                setBit(larger.segment(slot), offset(slot) + SLOT_STORAGES, change.ordinal, change.present);
+            }
+            larger.header.putInt(HEADER_SIZE_OFFSET, larger.size);
+            // the new file keeps its mapping when it's moved
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            FileChannel oldChannel = channel;
+            channel = larger.channel;
+            header = larger.header;
+            segments = larger.segments;
+            capacity = larger.capacity;
+            size = larger.size;
+            changes = null;
+            oldChannel.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Write all changes to disk and close the index file. Mapped memory is released when it's garbage collected.
+     */
+    @Override
+    public void close() throws IOException {
+        force();
+        channel.close();
+    }
+
+    /**
+     * A change made to the index while it was rehashed
+     */
+    private record Change(Key key, int ordinal, boolean present) {
+    }
+
+    /**
+     * MD5 hash and size code of a thumbnail id. Named sizes (MEDIUM, LARGE) have a negative size code, other widths
+     * use the width itself.
+     */
+    private record Key(long high, long low, int sizeCode) {
+
+        static Key parse(String id) {
+            if (id == null || id.length() < MD5_LENGTH + 2 || id.charAt(MD5_LENGTH) != '-') {
+                return null;
+            }
+            for (int i = 0; i < MD5_LENGTH; i++) {
+                char c = id.charAt(i);
+                if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                    return null;
+                }
+            }
+            int sizeCode = parseSizeCode(id.substring(MD5_LENGTH + 1));
+            if (sizeCode == 0) {
+                return null;
+            }
+            return new Key(Long.parseUnsignedLong(id.substring(0, MD5_LENGTH / 2), HEX_RADIX),
+                    Long.parseUnsignedLong(id.substring(MD5_LENGTH / 2, MD5_LENGTH), HEX_RADIX), sizeCode);
+        }
+
+        private static int parseSizeCode(String size) {
+            for (ImageSize imageSize : ImageSize.values()) {
+                if (imageSize.name().equals(size)) {
+                    return -(imageSize.ordinal() + 1);
+                }
+            }
+            // no leading zeros, otherwise different ids would get the same key
+            if (size.isEmpty() || size.length() > MAX_WIDTH_DIGITS || size.charAt(0) == '0'
+                    || !size.chars().allMatch(c -> c >= '0' && c <= '9')) {
+                return 0;
+            }
+            return Integer.parseInt(size);
+        }
+
+        int hash() {
+            // MD5 hashes are evenly distributed, so we only need to mix in the size
+            return (int) (low ^ (low >>> Integer.SIZE)) * 31 + sizeCode;
+        }
+    }
+}
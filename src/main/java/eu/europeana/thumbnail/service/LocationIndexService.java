@@ -0,0 +1,360 @@
+package eu.europeana.thumbnail.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import jakarta.annotation.PreDestroy;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a persistent index of which storages contain which thumbnails, so requests can go straight to the storage
+ * that has a thumbnail instead of checking the storages of a route one by one. The index is a memory-mapped hash table
+ * (see {@link LocationIndex}) that is filled by listing all storages that support this ({@link ListableStorage}) page
+ * by page in the background. The progress of the listing and the ordinal of each storage in the index are saved in a
+ * properties file next to the index, so listing resumes where it stopped after a restart.
+ *
+ * Only storages that were listed completely are trusted to not contain a thumbnail. Storages are listed again every
+ * <refresh.ms>, in the meantime the index is updated when thumbnails are uploaded and corrected when a storage turns out
+ * to (no longer) contain a thumbnail. Thumbnails that are added to a storage by other applications are only found after
+ * the next listing, so the index should only be enabled for storages that aren't written to by other applications or
+ * with a short refresh interval. Because of this the index is only used as a hint: the last storage of a route is
+ * always checked before a 404 is returned.
+ */
+@Service
+@SuppressWarnings("javasecurity:S5145") // we only log for debug purposes
+public class LocationIndexService implements UploadListener, SmartLifecycle {
+
+    private static final Logger LOG = LogManager.getLogger(LocationIndexService.class);
+
+    private static final String METRIC_NAME = "thumbnail.location.index";
+    private static final String TAG_RESULT = "result";
+    private static final String PROP_ORDINAL = ".ordinal";
+    private static final String PROP_CURSOR = ".cursor";
+    private static final String PROP_COMPLETE = ".complete";
+    private static final long SAVE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final StoragesService storagesService;
+    private final int pageSize;
+    private final Path stateFile;
+    private final Map<String, StorageState> states = new ConcurrentHashMap<>();
+    private LocationIndex index;
+    private PausableScheduler scheduler;
+
+    /**
+     * Initialize a new location index service
+     * @param storagesService service that provides the storages that can be listed
+     * @param file location of the index file, if empty the index is disabled
+     * @param capacity initial number of thumbnails that can be stored in the index (it grows when needed)
+     * @param pageSize number of thumbnails that are listed per request
+     * @param startDelayMillis time after startup before storages are listed, so listing doesn't slow down warming up
+     * @param refreshMillis time between the end of a listing of all storages and the start of the next one
+     */
+    public LocationIndexService(StoragesService storagesService,
+                                @Value("${location.index.file:}") String file,
+                                @Value("${location.index.capacity:1048576}") int capacity,
+                                @Value("${location.index.page.size:1000}") int pageSize,
+                                @Value("${location.index.start.delay.ms:60000}") long startDelayMillis,
+                                @Value("${location.index.refresh.ms:3600000}") long refreshMillis) {
+        this.storagesService = storagesService;
+        this.pageSize = pageSize;
+        if (StringUtils.isBlank(file)) {
+            LOG.info("Location index is disabled");
+            this.stateFile = null;
+            return;
+        }
+        Path indexFile = Path.of(file.trim());
+        this.stateFile = indexFile.resolveSibling(indexFile.getFileName() + ".properties");
+        try {
+            if (!loadStates()) {
+                // without the storage ordinals the index is of no use
+                Files.deleteIfExists(indexFile);
+            }
+            this.index = LocationIndex.open(indexFile, capacity);
+        } catch (IOException | RuntimeException e) {
+            LOG.error("Unable to open location index {}, index is disabled", indexFile, e);
+            this.index = null;
+            return;
+        }
+        if (index.isCreated()) {
+            // listings of a previous index have to be done again
+            states.clear();
+        }
+        Gauge.builder(METRIC_NAME + ".size", index, LocationIndex::size).register(Metrics.globalRegistry);
+        this.scheduler = new PausableScheduler("location-index");
+        this.scheduler.scheduleWithFixedDelay(this::listAll, startDelayMillis, refreshMillis);
+        LOG.info("Location index {} contains {} thumbnails, listing storages every {} ms", indexFile, index.size(),
+                refreshMillis);
+    }
+
+    /**
+     * @return true if the location index is used, otherwise false
+     */
+    public boolean isEnabled() {
+        return index != null;
+    }
+
+    /**
+     * Check if a storage contains a thumbnail according to the index
+     * @param storage the storage to check
+     * @param id the id of the thumbnail (including width)
+     * @return true if the index contains the thumbnail, false if the storage was listed completely and the thumbnail
+     * wasn't found, or null if that's unknown (the storage or id isn't indexed)
+     */
+    public Boolean isPresent(MediaReadStorageService storage, String id) {
+        StorageState state = getState(storage);
+        if (state == null) {
+            return null;
+        }
+        long storages = index.get(id);
+        if (storages == LocationIndex.NOT_INDEXABLE) {
+            return null;
+        }
+        if ((storages & (1L << state.ordinal)) != 0) {
+            return Boolean.TRUE;
+        }
+        if (state.complete) {
+            Metrics.counter(METRIC_NAME, TAG_RESULT, "skipped").increment();
+            return Boolean.FALSE;
+        }
+        return null;
+    }
+
+    /**
+     * Correct the index after a thumbnail was retrieved (or not found) in a storage
+     * @param storage the storage that was checked
+     * @param id the id of the thumbnail (including width)
+     * @param present true if the thumbnail was found, false if it wasn't
+     * @param expected the result of isPresent() for this storage and thumbnail
+     */
+    public void update(MediaReadStorageService storage, String id, boolean present, Boolean expected) {
+        StorageState state = getState(storage);
+        if (state == null || (expected != null && expected == present)) {
+            return;
+        }
+        if (present) {
+            add(state, id);
+        } else if (Boolean.TRUE.equals(expected)) {
+            LOG.debug("File {} no longer in storage {}, removing it from location index", id, storage.getName());
+            index.remove(id, state.ordinal);
+            Metrics.counter(METRIC_NAME, TAG_RESULT, "removed").increment();
+        }
+    }
+
+    /**
+     * Add uploaded thumbnails to the index
+     * @see UploadListener#uploaded(String, String)
+     */
+    @Override
+    public void uploaded(String storageName, String id) {
+        if (isEnabled()) {
+            StorageState state = states.get(storageName);
+            if (state != null) {
+                add(state, id);
+            }
+        }
+    }
+
+    private StorageState getState(MediaReadStorageService storage) {
+        if (!isEnabled()) {
+            return null;
+        }
+        return states.get(storage.getName());
+    }
+
+    private void add(StorageState state, String id) {
+        try {
+            index.add(id, state.ordinal);
+        } catch (IOException e) {
+            LOG.error("Error adding {} to location index", id, e);
+        }
+    }
+
+    /**
+     * List all storages that support listing and add their contents to the index. Each storage is listed from where
+     * the previous listing stopped.
+     */
+    void listAll() {
+        for (ListableStorage storage : storagesService.getListableStorages()) {
+            StorageState state = states.computeIfAbsent(storage.getName(), this::newState);
+            if (state.ordinal > LocationIndex.MAX_ORDINAL) {
+                LOG.warn("Too many storages, storage {} is not indexed", storage.getName());
+                continue;
+            }
+            try {
+                list(storage, state);
+            } catch (IOException | RuntimeException e) {
+                LOG.error("Error listing storage {}, continuing at the next refresh", storage.getName(), e);
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+        }
+    }
+
+    private void list(ListableStorage storage, StorageState state) throws IOException {
+        long start = System.nanoTime();
+        long lastSave = start;
+        long listed = 0;
+        LOG.info("Listing storage {} starting after {}", storage.getName(), state.cursor);
+        List<String> ids = storage.listIds(state.cursor, pageSize);
+        while (!ids.isEmpty()) {
+            for (String id : ids) {
+                index.add(id, state.ordinal);
+            }
+            listed += ids.size();
+            state.cursor = ids.get(ids.size() - 1);
+            if (System.nanoTime() - lastSave > SAVE_INTERVAL_NANOS) {
+                saveStates();
+                lastSave = System.nanoTime();
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            ids = storage.listIds(state.cursor, pageSize);
+        }
+        state.cursor = null;
+        state.complete = true;
+        saveStates();
+        LOG.info("Listed {} files in storage {} in {} ms, location index contains {} thumbnails", listed,
+                storage.getName(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), index.size());
+    }
+
+    private StorageState newState(String storageName) {
+        int ordinal = 0;
+        while (isOrdinalUsed(ordinal)) {
+            ordinal++;
+        }
+        LOG.info("Storage {} uses ordinal {} in the location index", storageName, ordinal);
+        return new StorageState(ordinal);
+    }
+
+    private boolean isOrdinalUsed(int ordinal) {
+        return states.values().stream().anyMatch(state -> state.ordinal == ordinal);
+    }
+
+    /**
+     * Load the ordinals and listing progress of all storages
+     * @return true if the state file was loaded, false if it doesn't exist
+     */
+    private boolean loadStates() throws IOException {
+        if (!Files.isRegularFile(stateFile)) {
+            return false;
+        }
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(stateFile)) {
+            properties.load(in);
+        }
+        for (String property : properties.stringPropertyNames()) {
+            if (property.endsWith(PROP_ORDINAL)) {
+                String storageName = StringUtils.removeEnd(property, PROP_ORDINAL);
+                StorageState state = new StorageState(Integer.parseInt(properties.getProperty(property)));
+                state.cursor = properties.getProperty(storageName + PROP_CURSOR);
+                state.complete = Boolean.parseBoolean(properties.getProperty(storageName + PROP_COMPLETE));
+                states.put(storageName, state);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Write the index to disk and save the ordinals and listing progress of all storages. The index is written first,
+     * so the saved progress never includes files that aren't in the index file.
+     */
+    synchronized void saveStates() throws IOException {
+        index.force();
+        Properties properties = new Properties();
+        for (Map.Entry<String, StorageState> entry : states.entrySet()) {
+            StorageState state = entry.getValue();
+            properties.setProperty(entry.getKey() + PROP_ORDINAL, Integer.toString(state.ordinal));
+            properties.setProperty(entry.getKey() + PROP_COMPLETE, Boolean.toString(state.complete));
+            if (state.cursor != null) {
+                properties.setProperty(entry.getKey() + PROP_CURSOR, state.cursor);
+            }
+        }
+        Path tmp = stateFile.resolveSibling(stateFile.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(tmp)) {
+            properties.store(out, "Thumbnail API location index state");
+        }
+        Files.move(tmp, stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Start listing storages, also called when the application is restored from a (CRaC) checkpoint
+     */
+    @Override
+    public void start() {
+        if (isEnabled()) {
+            scheduler.resume();
+        }
+    }
+
+    /**
+     * Stop listing storages (it continues where it stopped when started again) and save the listing progress, also
+     * called before a (CRaC) checkpoint is created
+     */
+    @Override
+    public void stop() {
+        if (isEnabled() && scheduler.isRunning()) {
+            scheduler.pause();
+            try {
+                saveStates();
+            } catch (IOException e) {
+                LOG.error("Error saving location index state", e);
+            }
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return isEnabled() && scheduler.isRunning();
+    }
+
+    /**
+     * Stop listing and write the index and listing progress to disk
+     * @throws InterruptedException when interrupted while waiting for the listing to stop
+     */
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        if (!isEnabled()) {
+            return;
+        }
+        if (!scheduler.shutdown()) {
+            LOG.warn("Listing of storages did not stop in time");
+        }
+        try {
+            saveStates();
+            index.close();
+        } catch (IOException e) {
+            LOG.error("Error saving location index", e);
+        }
+    }
+
+    /**
+     * Ordinal of a storage in the index and the progress of listing it
+     */
+    private static final class StorageState {
+        private final int ordinal;
+        private volatile String cursor;
+        private volatile boolean complete;
+
+        private StorageState(int ordinal) {
+            this.ordinal = ordinal;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package eu.europeana.thumbnail.service;
+
+import java.io.InputStream;
+
+/**
+ * Service for retrieving media from, and also writing media to an object storage like Amazons S3 or IBM Cloud S3
+ */
+public interface MediaWriteStorageService extends MediaReadStorageService {
+
+    /**
+     * Save a file in media storage under the provided id. If a file with the same id already exists it is replaced.
+     *
+     * @param id the id of the file
+     * @param contentType the content type of the file
+     * @param content stream with the contents of the file
+     */
+    void store(String id, String contentType, InputStream content);
+
+}
@@ -0,0 +1,350 @@
+package eu.europeana.thumbnail.service;
+
+import com.sksamuel.scrimage.ImmutableImage;
+import eu.europeana.api.commons_sb3.error.EuropeanaApiException;
+import eu.europeana.thumbnail.model.Deadline;
+import eu.europeana.thumbnail.model.ImageFormat;
+import eu.europeana.thumbnail.model.Mosaic;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import jakarta.annotation.PreDestroy;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.util.DigestUtils;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Combines the thumbnails of a search result page into a single sprite image (mosaic), so a results grid costs one
+ * request instead of one per thumbnail. Thumbnails are loaded in parallel by a bounded pool of threads, combined in a
+ * grid (each row is as high as its highest thumbnail) and encoded once as JPEG. To bound the memory needed for a
+ * mosaic, thumbnails that are higher than <mosaic.max.tile.ratio> times their width are cropped, and mosaics that
+ * could contain more than <mosaic.max.pixels> pixels are not generated (see {@link #fitsPixelBudget(int, int, int)}).
+ *
+ * Generated mosaics are cached by the hash of the route, width, number of columns and list of ids, so popular pages
+ * become a single cacheable object. Mosaics are cached for <mosaic.cache.ttl.ms>, so changed thumbnails show up after
+ * that time. Mosaics for which not all thumbnails could be checked (e.g. because of a timeout) are not cached.
+ * Concurrent requests for the same mosaic share a single generation.
+ */
+@Service
+@SuppressWarnings("javasecurity:S5145") // we only log for debug purposes
+public class MosaicService {
+
+    private static final Logger LOG = LogManager.getLogger(MosaicService.class);
+
+    private static final String METRIC_NAME = "thumbnail.mosaic";
+    private static final String TAG_RESULT  = "result";
+    private static final long BYTES_PER_KB = 1024L;
+    private static final ImageFormat FORMAT = ImageFormat.JPEG;
+
+    private final int maxTiles;
+    private final double maxTileRatio;
+    private final long maxPixels;
+    private final long maxBytes;
+    private final long ttlMillis;
+    private final ThreadPoolExecutor executor;
+    private final Map<String, Mosaic> cache = new LinkedHashMap<>(64, 0.75f, true);
+    private final Map<String, CompletableFuture<Mosaic>> generating = new ConcurrentHashMap<>();
+    private long usedBytes;
+
+    /**
+     * Loads the encoded thumbnail with a particular id
+     */
+    @FunctionalInterface
+    public interface TileLoader {
+        /**
+         * @param id the id of the thumbnail (without width)
+         * @return the encoded thumbnail, or null if it doesn't exist
+         * @throws IOException when there is a problem reading the thumbnail
+         * @throws EuropeanaApiException when not all storages could be checked
+         */
+        byte[] load(String id) throws IOException, EuropeanaApiException;
+    }
+
+    /**
+     * Initialize a new mosaic service
+     * @param maxTiles maximum number of thumbnails in a mosaic
+     * @param maxTileRatio maximum height of a thumbnail relative to its width, higher thumbnails are cropped
+     * @param maxPixels maximum number of pixels of a mosaic
+     * @param threads maximum number of thumbnails that are loaded concurrently (for all mosaics together)
+     * @param maxSizeMb maximum size of all cached mosaics together in MB, 0 means caching is disabled
+     * @param ttlMillis time after which a cached mosaic is generated again
+     */
+    public MosaicService(@Value("${mosaic.max.tiles:48}") int maxTiles,
+                         @Value("${mosaic.max.tile.ratio:2}") double maxTileRatio,
+                         @Value("${mosaic.max.pixels:16000000}") long maxPixels,
+                         @Value("${mosaic.threads:16}") int threads,
+                         @Value("${mosaic.cache.max.size.mb:32}") long maxSizeMb,
+                         @Value("${mosaic.cache.ttl.ms:300000}") long ttlMillis) {
+        this.maxTiles = maxTiles;
+        this.maxTileRatio = maxTileRatio;
+        this.maxPixels = maxPixels;
+        this.maxBytes = maxSizeMb * BYTES_PER_KB * BYTES_PER_KB;
+        this.ttlMillis = ttlMillis;
+        // when all threads are busy the request thread loads thumbnails itself, so the queue doesn't grow unbounded
+        this.executor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.MINUTES,
+                new LinkedBlockingQueue<>(threads), new CustomizableThreadFactory("mosaic-"),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        this.executor.allowCoreThreadTimeOut(true);
+        Gauge.builder(METRIC_NAME + ".cache.size", this, MosaicService::getUsedBytes)
+                .description("Total size of all cached mosaics")
+                .baseUnit("bytes")
+                .register(Metrics.globalRegistry);
+        LOG.info("Mosaics contain at most {} thumbnails and {} pixels, cache maximum size = {} MB, ttl = {} ms",
+                maxTiles, maxPixels, maxSizeMb, ttlMillis);
+    }
+
+    /**
+     * @return maximum number of thumbnails in a mosaic
+     */
+    public int getMaxTiles() {
+        return maxTiles;
+    }
+
+    /**
+     * Check if a mosaic stays within the pixel budget, assuming all its thumbnails have the maximum height. This only
+     * depends on the request, so it can be checked before any thumbnail is loaded.
+     * @param width width of each thumbnail in pixels
+     * @param columns number of thumbnails per row
+     * @param tileCount number of thumbnails in the mosaic
+     * @return true if the mosaic can be generated, false if it could get too large
+     */
+    public boolean fitsPixelBudget(int width, int columns, int tileCount) {
+        int columnCount = Math.max(1, Math.min(columns, tileCount));
+        long rows = (tileCount + columnCount - 1) / columnCount;
+        return (long) columnCount * width * rows * getMaxTileHeight(width) <= maxPixels;
+    }
+
+    private int getMaxTileHeight(int width) {
+        return Math.max(1, (int) (width * maxTileRatio));
+    }
+
+    /**
+     * Return a mosaic from the cache or generate it
+     * @param route name of the route for which the mosaic is requested (used for the cache key)
+     * @param width width of each thumbnail in pixels
+     * @param columns number of thumbnails per row
+     * @param ids the ids of the thumbnails (without width), in the order in which they should appear
+     * @param loader used to load the thumbnails
+     * @param deadline time budget for loading thumbnails, thumbnails that take longer are left out
+     * @return the mosaic, or null if none of the thumbnails were found
+     * @throws InterruptedException when interrupted while waiting for thumbnails
+     */
+    public Mosaic get(String route, int width, int columns, List<String> ids, TileLoader loader, Deadline deadline)
+            throws InterruptedException {
+        String key = DigestUtils.md5DigestAsHex((route + "/" + width + "/" + columns + "/" + String.join(",", ids))
+                .getBytes(StandardCharsets.UTF_8));
+        Mosaic result = getCached(key);
+        if (result != null) {
+            count("hit");
+            return result;
+        }
+        CompletableFuture<Mosaic> future = new CompletableFuture<>();
+        CompletableFuture<Mosaic> existing = generating.putIfAbsent(key, future);
+        if (existing != null) {
+            count("shared");
+            try {
+                return existing.get(deadline.remainingNanos(), TimeUnit.NANOSECONDS);
+            } catch (ExecutionException | TimeoutException e) {
+                LOG.debug("Shared generation of mosaic {} failed, generating it again", key, e);
+                return generate(width, columns, ids, loader, deadline);
+            }
+        }
+        try {
+            result = generate(width, columns, ids, loader, deadline);
+            if (result != null && result.complete()) {
+                put(key, result);
+            }
+            future.complete(result);
+            return result;
+        } catch (RuntimeException | InterruptedException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            generating.remove(key, future);
+        }
+    }
+
+    private Mosaic generate(int width, int columns, List<String> ids, TileLoader loader, Deadline deadline)
+            throws InterruptedException {
+        long start = System.nanoTime();
+        count("generated");
+        List<CompletableFuture<BufferedImage>> futures = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            futures.add(CompletableFuture.supplyAsync(() -> loadTile(loader, id, width), executor));
+        }
+        boolean complete = true;
+        BufferedImage[] images = new BufferedImage[ids.size()];
+        for (int i = 0; i < ids.size(); i++) {
+            try {
+                images[i] = futures.get(i).get(deadline.remainingNanos(), TimeUnit.NANOSECONDS);
+            } catch (ExecutionException | TimeoutException e) {
+                LOG.debug("Error loading thumbnail {} for mosaic, leaving it out", ids.get(i), e);
+                futures.get(i).cancel(false);
+                complete = false;
+            }
+        }
+        Mosaic result = combine(width, Math.max(1, Math.min(columns, ids.size())), ids, images, complete);
+        LOG.debug("Generated mosaic of {} thumbnails in {} ms", ids.size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return result;
+    }
+
+    private BufferedImage loadTile(TileLoader loader, String id, int width) {
+        try {
+            byte[] data = loader.load(id);
+            if (data == null) {
+                return null;
+            }
+            ImmutableImage image = ImmutableImage.loader().fromBytes(data);
+            if (image.width != width) {
+                image = image.scaleToWidth(width);
+            }
+            return crop(image.awt(), getMaxTileHeight(width));
+        } catch (IOException | EuropeanaApiException e) {
+            throw new TileException(id, e);
+        }
+    }
+
+    /**
+     * Keep only the top of very high (or corrupt) thumbnails, so they can't make the mosaic very large
+     */
+    private static BufferedImage crop(BufferedImage image, int maxHeight) {
+        if (image.getHeight() <= maxHeight) {
+            return image;
+        }
+        // a copy, so the original image doesn't stay in memory
+        BufferedImage cropped = new BufferedImage(image.getWidth(), maxHeight, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D graphics = cropped.createGraphics();
+        try {
+            graphics.drawImage(image, 0, 0, null);
+        } finally {
+            graphics.dispose();
+        }
+        return cropped;
+    }
+
+    private Mosaic combine(int width, int columns, List<String> ids, BufferedImage[] images, boolean complete) {
+        int rows = (images.length + columns - 1) / columns;
+        int[] rowY = new int[rows + 1];
+        for (int row = 0; row < rows; row++) {
+            int rowHeight = 0;
+            for (int i = row * columns; i < Math.min(images.length, (row + 1) * columns); i++) {
+                if (images[i] != null) {
+                    rowHeight = Math.max(rowHeight, images[i].getHeight());
+                }
+            }
+            rowY[row + 1] = rowY[row] + rowHeight;
+        }
+        int height = rowY[rows];
+        if (height == 0) {
+            return null;
+        }
+        BufferedImage canvas = new BufferedImage(columns * width, height, BufferedImage.TYPE_INT_RGB);
+        List<Mosaic.Tile> tiles = new ArrayList<>(images.length);
+        Graphics2D graphics = canvas.createGraphics();
+        try {
+            graphics.setColor(Color.WHITE);
+            graphics.fillRect(0, 0, canvas.getWidth(), canvas.getHeight());
+            for (int i = 0; i < images.length; i++) {
+                if (images[i] == null) {
+                    tiles.add(new Mosaic.Tile(ids.get(i), null, null, null, null));
+                } else {
+                    int x = (i % columns) * width;
+                    int y = rowY[i / columns];
+                    graphics.drawImage(images[i], x, y, null);
+                    tiles.add(new Mosaic.Tile(ids.get(i), x, y, images[i].getWidth(), images[i].getHeight()));
+                }
+            }
+        } finally {
+            graphics.dispose();
+        }
+        byte[] data;
+        try {
+            data = ImmutableImage.wrapAwt(canvas).forWriter(FORMAT.getWriter()).bytes();
+        } catch (IOException e) {
+            throw new IllegalStateException("Error encoding mosaic", e);
+        }
+        String eTag = "\"" + DigestUtils.md5DigestAsHex(data) + "\"";
+        return new Mosaic(data, FORMAT.getMediaType(), eTag, complete, System.currentTimeMillis(), canvas.getWidth(),
+                height, List.copyOf(tiles));
+    }
+
+    private Mosaic getCached(String key) {
+        synchronized (cache) {
+            Mosaic cached = cache.get(key);
+            if (cached != null && System.currentTimeMillis() - cached.createdAt() > ttlMillis) {
+                cache.remove(key);
+                usedBytes -= cached.data().length;
+                return null;
+            }
+            return cached;
+        }
+    }
+
+    private void put(String key, Mosaic mosaic) {
+        if (mosaic.data().length > maxBytes) {
+            return;
+        }
+        synchronized (cache) {
+            Mosaic previous = cache.put(key, mosaic);
+            if (previous != null) {
+                usedBytes -= previous.data().length;
+            }
+            usedBytes += mosaic.data().length;
+            var iterator = cache.values().iterator();
+            while (usedBytes > maxBytes && iterator.hasNext()) {
+                usedBytes -= iterator.next().data().length;
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * @return the total size in bytes of all cached mosaics
+     */
+    public long getUsedBytes() {
+        synchronized (cache) {
+            return usedBytes;
+        }
+    }
+
+    private void count(String result) {
+        Metrics.counter(METRIC_NAME, TAG_RESULT, result).increment();
+    }
+
+    /**
+     * Stop loading thumbnails
+     */
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Thrown when a thumbnail could not be loaded
+     */
+    private static final class TileException extends RuntimeException {
+        private TileException(String id, Exception cause) {
+            super("Error loading thumbnail " + id, cause);
+        }
+    }
+}
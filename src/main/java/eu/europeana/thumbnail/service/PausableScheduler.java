@@ -0,0 +1,114 @@
+package eu.europeana.thumbnail.service;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs periodic background tasks on a single thread. Tasks only run while the scheduler is running, so they can be
+ * paused while the application context is stopped, for example while a (CRaC) checkpoint is created and the storage
+ * clients are closed. When the scheduler is resumed all tasks are scheduled again, starting with their initial delay.
+ */
+public final class PausableScheduler {
+
+    private static final Logger LOG = LogManager.getLogger(PausableScheduler.class);
+
+    private static final long STOP_TIMEOUT_MS = 5000;
+
+    private final String name;
+    private final ScheduledExecutorService executor;
+    private final List<Task> tasks = new ArrayList<>();
+    private final List<ScheduledFuture<?>> scheduled = new ArrayList<>();
+    private boolean running;
+
+    /**
+     * Create a new scheduler, it doesn't run any tasks until it's resumed
+     * @param name name of the scheduler, used as prefix of the thread name
+     */
+    public PausableScheduler(String name) {
+        this.name = name;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory(name + "-"));
+    }
+
+    /**
+     * Add a task that is run periodically while the scheduler is running
+     * @param task the task to run
+     * @param initialDelayMillis time before the first run, each time the scheduler is resumed
+     * @param delayMillis time between the end of a run and the start of the next one
+     */
+    public synchronized void scheduleWithFixedDelay(Runnable task, long initialDelayMillis, long delayMillis) {
+        Task added = new Task(task, initialDelayMillis, delayMillis);
+        tasks.add(added);
+        if (running) {
+            schedule(added);
+        }
+    }
+
+    /**
+     * Start running the tasks (again)
+     */
+    public synchronized void resume() {
+        if (!running) {
+            tasks.forEach(this::schedule);
+            running = true;
+        }
+    }
+
+    /**
+     * Stop running the tasks. A task that is running is interrupted and we wait (a limited time) until it has finished
+     */
+    public synchronized void pause() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        scheduled.forEach(future -> future.cancel(true));
+        scheduled.clear();
+        try {
+            // there is only one thread, so this runs when the interrupted task has finished
+            executor.submit(() -> { }).get(STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException | RejectedExecutionException e) {
+            LOG.warn("Background tasks of {} did not stop in time", name);
+        }
+    }
+
+    /**
+     * @return true if the tasks are run, false if the scheduler is paused
+     */
+    public synchronized boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Stop running the tasks permanently
+     * @return true if a running task finished in time, otherwise false
+     * @throws InterruptedException when interrupted while waiting for a running task to finish
+     */
+    public boolean shutdown() throws InterruptedException {
+        synchronized (this) {
+            running = false;
+        }
+        executor.shutdownNow();
+        return executor.awaitTermination(STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void schedule(Task task) {
+        scheduled.add(executor.scheduleWithFixedDelay(task.runnable, task.initialDelayMillis, task.delayMillis,
+                TimeUnit.MILLISECONDS));
+    }
+
+    private record Task(Runnable runnable, long initialDelayMillis, long delayMillis) {
+    }
+}
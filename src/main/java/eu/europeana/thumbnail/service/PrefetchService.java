@@ -0,0 +1,296 @@
+package eu.europeana.thumbnail.service;
+
+import eu.europeana.s3.S3Object;
+import eu.europeana.thumbnail.model.MediaStream;
+import eu.europeana.thumbnail.utils.IdUtils;
+import io.micrometer.core.instrument.Metrics;
+import jakarta.annotation.PreDestroy;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Front-ends usually request both the MEDIUM and LARGE version of a thumbnail shortly after each other (e.g. for
+ * srcset). When one size is retrieved from a storage, this service loads the other size from the same storage in the
+ * background and keeps it in a small, short-lived buffer, so the request for the other size doesn't have to wait for
+ * the storage.
+ *
+ * Loading is done by a small pool of background threads with a bounded queue. If the queue is full, the prefetch is
+ * skipped. Prefetches count towards the concurrency limit of the storage and are subject to its circuit breaker just
+ * like regular requests; when either refuses, the prefetch is dropped. Buffered thumbnails are used at most once (after that the local cache takes over) and are dropped after
+ * <prefetch.ttl.ms> (or earlier when the buffer is full). The ratio between the "hit" and "stored" results of the
+ * thumbnail.prefetch metric shows whether prefetching pays off.
+ */
+@Service
+@SuppressWarnings("javasecurity:S5145") // we only log for debug purposes
+public class PrefetchService implements UploadListener {
+
+    private static final Logger LOG = LogManager.getLogger(PrefetchService.class);
+
+    private static final String METRIC_NAME = "thumbnail.prefetch";
+    private static final String TAG_RESULT  = "result";
+    private static final long BYTES_PER_KB = 1024L;
+
+    private final StorageLimitService storageLimitService;
+    private final StorageHealthService storageHealthService;
+    private final boolean enabled;
+    private final long ttlMillis;
+    private final long maxBytes;
+    private final long maxObjectBytes;
+    private final ThreadPoolExecutor executor;
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+    // in order of insertion, so with a fixed ttl the eldest entries expire first
+    private final Map<String, Prefetched> buffer = new LinkedHashMap<>();
+    private long usedBytes;
+
+    /**
+     * Initialize a new prefetch service
+     * @param storageLimitService service that limits the number of concurrent requests per storage
+     * @param storageHealthService service that keeps track of storage health
+     * @param enabled true if sibling sizes should be prefetched, otherwise false
+     * @param threads maximum number of concurrent prefetch requests
+     * @param queueSize maximum number of prefetch requests that can be queued
+     * @param maxSizeMb maximum size of all buffered thumbnails together in MB, the oldest are dropped first
+     * @param ttlMillis time after which a prefetched thumbnail that wasn't requested is dropped
+     * @param maxObjectKb larger thumbnails are not buffered
+     */
+    @SuppressWarnings("java:S107") // all parameters are needed
+    public PrefetchService(StorageLimitService storageLimitService, StorageHealthService storageHealthService,
+                           @Value("${prefetch.enabled:false}") boolean enabled,
+                           @Value("${prefetch.threads:4}") int threads,
+                           @Value("${prefetch.queue.size:100}") int queueSize,
+                           @Value("${prefetch.max.size.mb:16}") long maxSizeMb,
+                           @Value("${prefetch.ttl.ms:10000}") long ttlMillis,
+                           @Value("${prefetch.max.object.kb:512}") long maxObjectKb) {
+        this.storageLimitService = storageLimitService;
+        this.storageHealthService = storageHealthService;
+        this.enabled = enabled;
+        this.ttlMillis = ttlMillis;
+        this.maxBytes = maxSizeMb * BYTES_PER_KB * BYTES_PER_KB;
+        this.maxObjectBytes = maxObjectKb * BYTES_PER_KB;
+        if (enabled) {
+            this.executor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.MINUTES,
+                    new ArrayBlockingQueue<>(queueSize), new CustomizableThreadFactory("prefetch-"));
+            this.executor.allowCoreThreadTimeOut(true);
+            LOG.info("Prefetching of sibling sizes enabled with {} threads, buffering at most {} MB for {} ms",
+                    threads, maxSizeMb, ttlMillis);
+        } else {
+            this.executor = null;
+            LOG.info("Prefetching of sibling sizes disabled");
+        }
+    }
+
+    /**
+     * Schedule loading the other size of a thumbnail that was just retrieved from a storage. This method returns
+     * immediately, loading is done in the background
+     * @param storages the storages of the route for which the thumbnail was requested
+     * @param id the id of the retrieved thumbnail (including width)
+     * @param originalUrl the original url of the thumbnail (only available for v2 requests)
+     * @param storage the storage in which the thumbnail was found
+     * @param localCacheService the local cache, the other size is not loaded if it's already cached
+     */
+    public void prefetchSibling(List<MediaReadStorageService> storages, String id, String originalUrl,
+                                MediaReadStorageService storage, LocalCacheService localCacheService) {
+        if (!enabled) {
+            return;
+        }
+        String siblingId = IdUtils.getSiblingId(id);
+        if (siblingId == null) {
+            return;
+        }
+        String key = LocalCacheService.getKey(storages, siblingId);
+        if (localCacheService.contains(key) || isBuffered(key) || !pending.add(key)) {
+            return;
+        }
+        try {
+            executor.execute(() -> load(key, siblingId, originalUrl, storage));
+        } catch (RejectedExecutionException e) {
+            pending.remove(key);
+            count("dropped");
+            LOG.debug("Prefetch queue is full, skipping loading file {}", siblingId);
+        }
+    }
+
+    private void load(String key, String id, String originalUrl, MediaReadStorageService storage) {
+        if (!storageLimitService.tryAcquire(storage)) {
+            pending.remove(key);
+            count("limited");
+            LOG.debug("Concurrency limit of storage {} is reached, skipping loading file {}", storage.getName(), id);
+            return;
+        }
+        // checked last, because in half-open state this claims a trial request whose outcome must be recorded
+        if (!storageHealthService.allowRequest(storage)) {
+            storageLimitService.cancel(storage);
+            pending.remove(key);
+            count("breaker");
+            LOG.debug("Circuit breaker of storage {} is open, skipping loading file {}", storage.getName(), id);
+            return;
+        }
+        long start = System.nanoTime();
+        long durationNanos = 0;
+        boolean success = false;
+        MediaStream mediaStream = null;
+        try {
+            try {
+                mediaStream = storage.retrieve(id, originalUrl);
+                durationNanos = System.nanoTime() - start;
+                storageHealthService.recordSuccess(storage, durationNanos);
+                success = true;
+            } catch (RuntimeException e) {
+                durationNanos = System.nanoTime() - start;
+                storageHealthService.recordFailure(storage);
+                throw e;
+            }
+            if (mediaStream == null || mediaStream.getS3Object() == null) {
+                count("notfound");
+                return;
+            }
+            Long contentLength = mediaStream.getContentLength();
+            if (contentLength == null || contentLength > maxObjectBytes) {
+                count("toolarge");
+                return;
+            }
+            byte[] data;
+            try (InputStream in = mediaStream.getS3Object().inputStream()) {
+                data = in.readAllBytes();
+            }
+            Map<String, Object> metadata = new HashMap<>();
+            if (mediaStream.hasMetadata()) {
+                metadata.putAll(mediaStream.getMetadata());
+            }
+            metadata.put(S3Object.CONTENT_LENGTH, (long) data.length);
+            synchronized (buffer) {
+                Prefetched previous = buffer.put(key, new Prefetched(id, storage.getName(), data, metadata,
+                        System.currentTimeMillis() + ttlMillis));
+                if (previous != null) {
+                    usedBytes -= previous.data.length;
+                }
+                usedBytes += data.length;
+                evictIfNeeded();
+            }
+            LOG.debug("Prefetched file {} from storage {}", id, storage.getName());
+            count("stored");
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Error prefetching file {} from storage {}", id, storage.getName(), e);
+            count("failed");
+        } finally {
+            pending.remove(key);
+            if (mediaStream != null && !mediaStream.isClosed()) {
+                mediaStream.close();
+            }
+            // the connection is only given back when the stream is closed, so we hold the permit until then
+            storageLimitService.release(storage, durationNanos, success);
+        }
+    }
+
+    /**
+     * Drop expired thumbnails and, if the buffer is still too large, the oldest ones
+     */
+    private void evictIfNeeded() {
+        long now = System.currentTimeMillis();
+        var iterator = buffer.values().iterator();
+        while (iterator.hasNext()) {
+            Prefetched prefetched = iterator.next();
+            if (usedBytes <= maxBytes && prefetched.expiresAt >= now) {
+                break;
+            }
+            usedBytes -= prefetched.data.length;
+            iterator.remove();
+            count("expired");
+        }
+    }
+
+    /**
+     * Take a prefetched thumbnail from the buffer
+     * @param key the cache key, see {@link LocalCacheService#getKey(List, String)}
+     * @param originalUrl optional, the original url of the requested thumbnail
+     * @return a new MediaStream for the prefetched thumbnail, or null if it wasn't prefetched (or expired)
+     */
+    public MediaStream take(String key, String originalUrl) {
+        if (!enabled) {
+            return null;
+        }
+        Prefetched prefetched;
+        synchronized (buffer) {
+            prefetched = buffer.remove(key);
+            if (prefetched != null) {
+                usedBytes -= prefetched.data.length;
+            }
+        }
+        if (prefetched == null) {
+            return null;
+        }
+        if (prefetched.expiresAt < System.currentTimeMillis()) {
+            count("expired");
+            return null;
+        }
+        count("hit");
+        return new MediaStream(prefetched.id, originalUrl,
+                new S3Object(prefetched.id, new ByteArrayInputStream(prefetched.data), prefetched.metadata),
+                prefetched.storageName);
+    }
+
+    private boolean isBuffered(String key) {
+        synchronized (buffer) {
+            return buffer.containsKey(key);
+        }
+    }
+
+    /**
+     * Drop buffered versions of an uploaded thumbnail
+     * @see UploadListener#uploaded(String, String)
+     */
+    @Override
+    public void uploaded(String storageName, String id) {
+        String keySuffix = "/" + id;
+        synchronized (buffer) {
+            var iterator = buffer.entrySet().iterator();
+            while (iterator.hasNext()) {
+                var entry = iterator.next();
+                if (entry.getKey().equals(id) || entry.getKey().endsWith(keySuffix)) {
+                    usedBytes -= entry.getValue().data.length;
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    private void count(String result) {
+        Metrics.counter(METRIC_NAME, TAG_RESULT, result).increment();
+    }
+
+    /**
+     * Stop accepting new prefetches and give queued ones a short time to finish
+     * @throws InterruptedException when interrupted while waiting for the queue to finish
+     */
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        if (executor != null) {
+            executor.shutdown();
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                LOG.warn("Shutting down prefetching with {} prefetches still queued", executor.getQueue().size());
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    private record Prefetched(String id, String storageName, byte[] data, Map<String, Object> metadata,
+                              long expiresAt) {
+    }
+}
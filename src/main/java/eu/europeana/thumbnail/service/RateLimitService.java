@@ -0,0 +1,256 @@
+package eu.europeana.thumbnail.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import jakarta.annotation.PreDestroy;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * Limits the number of thumbnail requests per client and keeps track of the number of requests per API key, so one
+ * aggressive harvester can't saturate the application for everyone.
+ *
+ * API keys that are listed in a tier (<code>ratelimit.tier.&lt;name&gt;.keys</code>) get the rate and burst of that
+ * tier. All other requests, with an unknown API key or without one, are limited per client ip address with the
+ * default rate and burst (otherwise clients could bypass the limit by sending random keys). Note that behind a proxy
+ * the client address is only correct when forwarded headers are handled (<code>server.forward-headers-strategy</code>).
+ * Each tier has its own token buckets, so clients of different tiers never share a bucket. Within a tier, each API key
+ * has its own bucket.
+ *
+ * Usage is aggregated in memory per API key (requests without an API key are counted together) and written to the
+ * <code>eu.europeana.thumbnail.usage</code> log every <code>ratelimit.usage.flush.ms</code>. API keys come from the
+ * client, so keys that don't look like an API key (e.g. that contain line breaks) are counted as "other", as are keys
+ * beyond the maximum number of tracked keys.
+ */
+@Service
+@SuppressWarnings("javasecurity:S5145") // API keys are public, logging them is intended
+public class RateLimitService {
+
+    private static final Logger LOG = LogManager.getLogger(RateLimitService.class);
+    private static final Logger USAGE_LOG = LogManager.getLogger("eu.europeana.thumbnail.usage");
+
+    private static final String PREFIX = "ratelimit.tier.";
+    private static final String DEFAULT_TIER = "default";
+    /** Usage key of requests without API key */
+    static final String ANONYMOUS = "anonymous";
+    /** Usage key of requests with an invalid API key or when the maximum number of tracked keys is reached */
+    static final String OTHER = "other";
+    private static final Pattern VALID_KEY = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+    private static final String PROP_FORWARD_HEADERS = "server.forward-headers-strategy";
+
+    private final boolean enabled;
+    private final Tier defaultTier;
+    private final Map<String, Tier> tiersByKey = new HashMap<>();
+    private final int maxUsageKeys;
+    private final Map<String, Usage> usage = new ConcurrentHashMap<>();
+    private ScheduledExecutorService executor;
+
+    /**
+     * Initialize a new rate limit service
+     * @param enabled true if requests should be limited, false if usage should only be counted
+     * @param stripes number of token buckets that are shared by all clients without a (known) API key
+     * @param defaultRate number of requests per second for clients without a (known) API key, 0 is unlimited
+     * @param defaultBurst maximum number of requests in a burst for clients without a (known) API key
+     * @param tiers comma-separated names of tiers, each tier has a rate, burst and list of API keys
+     * @param flushMillis interval at which usage is written to the log, 0 to never write usage
+     * @param maxUsageKeys maximum number of API keys for which usage is counted separately
+     * @param environment used to read the settings of tiers
+     */
+    @SuppressWarnings("java:S107") // all settings are required
+    public RateLimitService(@Value("${ratelimit.enabled:false}") boolean enabled,
+                            @Value("${ratelimit.stripes:65536}") int stripes,
+                            @Value("${ratelimit.default.rate:50}") int defaultRate,
+                            @Value("${ratelimit.default.burst:100}") int defaultBurst,
+                            @Value("${ratelimit.tiers:}") String tiers,
+                            @Value("${ratelimit.usage.flush.ms:60000}") long flushMillis,
+                            @Value("${ratelimit.usage.max.keys:10000}") int maxUsageKeys,
+                            Environment environment) {
+        this.enabled = enabled;
+        this.defaultTier = new Tier(DEFAULT_TIER, defaultRate, defaultBurst, stripes);
+        this.maxUsageKeys = maxUsageKeys;
+        for (String name : StringUtils.split(tiers, ',')) {
+            String tierName = name.trim();
+            String[] keys = StringUtils.split(environment.getProperty(PREFIX + tierName + ".keys", ""), ',');
+            Tier tier = new Tier(tierName,
+                    environment.getProperty(PREFIX + tierName + ".rate", Integer.class, defaultRate),
+                    environment.getProperty(PREFIX + tierName + ".burst", Integer.class, defaultBurst),
+                    keys.length);
+            for (String key : keys) {
+                tier.bucketsByKey.putIfAbsent(key.trim(), tier.bucketsByKey.size());
+                Tier previous = tiersByKey.put(key.trim(), tier);
+                if (previous != null) {
+                    LOG.warn("API key {} is in tiers {} and {}, using {}", key.trim(), previous.name, tierName,
+                            tierName);
+                }
+            }
+            LOG.info("Rate limit tier {}: {} requests per second, burst {}", tierName, tier.rate, tier.burst);
+        }
+        if (enabled) {
+            LOG.info("Rate limit for other clients: {} requests per second, burst {}, using {} buckets", defaultRate,
+                    defaultBurst, defaultTier.buckets.getStripes());
+            if (StringUtils.isBlank(environment.getProperty(PROP_FORWARD_HEADERS))) {
+                LOG.warn("{} is not set, behind a proxy all clients without API key share the limit of the proxy "
+                        + "address", PROP_FORWARD_HEADERS);
+            }
+        } else {
+            LOG.info("Requests are not rate limited");
+        }
+        if (flushMillis > 0) {
+            this.executor = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("usage-flush-"));
+            this.executor.scheduleAtFixedRate(this::logUsage, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Count a request and check if it's allowed
+     * @param apiKey the API key sent with the request, can be null
+     * @param clientAddress the ip address of the client
+     * @return 0 if the request is allowed, otherwise the number of milliseconds until the client can do a request
+     */
+    public long tryAcquire(String apiKey, String clientAddress) {
+        return tryAcquire(apiKey, clientAddress, 1);
+    }
+
+    /**
+     * Count a request that costs a number of tokens (e.g. one per thumbnail in a mosaic) and check if it's allowed
+     * @param apiKey the API key sent with the request, can be null
+     * @param clientAddress the ip address of the client
+     * @param permits the number of tokens the request costs, see {@link TokenBuckets#tryAcquire(String, int, int, int)}
+     * @return 0 if the request is allowed, otherwise the number of milliseconds until the client can do the request
+     */
+    public long tryAcquire(String apiKey, String clientAddress, int permits) {
+        Tier tier = (apiKey == null ? null : tiersByKey.get(apiKey));
+        long waitMillis = 0;
+        if (tier == null) {
+            tier = defaultTier;
+            if (enabled && tier.rate > 0) {
+                waitMillis = tier.buckets.tryAcquire(clientAddress, tier.rate, tier.burst, permits);
+            }
+        } else if (enabled && tier.rate > 0) {
+            waitMillis = tier.buckets.tryAcquireBucket(tier.bucketsByKey.get(apiKey), tier.rate, tier.burst, permits);
+        }
+
+        Usage keyUsage = getUsage(apiKey);
+        if (waitMillis == 0) {
+            tier.allowed.increment();
+            keyUsage.allowed.increment();
+        } else {
+            tier.rejected.increment();
+            keyUsage.rejected.increment();
+        }
+        return waitMillis;
+    }
+
+    private Usage getUsage(String apiKey) {
+        String key;
+        if (StringUtils.isEmpty(apiKey)) {
+            key = ANONYMOUS;
+        } else if (VALID_KEY.matcher(apiKey).matches()) {
+            key = apiKey;
+        } else {
+            key = OTHER;
+        }
+        Usage result = usage.get(key);
+        if (result == null) {
+            if (usage.size() >= maxUsageKeys) {
+                key = OTHER;
+            }
+            result = usage.computeIfAbsent(key, k -> new Usage());
+        }
+        return result;
+    }
+
+    /**
+     * Return the usage since the previous call and reset all counters. API keys without requests since the previous
+     * call are no longer tracked.
+     * @return map with per API key the number of allowed and rejected requests
+     */
+    Map<String, UsageCount> flushUsage() {
+        Map<String, UsageCount> result = new LinkedHashMap<>();
+        for (Map.Entry<String, Usage> entry : usage.entrySet()) {
+            long allowed = entry.getValue().allowed.sumThenReset();
+            long rejected = entry.getValue().rejected.sumThenReset();
+            if (allowed == 0 && rejected == 0) {
+                usage.remove(entry.getKey(), entry.getValue());
+            } else {
+                result.put(entry.getKey(), new UsageCount(allowed, rejected));
+            }
+        }
+        return result;
+    }
+
+    private void logUsage() {
+        try {
+            for (Map.Entry<String, UsageCount> entry : flushUsage().entrySet()) {
+                Tier tier = tiersByKey.getOrDefault(entry.getKey(), defaultTier);
+                USAGE_LOG.info("key={} tier={} allowed={} rejected={}", entry.getKey(), tier.name,
+                        entry.getValue().allowed(), entry.getValue().rejected());
+            }
+        } catch (RuntimeException e) {
+            // don't let an error stop the scheduled task
+            LOG.error("Error writing usage", e);
+        }
+    }
+
+    /**
+     * Stop the scheduled writing of usage and write the usage that wasn't written yet
+     * @throws InterruptedException when interrupted while waiting for the scheduled task to stop
+     */
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        if (executor != null) {
+            executor.shutdown();
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                LOG.warn("Writing usage did not stop in time");
+            }
+            logUsage();
+        }
+    }
+
+    /**
+     * Number of allowed and rejected requests of an API key
+     * @param allowed number of requests that were allowed
+     * @param rejected number of requests that were rejected
+     */
+    record UsageCount(long allowed, long rejected) {}
+
+    private static final class Usage {
+        private final LongAdder allowed = new LongAdder();
+        private final LongAdder rejected = new LongAdder();
+    }
+
+    private static final class Tier {
+        private final String name;
+        private final int rate;
+        private final int burst;
+        private final TokenBuckets buckets;
+        /** Index of the bucket of each API key of the tier */
+        private final Map<String, Integer> bucketsByKey = new HashMap<>();
+        private final Counter allowed;
+        private final Counter rejected;
+
+        private Tier(String name, int rate, int burst, int stripes) {
+            this.name = name;
+            this.rate = rate;
+            this.burst = Math.max(1, Math.min(burst, TokenBuckets.MAX_BURST));
+            this.buckets = new TokenBuckets(stripes);
+            this.allowed = Metrics.counter("thumbnail.ratelimit", "tier", name, "result", "allowed");
+            this.rejected = Metrics.counter("thumbnail.ratelimit", "tier", name, "result", "rejected");
+        }
+    }
+}
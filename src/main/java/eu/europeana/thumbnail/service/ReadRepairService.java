@@ -0,0 +1,156 @@
+package eu.europeana.thumbnail.service;
+
+import eu.europeana.thumbnail.model.MediaStream;
+import io.micrometer.core.instrument.Metrics;
+import jakarta.annotation.PreDestroy;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * When a thumbnail is not found in the first storage(s) of a route, but only in a later (fallback) storage, this
+ * service copies it in the background to the first writable storage of that route that comes before the storage where
+ * it was found. That way frequently requested items migrate themselves and subsequent requests don't have to check
+ * all storages of a route anymore.
+ * Copying is done by a small pool of background threads with a bounded queue. If the queue is full, the repair is
+ * simply skipped (it will be scheduled again on the next request for the same item). Requests for an item that is
+ * already queued are ignored.
+ */
+@Service
+@SuppressWarnings("javasecurity:S5145") // we only log for debug purposes
+public class ReadRepairService {
+
+    private static final Logger LOG = LogManager.getLogger(ReadRepairService.class);
+
+    private static final String METRIC_NAME = "thumbnail.readrepair";
+    private static final String TAG_RESULT  = "result";
+
+    private final boolean enabled;
+    private final ThreadPoolExecutor executor;
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Initialize a new read repair service
+     * @param enabled true if read repair should be done, otherwise false
+     * @param threads number of background threads that copy files
+     * @param queueSize maximum number of copy operations that can be queued
+     */
+    public ReadRepairService(@Value("${readrepair.enabled:false}") boolean enabled,
+                             @Value("${readrepair.threads:2}") int threads,
+                             @Value("${readrepair.queue.size:1000}") int queueSize) {
+        this.enabled = enabled;
+        if (enabled) {
+            this.executor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.MINUTES,
+                    new ArrayBlockingQueue<>(queueSize), new CustomizableThreadFactory("read-repair-"));
+            this.executor.allowCoreThreadTimeOut(true);
+            LOG.info("Read repair enabled with {} threads and queue size {}", threads, queueSize);
+        } else {
+            this.executor = null;
+            LOG.info("Read repair disabled");
+        }
+    }
+
+    /**
+     * Schedule copying a file to the first writable storage of the route, if the file was found in a later storage.
+     * This method returns immediately, copying is done in the background
+     * @param id the id of the file that was found
+     * @param originalUrl the original url of the file (only available for v2 requests)
+     * @param storages the (ordered) storages of the route
+     * @param foundIndex the index of the storage in which the file was found
+     */
+    public void repairIfNeeded(String id, String originalUrl, List<MediaReadStorageService> storages, int foundIndex) {
+        if (!enabled || foundIndex <= 0) {
+            return;
+        }
+        MediaWriteStorageService target = null;
+        for (int i = 0; i < foundIndex && target == null; i++) {
+            if (storages.get(i) instanceof MediaWriteStorageService writable) {
+                target = writable;
+            }
+        }
+        if (target == null) {
+            return;
+        }
+        MediaReadStorageService source = storages.get(foundIndex);
+        String key = target.getName() + "/" + id;
+        if (!pending.add(key)) {
+            LOG.debug("Copying file {} to storage {} is already scheduled", id, target.getName());
+            return;
+        }
+        MediaWriteStorageService copyTarget = target;
+        try {
+            executor.execute(() -> copy(key, id, originalUrl, source, copyTarget));
+        } catch (RejectedExecutionException e) {
+            pending.remove(key);
+            count("dropped");
+            LOG.debug("Read repair queue is full, skipping copying file {} to storage {}", id, target.getName());
+        }
+    }
+
+    private void copy(String key, String id, String originalUrl, MediaReadStorageService source,
+                      MediaWriteStorageService target) {
+        MediaStream mediaStream = null;
+        try {
+            mediaStream = source.retrieve(id, originalUrl);
+            if (mediaStream == null || mediaStream.getS3Object() == null) {
+                LOG.warn("File {} no longer found in storage {}, cannot copy it", id, source.getName());
+                count("failed");
+                return;
+            }
+            String contentType = mediaStream.getContentType();
+            if (StringUtils.isBlank(contentType)) {
+                contentType = MediaType.APPLICATION_OCTET_STREAM_VALUE;
+            }
+            target.store(id, contentType, mediaStream.getS3Object().inputStream());
+            LOG.info("Copied file {} from storage {} to storage {}", id, source.getName(), target.getName());
+            count("copied");
+        } catch (Exception e) {
+            LOG.error("Error copying file {} from storage {} to storage {}", id, source.getName(), target.getName(), e);
+            count("failed");
+        } finally {
+            pending.remove(key);
+            closeQuietly(mediaStream);
+        }
+    }
+
+    private void closeQuietly(MediaStream mediaStream) {
+        if (mediaStream != null && !mediaStream.isClosed()) {
+            try {
+                mediaStream.close();
+            } catch (RuntimeException e) {
+                LOG.warn("Error closing stream of file {}", mediaStream.getId(), e);
+            }
+        }
+    }
+
+    private void count(String result) {
+        Metrics.counter(METRIC_NAME, TAG_RESULT, result).increment();
+    }
+
+    /**
+     * Stop accepting new copy operations and give queued ones a short time to finish
+     * @throws InterruptedException when interrupted while waiting for the queue to finish
+     */
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        if (executor != null) {
+            executor.shutdown();
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                LOG.warn("Shutting down read repair with {} copy operations still queued", executor.getQueue().size());
+                executor.shutdownNow();
+            }
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package eu.europeana.thumbnail.service;
+
+import eu.europeana.thumbnail.model.Deadline;
+import eu.europeana.thumbnail.model.MediaStream;
+import io.micrometer.core.instrument.Metrics;
+import jakarta.annotation.PreDestroy;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Revalidates stale thumbnails from the local cache in the background, so they can be served immediately
+ * (stale-while-revalidate). The thumbnail is retrieved again from the storages of the route; if its ETag didn't change
+ * the cached version is marked fresh again, otherwise the cached version is replaced.
+ * Revalidation is done by a small pool of background threads with a bounded queue. If the queue is full, the
+ * revalidation is skipped (it will be scheduled again on the next request for the same thumbnail).
+ */
+@Service
+@SuppressWarnings("javasecurity:S5145") // we only log for debug purposes
+public class RevalidationService {
+
+    private static final Logger LOG = LogManager.getLogger(RevalidationService.class);
+
+    private static final String METRIC_NAME = "thumbnail.cache.revalidation";
+    private static final String TAG_RESULT  = "result";
+
+    private final LocalCacheService localCacheService;
+    private final ValidatorCacheService validatorCacheService;
+    private final StorageDeadlineService storageDeadlineService;
+    private final StorageHealthService storageHealthService;
+    private final long timeoutMillis;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Initialize a new revalidation service
+     * @param localCacheService cache containing the thumbnails to revalidate
+     * @param validatorCacheService cache of validators that is updated when a thumbnail changed
+     * @param storageDeadlineService service for retrieving thumbnails with a timeout
+     * @param storageHealthService service that keeps track of storage health
+     * @param threads number of background threads that revalidate thumbnails
+     * @param queueSize maximum number of revalidations that can be queued
+     * @param timeoutMillis time budget for checking all storages of a route
+     */
+    @SuppressWarnings("java:S107") // all parameters are needed
+    public RevalidationService(LocalCacheService localCacheService, ValidatorCacheService validatorCacheService,
+                               StorageDeadlineService storageDeadlineService, StorageHealthService storageHealthService,
+                               @Value("${cache.revalidate.threads:4}") int threads,
+                               @Value("${cache.revalidate.queue.size:1000}") int queueSize,
+                               @Value("${cache.revalidate.timeout.ms:10000}") long timeoutMillis) {
+        this.localCacheService = localCacheService;
+        this.validatorCacheService = validatorCacheService;
+        this.storageDeadlineService = storageDeadlineService;
+        this.storageHealthService = storageHealthService;
+        this.timeoutMillis = timeoutMillis;
+        this.executor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.MINUTES,
+                new ArrayBlockingQueue<>(queueSize), new CustomizableThreadFactory("cache-revalidate-"));
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Schedule revalidating a cached thumbnail if it's stale. This method returns immediately, revalidation is done in
+     * the background
+     * @param cacheKey the key of the thumbnail in the local cache
+     * @param id the id of the thumbnail (including width)
+     * @param originalUrl the original url of the thumbnail (only available for v2 requests)
+     * @param eTag the ETag of the cached thumbnail
+     * @param storages the (ordered) storages of the route
+     */
+    public void revalidateIfStale(String cacheKey, String id, String originalUrl, String eTag,
+                                  List<MediaReadStorageService> storages) {
+        if (!localCacheService.startRevalidation(cacheKey)) {
+            return;
+        }
+        try {
+            executor.execute(() -> revalidate(cacheKey, id, originalUrl, eTag, storages));
+        } catch (RejectedExecutionException e) {
+            LOG.debug("Revalidation queue full, skipping revalidation of {}", id);
+            localCacheService.finishRevalidation(cacheKey, false);
+            Metrics.counter(METRIC_NAME, TAG_RESULT, "skipped").increment();
+        }
+    }
+
+    private void revalidate(String cacheKey, String id, String originalUrl, String eTag,
+                            List<MediaReadStorageService> storages) {
+        boolean unchanged = false;
+        String result = "not_found";
+        try {
+            Deadline deadline = Deadline.after(timeoutMillis);
+            boolean allChecked = true;
+            for (int i = 0; i < storages.size(); i++) {
+                MediaReadStorageService storage = storages.get(i);
+                if (!storageHealthService.allowRequest(storage)) {
+                    allChecked = false;
+                    continue;
+                }
+                MediaStream current = retrieve(storage, id, originalUrl, deadline.sliceNanos(storages.size() - i));
+                if (current == null) {
+                    continue;
+                }
+                if (eTag != null && StringUtils.equals(eTag, current.getETag())) {
+                    current.close();
+                    unchanged = true;
+                    result = "unchanged";
+                } else {
+                    LOG.debug("Cached thumbnail {} changed, replacing it", id);
+                    validatorCacheService.put(cacheKey, storage.getName(), current);
+                    MediaStream cached = localCacheService.put(cacheKey, current);
+                    if (cached == current) {
+                        // no longer cacheable, so don't keep serving the old version
+                        localCacheService.remove(cacheKey);
+                    }
+                    cached.close();
+                    result = "changed";
+                }
+                return;
+            }
+            // if a storage was skipped we can't be sure the thumbnail doesn't exist anymore
+            if (allChecked) {
+                LOG.debug("Cached thumbnail {} no longer exists, removing it", id);
+                localCacheService.remove(cacheKey);
+            }
+        } catch (TimeoutException | RuntimeException e) {
+            LOG.warn("Error revalidating cached thumbnail {}", id, e);
+            result = "failed";
+        } finally {
+            localCacheService.finishRevalidation(cacheKey, unchanged);
+            Metrics.counter(METRIC_NAME, TAG_RESULT, result).increment();
+        }
+    }
+
+    private MediaStream retrieve(MediaReadStorageService storage, String id, String originalUrl, long timeoutNanos)
+            throws TimeoutException {
+        long start = System.nanoTime();
+        try {
+            MediaStream result = storageDeadlineService.retrieve(storage, id, originalUrl, timeoutNanos);
+            storageHealthService.recordSuccess(storage, System.nanoTime() - start);
+            return result;
+        } catch (RuntimeException | TimeoutException e) {
+            storageHealthService.recordFailure(storage);
+            throw e;
+        }
+    }
+
+    /**
+     * Stop accepting new revalidations and give running ones a short time to finish
+     * @throws InterruptedException when interrupted while waiting for revalidations to finish
+     */
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        executor.shutdown();
+        if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+            LOG.warn("Shutting down revalidation with {} revalidations still queued", executor.getQueue().size());
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package eu.europeana.thumbnail.service;
+
+import eu.europeana.thumbnail.model.Deadline;
+import eu.europeana.thumbnail.model.MediaStream;
+import jakarta.annotation.PreDestroy;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Enforces the time budget (deadline) of thumbnail requests. Each endpoint has its own configurable deadline. When a
+ * deadline is set, storages are called asynchronously (see {@link AsyncMediaReadStorageService}) so we can stop
+ * waiting for a storage as soon as its part of the time budget is used up. Storages that don't support asynchronous
+ * calls are called using a separate thread.
+ */
+@Service
+public class StorageDeadlineService {
+
+    private static final Logger LOG = LogManager.getLogger(StorageDeadlineService.class);
+
+    private final long v2DeadlineMillis;
+    private final long v3DeadlineMillis;
+    private final long reserveMillis;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Initialize a new deadline service
+     * @param v2DeadlineMillis time budget for Thumbnail v2 requests in ms, 0 means no limit
+     * @param v3DeadlineMillis time budget for Thumbnail v3 requests in ms, 0 means no limit
+     * @param reserveMillis time in ms that the first storages leave for each of the storages after it, 0 to divide
+     *                      the time budget evenly
+     * @param maxThreads maximum number of concurrent storage calls with a deadline
+     */
+    public StorageDeadlineService(@Value("${deadline.v2.ms:0}") long v2DeadlineMillis,
+                                  @Value("${deadline.v3.ms:0}") long v3DeadlineMillis,
+                                  @Value("${deadline.reserve.ms:0}") long reserveMillis,
+                                  @Value("${deadline.threads:200}") int maxThreads) {
+        this.v2DeadlineMillis = v2DeadlineMillis;
+        this.v3DeadlineMillis = v3DeadlineMillis;
+        this.reserveMillis = reserveMillis;
+        this.executor = new ThreadPoolExecutor(0, maxThreads, 1, TimeUnit.MINUTES, new SynchronousQueue<>(),
+                new CustomizableThreadFactory("storage-call-"));
+        LOG.info("Request deadline v2 = {} ms, v3 = {} ms, reserve per fallback storage = {} ms", v2DeadlineMillis,
+                v3DeadlineMillis, reserveMillis);
+    }
+
+    /**
+     * @return a new deadline for a Thumbnail v2 request
+     */
+    public Deadline newV2Deadline() {
+        return Deadline.after(v2DeadlineMillis, reserveMillis);
+    }
+
+    /**
+     * @return a new deadline for a Thumbnail v3 request
+     */
+    public Deadline newV3Deadline() {
+        return Deadline.after(v3DeadlineMillis, reserveMillis);
+    }
+
+    /**
+     * Retrieve a file from a storage, but wait at most the provided time
+     * @param storage the storage to retrieve the file from
+     * @param id the id of the file
+     * @param originalUrl the original url of the file (optional)
+     * @param timeoutNanos maximum time to wait in nanoseconds, Long.MAX_VALUE to wait without limit
+     * @return the retrieved file, or null if it was not found
+     * @throws TimeoutException when the storage did not respond in time
+     */
+    public MediaStream retrieve(MediaReadStorageService storage, String id, String originalUrl, long timeoutNanos)
+            throws TimeoutException {
+        return retrieve(storage, id, originalUrl, timeoutNanos, () -> { });
+    }
+
+    /**
+     * Retrieve a file from a storage, but wait at most the provided time. When we stop waiting, the storage call
+     * itself continues in the background (and keeps its connection) until it's done. So resources that are tied to
+     * the call should only be freed by the provided callback.
+     * @param storage the storage to retrieve the file from
+     * @param id the id of the file
+     * @param originalUrl the original url of the file (optional)
+     * @param timeoutNanos maximum time to wait in nanoseconds, Long.MAX_VALUE to wait without limit
+     * @param afterTimeout only called when a TimeoutException is thrown, as soon as the abandoned storage call is done
+     *                     and its result is closed (immediately if no call was made)
+     * @return the retrieved file, or null if it was not found
+     * @throws TimeoutException when the storage did not respond in time
+     */
+    public MediaStream retrieve(MediaReadStorageService storage, String id, String originalUrl, long timeoutNanos,
+                                Runnable afterTimeout) throws TimeoutException {
+        if (timeoutNanos == Long.MAX_VALUE) {
+            return storage.retrieve(id, originalUrl);
+        }
+        if (timeoutNanos <= 0) {
+            afterTimeout.run();
+            throw new TimeoutException("No time left to check storage " + storage.getName());
+        }
+
+        CompletableFuture<Optional<MediaStream>> future = AsyncMediaReadStorageService.adapt(storage, executor)
+                .retrieveAsync(id, originalUrl);
+        try {
+            return future.get(timeoutNanos, TimeUnit.NANOSECONDS).orElse(null);
+        } catch (TimeoutException e) {
+            abandon(future, afterTimeout);
+            throw e;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RejectedExecutionException) {
+                LOG.warn("Too many concurrent storage calls, retrieving file {} from {} without deadline", id,
+                        storage.getName());
+                return storage.retrieve(id, originalUrl);
+            }
+            if (e.getCause() instanceof RuntimeException re) {
+                throw re;
+            }
+            throw new IllegalStateException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abandon(future, afterTimeout);
+            throw new TimeoutException("Interrupted while retrieving file " + id);
+        }
+    }
+
+    /**
+     * Make sure a result that arrives too late doesn't keep a connection occupied, and only then run the callback
+     */
+    private static void abandon(CompletableFuture<Optional<MediaStream>> future, Runnable afterTimeout) {
+        future.whenComplete((late, e) -> {
+            try {
+                if (late != null) {
+                    late.ifPresent(MediaStream::close);
+                }
+            } finally {
+                afterTimeout.run();
+            }
+        });
+    }
+
+    /**
+     * Stop all storage calls in progress
+     */
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,66 @@
+package eu.europeana.thumbnail.service;
+
+import eu.europeana.thumbnail.config.StorageRoutes;
+import org.springframework.boot.actuate.health.CompositeHealthContributor;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthContributor;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.boot.actuate.health.NamedContributor;
+import org.springframework.boot.actuate.health.Status;
+import org.springframework.stereotype.Component;
+
+import java.util.Iterator;
+
+/**
+ * Exposes a health indicator for each configured storage in the actuator health endpoint. Indicators only report
+ * cached results from the StorageHealthService, so checking health never results in requests to the storages.
+ * A storage that is down (failed probe or open circuit breaker) is reported as {@link #DEGRADED} instead of DOWN:
+ * most storages are fallbacks, and requests are still served from the other storages of a route. DEGRADED is ordered
+ * after UP (see <code>management.endpoint.health.status.order</code>), so it never makes the overall health DOWN.
+ */
+@Component
+public class StorageHealthContributor implements CompositeHealthContributor {
+
+    /** Status of a storage that is down */
+    public static final Status DEGRADED = new Status("DEGRADED", "Storage is down, requests use other storages");
+
+    private final StorageRoutes storageRoutes;
+    private final StorageHealthService storageHealthService;
+
+    /**
+     * Initialize a new health contributor for all storages
+     * @param storageRoutes configured routes and storages
+     * @param storageHealthService service that keeps track of storage health
+     */
+    public StorageHealthContributor(StorageRoutes storageRoutes, StorageHealthService storageHealthService) {
+        this.storageRoutes = storageRoutes;
+        this.storageHealthService = storageHealthService;
+    }
+
+    @Override
+    public HealthContributor getContributor(String name) {
+        for (MediaReadStorageService storage : storageRoutes.getStorages()) {
+            if (storage.getName().equals(name)) {
+                return indicatorFor(name);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Iterator<NamedContributor<HealthContributor>> iterator() {
+        return storageRoutes.getStorages().stream()
+                .map(storage -> NamedContributor.of(storage.getName(), indicatorFor(storage.getName())))
+                .iterator();
+    }
+
+    private HealthContributor indicatorFor(String storageName) {
+        return (HealthIndicator) () -> {
+            Health health = storageHealthService.getHealth(storageName);
+            if (Status.DOWN.equals(health.getStatus())) {
+                return Health.status(DEGRADED).withDetails(health.getDetails()).build();
+            }
+            return health;
+        };
+    }
+}
@@ -0,0 +1,210 @@
+package eu.europeana.thumbnail.service;
+
+import eu.europeana.thumbnail.config.StorageRoutes;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import jakarta.annotation.PreDestroy;
+import org.apache.commons.lang3.NotImplementedException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Service;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of the health of all configured storages. Each storage has its own circuit breaker that is fed with the
+ * outcome of regular requests, so a slow or failing storage is skipped instead of delaying every request.
+ * Storages are also probed regularly in the background, the result of these probes is cached and reported via the
+ * actuator health endpoint (so health checks never result in requests to the storages themselves). Probes are paused
+ * while the application context is stopped.
+ */
+@Service
+public class StorageHealthService implements SmartLifecycle {
+
+    private static final Logger LOG = LogManager.getLogger(StorageHealthService.class);
+
+    /** Id of the object we request when probing a storage, it doesn't matter if this object exists or not */
+    private static final String PROBE_ID = "thumbnail-api-health-probe";
+    private static final String DETAIL_BREAKER = "circuitBreaker";
+
+    private final StorageRoutes storageRoutes;
+    private final int windowSize;
+    private final int minimumCalls;
+    private final int failureRatePercentage;
+    private final long slowCallMillis;
+    private final long openMillis;
+
+    private final Map<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+    private final Map<String, Health> probeResults = new ConcurrentHashMap<>();
+    private final PausableScheduler scheduler = new PausableScheduler("storage-probe");
+
+    /**
+     * Initialize a new storage health service
+     * @param storageRoutes configured routes and storages
+     * @param windowSize number of recent calls per storage used to calculate the failure rate
+     * @param minimumCalls minimum number of calls in the window before a breaker can open
+     * @param failureRatePercentage percentage of failed or slow calls at which a breaker opens
+     * @param slowCallMillis calls taking longer than this are counted as failed
+     * @param openMillis time a breaker stays open before it is probed again
+     * @param healthProbeMillis interval of the background health probes, 0 or less to disable these
+     */
+    @SuppressWarnings("java:S107") // all settings are required
+    public StorageHealthService(StorageRoutes storageRoutes,
+                                @Value("${storage.breaker.window.size:50}") int windowSize,
+                                @Value("${storage.breaker.minimum.calls:20}") int minimumCalls,
+                                @Value("${storage.breaker.failure.rate:50}") int failureRatePercentage,
+                                @Value("${storage.breaker.slow.call.ms:2000}") long slowCallMillis,
+                                @Value("${storage.breaker.open.ms:30000}") long openMillis,
+                                @Value("${storage.health.probe.interval.ms:30000}") long healthProbeMillis) {
+        this.storageRoutes = storageRoutes;
+        this.windowSize = windowSize;
+        this.minimumCalls = minimumCalls;
+        this.failureRatePercentage = failureRatePercentage;
+        this.slowCallMillis = slowCallMillis;
+        this.openMillis = openMillis;
+
+        // probe open breakers a few times per open period so a recovered storage is used again quickly
+        long breakerProbeMillis = Math.max(1000, openMillis / 3);
+        scheduler.scheduleWithFixedDelay(this::probeOpenBreakers, breakerProbeMillis, breakerProbeMillis);
+        if (healthProbeMillis > 0) {
+            scheduler.scheduleWithFixedDelay(this::probeAllStorages, 0, healthProbeMillis);
+        } else {
+            LOG.info("Background storage health probes are disabled");
+        }
+    }
+
+    /**
+     * Check if a request to a particular storage is allowed
+     * @param storage the storage to check
+     * @return false if the storage's circuit breaker is open and the storage should be skipped, otherwise true
+     */
+    public boolean allowRequest(MediaReadStorageService storage) {
+        return getBreaker(storage.getName()).allowRequest();
+    }
+
+    /**
+     * Register a request to a storage that completed without errors (regardless of whether a file was found)
+     * @param storage the storage that was used
+     * @param durationNanos the duration of the request in nanoseconds
+     */
+    public void recordSuccess(MediaReadStorageService storage, long durationNanos) {
+        getBreaker(storage.getName()).recordSuccess(durationNanos);
+    }
+
+    /**
+     * Register a request to a storage that failed
+     * @param storage the storage that was used
+     */
+    public void recordFailure(MediaReadStorageService storage) {
+        getBreaker(storage.getName()).recordFailure();
+    }
+
+    /**
+     * Return the cached health of a storage, based on the last background probe and the state of its circuit breaker
+     * @param storageName the name of the storage
+     * @return health of the storage
+     */
+    public Health getHealth(String storageName) {
+        CircuitBreaker.State breakerState = getBreaker(storageName).getState();
+        Health probed = probeResults.get(storageName);
+        Health.Builder builder;
+        if (probed != null) {
+            builder = Health.status(probed.getStatus()).withDetails(probed.getDetails());
+        } else if (breakerState == CircuitBreaker.State.OPEN) {
+            builder = Health.down();
+        } else {
+            builder = Health.unknown();
+        }
+        return builder.withDetail(DETAIL_BREAKER, breakerState).build();
+    }
+
+    private CircuitBreaker getBreaker(String storageName) {
+        return breakers.computeIfAbsent(storageName, name -> {
+            CircuitBreaker breaker = new CircuitBreaker(name, windowSize, minimumCalls, failureRatePercentage,
+                    slowCallMillis, openMillis);
+            Gauge.builder("thumbnail.storage.breaker.state", breaker, b -> b.getState().ordinal())
+                    .description("State of the storage circuit breaker (0 = closed, 1 = open, 2 = half-open)")
+                    .tag("storage", name)
+                    .register(Metrics.globalRegistry);
+            return breaker;
+        });
+    }
+
+    private void probeOpenBreakers() {
+        for (MediaReadStorageService storage : storageRoutes.getStorages()) {
+            CircuitBreaker breaker = getBreaker(storage.getName());
+            if (breaker.getState() != CircuitBreaker.State.CLOSED) {
+                Boolean success = probe(storage);
+                if (success != null) {
+                    LOG.info("Probe of storage {} with open circuit breaker {}", storage.getName(),
+                            success ? "succeeded" : "failed");
+                    breaker.recordProbe(success);
+                }
+            }
+        }
+    }
+
+    private void probeAllStorages() {
+        for (MediaReadStorageService storage : storageRoutes.getStorages()) {
+            probe(storage);
+        }
+    }
+
+    /**
+     * Probe a storage and cache the result
+     * @return true if the storage responded properly, false if it did not, null if the storage can't be probed
+     */
+    @SuppressWarnings("java:S2447") // null deliberately means 'unknown'
+    private Boolean probe(MediaReadStorageService storage) {
+        long start = System.nanoTime();
+        try {
+            storage.checkIfExists(PROBE_ID);
+            long durationMs = (System.nanoTime() - start) / 1_000_000L;
+            boolean slow = durationMs > slowCallMillis;
+            probeResults.put(storage.getName(), (slow ? Health.down() : Health.up())
+                    .withDetail("responseTimeMs", durationMs).build());
+            return !slow;
+        } catch (NotImplementedException e) {
+            LOG.trace("Storage {} can't be probed", storage.getName());
+            return null;
+        } catch (RuntimeException e) {
+            LOG.warn("Probe of storage {} failed: {}", storage.getName(), e.getMessage());
+            probeResults.put(storage.getName(), Health.down().withDetail("error", e.getClass().getSimpleName()).build());
+            return false;
+        }
+    }
+
+    /**
+     * Start probing storages, also called when the application is restored from a (CRaC) checkpoint
+     */
+    @Override
+    public void start() {
+        scheduler.resume();
+    }
+
+    /**
+     * Stop probing storages until started again, also called before a (CRaC) checkpoint is created
+     */
+    @Override
+    public void stop() {
+        scheduler.pause();
+    }
+
+    @Override
+    public boolean isRunning() {
+        return scheduler.isRunning();
+    }
+
+    /**
+     * Stop probing storages permanently
+     * @throws InterruptedException when interrupted while waiting for a probe to finish
+     */
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        scheduler.shutdown();
+    }
+}
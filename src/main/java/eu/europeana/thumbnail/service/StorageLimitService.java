@@ -0,0 +1,151 @@
+package eu.europeana.thumbnail.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sheds load when storages can't keep up. Each storage has its own adaptive concurrency limit (see
+ * {@link ConcurrencyLimiter}) that is fed with the duration and outcome of regular requests. Requests that exceed the
+ * limit are rejected right away (v3 requests get a 503 with a Retry-After header, v2 requests the default icon), so
+ * request threads don't pile up waiting for a connection from the storage's connection pool. The limit of a storage is
+ * never raised above the size of its connection pool, because every request holds its connection (and permit) until
+ * the returned stream is closed.
+ */
+@Service
+public class StorageLimitService {
+
+    private static final Logger LOG = LogManager.getLogger(StorageLimitService.class);
+
+    private static final String TAG_STORAGE = "storage";
+
+    private final boolean enabled;
+    private final int initialLimit;
+    private final int minLimit;
+    private final int maxLimit;
+    private final long latencyMillis;
+    private final double backoffRatio;
+    private final int retryAfterSeconds;
+    private final StoragesService storagesService;
+
+    private final Map<String, ConcurrencyLimiter> limiters = new ConcurrentHashMap<>();
+
+    /**
+     * Initialize a new storage limit service
+     * @param enabled true if the number of concurrent requests to storages should be limited, otherwise false
+     * @param initialLimit the limit of each storage at startup
+     * @param minLimit the limit of a storage is never lowered below this
+     * @param maxLimit the limit of a storage is never raised above this
+     * @param latencyMillis requests taking longer than this lower the limit
+     * @param backoffRatio the limit is multiplied by this when a request fails or is slow
+     * @param retryAfterSeconds value of the Retry-After header of rejected requests
+     * @param storagesService used to look up the size of the connection pool of a storage
+     */
+    @SuppressWarnings("java:S107") // all settings are required
+    public StorageLimitService(@Value("${storage.limit.enabled:true}") boolean enabled,
+                               @Value("${storage.limit.initial:50}") int initialLimit,
+                               @Value("${storage.limit.min:10}") int minLimit,
+                               @Value("${storage.limit.max:200}") int maxLimit,
+                               @Value("${storage.limit.latency.ms:2000}") long latencyMillis,
+                               @Value("${storage.limit.backoff:0.9}") double backoffRatio,
+                               @Value("${storage.limit.retry.after.s:1}") int retryAfterSeconds,
+                               StoragesService storagesService) {
+        this.enabled = enabled;
+        this.initialLimit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.latencyMillis = latencyMillis;
+        this.backoffRatio = backoffRatio;
+        this.retryAfterSeconds = retryAfterSeconds;
+        this.storagesService = storagesService;
+        if (enabled) {
+            LOG.info("Concurrent requests per storage are limited to between {} and {} (or the size of the "
+                    + "connection pool), starting at {}", minLimit, maxLimit, initialLimit);
+        } else {
+            LOG.info("Concurrent requests per storage are not limited");
+        }
+    }
+
+    /**
+     * Try to start a request to a storage
+     * @param storage the storage to send a request to
+     * @return true if the request is allowed, false if the storage's limit is reached. Every allowed request should
+     * be followed by a call to release()
+     */
+    public boolean tryAcquire(MediaReadStorageService storage) {
+        if (!enabled) {
+            return true;
+        }
+        if (getLimiter(storage.getName()).tryAcquire()) {
+            return true;
+        }
+        Metrics.counter("thumbnail.storage.limit.rejected", TAG_STORAGE, storage.getName()).increment();
+        return false;
+    }
+
+    /**
+     * Register that a request to a storage finished
+     * @param storage the storage that was used
+     * @param durationNanos the duration of the request in nanoseconds
+     * @param success true if the request completed without errors or timeout (regardless of whether a file was found)
+     */
+    public void release(MediaReadStorageService storage, long durationNanos, boolean success) {
+        if (enabled) {
+            getLimiter(storage.getName()).release(durationNanos, success);
+        }
+    }
+
+    /**
+     * Give back a permit of a request that wasn't sent after all, without adjusting the limit
+     * @param storage the storage for which tryAcquire() was called
+     */
+    public void cancel(MediaReadStorageService storage) {
+        if (enabled) {
+            getLimiter(storage.getName()).cancel();
+        }
+    }
+
+    /**
+     * @return the number of seconds after which clients can retry a rejected request
+     */
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+
+    private ConcurrencyLimiter getLimiter(String storageName) {
+        // the pool size can change when the configuration is reloaded
+        int max = getMaxLimit(storageName);
+        ConcurrencyLimiter result = limiters.computeIfAbsent(storageName, name -> {
+            ConcurrencyLimiter limiter = new ConcurrencyLimiter(name, Math.min(initialLimit, max),
+                    Math.min(minLimit, max), max, latencyMillis, backoffRatio);
+            Gauge.builder("thumbnail.storage.limit", limiter, ConcurrencyLimiter::getLimit)
+                    .description("Maximum number of concurrent requests to the storage")
+                    .tag(TAG_STORAGE, name)
+                    .register(Metrics.globalRegistry);
+            Gauge.builder("thumbnail.storage.inflight", limiter, ConcurrencyLimiter::getInFlight)
+                    .description("Number of requests to the storage in progress")
+                    .tag(TAG_STORAGE, name)
+                    .register(Metrics.globalRegistry);
+            return limiter;
+        });
+        if (result.getMaxLimit() != max) {
+            LOG.info("Maximum concurrent requests to storage {} changed to {}", storageName, max);
+            result.setMaxLimit(max);
+        }
+        return result;
+    }
+
+    /**
+     * @return the configured maximum limit, capped at the size of the storage's connection pool (if known)
+     */
+    private int getMaxLimit(String storageName) {
+        int poolSize = storagesService.getMaxConnections(storageName);
+        return poolSize > 0 ? Math.min(maxLimit, poolSize) : maxLimit;
+    }
+}
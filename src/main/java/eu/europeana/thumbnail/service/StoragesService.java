@@ -1,10 +1,12 @@
 package eu.europeana.thumbnail.service;
 
 import eu.europeana.thumbnail.config.StorageRoutes;
+import eu.europeana.thumbnail.model.ImageEncoding;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.stereotype.Service;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
@@ -40,15 +42,18 @@ public class StoragesService {
         // make sure we use only the highest level part for matching and not the FQDN
         String topLevelName = getTopLevelName(route);
 
+        // use the same map for all lookups, the routes can be replaced when the configuration is reloaded
+        Map<String, List<MediaReadStorageService>> routes = storageRoutes.getRoutesMap();
+
         // exact matching
-        List<MediaReadStorageService> result = storageRoutes.getRoutesMap().get(topLevelName);
+        List<MediaReadStorageService> result = routes.get(topLevelName);
         if (result != null) {
             LOG.debug("Route {} - found exact match", topLevelName);
             return result;
         }
 
         // fallback 1: try to match with "contains"
-        for (Map.Entry<String, List<MediaReadStorageService>> entry : storageRoutes.getRoutesMap().entrySet()) {
+        for (Map.Entry<String, List<MediaReadStorageService>> entry : routes.entrySet()) {
             if (topLevelName.contains(entry.getKey())) {
                 LOG.debug("Route {} - matched with {}", topLevelName, entry.getKey());
                 return entry.getValue();
@@ -57,7 +62,42 @@ public class StoragesService {
 
         // fallback 2: use default, but log warning
         LOG.warn("Route {} - no configured storage found, using default", topLevelName);
-        return storageRoutes.getRoutesMap().get(storageRoutes.getDefaultRoute());
+        return routes.get(storageRoutes.getDefaultRoute());
+    }
+
+    /**
+     * Return the Cache-Control header value configured for thumbnails from a storage
+     * @param storageName name of the storage that the thumbnail was retrieved from
+     * @return Cache-Control header value, or null if the default should be used
+     */
+    public String getCacheControl(String storageName) {
+        return storageRoutes.getCacheControl(storageName);
+    }
+
+    /**
+     * Return the encodings in which a storage stores thumbnails of uploaded images
+     * @param storageName name of the storage that the thumbnail was retrieved from
+     * @return list of encodings, empty if the storage doesn't store uploaded images
+     */
+    public List<ImageEncoding> getUploadEncodings(String storageName) {
+        return storageRoutes.getUploadEncodings(storageName);
+    }
+
+    /**
+     * Return the size of the connection pool of a storage
+     * @param storageName name of the storage
+     * @return maximum number of connections, 0 if unknown or not applicable (e.g. file storages)
+     */
+    public int getMaxConnections(String storageName) {
+        return storageRoutes.getMaxConnections(storageName);
+    }
+
+    /**
+     * Return all storages whose contents can be listed, see {@link LocationIndexService}
+     * @return collection of listable storages
+     */
+    public Collection<ListableStorage> getListableStorages() {
+        return storageRoutes.getListableStorages();
     }
 
     private String getTopLevelName(String route) {
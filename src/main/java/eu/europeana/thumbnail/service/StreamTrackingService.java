@@ -0,0 +1,74 @@
+package eu.europeana.thumbnail.service;
+
+import eu.europeana.thumbnail.model.MediaStreamTracker;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import jakarta.annotation.PreDestroy;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically closes media streams that are open longer than the configured maximum, so a leaked stream doesn't keep
+ * an S3 connection leased indefinitely. Also exposes the number of open streams as a metric.
+ */
+@Service
+public class StreamTrackingService {
+
+    private static final Logger LOG = LogManager.getLogger(StreamTrackingService.class);
+
+    private static final long MIN_CHECK_INTERVAL_MS = 1000;
+    private static final int CHECKS_PER_PERIOD = 4;
+
+    private final long maxOpenNanos;
+    private ScheduledExecutorService executor;
+
+    /**
+     * Initialize a new stream tracking service
+     * @param maxOpenMillis maximum time a media stream may be open before it's closed (0 = no maximum)
+     * @param recordOrigin true if the location where a stream is opened should be included in leak warnings
+     */
+    public StreamTrackingService(@Value("${stream.max.open.ms:60000}") long maxOpenMillis,
+                                 @Value("${stream.record.origin:false}") boolean recordOrigin) {
+        this.maxOpenNanos = TimeUnit.MILLISECONDS.toNanos(maxOpenMillis);
+        MediaStreamTracker.setRecordOrigin(recordOrigin);
+        Gauge.builder("thumbnail.stream.open", MediaStreamTracker::getOpenCount)
+                .description("Number of media streams that are currently open")
+                .register(Metrics.globalRegistry);
+        if (maxOpenMillis <= 0) {
+            LOG.info("No maximum open time for media streams");
+            return;
+        }
+        long interval = Math.max(MIN_CHECK_INTERVAL_MS, maxOpenMillis / CHECKS_PER_PERIOD);
+        this.executor = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("stream-tracking-"));
+        this.executor.scheduleWithFixedDelay(this::closeExpired, interval, interval, TimeUnit.MILLISECONDS);
+        LOG.info("Media streams that are open for more than {} ms are closed", maxOpenMillis);
+    }
+
+    /**
+     * Close all media streams that are open longer than the maximum open time
+     * @return the number of closed streams
+     */
+    int closeExpired() {
+        try {
+            return MediaStreamTracker.closeExpired(maxOpenNanos);
+        } catch (RuntimeException e) {
+            // don't let an exception stop the scheduled checks
+            LOG.error("Error closing expired media streams", e);
+            return 0;
+        }
+    }
+
+    @PreDestroy
+    private void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+}
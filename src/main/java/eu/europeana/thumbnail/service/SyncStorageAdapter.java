@@ -0,0 +1,71 @@
+package eu.europeana.thumbnail.service;
+
+import eu.europeana.thumbnail.model.MediaStream;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+
+/**
+ * Makes a synchronous storage available via the asynchronous interface, by calling it using an executor. If the
+ * executor rejects a call (e.g. because all threads are busy), the returned future fails with a
+ * RejectedExecutionException.
+ */
+class SyncStorageAdapter implements AsyncMediaReadStorageService {
+
+    private final MediaReadStorageService storage;
+    private final Executor executor;
+
+    SyncStorageAdapter(MediaReadStorageService storage, Executor executor) {
+        this.storage = storage;
+        this.executor = executor;
+    }
+
+    @Override
+    public CompletableFuture<Optional<MediaStream>> retrieveAsync(String id, String originalUrl) {
+        return supply(() -> Optional.ofNullable(storage.retrieve(id, originalUrl)));
+    }
+
+    /**
+     * The synchronous interface has no metadata-only operation, so the file is retrieved and its stream closed
+     */
+    @Override
+    public CompletableFuture<Optional<Map<String, Object>>> retrieveMetadataAsync(String id) {
+        return supply(() -> {
+            MediaStream stream = storage.retrieve(id, null);
+            if (stream == null) {
+                return Optional.empty();
+            }
+            stream.close();
+            return Optional.of(stream.hasMetadata() ? stream.getMetadata() : new HashMap<>());
+        });
+    }
+
+    @Override
+    public CompletableFuture<Map<String, Boolean>> existsAsync(Collection<String> ids) {
+        Map<String, CompletableFuture<Boolean>> checks = new LinkedHashMap<>();
+        for (String id : ids) {
+            checks.put(id, supply(() -> Boolean.TRUE.equals(storage.checkIfExists(id))));
+        }
+        return AsyncMediaReadStorageService.collect(checks);
+    }
+
+    @Override
+    public String getName() {
+        return storage.getName();
+    }
+
+    private <T> CompletableFuture<T> supply(Supplier<T> supplier) {
+        try {
+            return CompletableFuture.supplyAsync(supplier, executor);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+}
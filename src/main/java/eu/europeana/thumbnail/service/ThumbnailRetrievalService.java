@@ -0,0 +1,341 @@
+package eu.europeana.thumbnail.service;
+
+import eu.europeana.thumbnail.exception.ThumbnailDeadlineExceededException;
+import eu.europeana.thumbnail.exception.ThumbnailOverloadedException;
+import eu.europeana.thumbnail.model.Deadline;
+import eu.europeana.thumbnail.model.ImageEncoding;
+import eu.europeana.thumbnail.model.ImageFormat;
+import eu.europeana.thumbnail.model.MediaStream;
+import eu.europeana.thumbnail.model.MediaStreamTracker;
+import eu.europeana.thumbnail.utils.ControllerUtils;
+import eu.europeana.thumbnail.utils.IdUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.stereotype.Service;
+import org.springframework.web.context.request.WebRequest;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Retrieves thumbnails for the controllers. A thumbnail is looked up in the validator cache (for revalidation
+ * requests), the local cache, the prefetch buffer and finally in the storages of the route, in that order.
+ * Thumbnails that are retrieved from a storage are added to the caches, repaired to earlier storages if needed and
+ * their other size is prefetched.
+ */
+@Service
+@SuppressWarnings("javasecurity:S5145") // we only log for debug purposes, plus the controllers validate the user input
+public class ThumbnailRetrievalService {
+
+    private static final Logger LOG = LogManager.getLogger(ThumbnailRetrievalService.class);
+
+    private final StoragesService storagesService;
+    private final ReadRepairService readRepairService;
+    private final StorageHealthService storageHealthService;
+    private final StorageDeadlineService storageDeadlineService;
+    private final LocalCacheService localCacheService;
+    private final HotSetService hotSetService;
+    private final ValidatorCacheService validatorCacheService;
+    private final RevalidationService revalidationService;
+    private final LocationIndexService locationIndexService;
+    private final StorageLimitService storageLimitService;
+    private final PrefetchService prefetchService;
+
+    /**
+     * Create a new retrieval service
+     * @param storagesService the storage service to use
+     * @param readRepairService service for copying files found in fallback storages
+     * @param storageHealthService service that keeps track of storage health
+     * @param storageDeadlineService service that enforces the request deadline
+     * @param localCacheService local cache of thumbnails
+     * @param hotSetService service that keeps track of the most requested thumbnails
+     * @param validatorCacheService cache of thumbnail validators for answering revalidation requests
+     * @param revalidationService service that revalidates stale thumbnails in the local cache
+     * @param locationIndexService index of the storages that contain a thumbnail
+     * @param storageLimitService service that limits the number of concurrent requests per storage
+     * @param prefetchService service that prefetches the other size of retrieved thumbnails
+     */
+    @SuppressWarnings("java:S107") // all services are needed to retrieve a thumbnail
+    public ThumbnailRetrievalService(StoragesService storagesService, ReadRepairService readRepairService,
+                                     StorageHealthService storageHealthService,
+                                     StorageDeadlineService storageDeadlineService,
+                                     LocalCacheService localCacheService, HotSetService hotSetService,
+                                     ValidatorCacheService validatorCacheService,
+                                     RevalidationService revalidationService,
+                                     LocationIndexService locationIndexService,
+                                     StorageLimitService storageLimitService, PrefetchService prefetchService) {
+        this.storagesService = storagesService;
+        this.readRepairService = readRepairService;
+        this.storageHealthService = storageHealthService;
+        this.storageDeadlineService = storageDeadlineService;
+        this.localCacheService = localCacheService;
+        this.hotSetService = hotSetService;
+        this.validatorCacheService = validatorCacheService;
+        this.revalidationService = revalidationService;
+        this.locationIndexService = locationIndexService;
+        this.storageLimitService = storageLimitService;
+        this.prefetchService = prefetchService;
+    }
+
+    /**
+     * @return a new deadline for a v2 request, see {@link StorageDeadlineService#newV2Deadline()}
+     */
+    public Deadline newV2Deadline() {
+        return storageDeadlineService.newV2Deadline();
+    }
+
+    /**
+     * @return a new deadline for a v3 request, see {@link StorageDeadlineService#newV3Deadline()}
+     */
+    public Deadline newV3Deadline() {
+        return storageDeadlineService.newV3Deadline();
+    }
+
+    /**
+     * @return the number of seconds after which clients should retry a request that failed because the storages are
+     * overloaded, see {@link StorageLimitService#getRetryAfterSeconds()}
+     */
+    public int getRetryAfterSeconds() {
+        return storageLimitService.getRetryAfterSeconds();
+    }
+
+    /**
+     * Retrieve a thumbnail from either the fileId or the combination of originalUrl and width
+     * Revalidation requests for which we know the client's version is still up to date are answered from the
+     * validator cache, in which case the returned MediaStream has no content (but generateResponse will return a 304)
+     * Stale thumbnails in the local cache are returned immediately and revalidated in the background. If the storages
+     * fail or time out, a stale thumbnail from the local cache is returned (if available).
+     * Storages that don't contain the thumbnail according to the location index are skipped.
+     * When a thumbnail is retrieved from a storage, the other size is prefetched in the background. A prefetched
+     * thumbnail is used if it's not in the local cache.
+     * Thumbnails of uploaded images that are stored in multiple encodings are returned in the smallest encoding, unless
+     * the client doesn't accept that format, in which case another encoding is returned.
+     * @param webRequest the incoming request, used for checking conditional headers and the Accept header
+     * @param serverName the name of the server that received the request, used to look up the route
+     * @param fileId the id (MD5 hash of the file, if not provided it will be calculated)
+     *               the Id should not already contain the desired width
+     * @param originalUrl the original url of the image, this is used to determine the Content-Type of the response
+     * @param width the requested with of the image, can be 200, 400
+     * @param deadline the time budget for checking all storages. The remaining time is divided over the storages that
+     *                 still need to be checked
+     * @return Optional containing the MediaFile, or an empty optional if the file cannot be retrieved
+     * @throws ThumbnailDeadlineExceededException when the file wasn't found and not all storages could be checked
+     * before the deadline
+     * @throws ThumbnailOverloadedException when the file wasn't found and not all storages could be checked because
+     * their concurrency limit was reached
+     */
+    public Optional<MediaStream> retrieve(WebRequest webRequest, String serverName, String fileId, String originalUrl,
+                                          Integer width, Deadline deadline)
+            throws ThumbnailDeadlineExceededException, ThumbnailOverloadedException {
+        // calculate hash (if necessary)
+        String id = fileId;
+        if (StringUtils.isEmpty(fileId)) {
+            id = computeId(originalUrl);
+        }
+        id = IdUtils.getS3ObjectId(id, width);
+
+        List<MediaReadStorageService> mediaStorageServices = storagesService.getStorages(serverName);
+        if (ControllerUtils.isRevalidation(webRequest)) {
+            MediaStream result = validatorCacheService.get(LocalCacheService.getKey(mediaStorageServices, id),
+                    originalUrl);
+            if (result != null && ControllerUtils.isNotModified(result, webRequest)) {
+                LOG.debug("File {} not modified according to validator cache", id);
+                hotSetService.record(serverName, id, originalUrl, result.getETag());
+                return Optional.of(result);
+            }
+        }
+        Optional<MediaStream> result = retrieve(serverName, mediaStorageServices, id, originalUrl, deadline);
+        if (result.isPresent()) {
+            return Optional.of(selectEncoding(webRequest, serverName, mediaStorageServices, result.get(), deadline));
+        }
+        return result;
+    }
+
+    /**
+     * The regular id of a thumbnail of an uploaded image refers to its smallest encoding. If the client doesn't
+     * accept that format we return the first other configured encoding that it does accept, if available.
+     */
+    private MediaStream selectEncoding(WebRequest webRequest, String serverName,
+                                       List<MediaReadStorageService> mediaStorageServices, MediaStream mediaFile,
+                                       Deadline deadline) {
+        List<ImageEncoding> encodings = storagesService.getUploadEncodings(mediaFile.getStorageName());
+        ImageFormat format = ImageFormat.fromMediaType(mediaFile.getContentType());
+        if (encodings.size() < 2 || format == null || ControllerUtils.isAccepted(format, webRequest)) {
+            return mediaFile;
+        }
+        for (ImageEncoding encoding : encodings) {
+            if (encoding.format() == format || !ControllerUtils.isAccepted(encoding.format(), webRequest)) {
+                continue;
+            }
+            String id = encoding.getObjectId(mediaFile.getId());
+            try {
+                Optional<MediaStream> alternative = retrieve(serverName, mediaStorageServices, id,
+                        mediaFile.getOriginalUrl(), deadline);
+                if (alternative.isPresent()) {
+                    LOG.debug("Client doesn't accept {}, returning {}", format, id);
+                    mediaFile.close();
+                    return alternative.get();
+                }
+            } catch (ThumbnailDeadlineExceededException | ThumbnailOverloadedException e) {
+                LOG.warn("Unable to retrieve file {}, returning {} version", id, format, e);
+                return mediaFile;
+            }
+        }
+        return mediaFile;
+    }
+
+    /**
+     * Retrieve a thumbnail from the local cache, the prefetch buffer or the storages, without checking conditional
+     * headers
+     * @param serverName the name of the server for which the thumbnail is requested
+     * @param mediaStorageServices the storages of the route for the server name
+     * @param id the id of the thumbnail (including width)
+     * @param originalUrl the original url of the image, can be null
+     * @param deadline the time budget for checking all storages
+     * @return Optional containing the MediaFile, or an empty optional if the file cannot be retrieved
+     * @throws ThumbnailDeadlineExceededException when the file wasn't found and not all storages could be checked
+     * before the deadline
+     * @throws ThumbnailOverloadedException when the file wasn't found and not all storages could be checked because
+     * their concurrency limit was reached
+     */
+    public Optional<MediaStream> retrieve(String serverName, List<MediaReadStorageService> mediaStorageServices,
+                                          String id, String originalUrl, Deadline deadline)
+            throws ThumbnailDeadlineExceededException, ThumbnailOverloadedException {
+        String cacheKey = LocalCacheService.getKey(mediaStorageServices, id);
+        MediaStream result = localCacheService.get(cacheKey, originalUrl);
+        if (result != null) {
+            LOG.debug("File {} found in local cache", id);
+            revalidationService.revalidateIfStale(cacheKey, id, originalUrl, result.getETag(), mediaStorageServices);
+            hotSetService.record(serverName, id, originalUrl, result.getETag());
+            return Optional.of(result);
+        }
+        result = prefetchService.take(cacheKey, originalUrl);
+        if (result != null) {
+            LOG.debug("File {} was prefetched", id);
+            validatorCacheService.put(cacheKey, result.getStorageName(), result);
+            result = localCacheService.put(cacheKey, result);
+            hotSetService.record(serverName, id, originalUrl, result.getETag());
+            return Optional.of(result);
+        }
+
+        try {
+            result = retrieveFromStorages(mediaStorageServices, cacheKey, id, originalUrl, deadline);
+        } catch (ThumbnailDeadlineExceededException | ThumbnailOverloadedException | RuntimeException e) {
+            MediaStream stale = localCacheService.getIfError(cacheKey, originalUrl);
+            if (stale == null) {
+                throw e;
+            }
+            LOG.warn("Error retrieving file {}, returning stale version from local cache", id, e);
+            result = stale;
+        }
+        if (result != null) {
+            hotSetService.record(serverName, id, originalUrl, result.getETag());
+        }
+        return Optional.ofNullable(result);
+    }
+
+    private MediaStream retrieveFromStorages(List<MediaReadStorageService> mediaStorageServices, String cacheKey,
+                                             String id, String originalUrl, Deadline deadline)
+            throws ThumbnailDeadlineExceededException, ThumbnailOverloadedException {
+        MediaStream result = null;
+        boolean timedOut = false;
+        boolean overloaded = false;
+        for (int i = 0; i < mediaStorageServices.size(); i++) {
+            MediaReadStorageService mss = mediaStorageServices.get(i);
+            Boolean indexed = locationIndexService.isPresent(mss, id);
+            // the index is only a hint (it can miss files added by other applications), so before returning a 404 we
+            // always check the last storage
+            if (Boolean.FALSE.equals(indexed) && i < mediaStorageServices.size() - 1) {
+                LOG.debug("Skipping storage {} because file {} is not in the location index", mss.getName(), id);
+                continue;
+            }
+            if (!storageLimitService.tryAcquire(mss)) {
+                LOG.debug("Skipping storage {} because its concurrency limit is reached", mss.getName());
+                overloaded = true;
+                continue;
+            }
+            // checked last, because in half-open state this claims a trial request whose outcome must be recorded
+            if (!storageHealthService.allowRequest(mss)) {
+                LOG.debug("Skipping storage {} because its circuit breaker is open", mss.getName());
+                storageLimitService.cancel(mss);
+                continue;
+            }
+            try {
+                result = retrieveFromStorage(mss, id, originalUrl, deadline.sliceNanos(mediaStorageServices.size() - i));
+            } catch (TimeoutException e) {
+                LOG.warn("Timeout retrieving file {} from storage {}", id, mss.getName());
+                timedOut = true;
+                continue;
+            }
+            locationIndexService.update(mss, id, result != null, indexed);
+            if (result == null) {
+                LOG.debug("File {} not present in storage {}", id, mss.getName());
+            } else {
+                LOG.debug("File {} found in storage {}", id, mss.getName());
+                // Temporarily added so we can get insight in how many images requested in production are not in IBM S3
+                if ("uim-prod".equals(mss.getName())) {
+                    // 2025-11-13 Temporarily changed to info level because should Amazon S3 migration is complete
+                    // so this should not happen any more
+                    LOG.warn("File with url {} and id {} found in old Amazon S3 storage", originalUrl, id);
+                }
+                readRepairService.repairIfNeeded(id, originalUrl, mediaStorageServices, i);
+                prefetchService.prefetchSibling(mediaStorageServices, id, originalUrl, mss, localCacheService);
+                validatorCacheService.put(cacheKey, mss.getName(), result);
+                result = localCacheService.put(cacheKey, result);
+                break;
+            }
+        }
+        // if a storage didn't respond in time we can't be sure the file doesn't exist
+        if (result == null && timedOut) {
+            throw new ThumbnailDeadlineExceededException(id);
+        }
+        if (result == null && overloaded) {
+            throw new ThumbnailOverloadedException(id);
+        }
+        return result;
+    }
+
+    private MediaStream retrieveFromStorage(MediaReadStorageService mss, String id, String originalUrl,
+                                            long timeoutNanos) throws TimeoutException {
+        long start = System.nanoTime();
+        boolean success = false;
+        boolean timedOut = false;
+        MediaStream result = null;
+        try {
+            // an abandoned call still holds a connection until it's done, so only then is its permit released
+            result = storageDeadlineService.retrieve(mss, id, originalUrl, timeoutNanos,
+                    () -> storageLimitService.release(mss, System.nanoTime() - start, false));
+            storageHealthService.recordSuccess(mss, System.nanoTime() - start);
+            success = true;
+            return result;
+        } catch (TimeoutException e) {
+            timedOut = true;
+            storageHealthService.recordFailure(mss);
+            throw e;
+        } catch (RuntimeException e) {
+            storageHealthService.recordFailure(mss);
+            throw e;
+        } finally {
+            long durationNanos = System.nanoTime() - start;
+            // a network stream keeps its connection leased until it's closed, so the permit is only released then
+            if (!timedOut && (result == null || result.getS3Object() == null
+                    || !MediaStreamTracker.onRelease(result.getS3Object().inputStream(),
+                    () -> storageLimitService.release(mss, durationNanos, true)))) {
+                storageLimitService.release(mss, durationNanos, success);
+            }
+        }
+    }
+
+    /**
+     * Convert the provided url and size into a string representing the id of the media file. The id consists of the md5-
+     * hash of the provided resourceUrl concatenated with a hyphen and a size (MEDIUM or LARGE)
+     *
+     * @param resourceUrl  url of the original image
+     * @return id of the thumbnail as it is stored in S3 (but with width indication)
+     */
+    private String computeId(final String resourceUrl) {
+        return IdUtils.getMD5(resourceUrl);
+    }
+}
@@ -0,0 +1,122 @@
+package eu.europeana.thumbnail.service;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size table of token buckets that is shared by all clients. A client is mapped to one of the buckets (stripes)
+ * by the hash of its key, so memory use doesn't depend on the number of clients. Clients that map to the same stripe
+ * share a budget, so the number of stripes should be well above the number of clients that are active at the same
+ * time. Clients that are known in advance can instead each be given their own bucket, by index.
+ *
+ * Each bucket is a single long (the number of milli-tokens in the high 32 bits, the time of the last update in
+ * milliseconds in the low 32 bits) that is updated with compare-and-set, so acquiring a token is lock-free and doesn't
+ * allocate.
+ */
+public final class TokenBuckets {
+
+    /** Maximum burst size, so the number of milli-tokens fits in 31 bits */
+    public static final int MAX_BURST = 2_000_000;
+
+    private static final long TIME_MASK = 0xFFFF_FFFFL;
+    private static final long MILLIS_PER_TOKEN = 1000L;
+
+    private final AtomicLongArray buckets;
+    private final int shift;
+    private final long origin = System.nanoTime();
+
+    /**
+     * Create a new table of token buckets
+     * @param stripes the number of buckets, rounded up to a power of two
+     */
+    public TokenBuckets(int stripes) {
+        int bits = 32 - Integer.numberOfLeadingZeros(Math.max(2, stripes) - 1);
+        this.buckets = new AtomicLongArray(1 << bits);
+        this.shift = 32 - bits;
+    }
+
+    /**
+     * @return the number of buckets
+     */
+    public int getStripes() {
+        return buckets.length();
+    }
+
+    /**
+     * Try to take a token from the bucket of a client
+     * @param key key identifying the client
+     * @param rate number of tokens added to the bucket per second, must be larger than 0
+     * @param burst maximum number of tokens in the bucket
+     * @return 0 if a token was taken, otherwise the number of milliseconds until a token is available
+     */
+    public long tryAcquire(String key, int rate, int burst) {
+        return tryAcquire(key, rate, burst, 1);
+    }
+
+    /**
+     * Try to take a number of tokens from the bucket of a client, either all of them or none
+     * @param key key identifying the client
+     * @param rate number of tokens added to the bucket per second, must be larger than 0
+     * @param burst maximum number of tokens in the bucket
+     * @param permits number of tokens to take, more than burst is treated as burst (so it can succeed when the bucket
+     *                is full)
+     * @return 0 if the tokens were taken, otherwise the number of milliseconds until enough tokens are available
+     */
+    public long tryAcquire(String key, int rate, int burst, int permits) {
+        return tryAcquire(key, rate, burst, permits, nowMillis());
+    }
+
+    /**
+     * Try to take a number of tokens from a particular bucket, either all of them or none
+     * @param bucket index of the bucket, less than {@link #getStripes()}
+     * @param rate number of tokens added to the bucket per second, must be larger than 0
+     * @param burst maximum number of tokens in the bucket
+     * @param permits number of tokens to take, see {@link #tryAcquire(String, int, int, int)}
+     * @return 0 if the tokens were taken, otherwise the number of milliseconds until enough tokens are available
+     */
+    public long tryAcquireBucket(int bucket, int rate, int burst, int permits) {
+        return tryAcquireBucket(bucket, rate, burst, permits, nowMillis());
+    }
+
+    long tryAcquire(String key, int rate, int burst, int permits, long nowMillis) {
+        return tryAcquireBucket(stripe(key), rate, burst, permits, nowMillis);
+    }
+
+    long tryAcquireBucket(int index, int rate, int burst, int permits, long nowMillis) {
+        long now = nowMillis & TIME_MASK;
+        long capacity = Math.min(burst, MAX_BURST) * MILLIS_PER_TOKEN;
+        long cost = Math.min(Math.max(1, permits) * MILLIS_PER_TOKEN, capacity);
+        while (true) {
+            long state = buckets.get(index);
+            long tokens;
+            if (state == 0) {
+                // never used, so full
+                tokens = capacity;
+            } else {
+                // unsigned difference, so it keeps working when the time wraps around (every 49 days)
+                long elapsed = (now - (state & TIME_MASK)) & TIME_MASK;
+                // the rate in tokens per second equals the rate in milli-tokens per millisecond
+                tokens = Math.min(capacity, (state >>> 32) + elapsed * rate);
+            }
+            if (tokens < cost) {
+                return (cost - tokens + rate - 1) / rate;
+            }
+            long next = ((tokens - cost) << 32) | now;
+            if (next == 0) {
+                // 0 marks an unused bucket
+                next = 1;
+            }
+            if (buckets.compareAndSet(index, state, next)) {
+                return 0;
+            }
+        }
+    }
+
+    private long nowMillis() {
+        return (System.nanoTime() - origin) / 1_000_000L;
+    }
+
+    private int stripe(String key) {
+        // spread the hash code, similar keys (e.g. ip addresses) have similar hash codes
+        return (key.hashCode() * 0x9E3779B9) >>> shift;
+    }
+}
@@ -10,7 +10,7 @@ import java.io.IOException;
 public interface UploadImageService {
 
     /**
-     * Given an upload file, we generate the medium and small thumbnail and store it in S3
+     * Given an upload file, we generate thumbnails in all configured sizes and store them in S3
      * The method is synchronous and will return once the processing is done
      * @param id the requested id
      * @param file the uploaded file
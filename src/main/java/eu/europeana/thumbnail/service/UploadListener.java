@@ -0,0 +1,16 @@
+package eu.europeana.thumbnail.service;
+
+/**
+ * Listener that is notified when a thumbnail is (re)placed in a storage by the upload functionality, so any information
+ * that is kept about the previous version can be refreshed
+ */
+public interface UploadListener {
+
+    /**
+     * Called after a thumbnail was saved in a storage
+     * @param storageName the name of the storage where the thumbnail was saved
+     * @param id the id of the saved thumbnail (including width)
+     */
+    void uploaded(String storageName, String id);
+
+}
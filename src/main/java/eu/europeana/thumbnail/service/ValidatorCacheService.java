@@ -0,0 +1,153 @@
+package eu.europeana.thumbnail.service;
+
+import eu.europeana.s3.S3Object;
+import eu.europeana.thumbnail.model.MediaStream;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Service;
+
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory index of the validators (ETag and Last-Modified) of recently retrieved thumbnails, including the storage
+ * where the thumbnail was found. Conditional requests (If-None-Match or If-Modified-Since) can be answered with a 304
+ * from this index, without retrieving the thumbnail from a storage.
+ * Entries expire after a configured time and the least recently used entries are evicted when the maximum number of
+ * entries is reached. Entries are refreshed each time a thumbnail is retrieved from a storage and removed when a
+ * thumbnail is uploaded again.
+ */
+@Service
+@Order(Ordered.HIGHEST_PRECEDENCE) // invalidate before the CDN is purged, see CdnPurgeService
+public class ValidatorCacheService implements UploadListener {
+
+    private static final Logger LOG = LogManager.getLogger(ValidatorCacheService.class);
+
+    private static final String METRIC_REQUESTS = "thumbnail.validator.requests";
+    private static final String TAG_RESULT = "result";
+    private static final List<String> VALIDATOR_METADATA = List.of(S3Object.ETAG, S3Object.LAST_MODIFIED,
+            S3Object.CONTENT_TYPE);
+
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final Map<String, Validators> index = new LinkedHashMap<>(1024, 0.75f, true);
+
+    private final Counter hits;
+    private final Counter misses;
+
+    /**
+     * Initialize a new validator cache
+     * @param maxEntries maximum number of thumbnails for which validators are kept, 0 means the cache is disabled
+     * @param ttlMillis time in ms after which validators are no longer used, so changes made to a storage directly
+     *                  (not via upload) are picked up eventually
+     */
+    public ValidatorCacheService(@Value("${validator.cache.size:0}") int maxEntries,
+                                 @Value("${validator.cache.ttl.ms:300000}") long ttlMillis) {
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+        this.hits = Metrics.counter(METRIC_REQUESTS, TAG_RESULT, "hit");
+        this.misses = Metrics.counter(METRIC_REQUESTS, TAG_RESULT, "miss");
+        Gauge.builder("thumbnail.validator.size", this, ValidatorCacheService::size)
+                .description("Number of thumbnails for which validators are cached")
+                .register(Metrics.globalRegistry);
+        LOG.info("Validator cache maximum size = {}, ttl = {} ms", maxEntries, ttlMillis);
+    }
+
+    /**
+     * @return true if the cache is enabled, otherwise false
+     */
+    public boolean isEnabled() {
+        return maxEntries > 0 && ttlMillis > 0;
+    }
+
+    /**
+     * Retrieve the validators of a thumbnail
+     * @param key the cache key, see {@link LocalCacheService#getKey(List, String)}
+     * @param originalUrl optional, the original url of the requested thumbnail
+     * @return a MediaStream without content but with the cached validators as metadata, or null if there are no
+     * (valid) validators for the thumbnail
+     */
+    public MediaStream get(String key, String originalUrl) {
+        if (!isEnabled()) {
+            return null;
+        }
+        Validators validators;
+        synchronized (index) {
+            validators = index.get(key);
+            if (validators != null && validators.expiresAt < System.currentTimeMillis()) {
+                index.remove(key);
+                validators = null;
+            }
+        }
+        if (validators == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return new MediaStream(validators.id, originalUrl,
+                new S3Object(validators.id, InputStream.nullInputStream(), validators.metadata),
+                validators.storageName);
+    }
+
+    /**
+     * Store (or refresh) the validators of a thumbnail that was retrieved from a storage. Thumbnails without an ETag
+     * are ignored.
+     * @param key the cache key, see {@link LocalCacheService#getKey(List, String)}
+     * @param storageName the name of the storage where the thumbnail was found
+     * @param mediaStream the retrieved thumbnail
+     */
+    public void put(String key, String storageName, MediaStream mediaStream) {
+        if (!isEnabled() || mediaStream.getETag() == null) {
+            return;
+        }
+        Map<String, Object> metadata = new HashMap<>();
+        for (String name : VALIDATOR_METADATA) {
+            Object value = mediaStream.getMetadata().get(name);
+            if (value != null) {
+                metadata.put(name, value);
+            }
+        }
+        Validators validators = new Validators(mediaStream.getId(), storageName, metadata,
+                System.currentTimeMillis() + ttlMillis);
+        synchronized (index) {
+            index.put(key, validators);
+            if (index.size() > maxEntries) {
+                var iterator = index.values().iterator();
+                iterator.next();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Remove the validators of an uploaded thumbnail, so the next request retrieves the new version from the storage
+     * @see UploadListener#uploaded(String, String)
+     */
+    @Override
+    public void uploaded(String storageName, String id) {
+        synchronized (index) {
+            index.values().removeIf(v -> v.id.equals(id) && v.storageName.equalsIgnoreCase(storageName));
+        }
+    }
+
+    /**
+     * @return the number of thumbnails for which validators are cached
+     */
+    public int size() {
+        synchronized (index) {
+            return index.size();
+        }
+    }
+
+    private record Validators(String id, String storageName, Map<String, Object> metadata, long expiresAt) {
+    }
+}
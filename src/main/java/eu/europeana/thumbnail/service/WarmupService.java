@@ -0,0 +1,179 @@
+package eu.europeana.thumbnail.service;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends a number of synthetic Thumbnail v2 and v3 requests to this application after it has started, so that the
+ * request paths are JIT-compiled and connection pools are filled before we receive real traffic.
+ * This class is also a health indicator that is included in the readiness group, so the readiness probe only reports
+ * UP after the warm-up has finished (or timed out).
+ */
+@Component("warmup")
+public class WarmupService implements HealthIndicator {
+
+    private static final Logger LOG = LogManager.getLogger(WarmupService.class);
+
+    private static final long RETRY_CONNECT_MS = 500;
+
+    private final String baseUrl;
+    private final int requests;
+    private final int threads;
+    private final long timeoutMillis;
+    private final List<String> paths;
+
+    private volatile boolean finished;
+
+    /**
+     * Initialize a new warm-up service
+     * @param baseUrl base url on which this application can be reached locally
+     * @param requests number of requests to send per request path, 0 means no warm-up
+     * @param threads number of concurrent requests
+     * @param timeoutMillis maximum duration of the warm-up, afterwards we report ready anyway
+     * @param v3Id id of the thumbnail to request for the v3 request path
+     * @param v2Url url of the thumbnail to request for the v2 request path
+     */
+    public WarmupService(@Value("${warmup.base.url:http://localhost:${server.port:8080}}") String baseUrl,
+                         @Value("${warmup.requests:0}") int requests,
+                         @Value("${warmup.threads:4}") int threads,
+                         @Value("${warmup.timeout.ms:60000}") long timeoutMillis,
+                         @Value("${warmup.v3.id:}") String v3Id,
+                         @Value("${warmup.v2.url:}") String v2Url) {
+        this.baseUrl = StringUtils.removeEnd(baseUrl, "/");
+        this.requests = requests;
+        this.threads = Math.max(1, threads);
+        this.timeoutMillis = timeoutMillis;
+        this.paths = List.of(
+                "/thumbnail/v3/200/" + v3Id,
+                "/thumbnail/v3/400/" + v3Id,
+                "/thumbnail/v2/url.json?size=w200&type=IMAGE&uri=" + URLEncoder.encode(v2Url, StandardCharsets.UTF_8),
+                "/thumbnail/v2/url.json?size=w400&type=IMAGE&uri=" + URLEncoder.encode(v2Url, StandardCharsets.UTF_8));
+        this.finished = requests <= 0 || StringUtils.isAnyBlank(v3Id, v2Url);
+        if (requests > 0 && finished) {
+            LOG.warn("Warm-up is disabled because warmup.v3.id and/or warmup.v2.url are not configured");
+        } else if (finished) {
+            LOG.info("Warm-up is disabled");
+        }
+    }
+
+    /**
+     * Start the warm-up in the background once the application is started. In an external servlet container the
+     * connector may only start accepting requests after the application has started, so we retry connecting.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void startWarmup() {
+        if (finished) {
+            return;
+        }
+        Thread thread = new Thread(this::warmup, "warmup");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void warmup() {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        HttpClient httpClient = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(2)).build();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        AtomicInteger failed = new AtomicInteger();
+        try {
+            waitUntilReachable(httpClient, deadline);
+            for (int i = 0; i < requests; i++) {
+                for (String path : paths) {
+                    executor.execute(() -> {
+                        if (System.nanoTime() < deadline && !send(httpClient, path)) {
+                            failed.incrementAndGet();
+                        }
+                    });
+                }
+            }
+            executor.shutdown();
+            if (!executor.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                LOG.warn("Warm-up did not finish within {} ms", timeoutMillis);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+            finished = true;
+            LOG.info("Warm-up finished in {} ms, {} failed requests",
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), failed.get());
+        }
+    }
+
+    private void waitUntilReachable(HttpClient httpClient, long deadline) throws InterruptedException {
+        while (System.nanoTime() < deadline) {
+            try {
+                httpClient.send(HttpRequest.newBuilder(URI.create(baseUrl + "/actuator/info")).build(),
+                        HttpResponse.BodyHandlers.discarding());
+                return;
+            } catch (ConnectException e) {
+                LOG.debug("Application not reachable yet on {}", baseUrl);
+                Thread.sleep(RETRY_CONNECT_MS);
+            } catch (IOException e) {
+                LOG.warn("Error connecting to {}", baseUrl, e);
+                return;
+            }
+        }
+    }
+
+    private boolean send(HttpClient httpClient, String path) {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + path))
+                .timeout(Duration.ofSeconds(10))
+                .GET()
+                .build();
+        try {
+            HttpResponse<InputStream> response = httpClient.send(request, HttpResponse.BodyHandlers.ofInputStream());
+            // read the entire body so the streaming part of the request path is warmed up as well
+            try (InputStream body = response.body()) {
+                body.transferTo(OutputStream.nullOutputStream());
+            }
+            return response.statusCode() < 500;
+        } catch (IOException e) {
+            LOG.debug("Warm-up request {} failed", path, e);
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * @return true if the warm-up has finished, or if there is no warm-up
+     */
+    public boolean isFinished() {
+        return finished;
+    }
+
+    @Override
+    public Health health() {
+        if (finished) {
+            return Health.up().build();
+        }
+        return Health.outOfService().withDetail("reason", "warming up").build();
+    }
+}
@@ -0,0 +1,249 @@
+package eu.europeana.thumbnail.service.impl;
+
+import eu.europeana.s3.S3Object;
+import eu.europeana.s3.exception.S3ObjectStorageException;
+import eu.europeana.thumbnail.model.FileMediaStream;
+import eu.europeana.thumbnail.model.MediaStream;
+import eu.europeana.thumbnail.service.AsyncMediaReadStorageService;
+import eu.europeana.thumbnail.service.ListableStorage;
+import eu.europeana.thumbnail.service.MediaReadStorageService;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+
+/**
+ * Service for retrieving media (e.g. thumbnails) from a directory on the local file system, for example a synchronized
+ * copy of the most requested thumbnails on an edge node, or for benchmarking without any network traffic.
+ *
+ * Files are stored in a sharded directory tree to keep the number of files per directory low. With 2 shard levels the
+ * file with id 0123456789abcdef-LARGE is stored as [root]/01/23/0123456789abcdef-LARGE.
+ * The ETag is derived from the file's size and modification time, so it stays the same when files are copied with
+ * preserved modification times (e.g. rsync -t).
+ * Reading file attributes and opening a file is fast, so asynchronous calls are completed by the calling thread.
+ */
+public class FileReadStorageServiceImpl implements MediaReadStorageService, AsyncMediaReadStorageService,
+        ListableStorage {
+
+    private static final Logger LOG = LogManager.getLogger(FileReadStorageServiceImpl.class);
+
+    public static final int DEFAULT_SHARD_LEVELS = 2;
+    private static final int SHARD_LENGTH = 2;
+
+    private final String name;
+    private final Path root;
+    private final int shardLevels;
+
+    /**
+     * Initialize a new file storage
+     * @param name the (informal) name of the storage
+     * @param root the root directory of the storage
+     * @param shardLevels the number of directory levels, each level uses the next 2 characters of the id
+     */
+    public FileReadStorageServiceImpl(String name, Path root, int shardLevels) {
+        this.name = name;
+        this.root = root.toAbsolutePath().normalize();
+        this.shardLevels = shardLevels;
+        if (!Files.isDirectory(this.root)) {
+            LOG.warn("Root directory {} of storage {} does not exist", this.root, name);
+        }
+        LOG.info("File storage {} root = {}, shard levels = {}", name, this.root, shardLevels);
+    }
+
+    /**
+     * Return the location of a file
+     * @param id the id of the file
+     * @return the location of the file, or null if the id is not valid
+     */
+    Path getPath(String id) {
+        if (id == null || id.length() < shardLevels * SHARD_LENGTH || id.contains("/") || id.contains("\\")
+                || id.startsWith(".")) {
+            return null;
+        }
+        Path result = root;
+        for (int i = 0; i < shardLevels; i++) {
+            result = result.resolve(id.substring(i * SHARD_LENGTH, (i + 1) * SHARD_LENGTH));
+        }
+        result = result.resolve(id).normalize();
+        return result.startsWith(root) ? result : null;
+    }
+
+    /**
+     * @see MediaReadStorageService#checkIfExists(String)
+     */
+    @Override
+    public Boolean checkIfExists(String id) {
+        Path path = getPath(id);
+        return path != null && Files.isRegularFile(path);
+    }
+
+    /**
+     * @see MediaReadStorageService#retrieve(String, String)
+     */
+    @Override
+    @SuppressWarnings("javasecurity:S5145") // we only log for debug purposes, plus we validate the user input
+    public MediaStream retrieve(String id, String originalUrl) {
+        LOG.debug("Retrieving file with id {} from storage {}", id, name);
+        Path path = getPath(id);
+        if (path == null) {
+            return null;
+        }
+        FileChannel channel = null;
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            if (!attributes.isRegularFile()) {
+                return null;
+            }
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+            // the size is read from the opened file, so it's correct even if the file was replaced in the meantime
+            S3Object object = new S3Object(id, Channels.newInputStream(channel),
+                    getMetadata(path, attributes, channel.size()));
+            return new FileMediaStream(id, originalUrl, object, getName(), path);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            closeQuietly(channel);
+            throw new S3ObjectStorageException("Error reading file " + path, e);
+        }
+    }
+
+    /**
+     * @see AsyncMediaReadStorageService#retrieveAsync(String, String)
+     */
+    @Override
+    public CompletableFuture<Optional<MediaStream>> retrieveAsync(String id, String originalUrl) {
+        try {
+            return CompletableFuture.completedFuture(Optional.ofNullable(retrieve(id, originalUrl)));
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * @see AsyncMediaReadStorageService#retrieveMetadataAsync(String)
+     */
+    @Override
+    public CompletableFuture<Optional<Map<String, Object>>> retrieveMetadataAsync(String id) {
+        Path path = getPath(id);
+        if (path == null) {
+            return CompletableFuture.completedFuture(Optional.empty());
+        }
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            if (!attributes.isRegularFile()) {
+                return CompletableFuture.completedFuture(Optional.empty());
+            }
+            return CompletableFuture.completedFuture(Optional.of(getMetadata(path, attributes, attributes.size())));
+        } catch (NoSuchFileException e) {
+            return CompletableFuture.completedFuture(Optional.empty());
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(new S3ObjectStorageException("Error reading file " + path, e));
+        }
+    }
+
+    /**
+     * @see AsyncMediaReadStorageService#existsAsync(Collection)
+     */
+    @Override
+    public CompletableFuture<Map<String, Boolean>> existsAsync(Collection<String> ids) {
+        Map<String, Boolean> result = new LinkedHashMap<>();
+        for (String id : ids) {
+            result.put(id, checkIfExists(id));
+        }
+        return CompletableFuture.completedFuture(result);
+    }
+
+    /**
+     * @see ListableStorage#listIds(String, int)
+     */
+    @Override
+    public List<String> listIds(String startAfter, int maxResults) {
+        List<String> result = new ArrayList<>();
+        try {
+            listIds(root, 0, startAfter, maxResults, result);
+        } catch (IOException e) {
+            throw new S3ObjectStorageException("Error listing files in " + root, e);
+        }
+        return result;
+    }
+
+    /**
+     * Add the ids in a directory to the result in lexicographical order. Shard directories are named after the start
+     * of the ids they contain, so directories that only contain ids before startAfter can be skipped.
+     */
+    private void listIds(Path dir, int level, String startAfter, int maxResults, List<String> result)
+            throws IOException {
+        List<Path> entries;
+        try (Stream<Path> stream = Files.list(dir)) {
+            entries = stream.sorted(Comparator.comparing(path -> path.getFileName().toString())).toList();
+        } catch (NoSuchFileException e) {
+            return;
+        }
+        for (Path entry : entries) {
+            if (result.size() >= maxResults) {
+                return;
+            }
+            String fileName = entry.getFileName().toString();
+            if (level < shardLevels) {
+                String shard = StringUtils.substring(startAfter, level * SHARD_LENGTH, (level + 1) * SHARD_LENGTH);
+                if ((startAfter == null || fileName.compareTo(shard) >= 0) && Files.isDirectory(entry)) {
+                    // all ids in a directory after the one of startAfter come after startAfter
+                    listIds(entry, level + 1, fileName.equals(shard) ? startAfter : null, maxResults, result);
+                }
+            } else if ((startAfter == null || fileName.compareTo(startAfter) > 0) && !fileName.startsWith(".")
+                    && Files.isRegularFile(entry)) {
+                result.add(fileName);
+            }
+        }
+    }
+
+    private static Map<String, Object> getMetadata(Path path, BasicFileAttributes attributes, long size)
+            throws IOException {
+        Map<String, Object> metadata = new HashMap<>();
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        metadata.put(S3Object.CONTENT_LENGTH, size);
+        metadata.put(S3Object.LAST_MODIFIED, attributes.lastModifiedTime().toInstant());
+        metadata.put(S3Object.ETAG, "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(size) + "\"");
+        String contentType = Files.probeContentType(path);
+        if (contentType != null) {
+            metadata.put(S3Object.CONTENT_TYPE, contentType);
+        }
+        return metadata;
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOG.debug("Error closing file channel", e);
+            }
+        }
+    }
+
+    /**
+     * @see MediaReadStorageService#getName()
+     */
+    @Override
+    public String getName() {
+        return name;
+    }
+}
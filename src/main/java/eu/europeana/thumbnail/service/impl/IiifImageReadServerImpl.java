@@ -3,39 +3,112 @@ package eu.europeana.thumbnail.service.impl;
 import eu.europeana.s3.S3Object;
 import eu.europeana.thumbnail.model.ImageSize;
 import eu.europeana.thumbnail.model.MediaStream;
+import eu.europeana.thumbnail.model.MediaStreamTracker;
+import eu.europeana.thumbnail.service.AsyncMediaReadStorageService;
 import eu.europeana.thumbnail.service.MediaReadStorageService;
 import eu.europeana.thumbnail.utils.IiifUtils;
-import jakarta.validation.constraints.Pattern;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
 import org.apache.commons.lang3.NotImplementedException;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.springframework.stereotype.Component;
-import org.springframework.validation.annotation.Validated;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 
-import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.MalformedURLException;
 import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Download a thumbnail image from the Europeana IIIF Image server
  * Note that this service doesn't support retrieving metadata or checking if a file exists in advance
  *
+ * Connections to the IIIF server are pooled and kept alive by the HTTP client. All requests are bounded by a connect
+ * and read timeout, and the number of concurrent requests is capped so a slow IIIF server cannot claim all request
+ * threads. The read timeout applies to both receiving the response headers and each read of the body.
+ *
  * @author Patrick Ehlert
  * Created on 2 sep 2020
  * @deprecated
  */
-@Validated
-@Component
 @Deprecated(since = "v0.9 (nov 2025)")
-public class IiifImageReadServerImpl implements MediaReadStorageService {
+public class IiifImageReadServerImpl implements MediaReadStorageService, AsyncMediaReadStorageService {
 
     public static final String STORAGE_NAME = "IIIF-IS";
 
+    public static final Duration DEFAULT_CONNECT_TIMEOUT = Duration.ofSeconds(2);
+    public static final Duration DEFAULT_READ_TIMEOUT    = Duration.ofSeconds(5);
+    public static final int      DEFAULT_MAX_CONNECTIONS = 20;
+
     private static final Logger LOG = LogManager.getLogger(IiifImageReadServerImpl.class);
-    private static final String INVALID_URL_MESSAGE = "Not a valid url";
+
+    private static final String METRIC_NAME     = "thumbnail.iiif.requests";
+    private static final String TAG_OUTCOME     = "outcome";
+    private static final String OUTCOME_FOUND     = "found";
+    private static final String OUTCOME_NOT_FOUND = "not_found";
+    private static final String OUTCOME_ERROR     = "error";
+    private static final String OUTCOME_REJECTED  = "rejected";
+
+    // closes response bodies that aren't read in time, shared by all instances
+    private static final ScheduledThreadPoolExecutor BODY_TIMEOUTS = createTimeoutExecutor();
+
+    private final HttpClient httpClient;
+    private final Duration readTimeout;
+    private final Duration acquireTimeout;
+    private final Semaphore permits;
+    private final Map<String, Timer> requestTimers;
+
+    /**
+     * Initialize a new IIIF image server client with default timeouts and maximum number of connections
+     */
+    public IiifImageReadServerImpl() {
+        this(DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT, DEFAULT_MAX_CONNECTIONS);
+    }
+
+    /**
+     * Initialize a new IIIF image server client
+     * @param connectTimeout maximum time to wait for a connection to be established
+     * @param readTimeout maximum time to wait for the IIIF server to respond, and the maximum time between two reads of
+     *                    the response body. This is also the maximum time we wait for a free connection when the
+     *                    maximum number of connections is in use
+     * @param maxConnections maximum number of concurrent requests to the IIIF server
+     */
+    public IiifImageReadServerImpl(Duration connectTimeout, Duration readTimeout, int maxConnections) {
+        this.httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(connectTimeout)
+                .build();
+        this.readTimeout = readTimeout;
+        this.acquireTimeout = readTimeout;
+        this.permits = new Semaphore(maxConnections);
+        this.requestTimers = Map.of(
+                OUTCOME_FOUND, createTimer(OUTCOME_FOUND),
+                OUTCOME_NOT_FOUND, createTimer(OUTCOME_NOT_FOUND),
+                OUTCOME_ERROR, createTimer(OUTCOME_ERROR),
+                OUTCOME_REJECTED, createTimer(OUTCOME_REJECTED));
+        LOG.info("IIIF Image server client connect timeout = {}, read timeout = {}, maximum connections = {}",
+                connectTimeout, readTimeout, maxConnections);
+    }
 
     @Override
     public Boolean checkIfExists(String id) {
@@ -55,6 +128,56 @@ public class IiifImageReadServerImpl implements MediaReadStorageService {
     @SuppressWarnings("javasecurity:S5145") // we only log for debug purposes, plus we validate the user input
     public MediaStream retrieve(String id, String originalUrl) {
         LOG.debug("Retrieving file from IIIF image server with id {}, url = {}", id, originalUrl);
+        String imageUrl = getImageUrl(id, originalUrl);
+        if (imageUrl == null) {
+            return null;
+        }
+        MediaStream result = download(id, imageUrl);
+        if (result != null) {
+            LOG.info("Returning thumbnail from IIIF server {} ", imageUrl);
+        }
+        return result;
+    }
+
+    /**
+     * @see AsyncMediaReadStorageService#retrieveAsync(String, String)
+     *
+     * Like the synchronous version, this is only supported if the originalUrl is provided. The request is sent
+     * asynchronously by the HTTP client, so no thread is blocked while waiting for the IIIF server. If the maximum
+     * number of connections is in use the request is not sent (no file is returned).
+     */
+    @Override
+    @SuppressWarnings("javasecurity:S5145") // we only log for debug purposes, plus we validate the user input
+    public CompletableFuture<Optional<MediaStream>> retrieveAsync(String id, String originalUrl) {
+        LOG.debug("Retrieving file asynchronously from IIIF image server with id {}, url = {}", id, originalUrl);
+        String imageUrl = getImageUrl(id, originalUrl);
+        if (imageUrl == null) {
+            return CompletableFuture.completedFuture(Optional.empty());
+        }
+        return downloadAsync(id, imageUrl).thenApply(Optional::ofNullable);
+    }
+
+    /**
+     * Not supported, the IIIF image server doesn't provide metadata without downloading the image
+     */
+    @Override
+    public CompletableFuture<Optional<Map<String, Object>>> retrieveMetadataAsync(String id) {
+        return CompletableFuture.failedFuture(new NotImplementedException("Not implemented"));
+    }
+
+    /**
+     * Not supported, see {@link #checkIfExists(String)}
+     */
+    @Override
+    public CompletableFuture<Map<String, Boolean>> existsAsync(Collection<String> ids) {
+        return CompletableFuture.failedFuture(new NotImplementedException("Not implemented"));
+    }
+
+    /**
+     * @return the url of the thumbnail on the IIIF image server, or null if the original url isn't a Europeana IIIF
+     * image
+     */
+    private static String getImageUrl(String id, String originalUrl) {
         if (StringUtils.isEmpty(originalUrl)) {
             LOG.debug("No originalUrl provided, skipping retrieval from IIIF Image server");
             return null;
@@ -67,38 +190,253 @@ public class IiifImageReadServerImpl implements MediaReadStorageService {
         String imageUrl = IiifUtils.getEuropeanaIiifThumbnailUrl(originalUrl, width);
         if (imageUrl == null) {
             LOG.debug("No Europeana IIIF image, skipping retrieval from IIIF Image server");
-            return null;
         }
-
-        InputStream content = retrieve(imageUrl);
-        if (content == null) {
-            return null;
-        }
-        LOG.info("Returning thumbnail from IIIF server {} ", imageUrl);
-        // TODO can we determine content-length without reading the stream?
-        return new MediaStream(id, imageUrl, new S3Object(id, content, null));
+        return imageUrl;
     }
 
     /**
      * Retrieve an image from the IIIF (eCloud) server.
      * Only for Thumbnail v2
-     * @param originalUrl the "original url" (id) of the image to retrieve
-     * @return inputstream to the image if available, otherwise null
+     * @param id the id of the file
+     * @param imageUrl the url of the image to retrieve
+     * @return MediaStream with an open stream to the image if available, otherwise null. The stream must be closed
+     * to release the connection
      */
-    public InputStream retrieve(
-            @Pattern(regexp = "^(https?|ftp)://.*$", message = INVALID_URL_MESSAGE) String originalUrl) {
+    protected MediaStream download(String id, String imageUrl) {
+        long start = System.nanoTime();
+        String outcome = OUTCOME_ERROR;
+        boolean permitAcquired = false;
         try {
-            return new BufferedInputStream(URI.create(originalUrl).toURL().openStream());
-        } catch (MalformedURLException e) {
-            LOG.error("'{}' is not a valid url", originalUrl, e);
+            permitAcquired = permits.tryAcquire(acquireTimeout.toMillis(), TimeUnit.MILLISECONDS);
+            if (!permitAcquired) {
+                outcome = OUTCOME_REJECTED;
+                LOG.warn("Maximum number of connections to IIIF image server in use, skipping '{}'", imageUrl);
+                return null;
+            }
+            HttpResponse<InputStream> response = httpClient.send(createRequest(imageUrl),
+                    HttpResponse.BodyHandlers.ofInputStream());
+            outcome = getOutcome(response);
+            MediaStream result = toMediaStream(id, imageUrl, response);
+            // the permit is released when the stream is closed
+            permitAcquired = (result == null);
+            return result;
+        } catch (IllegalArgumentException e) {
+            LOG.error("'{}' is not a valid url", imageUrl, e);
         } catch (IOException e) {
-            LOG.error("Error reading image '{}' from IIIF image server", originalUrl, e);
+            LOG.error("Error reading image '{}' from IIIF image server", imageUrl, e);
+        } catch (InterruptedException e) {
+            LOG.warn("Interrupted while reading image '{}' from IIIF image server", imageUrl);
+            Thread.currentThread().interrupt();
+        } finally {
+            if (permitAcquired) {
+                permits.release();
+            }
+            recordRequest(outcome, start);
         }
         return null;
     }
 
+    /**
+     * Asynchronous version of {@link #download(String, String)}. Unlike the synchronous version, we don't wait for a
+     * connection to become available
+     * @param id the id of the file
+     * @param imageUrl the url of the image to retrieve
+     * @return future that completes with a MediaStream with an open stream to the image if available, otherwise null.
+     * The stream must be closed to release the connection
+     */
+    protected CompletableFuture<MediaStream> downloadAsync(String id, String imageUrl) {
+        long start = System.nanoTime();
+        if (!permits.tryAcquire()) {
+            LOG.warn("Maximum number of connections to IIIF image server in use, skipping '{}'", imageUrl);
+            recordRequest(OUTCOME_REJECTED, start);
+            return CompletableFuture.completedFuture(null);
+        }
+        HttpRequest request;
+        try {
+            request = createRequest(imageUrl);
+        } catch (IllegalArgumentException e) {
+            LOG.error("'{}' is not a valid url", imageUrl, e);
+            permits.release();
+            recordRequest(OUTCOME_ERROR, start);
+            return CompletableFuture.completedFuture(null);
+        }
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofInputStream()).handle((response, error) -> {
+            String outcome = OUTCOME_ERROR;
+            MediaStream result = null;
+            try {
+                if (error == null) {
+                    outcome = getOutcome(response);
+                    result = toMediaStream(id, imageUrl, response);
+                } else {
+                    Throwable cause = (error instanceof CompletionException && error.getCause() != null)
+                            ? error.getCause() : error;
+                    LOG.error("Error reading image '{}' from IIIF image server", imageUrl, cause);
+                }
+            } catch (RuntimeException e) {
+                LOG.error("Error reading image '{}' from IIIF image server", imageUrl, e);
+            } finally {
+                // if there is a result, the permit is released when the stream is closed
+                if (result == null) {
+                    permits.release();
+                }
+                recordRequest(outcome, start);
+            }
+            return result;
+        });
+    }
+
+    private HttpRequest createRequest(String imageUrl) {
+        return HttpRequest.newBuilder(URI.create(imageUrl))
+                .timeout(readTimeout)
+                .GET()
+                .build();
+    }
+
+    private static String getOutcome(HttpResponse<InputStream> response) {
+        if (response.statusCode() == HttpStatus.OK.value()) {
+            return OUTCOME_FOUND;
+        }
+        // not all status codes are known by HttpStatus (e.g. 520)
+        return response.statusCode() >= 500 ? OUTCOME_ERROR : OUTCOME_NOT_FOUND;
+    }
+
+    /**
+     * @return a MediaStream for a successful response, or null if the image wasn't returned. In the latter case (also
+     * if creating the MediaStream fails) the response body is closed. The stream of the MediaStream releases the
+     * connection permit when it's closed.
+     */
+    private MediaStream toMediaStream(String id, String imageUrl, HttpResponse<InputStream> response) {
+        MediaStream result = null;
+        try {
+            if (response.statusCode() == HttpStatus.OK.value()) {
+                Map<String, Object> metadata = getMetadata(response);
+                // the permit is released when the stream is closed, so the connection can't be claimed in the meantime
+                InputStream body = new ResponseBodyInputStream(imageUrl, response.body(), permits, readTimeout);
+                result = new MediaStream(id, imageUrl, MediaStreamTracker.track(id, new S3Object(id, body, metadata)),
+                        getName());
+            } else {
+                LOG.debug("IIIF image server returned status {} for '{}'", response.statusCode(), imageUrl);
+            }
+            return result;
+        } finally {
+            if (result == null) {
+                closeQuietly(imageUrl, response.body());
+            }
+        }
+    }
+
+    private static void closeQuietly(String imageUrl, InputStream body) {
+        try {
+            body.close();
+        } catch (IOException e) {
+            LOG.debug("Error closing response of '{}'", imageUrl, e);
+        }
+    }
+
+    private static ScheduledThreadPoolExecutor createTimeoutExecutor() {
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("iiif-timeout-");
+        threadFactory.setDaemon(true);
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, threadFactory);
+        // almost all bodies are read in time, so cancelled timeouts shouldn't stay in the queue
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
+    }
+
+    private static Timer createTimer(String outcome) {
+        return Timer.builder(METRIC_NAME)
+                .description("Requests to the IIIF image server fallback")
+                .tag(TAG_OUTCOME, outcome)
+                .register(Metrics.globalRegistry);
+    }
+
+    private void recordRequest(String outcome, long start) {
+        requestTimers.get(outcome).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+
+    private static Map<String, Object> getMetadata(HttpResponse<InputStream> response) {
+        Map<String, Object> metadata = new HashMap<>();
+        OptionalLong contentLength = response.headers().firstValueAsLong(HttpHeaders.CONTENT_LENGTH);
+        if (contentLength.isPresent()) {
+            metadata.put(S3Object.CONTENT_LENGTH, contentLength.getAsLong());
+        }
+        response.headers().firstValue(HttpHeaders.CONTENT_TYPE)
+                .ifPresent(contentType -> metadata.put(S3Object.CONTENT_TYPE, contentType));
+        return metadata;
+    }
+
     @Override
     public String getName() {
         return STORAGE_NAME;
     }
+
+    /**
+     * Response body that returns its connection permit when it's closed. The request timeout only applies until the
+     * response headers are received, so the body is closed (aborting the download) if no data is read from it for
+     * longer than the read timeout. A body that is read slowly but steadily (e.g. copied to a slow client) stays open.
+     */
+    private static final class ResponseBodyInputStream extends FilterInputStream {
+
+        private final String imageUrl;
+        private final Semaphore permits;
+        private final long readTimeoutNanos;
+        private final AtomicBoolean released = new AtomicBoolean(false);
+        private volatile long lastReadNanos;
+        private volatile ScheduledFuture<?> timeout;
+
+        ResponseBodyInputStream(String imageUrl, InputStream in, Semaphore permits, Duration readTimeout) {
+            super(in);
+            this.imageUrl = imageUrl;
+            this.permits = permits;
+            this.readTimeoutNanos = readTimeout.toNanos();
+            this.lastReadNanos = System.nanoTime();
+            this.timeout = BODY_TIMEOUTS.schedule(this::checkIdle, readTimeoutNanos, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Reads only record the time, the timeout task checks if it has to wait longer so it isn't rescheduled for
+         * every read
+         */
+        private void checkIdle() {
+            if (released.get()) {
+                return;
+            }
+            long idleNanos = System.nanoTime() - lastReadNanos;
+            if (idleNanos >= readTimeoutNanos) {
+                LOG.warn("Response of '{}' was not read in time, closing it", imageUrl);
+                closeQuietly(imageUrl, this);
+            } else {
+                timeout = BODY_TIMEOUTS.schedule(this::checkIdle, readTimeoutNanos - idleNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            int result = super.read();
+            lastReadNanos = System.nanoTime();
+            return result;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int result = super.read(b, off, len);
+            lastReadNanos = System.nanoTime();
+            return result;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (released.compareAndSet(false, true)) {
+                    ScheduledFuture<?> pending = timeout;
+                    // null if the timeout expired before the constructor finished
+                    if (pending != null) {
+                        pending.cancel(false);
+                    }
+                    permits.release();
+                }
+            }
+        }
+    }
 }
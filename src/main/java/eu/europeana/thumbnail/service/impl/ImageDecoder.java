@@ -0,0 +1,174 @@
+package eu.europeana.thumbnail.service.impl;
+
+import com.sksamuel.scrimage.ImmutableImage;
+import eu.europeana.thumbnail.exception.ImageTooLargeException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.imageio.IIOException;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+/**
+ * Decodes uploaded images with bounded memory use. The dimensions are read from the image header first, so images with
+ * too many pixels (decompression bombs) are rejected before anything is decoded. Images are then decoded with ImageIO
+ * subsampling to about twice the largest target width (the remaining downscaling is done with a proper filter) and
+ * only the first frame of animated or multi-page images is decoded.
+ *
+ * WebP images can't be subsampled while decoding, for those the dimensions are read from the WebP header and the image
+ * is decoded at full size, by ImageIO if a WebP reader is available or otherwise by Scrimage. Scrimage is also used
+ * when ImageIO can't decode an image (e.g. CMYK jpegs). As these images are decoded at full size, a much lower maximum
+ * number of pixels applies to them.
+ *
+ * ImageIO's disk cache is never used, the encoded image is already in memory.
+ */
+public class ImageDecoder {
+
+    private static final Logger LOG = LogManager.getLogger(ImageDecoder.class);
+
+    // we subsample to at least this many times the target width, so downscaling can still be done with a proper filter
+    private static final int OVERSAMPLING = 2;
+
+    /** Default maximum number of pixels of images that can't be subsampled, decoded that's about 100 MB */
+    public static final long DEFAULT_MAX_FULL_DECODE_PIXELS = 25_000_000L;
+
+    static {
+        // Scrimage reads images with ImageIO, which by default buffers streams in a temporary file
+        ImageIO.setUseCache(false);
+    }
+
+    private final long maxPixels;
+    private final long maxFullDecodePixels;
+
+    /**
+     * Create a new image decoder, with the default maximum for images that can't be subsampled
+     * @param maxPixels images with more pixels (width x height) than this are rejected
+     */
+    public ImageDecoder(long maxPixels) {
+        this(maxPixels, DEFAULT_MAX_FULL_DECODE_PIXELS);
+    }
+
+    /**
+     * Create a new image decoder
+     * @param maxPixels images with more pixels (width x height) than this are rejected
+     * @param maxFullDecodePixels images that can't be subsampled (WebP or not supported by ImageIO) with more pixels
+     *                            than this are rejected
+     */
+    public ImageDecoder(long maxPixels, long maxFullDecodePixels) {
+        this.maxPixels = maxPixels;
+        this.maxFullDecodePixels = Math.min(maxPixels, maxFullDecodePixels);
+    }
+
+    /**
+     * Decode the first frame of an image
+     * @param data the encoded image
+     * @param targetWidth the largest width to which the image will be scaled
+     * @return the decoded image, at least targetWidth wide (unless the image is smaller)
+     * @throws ImageTooLargeException when the image has more pixels than allowed
+     * @throws IOException when the image format is not supported or the image can't be decoded
+     */
+    public ImmutableImage decode(byte[] data, int targetWidth) throws IOException {
+        int[] webpSize = getWebpSize(data);
+        if (webpSize != null) {
+            checkSize(webpSize[0], webpSize[1], maxFullDecodePixels);
+        }
+        try (ImageInputStream in = new MemoryCacheImageInputStream(new ByteArrayInputStream(data))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (readers.hasNext()) {
+                ImageReader reader = readers.next();
+                int width = 0;
+                int height = 0;
+                try {
+                    // forward only, we only read the first frame
+                    reader.setInput(in, true, true);
+                    width = reader.getWidth(0);
+                    height = reader.getHeight(0);
+                    checkSize(width, height, maxPixels);
+                    ImageReadParam param = reader.getDefaultReadParam();
+                    int subsampling = getSubsampling(width, targetWidth);
+                    if (subsampling > 1) {
+                        param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                    }
+                    LOG.debug("Decoding {}x{} image with {} reader and subsampling {}", width, height,
+                            reader.getFormatName(), subsampling);
+                    BufferedImage image = reader.read(0, param);
+                    return ImmutableImage.fromAwt(image);
+                } catch (IIOException e) {
+                    if (width == 0 || height == 0) {
+                        throw e;
+                    }
+                    // e.g. CMYK jpegs, Scrimage decodes the image at full size
+                    checkSize(width, height, maxFullDecodePixels);
+                    LOG.warn("Unable to decode image with ImageIO, using Scrimage instead", e);
+                    return ImmutableImage.loader().fromBytes(data);
+                } finally {
+                    reader.dispose();
+                }
+            }
+        }
+
+        if (webpSize == null) {
+            throw new IOException("Unsupported image format");
+        }
+        return ImmutableImage.loader().fromBytes(data);
+    }
+
+    private static void checkSize(int width, int height, long max) throws ImageTooLargeException {
+        if (width <= 0 || height <= 0 || (long) width * height > max) {
+            throw new ImageTooLargeException(width, height, max);
+        }
+    }
+
+    /**
+     * @return the largest subsampling factor that keeps the image at least OVERSAMPLING times the target width
+     */
+    static int getSubsampling(int width, int targetWidth) {
+        return Math.max(1, width / (OVERSAMPLING * Math.max(1, targetWidth)));
+    }
+
+    /**
+     * Read the dimensions of a WebP image from its header, see
+     * https://developers.google.com/speed/webp/docs/riff_container
+     * @param data the encoded image
+     * @return array with width and height, or null if the data is not a (supported) WebP image
+     */
+    static int[] getWebpSize(byte[] data) {
+        if (data.length < 30 || !"RIFF".equals(ascii(data, 0)) || !"WEBP".equals(ascii(data, 8))) {
+            return null;
+        }
+        return switch (ascii(data, 12)) {
+            // lossy: frame header with start code followed by 14 bit width and height
+            case "VP8 " -> (data[23] & 0xFF) == 0x9D && (data[24] & 0xFF) == 0x01 && (data[25] & 0xFF) == 0x2A
+                    ? new int[]{readLe16(data, 26) & 0x3FFF, readLe16(data, 28) & 0x3FFF}
+                    : null;
+            // lossless: signature followed by 14 bits width - 1 and 14 bits height - 1
+            case "VP8L" -> (data[20] & 0xFF) == 0x2F
+                    ? new int[]{1 + ((data[21] & 0xFF) | (data[22] & 0x3F) << 8),
+                                1 + ((data[22] & 0xFF) >> 6 | (data[23] & 0xFF) << 2 | (data[24] & 0x0F) << 10)}
+                    : null;
+            // extended: 24 bits canvas width - 1 and height - 1
+            case "VP8X" -> new int[]{1 + readLe24(data, 24), 1 + readLe24(data, 27)};
+            default -> null;
+        };
+    }
+
+    private static String ascii(byte[] data, int offset) {
+        return new String(data, offset, 4, StandardCharsets.US_ASCII);
+    }
+
+    private static int readLe16(byte[] data, int offset) {
+        return (data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8;
+    }
+
+    private static int readLe24(byte[] data, int offset) {
+        return readLe16(data, offset) | (data[offset + 2] & 0xFF) << 16;
+    }
+}
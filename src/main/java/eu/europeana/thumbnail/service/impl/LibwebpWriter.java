@@ -0,0 +1,96 @@
+package eu.europeana.thumbnail.service.impl;
+
+import com.luciad.imageio.webp.WebPImageWriterSpi;
+import com.luciad.imageio.webp.WebPWriteParam;
+import com.sksamuel.scrimage.AwtImage;
+import com.sksamuel.scrimage.metadata.ImageMetadata;
+import com.sksamuel.scrimage.nio.ImageWriter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Scrimage writer that encodes webp images in-process with libwebp (via the JNI binding of webp-imageio), so unlike
+ * Scrimage's WebpWriter it doesn't write temporary files or start a cwebp process for each image. Encoding is done
+ * on the calling thread and entirely in memory.
+ */
+public class LibwebpWriter implements ImageWriter {
+
+    private static final Logger LOG = LogManager.getLogger(LibwebpWriter.class);
+
+    // created directly instead of looked up via ImageIO, which doesn't see plugins in the webapp's class loader
+    private static final WebPImageWriterSpi WRITER_SPI = new WebPImageWriterSpi();
+    private static final int MAX_QUALITY = 100;
+
+    private final int quality;
+    private final int effort;
+
+    /**
+     * Create a new writer for lossy webp images
+     * @param quality the quality (0-100)
+     * @param effort the compression method, 0 (fast) to 6 (slowest, smallest)
+     */
+    public LibwebpWriter(int quality, int effort) {
+        this.quality = quality;
+        this.effort = effort;
+    }
+
+    /**
+     * @return true if the native library can be loaded on this platform, otherwise false
+     */
+    public static boolean isAvailable() {
+        return Availability.AVAILABLE;
+    }
+
+    @Override
+    public void write(AwtImage image, ImageMetadata metadata, OutputStream out) throws IOException {
+        write(image.awt(), out);
+    }
+
+    /**
+     * Encode an image as webp
+     * @param image the image to encode
+     * @param out the stream to write to, this is not closed
+     * @throws IOException when there is a problem encoding or writing the image
+     */
+    public void write(BufferedImage image, OutputStream out) throws IOException {
+        javax.imageio.ImageWriter writer = WRITER_SPI.createWriterInstance();
+        // ImageIO.createImageOutputStream() would cache in a temporary file
+        try (ImageOutputStream ios = new MemoryCacheImageOutputStream(out)) {
+            writer.setOutput(ios);
+            WebPWriteParam param = new WebPWriteParam(writer.getLocale());
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionType(param.getCompressionTypes()[WebPWriteParam.LOSSY_COMPRESSION]);
+            param.setCompressionQuality((float) quality / MAX_QUALITY);
+            param.setMethod(effort);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    /**
+     * Checks once (lazily) if the native library can be loaded, by encoding a tiny image
+     */
+    private static final class Availability {
+        private static final boolean AVAILABLE = check();
+
+        private static boolean check() {
+            try {
+                new LibwebpWriter(MAX_QUALITY, 0).write(new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB),
+                        OutputStream.nullOutputStream());
+                return true;
+            } catch (IOException | RuntimeException | LinkageError e) {
+                LOG.warn("Unable to load libwebp on this platform", e);
+                return false;
+            }
+        }
+    }
+}
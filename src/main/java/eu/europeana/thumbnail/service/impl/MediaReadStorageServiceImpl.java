@@ -3,28 +3,46 @@ package eu.europeana.thumbnail.service.impl;
 import eu.europeana.s3.S3Object;
 import eu.europeana.s3.S3ObjectStorageClient;
 import eu.europeana.thumbnail.model.MediaStream;
+import eu.europeana.thumbnail.model.MediaStreamTracker;
+import eu.europeana.thumbnail.service.AsyncMediaReadStorageService;
 import eu.europeana.thumbnail.service.MediaReadStorageService;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+
 /**
  * Service for retrieving media (e.g. thumbnails) from an object storage like Amazons S3 or IBM Cloud S3
+ * The S3 client is synchronous, so asynchronous calls are done using the provided executor. If the executor rejects a
+ * call, the returned future fails with a RejectedExecutionException.
  */
-public class MediaReadStorageServiceImpl implements MediaReadStorageService {
+public class MediaReadStorageServiceImpl implements MediaReadStorageService, AsyncMediaReadStorageService {
 
     private static final Logger LOG = LogManager.getLogger(MediaReadStorageServiceImpl.class);
 
     private final String name;
     protected final S3ObjectStorageClient objectStorageClient;
+    private final Executor executor;
 
     /**
      * Initialize a new MediaStorageService implementation
      * @param name the (informal) name of the storage
      * @param objectStorageClient the S3 client to use
+     * @param executor executor used for asynchronous calls
      */
-    public MediaReadStorageServiceImpl(String name, S3ObjectStorageClient objectStorageClient) {
+    public MediaReadStorageServiceImpl(String name, S3ObjectStorageClient objectStorageClient, Executor executor) {
         this.name = name;
         this.objectStorageClient = objectStorageClient;
+        this.executor = executor;
     }
 
     /**
@@ -46,7 +64,59 @@ public class MediaReadStorageServiceImpl implements MediaReadStorageService {
         if (obj == null || obj.inputStream() == null) {
             return null;
         } else {
-            return new MediaStream(id, originalUrl, obj);
+            // the stream holds a pooled connection, so it's tracked in case it leaks
+            return new MediaStream(id, originalUrl, MediaStreamTracker.track(id, obj), getName());
+        }
+    }
+
+    /**
+     * @see AsyncMediaReadStorageService#retrieveAsync(String, String)
+     */
+    @Override
+    public CompletableFuture<Optional<MediaStream>> retrieveAsync(String id, String originalUrl) {
+        return supplyAsync(() -> Optional.ofNullable(retrieve(id, originalUrl)));
+    }
+
+    /**
+     * @see AsyncMediaReadStorageService#retrieveMetadataAsync(String)
+     * Our S3 client doesn't offer a metadata-only request, so the object is requested and its stream is closed right
+     * away. For thumbnails that usually means little or no content is transferred.
+     */
+    @Override
+    public CompletableFuture<Optional<Map<String, Object>>> retrieveMetadataAsync(String id) {
+        return supplyAsync(() -> {
+            S3Object obj = objectStorageClient.getObject(id);
+            if (obj == null) {
+                return Optional.empty();
+            }
+            try {
+                if (obj.inputStream() != null) {
+                    obj.inputStream().close();
+                }
+            } catch (IOException e) {
+                LOG.debug("Error closing stream of {}", id, e);
+            }
+            return Optional.of(obj.metadata() == null ? new HashMap<>() : obj.metadata());
+        });
+    }
+
+    /**
+     * @see AsyncMediaReadStorageService#existsAsync(Collection)
+     */
+    @Override
+    public CompletableFuture<Map<String, Boolean>> existsAsync(Collection<String> ids) {
+        Map<String, CompletableFuture<Boolean>> checks = new LinkedHashMap<>();
+        for (String id : ids) {
+            checks.put(id, supplyAsync(() -> Boolean.TRUE.equals(checkIfExists(id))));
+        }
+        return AsyncMediaReadStorageService.collect(checks);
+    }
+
+    private <T> CompletableFuture<T> supplyAsync(Supplier<T> supplier) {
+        try {
+            return CompletableFuture.supplyAsync(supplier, executor);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(e);
         }
     }
 
@@ -58,6 +128,3 @@ public class MediaReadStorageServiceImpl implements MediaReadStorageService {
         return name;
     }
 }
-
-
-
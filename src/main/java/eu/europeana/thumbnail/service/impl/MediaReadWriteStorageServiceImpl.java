@@ -0,0 +1,39 @@
+package eu.europeana.thumbnail.service.impl;
+
+import eu.europeana.s3.S3ObjectStorageClient;
+import eu.europeana.thumbnail.service.MediaWriteStorageService;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.InputStream;
+import java.util.concurrent.Executor;
+
+/**
+ * Service for retrieving media (e.g. thumbnails) from, and storing media in an object storage like Amazons S3 or
+ * IBM Cloud S3
+ */
+public class MediaReadWriteStorageServiceImpl extends MediaReadStorageServiceImpl implements MediaWriteStorageService {
+
+    private static final Logger LOG = LogManager.getLogger(MediaReadWriteStorageServiceImpl.class);
+
+    /**
+     * Initialize a new MediaReadWriteStorageService implementation
+     * @param name the (informal) name of the storage
+     * @param objectStorageClient the S3 client to use, this client should have write access
+     * @param executor executor used for asynchronous calls
+     */
+    public MediaReadWriteStorageServiceImpl(String name, S3ObjectStorageClient objectStorageClient,
+                                            Executor executor) {
+        super(name, objectStorageClient, executor);
+    }
+
+    /**
+     * @see MediaWriteStorageService#store(String, String, InputStream)
+     */
+    @Override
+    @SuppressWarnings("javasecurity:S5145") // we only log for debug purposes
+    public void store(String id, String contentType, InputStream content) {
+        LOG.debug("Storing file with id {} in storage {}", id, getName());
+        objectStorageClient.putObject(id, contentType, content);
+    }
+}
@@ -0,0 +1,78 @@
+package eu.europeana.thumbnail.service.impl;
+
+import eu.europeana.thumbnail.service.ListableStorage;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.http.SdkHttpClient;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.S3ClientBuilder;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+import java.net.URI;
+import java.util.List;
+
+/**
+ * Lists the contents of an S3 bucket. Our object storage client doesn't support listing, so we use a separate S3
+ * client for this that shares the http client (and so the connection pool) of the storage.
+ */
+public class S3BucketLister implements ListableStorage, AutoCloseable {
+
+    private final String name;
+    private final String bucket;
+    private final S3Client s3Client;
+
+    /**
+     * Initialize a new bucket lister
+     * @param name the (informal) name of the storage
+     * @param key the S3 access key
+     * @param secret the S3 secret key
+     * @param region the S3 region
+     * @param bucket the bucket to list
+     * @param endpoint optional, the endpoint of S3 compatible (non-Amazon) storages
+     * @param httpClient the http client of the storage, this is not closed when the lister is closed
+     */
+    @SuppressWarnings("java:S107") // all parameters are needed to connect to a bucket
+    public S3BucketLister(String name, String key, String secret, String region, String bucket, URI endpoint,
+                          SdkHttpClient httpClient) {
+        this.name = name;
+        this.bucket = bucket;
+        S3ClientBuilder builder = S3Client.builder()
+                .credentialsProvider(StaticCredentialsProvider.create(AwsBasicCredentials.create(key, secret)))
+                .region(Region.of(region))
+                .httpClient(httpClient);
+        if (endpoint != null) {
+            builder.endpointOverride(endpoint).forcePathStyle(true);
+        }
+        this.s3Client = builder.build();
+    }
+
+    /**
+     * @see ListableStorage#listIds(String, int)
+     */
+    @Override
+    public List<String> listIds(String startAfter, int maxResults) {
+        return s3Client.listObjectsV2(ListObjectsV2Request.builder()
+                        .bucket(bucket)
+                        .startAfter(startAfter)
+                        .maxKeys(maxResults)
+                        .build())
+                .contents().stream()
+                .map(S3Object::key)
+                .toList();
+    }
+
+    /**
+     * @see ListableStorage#getName()
+     */
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public void close() {
+        s3Client.close();
+    }
+}
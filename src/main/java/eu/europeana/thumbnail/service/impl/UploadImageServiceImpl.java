@@ -1,63 +1,140 @@
 package eu.europeana.thumbnail.service.impl;
 
 import com.sksamuel.scrimage.ImmutableImage;
-import com.sksamuel.scrimage.webp.WebpWriter;
+import com.sksamuel.scrimage.nio.ImageWriter;
 import eu.europeana.s3.S3ObjectStorageClient;
-import eu.europeana.thumbnail.model.ImageSize;
+import eu.europeana.thumbnail.exception.ImageTooLargeException;
+import eu.europeana.thumbnail.model.ImageEncoding;
+import eu.europeana.thumbnail.model.ImageFormat;
+import eu.europeana.thumbnail.model.WebpEncoder;
 import eu.europeana.thumbnail.service.UploadImageService;
+import eu.europeana.thumbnail.service.UploadListener;
 import eu.europeana.thumbnail.utils.IdUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.web.multipart.MultipartFile;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 /**
- * Service for reading an uploaded image (organisation logo), generating a 200 and 400 pixel version thumbnail and
- * storing this in an S3 storage
+ * Service for reading an uploaded image (organisation logo), generating thumbnails in all configured widths (by
+ * default 200 and 400 pixels) and storing these in an S3 storage
+ *
+ * If multiple encodings are configured, each thumbnail is stored in every encoding under a key with the format as
+ * suffix (e.g. [id]-LARGE.jpeg) and the smallest encoding is also stored under the regular key (e.g. [id]-LARGE),
+ * which is what's returned to clients unless they don't accept that format.
  */
 public class UploadImageServiceImpl extends MediaReadStorageServiceImpl implements UploadImageService {
 
     private static final Logger LOG = LogManager.getLogger(UploadImageServiceImpl.class);
 
+    private final List<Integer> widths;
+    private final List<ImageEncoding> encodings;
+    // writer for each encoding, in the same order
+    private final List<ImageWriter> writers;
+    private final ImageDecoder decoder;
+    private final List<UploadListener> listeners;
+
     /**
      * Initialize a new service for uploading images/logo's
      * @param storageName name of the used storage where files are stored
      * @param objectStorageClient client connected to the S3 object storage
+     * @param executor executor used for asynchronous calls
+     * @param widths the widths (in pixels) of the thumbnails to generate
+     * @param encodings the encodings in which the thumbnails are stored
+     * @param decoder decoder used to read uploaded images
+     * @param listeners listeners that are notified after each thumbnail is saved
      */
-    public UploadImageServiceImpl(String storageName, S3ObjectStorageClient objectStorageClient) {
-        super(storageName, objectStorageClient);
+    public UploadImageServiceImpl(String storageName, S3ObjectStorageClient objectStorageClient, Executor executor,
+                                  List<Integer> widths, List<ImageEncoding> encodings, ImageDecoder decoder,
+                                  List<UploadListener> listeners) {
+        super(storageName, objectStorageClient, executor);
+        // we generate the largest size first so any problems with the image surface as soon as possible
+        List<Integer> sorted = new ArrayList<>(widths);
+        sorted.sort(Collections.reverseOrder());
+        this.widths = Collections.unmodifiableList(sorted);
+        this.encodings = List.copyOf(encodings);
+        this.writers = this.encodings.stream().map(UploadImageServiceImpl::createWriter).toList();
+        this.decoder = decoder;
+        this.listeners = List.copyOf(listeners);
+    }
+
+    private static ImageWriter createWriter(ImageEncoding encoding) {
+        if (encoding.format() == ImageFormat.WEBP && encoding.webpEncoder() == WebpEncoder.LIBWEBP) {
+            if (LibwebpWriter.isAvailable()) {
+                return new LibwebpWriter(encoding.quality(), encoding.effort());
+            }
+            LOG.warn("Using cwebp instead of libwebp for encoding webp images");
+        }
+        return encoding.format().getWriter(encoding.quality(), encoding.effort());
     }
 
     /**
-     * Given an upload file, we generate the medium and small thumbnail and store it in S3
+     * Given an upload file, we generate thumbnails in all configured widths and encodings and store them in S3
+     * The uploaded image is decoded only once (only the first frame, subsampled to about twice the largest width), all
+     * thumbnails are scaled from that same image
      * @param id the requested id
      * @param file the uploaded file
+     * @throws ImageTooLargeException when the uploaded image has too many pixels
      * @throws IOException when there is and issue reading the uploaded file
      */
     public void process(String id, MultipartFile file) throws IOException {
         long startTime = System.currentTimeMillis();
-        byte[] image = file.getBytes();
-        generateThumbnailAndSave(id, image, ImageSize.LARGE);
-        generateThumbnailAndSave(id, image, ImageSize.MEDIUM);
+        ImmutableImage image = decoder.decode(file.getBytes(), widths.get(0));
+        for (Integer width : widths) {
+            generateThumbnailAndSave(id, image, width);
+        }
         LOG.info("Image with id {} and name {} processed successfully in {} ms", id, file.getOriginalFilename(),
                 System.currentTimeMillis() - startTime);
     }
 
-    private void generateThumbnailAndSave(String id, byte[] image, ImageSize size) throws IOException {
-        LOG.debug("Generating {}px image for id {}...", size.getWidth(), id);
-        try (InputStream convertedImage = ImmutableImage.loader().fromBytes(image)
-                .scaleToWidth(size.getWidth())
-                .forWriter(WebpWriter.DEFAULT).stream()) {
-            String s3id = IdUtils.getS3ObjectId(id, size.getWidth());
+    private void generateThumbnailAndSave(String id, ImmutableImage image, int width) throws IOException {
+        String s3id = IdUtils.getS3ObjectId(id, width);
+        // all encodings are generated from the same scaled image
+        ImmutableImage scaled = image.scaleToWidth(width);
+        if (encodings.size() == 1) {
+            LOG.debug("Generating {}px {} image for id {}...", width, encodings.get(0).format(), id);
+            save(s3id, encodings.get(0), scaled.forWriter(writers.get(0)).bytes());
+            return;
+        }
 
-            if (objectStorageClient.isObjectAvailable(s3id)) {
-                LOG.warn("Replacing S3 object with id {}", s3id);
+        ImageEncoding smallest = null;
+        byte[] smallestData = null;
+        for (int i = 0; i < encodings.size(); i++) {
+            ImageEncoding encoding = encodings.get(i);
+            LOG.debug("Generating {}px {} image for id {}...", width, encoding.format(), id);
+            byte[] data = scaled.forWriter(writers.get(i)).bytes();
+            save(encoding.getObjectId(s3id), encoding, data);
+            if (smallestData == null || data.length < smallestData.length) {
+                smallest = encoding;
+                smallestData = data;
             }
-            LOG.debug("Saving {}px image to S3...", size.getWidth());
-            objectStorageClient.putObject(s3id, "image/webp", convertedImage);
         }
+        LOG.debug("Smallest {}px image for id {} is {} ({} bytes)", width, id, smallest.format(), smallestData.length);
+        save(s3id, smallest, smallestData);
+    }
+
+    private void save(String s3id, ImageEncoding encoding, byte[] data) {
+        if (objectStorageClient.isObjectAvailable(s3id)) {
+            LOG.warn("Replacing S3 object with id {}", s3id);
+        }
+        LOG.debug("Saving image {} to S3...", s3id);
+        objectStorageClient.putObject(s3id, encoding.format().getMediaType(), new ByteArrayInputStream(data));
+        for (UploadListener listener : listeners) {
+            listener.uploaded(getName(), s3id);
+        }
+    }
+
+    /**
+     * @return the widths (in pixels) of the thumbnails that are generated for each upload, largest first
+     */
+    public List<Integer> getWidths() {
+        return widths;
     }
 
 }
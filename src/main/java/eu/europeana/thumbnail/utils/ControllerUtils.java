@@ -1,19 +1,39 @@
 package eu.europeana.thumbnail.utils;
 
+import eu.europeana.thumbnail.model.ByteRange;
+import eu.europeana.thumbnail.model.ImageFormat;
 import eu.europeana.thumbnail.model.MediaStream;
 import jakarta.servlet.http.HttpServletResponse;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
 import org.springframework.web.context.request.WebRequest;
 
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+
 /**
  * Class containing a number of useful controller utilities (mainly for setting headers)
  */
 public final class ControllerUtils {
 
     private static final String ALLOW_VALUE = "GET, HEAD";
-    private static final String CACHE_CONTROL_VALUE = "public, max-age=604800, must-revalidate";
+    // downstream caches may serve a stale thumbnail while revalidating it, or when we fail (thumbnails rarely change)
+    private static final String CACHE_CONTROL_VALUE =
+            "public, max-age=604800, stale-while-revalidate=86400, stale-if-error=604800";
+    private static final String SHORT_CACHE_CONTROL_VALUE = "public, max-age=60";
+    private static final String IMMUTABLE_CACHE_CONTROL_VALUE = "public, max-age=31536000, immutable";
+    private static final String SURROGATE_KEY = "Surrogate-Key";
+    private static final int VERSION_LENGTH = 8;
     private static final String IFMATCH    = "If-Match";
+    private static final String IFNONEMATCH = "If-None-Match";
+    private static final String IFMODIFIEDSINCE = "If-Modified-Since";
+    private static final String IFUNMODIFIEDSINCE = "If-Unmodified-Since";
+    private static final String IFRANGE    = "If-Range";
+    private static final String WEAK_PREFIX = "W/";
     private static final String ANY        = "*";
     private static final String GZIPSUFFIX = "-gzip";
 
@@ -31,6 +51,63 @@ public final class ControllerUtils {
         response.addHeader(HttpHeaders.CACHE_CONTROL, CACHE_CONTROL_VALUE);
     }
 
+    /**
+     * Replace the default Cache-Control header with one that only allows caching for a short time. This is used for
+     * responses that are likely to change soon, for example a default icon returned because of a timeout
+     *
+     * @param response The response to set the header on
+     */
+    public static void setShortCacheControl(HttpServletResponse response) {
+        response.setHeader(HttpHeaders.CACHE_CONTROL, SHORT_CACHE_CONTROL_VALUE);
+    }
+
+    /**
+     * Replace the default Cache-Control header with one that allows caching forever. This should only be used for
+     * content-versioned urls, as the content of such an url never changes
+     *
+     * @param response The response to set the header on
+     */
+    public static void setImmutableCacheControl(HttpServletResponse response) {
+        response.setHeader(HttpHeaders.CACHE_CONTROL, IMMUTABLE_CACHE_CONTROL_VALUE);
+    }
+
+    /**
+     * Add a Surrogate-Key header to the response, so a CDN can purge all cached copies of a thumbnail. The keys are
+     * the id of the thumbnail (including width), the id without width and the storage it was retrieved from
+     *
+     * @param response  The response to add the header to
+     * @param mediaFile the thumbnail that is returned
+     */
+    public static void addSurrogateKeys(HttpServletResponse response, MediaStream mediaFile) {
+        if (mediaFile.getId() == null) {
+            return;
+        }
+        StringBuilder keys = new StringBuilder(mediaFile.getId());
+        int widthStart = mediaFile.getId().lastIndexOf('-');
+        if (widthStart > 0) {
+            keys.append(' ').append(mediaFile.getId(), 0, widthStart);
+        }
+        if (mediaFile.getStorageName() != null) {
+            keys.append(' ').append(mediaFile.getStorageName());
+        }
+        response.setHeader(SURROGATE_KEY, keys.toString());
+    }
+
+    /**
+     * Generate the version of a thumbnail as used in content-versioned urls. This consists of the first 8 characters
+     * of the MD5 hash of the ETag (without quotes)
+     *
+     * @param eTag the ETag of the thumbnail
+     * @return the version, or null if there is no ETag
+     */
+    public static String getVersion(String eTag) {
+        if (StringUtils.isBlank(eTag)) {
+            return null;
+        }
+        return IdUtils.getMD5(spicAndSpan(StringUtils.removeEndIgnoreCase(eTag, GZIPSUFFIX)))
+                .substring(0, VERSION_LENGTH);
+    }
+
     /**
      * Supports multiple values in the "If-Match" header
      *
@@ -61,6 +138,128 @@ public final class ControllerUtils {
                       webRequest.checkNotModified(StringUtils.removeEndIgnoreCase(mediaFile.getETag(), GZIPSUFFIX));
     }
 
+    /**
+     * Checks if a request is a revalidation of a thumbnail that the client already has, i.e. it contains an
+     * If-None-Match or If-Modified-Since header (and no If-Match or If-Unmodified-Since precondition)
+     *
+     * @param webRequest incoming WebRequest
+     * @return true if the request is a revalidation request, otherwise false
+     */
+    public static boolean isRevalidation(WebRequest webRequest) {
+        return (StringUtils.isNotBlank(webRequest.getHeader(IFNONEMATCH))
+                || StringUtils.isNotBlank(webRequest.getHeader(IFMODIFIEDSINCE)))
+                && StringUtils.isAllBlank(webRequest.getHeader(IFMATCH), webRequest.getHeader(IFUNMODIFIEDSINCE));
+    }
+
+    /**
+     * Checks if a revalidation request would result in a 304, but unlike {@link #checkForNotModified} this doesn't
+     * modify the response. As with checkForNotModified, If-None-Match takes precedence over If-Modified-Since.
+     *
+     * @param mediaFile  media file with the current ETag and Last-Modified date
+     * @param webRequest incoming WebRequest
+     * @return true if the client's version is still up to date, otherwise false
+     */
+    public static boolean isNotModified(MediaStream mediaFile, WebRequest webRequest) {
+        String ifNoneMatch = webRequest.getHeader(IFNONEMATCH);
+        if (StringUtils.isNotBlank(ifNoneMatch)) {
+            return mediaFile.getETag() != null &&
+                    doesAnyETagMatch(ifNoneMatch, StringUtils.removeEndIgnoreCase(mediaFile.getETag(), GZIPSUFFIX));
+        }
+        String ifModifiedSince = webRequest.getHeader(IFMODIFIEDSINCE);
+        if (StringUtils.isBlank(ifModifiedSince) || mediaFile.getLastModified() == null) {
+            return false;
+        }
+        try {
+            long date = ZonedDateTime.parse(ifModifiedSince.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond();
+            return mediaFile.getLastModified().getEpochSecond() <= date;
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Determine which part of the media file should be returned, based on the Range and If-Range request headers.
+     * The If-Range header can contain either an ETag (strong comparison) or a date (compared with Last-Modified). If it
+     * doesn't match, the full media file should be returned.
+     *
+     * @param mediaFile  the media file that is requested, its content length should be known
+     * @param webRequest incoming WebRequest
+     * @return the requested range, ByteRange.UNSATISFIABLE if the range doesn't overlap with the media file, or null
+     * if the full media file should be returned
+     */
+    public static ByteRange getRequestedRange(MediaStream mediaFile, WebRequest webRequest) {
+        String range = webRequest.getHeader(HttpHeaders.RANGE);
+        Long contentLength = mediaFile.getContentLength();
+        if (StringUtils.isBlank(range) || contentLength == null) {
+            return null;
+        }
+        String ifRange = webRequest.getHeader(IFRANGE);
+        if (StringUtils.isNotBlank(ifRange) && !doesIfRangeMatch(ifRange.trim(), mediaFile)) {
+            return null;
+        }
+        return ByteRange.parse(range, contentLength);
+    }
+
+    /**
+     * Checks if the client accepts images in a particular format, according to the Accept header. The most specific
+     * matching media range in the header determines if the format is accepted (e.g. "image/webp;q=0, image/*" means
+     * webp is not accepted). Formats that require explicit acceptance (see {@link ImageFormat#isExplicitAcceptRequired})
+     * only match a media range that lists the exact media type.
+     *
+     * @param format     the image format to check
+     * @param webRequest incoming WebRequest
+     * @return true if the format is accepted or the request has no (valid) Accept header, otherwise false
+     */
+    public static boolean isAccepted(ImageFormat format, WebRequest webRequest) {
+        String accept = webRequest.getHeader(HttpHeaders.ACCEPT);
+        if (StringUtils.isBlank(accept)) {
+            return true;
+        }
+        List<MediaType> mediaRanges;
+        try {
+            mediaRanges = MediaType.parseMediaTypes(accept);
+        } catch (InvalidMediaTypeException e) {
+            return true;
+        }
+        MediaType mediaType = MediaType.parseMediaType(format.getMediaType());
+        MediaType bestMatch = null;
+        for (MediaType mediaRange : mediaRanges) {
+            if (!mediaRange.includes(mediaType)
+                    || (format.isExplicitAcceptRequired() && mediaRange.isWildcardSubtype())) {
+                continue;
+            }
+            if (bestMatch == null || getSpecificity(mediaRange) > getSpecificity(bestMatch)) {
+                bestMatch = mediaRange;
+            }
+        }
+        return bestMatch != null && bestMatch.getQualityValue() > 0;
+    }
+
+    private static int getSpecificity(MediaType mediaRange) {
+        if (mediaRange.isWildcardType()) {
+            return 0;
+        }
+        return mediaRange.isWildcardSubtype() ? 1 : 2;
+    }
+
+    private static boolean doesIfRangeMatch(String ifRange, MediaStream mediaFile) {
+        if (ifRange.startsWith("\"") || ifRange.startsWith(WEAK_PREFIX)) {
+            // weak ETags never match
+            return !ifRange.startsWith(WEAK_PREFIX) && mediaFile.getETag() != null
+                    && StringUtils.equals(spicAndSpan(ifRange),
+                        spicAndSpan(StringUtils.removeEndIgnoreCase(mediaFile.getETag(), GZIPSUFFIX)));
+        }
+        if (mediaFile.getLastModified() == null) {
+            return false;
+        }
+        try {
+            long date = ZonedDateTime.parse(ifRange, DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond();
+            return date == mediaFile.getLastModified().getEpochSecond();
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
+
     private static boolean doesAnyETagMatch(String eTags, String eTagToMatch) {
         if (StringUtils.equals(ANY, eTags)) {
             return true;
@@ -42,18 +42,22 @@ public final class IdUtils {
     }
 
     /**
-     * In S3 we store 2 versions of each file, a medium and large version, each with their own postfix
+     * In S3 we store multiple versions of each file, each with their own postfix. The 200 and 400 pixel versions use
+     * the MEDIUM and LARGE postfix, any other (configured) width uses the width itself as postfix (e.g. "-800").
      * This method returns the id of an individual file as stored in s3
      * @param id the received (partial) id in the request
-     * @param resourceWidth in pixels (200 or 400). If a different width is provided we return the 400 pixel one
+     * @param resourceWidth in pixels. If no width is provided we return the 400 pixel one
      * @return full id as used in S3 to store the file
      */
     public static String getS3ObjectId(final String id, final Integer resourceWidth) {
-        String width = ImageSize.LARGE.name();
-        if (resourceWidth != null && resourceWidth == ImageSize.MEDIUM.getWidth()) {
-            width = ImageSize.MEDIUM.name();
+        if (resourceWidth == null) {
+            return getS3ObjectId(id, ImageSize.LARGE);
+        }
+        ImageSize imageSize = ImageSize.fromWidth(resourceWidth);
+        if (imageSize == null) {
+            return id + "-" + resourceWidth;
         }
-        return id + "-" + width;
+        return getS3ObjectId(id, imageSize);
     }
 
     /**
@@ -66,4 +70,20 @@ public final class IdUtils {
     public static String getS3ObjectId(final String id, final ImageSize imageSize) {
         return id + "-" + imageSize.name();
     }
+
+    /**
+     * Return the id of the other predefined size of the same file, e.g. the LARGE version of a MEDIUM thumbnail
+     * @param s3ObjectId full id as used in S3 (including size postfix)
+     * @return full id of the other size, or null if the id doesn't end with a predefined size
+     */
+    public static String getSiblingId(final String s3ObjectId) {
+        for (ImageSize size : ImageSize.values()) {
+            String postfix = "-" + size.name();
+            if (s3ObjectId.endsWith(postfix)) {
+                ImageSize sibling = (size == ImageSize.LARGE ? ImageSize.MEDIUM : ImageSize.LARGE);
+                return getS3ObjectId(s3ObjectId.substring(0, s3ObjectId.length() - postfix.length()), sibling);
+            }
+        }
+        return null;
+    }
 }
@@ -1,23 +1,32 @@
 package eu.europeana.thumbnail.web;
 
+import eu.europeana.s3.exception.S3ObjectStorageException;
+import eu.europeana.thumbnail.exception.ThumbnailDeadlineExceededException;
+import eu.europeana.thumbnail.exception.ThumbnailOverloadedException;
+import eu.europeana.thumbnail.model.ByteRange;
+import eu.europeana.thumbnail.model.Deadline;
+import eu.europeana.thumbnail.model.FileMediaStream;
 import eu.europeana.thumbnail.model.MediaStream;
-import eu.europeana.thumbnail.service.MediaReadStorageService;
 import eu.europeana.thumbnail.service.StoragesService;
+import eu.europeana.thumbnail.service.ThumbnailRetrievalService;
 import eu.europeana.thumbnail.utils.ControllerUtils;
-import eu.europeana.thumbnail.utils.IdUtils;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
+import org.apache.commons.io.input.BoundedInputStream;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.core.io.InputStreamResource;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.lang.NonNull;
+import org.springframework.web.context.request.RequestAttributes;
 import org.springframework.web.context.request.WebRequest;
 
-import java.util.List;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Locale;
 import java.util.Optional;
 
@@ -31,78 +40,84 @@ public abstract class AbstractController {
 
     private static final Logger LOG = LogManager.getLogger(AbstractController.class);
     private static final long NANO_TO_MS  = 1_000_000L;
+    private static final String ACCEPT_RANGES_BYTES = "bytes";
+    // query parameter of content-versioned urls, see ControllerUtils.getVersion()
+    private static final String PARAM_VERSION = "v";
+
+    // request attributes used by Tomcat to send a file directly from disk (sendfile)
+    private static final String SENDFILE_SUPPORTED = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME  = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START     = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END       = "org.apache.tomcat.sendfile.end";
+    // same as Tomcat's default, for smaller files handing the socket over to the sendfile poller isn't worth it
+    private static final long SENDFILE_MIN_SIZE = 48 * 1024L;
 
     protected StoragesService storagesService;
+    protected ThumbnailRetrievalService retrievalService;
 
-    protected AbstractController(StoragesService storagesService) {
+    protected AbstractController(StoragesService storagesService, ThumbnailRetrievalService retrievalService) {
         this.storagesService = storagesService;
+        this.retrievalService = retrievalService;
     }
 
     /**
-     * Retrieve a thumbnail from either the fileId or the combination of originalUrl and width
+     * Retrieve a thumbnail from either the fileId or the combination of originalUrl and width, see
+     * {@link ThumbnailRetrievalService#retrieve(WebRequest, String, String, String, Integer, Deadline)}
+     * @param webRequest the incoming request, used for checking conditional headers and the Accept header
      * @param request the incoming request
      * @param fileId the id (MD5 hash of the file, if not provided it will be calculated)
      *               the Id should not already contain the desired width
      * @param originalUrl the original url of the image, this is used to determine the Content-Type of the response
      * @param width the requested with of the image, can be 200, 400
+     * @param deadline the time budget for checking all storages
      * @return Optional containing the MediaFile, or an empty optional if the file cannot be retrieved
+     * @throws ThumbnailDeadlineExceededException when the file wasn't found and not all storages could be checked
+     * before the deadline
+     * @throws ThumbnailOverloadedException when the file wasn't found and not all storages could be checked because
+     * their concurrency limit was reached
      */
-    protected Optional<MediaStream> retrieveThumbnail(HttpServletRequest request, String fileId, String originalUrl, Integer width) {
-        // calculate hash (if necessary)
-        String id = fileId;
-        if (StringUtils.isEmpty(fileId)) {
-            id = computeId(originalUrl);
-        }
-        id = IdUtils.getS3ObjectId(id, width);
-
-        String serverName = request.getServerName();
-        if ("localhost".equalsIgnoreCase(serverName)) {
-            // append port so we can test different routes locally
-            serverName = serverName + ":" + request.getServerPort();
-        }
-
-        MediaStream result = null;
-        List<MediaReadStorageService> mediaStorageServices = storagesService.getStorages(serverName);
-        for (MediaReadStorageService mss : mediaStorageServices) {
-            result = mss.retrieve(id, originalUrl);
-            if (result == null) {
-                LOG.debug("File {} not present in storage {}", id, mss.getName());
-            } else {
-                LOG.debug("File {} found in storage {}", id, mss.getName());
-                // Temporarily added so we can get insight in how many images requested in production are not in IBM S3
-                if ("uim-prod".equals(mss.getName())) {
-                    // 2025-11-13 Temporarily changed to info level because should Amazon S3 migration is complete
-                    // so this should not happen any more
-                    LOG.warn("File with url {} and id {} found in old Amazon S3 storage", originalUrl, id);
-                }
-                break;
-            }
-        }
-        return Optional.ofNullable(result);
+    protected Optional<MediaStream> retrieveThumbnail(WebRequest webRequest, HttpServletRequest request, String fileId,
+                                                      String originalUrl, Integer width, Deadline deadline)
+            throws ThumbnailDeadlineExceededException, ThumbnailOverloadedException {
+        return retrievalService.retrieve(webRequest, getServerName(request), fileId, originalUrl, width, deadline);
     }
 
     /**
-     * Convert the provided url and size into a string representing the id of the media file. The id consists of the md5-
-     * hash of the provided resourceUrl concatenated with a hyphen and a size (MEDIUM or LARGE)
-     *
-     * @param resourceUrl  url of the original image
-     * @return id of the thumbnail as it is stored in S3 (but with width indication)
+     * @param request the incoming request
+     * @return the number of tokens the rate limit charges for the request, by default 1
      */
-    private String computeId(final String resourceUrl) {
-        return IdUtils.getMD5(resourceUrl);
+    protected int getRateLimitCost(HttpServletRequest request) {
+        return 1;
     }
 
-
+    /**
+     * @param request the incoming request
+     * @return the name of the server that received the request, used to look up the route. For localhost the port
+     * is included, so we can test different routes locally
+     */
+    protected String getServerName(HttpServletRequest request) {
+        String serverName = request.getServerName();
+        if ("localhost".equalsIgnoreCase(serverName)) {
+            serverName = serverName + ":" + request.getServerPort();
+        }
+        return serverName;
+    }
 
     /**
      * Set the proper response headers and return object
      * @param webRequest request that is handled
      * @param response HttpServletResponse that is to be returned
      * @param mediaFile the mediaFile that was found or null (if null a 404 is generated)
-     * @return responseEntity (for 200 and 404 responses), or null (for 304 or 412 responses in which case reponse servlet is modified)
+     * @return responseEntity (for 200, 206 and 404 responses), or null (for 304, 412 or 416 responses in which case
+     * reponse servlet is modified)
      */
     protected ResponseEntity<InputStreamResource> generateResponse(WebRequest webRequest, HttpServletResponse response, @NonNull MediaStream mediaFile) {
         ControllerUtils.addDefaultResponseHeaders(response);
+        setCacheHeaders(webRequest, response, mediaFile);
+        // thumbnails stored in multiple encodings are negotiated based on the Accept header
+        if (storagesService.getUploadEncodings(mediaFile.getStorageName()).size() > 1) {
+            response.addHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT);
+        }
 
         // Check if we should return the full response, or a 304
         // The check below automatically sets an ETag and last-Modified in our response header and returns a 304
@@ -120,17 +135,101 @@ public abstract class AbstractController {
         }
         MediaType mediaType = this.getMediaType(mediaFile.getContentType(), mediaFile.getOriginalUrl());
 
-        InputStreamResource imageStream = new InputStreamResource(mediaFile.getS3Object().inputStream());
         if (mediaFile.getContentLength() == null ) {
             LOG.warn("No content length for image with url {} and ETag {}", mediaFile.getOriginalUrl(), mediaFile.getETag());
             return ResponseEntity.ok()
                     .contentType(mediaType)
-                    .body(imageStream);
+                    .body(new InputStreamResource(mediaFile.getS3Object().inputStream()));
+        }
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, ACCEPT_RANGES_BYTES);
+
+        // Check if only part of the image is requested (e.g. resumed downloads)
+        ByteRange range = ControllerUtils.getRequestedRange(mediaFile, webRequest);
+        if (ByteRange.UNSATISFIABLE.equals(range)) {
+            mediaFile.close();
+            response.setHeader(HttpHeaders.CONTENT_RANGE, range.toContentRange(mediaFile.getContentLength()));
+            response.setStatus(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value());
+            return null;
+        }
+        if (range != null) {
+            ResponseEntity.BodyBuilder builder = ResponseEntity.status(HttpStatus.PARTIAL_CONTENT)
+                    .contentType(mediaType)
+                    .contentLength(range.length())
+                    .header(HttpHeaders.CONTENT_RANGE, range.toContentRange(mediaFile.getContentLength()));
+            if (sendFile(webRequest, mediaFile, range.start(), range.end() + 1)) {
+                return builder.build();
+            }
+            return builder.body(new InputStreamResource(getRangeStream(mediaFile, range)));
         }
-        return ResponseEntity.ok()
+
+        ResponseEntity.BodyBuilder builder = ResponseEntity.ok()
                 .contentType(mediaType)
-                .contentLength(mediaFile.getContentLength())
-                .body(imageStream);
+                .contentLength(mediaFile.getContentLength());
+        if (sendFile(webRequest, mediaFile, 0, mediaFile.getContentLength())) {
+            return builder.build();
+        }
+        return builder.body(new InputStreamResource(mediaFile.getS3Object().inputStream()));
+    }
+
+    /**
+     * Set the Cache-Control and Surrogate-Key headers. Content-versioned urls (with a version parameter) that match
+     * the current version of the thumbnail can be cached forever. If the version doesn't match, the url refers to an
+     * older version so we only allow caching the current version briefly. For other urls we use the policy of the
+     * storage the thumbnail was retrieved from (if configured) or the default.
+     */
+    private void setCacheHeaders(WebRequest webRequest, HttpServletResponse response, MediaStream mediaFile) {
+        String version = webRequest.getParameter(PARAM_VERSION);
+        if (StringUtils.isNotBlank(version)) {
+            if (version.equals(ControllerUtils.getVersion(mediaFile.getETag()))) {
+                ControllerUtils.setImmutableCacheControl(response);
+            } else {
+                LOG.debug("Requested version {} of file {} is not the current version", version, mediaFile.getId());
+                ControllerUtils.setShortCacheControl(response);
+            }
+        } else {
+            String cacheControl = storagesService.getCacheControl(mediaFile.getStorageName());
+            if (cacheControl != null) {
+                response.setHeader(HttpHeaders.CACHE_CONTROL, cacheControl);
+            }
+        }
+        ControllerUtils.addSurrogateKeys(response, mediaFile);
+    }
+
+    /**
+     * If the media file is a local file and the servlet container supports it, let the container send (part of) the
+     * file directly from disk, so it isn't copied through the Java heap. In that case the media file is closed and no
+     * response body should be set.
+     * @return true if the file will be sent by the container, otherwise false
+     */
+    private boolean sendFile(WebRequest webRequest, MediaStream mediaFile, long start, long end) {
+        if (!(mediaFile instanceof FileMediaStream fileMediaStream) || end - start < SENDFILE_MIN_SIZE
+                || !Boolean.TRUE.equals(webRequest.getAttribute(SENDFILE_SUPPORTED, RequestAttributes.SCOPE_REQUEST))) {
+            return false;
+        }
+        webRequest.setAttribute(SENDFILE_FILENAME, fileMediaStream.getFile().toString(),
+                RequestAttributes.SCOPE_REQUEST);
+        webRequest.setAttribute(SENDFILE_START, start, RequestAttributes.SCOPE_REQUEST);
+        webRequest.setAttribute(SENDFILE_END, end, RequestAttributes.SCOPE_REQUEST);
+        mediaFile.close();
+        return true;
+    }
+
+    /**
+     * Returns a stream with only the requested range of the media file. Our S3 client doesn't support ranged requests
+     * so we skip the bytes before the range (for cached thumbnails skipping is free) and stop reading after the range.
+     */
+    private InputStream getRangeStream(MediaStream mediaFile, ByteRange range) {
+        InputStream in = mediaFile.getS3Object().inputStream();
+        try {
+            in.skipNBytes(range.start());
+            return BoundedInputStream.builder()
+                    .setInputStream(in)
+                    .setMaxCount(range.length())
+                    .get();
+        } catch (IOException e) {
+            mediaFile.close();
+            throw new S3ObjectStorageException("Error reading range " + range + " of media file " + mediaFile.getId(), e);
+        }
     }
 
     /**
@@ -0,0 +1,208 @@
+package eu.europeana.thumbnail.web;
+
+import eu.europeana.api.commons_sb3.error.EuropeanaApiException;
+import eu.europeana.thumbnail.config.StorageRoutes;
+import eu.europeana.thumbnail.exception.ThumbnailInvalidUrlException;
+import eu.europeana.thumbnail.exception.ThumbnailNotFoundException;
+import eu.europeana.thumbnail.model.Deadline;
+import eu.europeana.thumbnail.model.MediaStream;
+import eu.europeana.thumbnail.model.Mosaic;
+import eu.europeana.thumbnail.service.MediaReadStorageService;
+import eu.europeana.thumbnail.service.MosaicService;
+import eu.europeana.thumbnail.service.StoragesService;
+import eu.europeana.thumbnail.service.ThumbnailRetrievalService;
+import eu.europeana.thumbnail.utils.ControllerUtils;
+import eu.europeana.thumbnail.utils.IdUtils;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.validation.constraints.Pattern;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.validation.annotation.Validated;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Combines multiple thumbnails (e.g. of a search results page) into one sprite image (mosaic), see
+ * {@link MosaicService}. The image is available at /thumbnail/v3/{size}/mosaic and the position of each thumbnail in
+ * the image at /thumbnail/v3/{size}/mosaic.json, both with the same (comma-separated) ids and columns parameters.
+ * Thumbnails that aren't found are left out of the image and have no position in the JSON.
+ */
+@RestController
+@RequestMapping("/thumbnail")
+@Validated
+public class MosaicControllerV3 extends AbstractController {
+
+    private static final Logger LOG = LogManager.getLogger(MosaicControllerV3.class);
+
+    protected static final String SIZE_ERROR_MESSAGE = "Invalid size";
+    protected static final String IDS_ERROR_MESSAGE = "Invalid or empty ids, expected comma-separated ids";
+
+    private static final String PARAM_IDS = "ids";
+
+    private final StorageRoutes storageRoutes;
+    private final MosaicService mosaicService;
+    private final int defaultColumns;
+
+    /**
+     * Create a new controller to serve mosaic requests
+     * @param storagesService the storage service to use
+     * @param storageRoutes configuration containing the supported sizes
+     * @param retrievalService service that retrieves the thumbnails
+     * @param mosaicService service that generates and caches mosaics
+     * @param defaultColumns number of thumbnails per row if the request doesn't specify it
+     */
+    public MosaicControllerV3(StoragesService storagesService, StorageRoutes storageRoutes,
+                              ThumbnailRetrievalService retrievalService, MosaicService mosaicService,
+                              @Value("${mosaic.columns:8}") int defaultColumns) {
+        super(storagesService, retrievalService);
+        this.storageRoutes = storageRoutes;
+        this.mosaicService = mosaicService;
+        this.defaultColumns = defaultColumns;
+    }
+
+    /**
+     * Retrieves a mosaic image
+     * @param size the width of each thumbnail, see {@link ThumbnailControllerV3}
+     * @param ids comma-separated ids of the thumbnails (MD5 hash of original url), in the order in which they should
+     *            appear
+     * @param columns optional, number of thumbnails per row
+     * @param webRequest auto-generated by Spring Boot
+     * @param request auto-generated by Spring Boot
+     * @param response auto-generated by Spring Boot
+     * @throws EuropeanaApiException when there is a problem retrieving data
+     * @return responseEntity containing the image, or null if the client's version is still up to date (304)
+     */
+    @GetMapping(value = {"/v3/{size}/mosaic", "/v3/{size}/mosaic/"})
+    public ResponseEntity<byte[]> mosaicV3(
+            @PathVariable(value = "size") @Pattern(regexp = "^\\d{1,4}$", message = SIZE_ERROR_MESSAGE) String size,
+            @RequestParam(value = PARAM_IDS)
+                @Pattern(regexp = "^[a-fA-F0-9]{8,128}(,[a-fA-F0-9]{8,128})*$", message = IDS_ERROR_MESSAGE) String ids,
+            @RequestParam(value = "columns", required = false) Integer columns,
+            WebRequest webRequest, HttpServletRequest request, HttpServletResponse response)
+            throws EuropeanaApiException {
+        Mosaic mosaic = getMosaic(size, ids, columns, request);
+        if (setCacheHeaders(webRequest, response, mosaic)) {
+            return null;
+        }
+        return ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType(mosaic.mediaType()))
+                .contentLength(mosaic.data().length)
+                .body(mosaic.data());
+    }
+
+    /**
+     * Retrieves the position of each thumbnail in a mosaic image
+     * @param size the width of each thumbnail, see {@link ThumbnailControllerV3}
+     * @param ids comma-separated ids of the thumbnails (MD5 hash of original url), in the order in which they should
+     *            appear
+     * @param columns optional, number of thumbnails per row
+     * @param webRequest auto-generated by Spring Boot
+     * @param request auto-generated by Spring Boot
+     * @param response auto-generated by Spring Boot
+     * @throws EuropeanaApiException when there is a problem retrieving data
+     * @return responseEntity containing the image size and thumbnail positions, or null if the client's version is
+     * still up to date (304)
+     */
+    @GetMapping(value = {"/v3/{size}/mosaic.json"}, produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<Mosaic> mosaicMapV3(
+            @PathVariable(value = "size") @Pattern(regexp = "^\\d{1,4}$", message = SIZE_ERROR_MESSAGE) String size,
+            @RequestParam(value = PARAM_IDS)
+                @Pattern(regexp = "^[a-fA-F0-9]{8,128}(,[a-fA-F0-9]{8,128})*$", message = IDS_ERROR_MESSAGE) String ids,
+            @RequestParam(value = "columns", required = false) Integer columns,
+            WebRequest webRequest, HttpServletRequest request, HttpServletResponse response)
+            throws EuropeanaApiException {
+        Mosaic mosaic = getMosaic(size, ids, columns, request);
+        if (setCacheHeaders(webRequest, response, mosaic)) {
+            return null;
+        }
+        return ResponseEntity.ok(mosaic);
+    }
+
+    /**
+     * A mosaic is charged one token per thumbnail, otherwise clients could use mosaics to get around the rate limit
+     */
+    @Override
+    protected int getRateLimitCost(HttpServletRequest request) {
+        String ids = request.getParameter(PARAM_IDS);
+        return (ids == null ? 1 : StringUtils.countMatches(ids, ',') + 1);
+    }
+
+    private Mosaic getMosaic(String size, String ids, Integer columns, HttpServletRequest request)
+            throws EuropeanaApiException {
+        Integer width = Integer.valueOf(size);
+        if (!storageRoutes.getSupportedWidths().contains(width)) {
+            throw new ThumbnailInvalidUrlException(SIZE_ERROR_MESSAGE + ". Supported values are "
+                    + storageRoutes.getSupportedWidths());
+        }
+        List<String> idList = List.of(ids.split(","));
+        if (idList.size() > mosaicService.getMaxTiles()) {
+            throw new ThumbnailInvalidUrlException("Too many ids, a mosaic contains at most "
+                    + mosaicService.getMaxTiles() + " thumbnails");
+        }
+        int columnCount = (columns == null ? defaultColumns : columns);
+        if (columnCount < 1 || columnCount > mosaicService.getMaxTiles()) {
+            throw new ThumbnailInvalidUrlException("Invalid number of columns");
+        }
+        if (!mosaicService.fitsPixelBudget(width, columnCount, idList.size())) {
+            throw new ThumbnailInvalidUrlException("Mosaic too large, request fewer thumbnails or a smaller size");
+        }
+
+        String serverName = getServerName(request);
+        List<MediaReadStorageService> storages = storagesService.getStorages(serverName);
+        Deadline deadline = retrievalService.newV3Deadline();
+        Mosaic mosaic;
+        try {
+            mosaic = mosaicService.get(serverName, width, columnCount, idList,
+                    id -> loadTile(serverName, storages, id, width, deadline), deadline);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while generating mosaic", e);
+        }
+        if (mosaic == null) {
+            throw new ThumbnailNotFoundException();
+        }
+        return mosaic;
+    }
+
+    private byte[] loadTile(String serverName, List<MediaReadStorageService> storages, String id, Integer width,
+                            Deadline deadline) throws IOException, EuropeanaApiException {
+        Optional<MediaStream> mediaFile = retrievalService.retrieve(serverName, storages,
+                IdUtils.getS3ObjectId(id, width), null, deadline);
+        if (mediaFile.isEmpty()) {
+            LOG.debug("File {} for mosaic not found", id);
+            return null;
+        }
+        try (InputStream in = mediaFile.get().getS3Object().inputStream()) {
+            return in.readAllBytes();
+        } finally {
+            mediaFile.get().close();
+        }
+    }
+
+    /**
+     * Set the Cache-Control and ETag headers. Mosaics that are missing thumbnails because of errors or timeouts are
+     * only cached briefly.
+     * @return true if the client's version is still up to date, in which case a 304 is sent
+     */
+    private boolean setCacheHeaders(WebRequest webRequest, HttpServletResponse response, Mosaic mosaic) {
+        ControllerUtils.addDefaultResponseHeaders(response);
+        if (!mosaic.complete()) {
+            ControllerUtils.setShortCacheControl(response);
+        }
+        return webRequest.checkNotModified(mosaic.eTag());
+    }
+}
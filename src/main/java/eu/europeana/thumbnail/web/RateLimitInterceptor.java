@@ -0,0 +1,46 @@
+package eu.europeana.thumbnail.web;
+
+import eu.europeana.thumbnail.exception.ThumbnailRateLimitedException;
+import eu.europeana.thumbnail.service.RateLimitService;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+/**
+ * Applies the rate limit of the client to all thumbnail requests (v2 and v3), before any storage is checked. Requests
+ * for multiple thumbnails (mosaics) are charged per thumbnail.
+ * Rejected requests get a 429 response with a Retry-After header.
+ */
+public class RateLimitInterceptor implements HandlerInterceptor {
+
+    /** Name of the optional request parameter with the client's API key */
+    public static final String PARAM_API_KEY = "wskey";
+
+    private final RateLimitService rateLimitService;
+
+    /**
+     * Create a new interceptor
+     * @param rateLimitService service that keeps track of the rate limit of each client
+     */
+    public RateLimitInterceptor(RateLimitService rateLimitService) {
+        this.rateLimitService = rateLimitService;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler)
+            throws ThumbnailRateLimitedException {
+        if (!(handler instanceof HandlerMethod method)
+                || !(method.getBean() instanceof AbstractController controller)) {
+            return true;
+        }
+        long waitMillis = rateLimitService.tryAcquire(request.getParameter(PARAM_API_KEY), request.getRemoteAddr(),
+                controller.getRateLimitCost(request));
+        if (waitMillis > 0) {
+            response.setHeader(HttpHeaders.RETRY_AFTER, Long.toString((waitMillis + 999) / 1000));
+            throw new ThumbnailRateLimitedException();
+        }
+        return true;
+    }
+}
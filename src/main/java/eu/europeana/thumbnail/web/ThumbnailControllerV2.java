@@ -1,9 +1,13 @@
 package eu.europeana.thumbnail.web;
 
 import eu.europeana.s3.S3Object;
+import eu.europeana.thumbnail.exception.ThumbnailDeadlineExceededException;
+import eu.europeana.thumbnail.exception.ThumbnailOverloadedException;
 import eu.europeana.thumbnail.model.ImageSize;
 import eu.europeana.thumbnail.model.MediaStream;
 import eu.europeana.thumbnail.service.StoragesService;
+import eu.europeana.thumbnail.service.ThumbnailRetrievalService;
+import eu.europeana.thumbnail.utils.ControllerUtils;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import jakarta.validation.constraints.Pattern;
@@ -44,8 +48,13 @@ public class ThumbnailControllerV2 extends AbstractController {
 
     protected static final String  INVALID_URL_MESSAGE = "INVALID URL";
 
-    public ThumbnailControllerV2(StoragesService storagesService) {
-        super(storagesService);
+    /**
+     * Create a new controller to server Thumbnail V2 requests
+     * @param storagesService the storage service to use
+     * @param retrievalService service that retrieves the thumbnails
+     */
+    public ThumbnailControllerV2(StoragesService storagesService, ThumbnailRetrievalService retrievalService) {
+        super(storagesService, retrievalService);
     }
 
     /**
@@ -75,7 +84,18 @@ public class ThumbnailControllerV2 extends AbstractController {
             LOG.debug("Url = {}, size = {}, type = {}", url, size, type);
         }
 
-        Optional<MediaStream> mediaFile = retrieveThumbnail(request, null, url, getWidth(size));
+        Optional<MediaStream> mediaFile;
+        try {
+            mediaFile = retrieveThumbnail(webRequest, request, null, url, getWidth(size),
+                    retrievalService.newV2Deadline());
+        } catch (ThumbnailDeadlineExceededException | ThumbnailOverloadedException e) {
+            // we don't know if there is an image, so we return the default 'type' icon but only cache it briefly
+            LOG.warn("{}, returning default icon", e.getMessage());
+            ResponseEntity<InputStreamResource> result = generateResponse(webRequest, response,
+                    getDefaultThumbnailForNotFoundResourceByType(type));
+            ControllerUtils.setShortCacheControl(response);
+            return result;
+        }
         ResponseEntity<InputStreamResource> result;
         // if there is no image, we return the default 'type' icon
         if (mediaFile.isEmpty()) {
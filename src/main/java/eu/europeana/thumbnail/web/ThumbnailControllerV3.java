@@ -1,16 +1,20 @@
 package eu.europeana.thumbnail.web;
 
 import eu.europeana.api.commons_sb3.error.EuropeanaApiException;
+import eu.europeana.thumbnail.config.StorageRoutes;
 import eu.europeana.thumbnail.exception.ThumbnailInvalidUrlException;
 import eu.europeana.thumbnail.exception.ThumbnailNotFoundException;
+import eu.europeana.thumbnail.exception.ThumbnailOverloadedException;
 import eu.europeana.thumbnail.model.MediaStream;
 import eu.europeana.thumbnail.service.StoragesService;
+import eu.europeana.thumbnail.service.ThumbnailRetrievalService;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import jakarta.validation.constraints.Pattern;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.core.io.InputStreamResource;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.validation.annotation.Validated;
@@ -27,6 +31,8 @@ import java.util.Optional;
  * The thumbnail API doesn't require any form of authentication, providing an API key is optional.
  * Note that the controller can return content in PNG and JPG format, depending on the format of the thumbnail that is
  * requested (extension parameter)
+ * Thumbnails can also be requested with a content-versioned url by adding a "v" parameter with the version of the
+ * thumbnail (see ControllerUtils.getVersion()). Such urls never change and are cached for a year.
  */
 @RestController
 @RequestMapping("/thumbnail")
@@ -35,18 +41,24 @@ public class ThumbnailControllerV3 extends AbstractController {
 
     private static final Logger LOG = LogManager.getLogger(ThumbnailControllerV3.class);
 
-    protected static final String SIZE_ERROR_MESSAGE = "Invalid size. Supported values are 200 and 400";
+    protected static final String SIZE_ERROR_MESSAGE = "Invalid size";
 
     protected static final String ID_ERROR_MESSAGE = "Invalid or empty id";
 
     protected static final String URL_ERROR_MESSAGE = "Either Size or Id is missing. Correct url is /v3/{size}/{id}";
 
+    private final StorageRoutes storageRoutes;
+
     /**
      * Create a new controller to server Thumbnail V3 requests
      * @param storagesService the storage service to use
+     * @param storageRoutes configuration containing the supported sizes
+     * @param retrievalService service that retrieves the thumbnails
      */
-    public ThumbnailControllerV3(StoragesService storagesService) {
-        super(storagesService);
+    public ThumbnailControllerV3(StoragesService storagesService, StorageRoutes storageRoutes,
+                                 ThumbnailRetrievalService retrievalService) {
+        super(storagesService, retrievalService);
+        this.storageRoutes = storageRoutes;
     }
 
     /**
@@ -73,7 +85,8 @@ public class ThumbnailControllerV3 extends AbstractController {
     /**
      * Retrieves image thumbnails.
      *
-     * @param size the size of the thumbnail, currently we support 200 (width 200px) or 400 (width 400px).
+     * @param size the size of the thumbnail, we always support 200 (width 200px) or 400 (width 400px), other sizes
+     *             are only supported if they are configured as upload size.
      * @param id the id of the file (MD5 hash of original url)
      * @param webRequest auto-generated by Spring Boot
      * @param request auto-generated by Spring Boot
@@ -85,7 +98,7 @@ public class ThumbnailControllerV3 extends AbstractController {
     @SuppressWarnings("javasecurity:S5145") // we only log for debug purposes, plus we validate the user input
     public ResponseEntity<InputStreamResource> thumbnailByUrlV3(
             @PathVariable(value = "size", required = false)
-                @Pattern(regexp = "^(200|400)$", message = SIZE_ERROR_MESSAGE) String size,
+                @Pattern(regexp = "^\\d{1,4}$", message = SIZE_ERROR_MESSAGE) String size,
             @PathVariable(value = "id")
                 @Pattern(regexp = "^[a-fA-F0-9]{8,128}((?i).jpg|.jpeg|.png|.webp)?$", message = ID_ERROR_MESSAGE) String id,
             WebRequest webRequest, HttpServletRequest request, HttpServletResponse response) throws EuropeanaApiException {
@@ -95,6 +108,12 @@ public class ThumbnailControllerV3 extends AbstractController {
             LOG.debug("Thumbnail id = {}, size = {}", id, size);
         }
 
+        Integer width = Integer.valueOf(size);
+        if (!storageRoutes.getSupportedWidths().contains(width)) {
+            throw new ThumbnailInvalidUrlException(SIZE_ERROR_MESSAGE + ". Supported values are "
+                    + storageRoutes.getSupportedWidths());
+        }
+
         int extensionStart = id.lastIndexOf('.');
         String idWithoutExtension;
         String extension = null;
@@ -106,7 +125,14 @@ public class ThumbnailControllerV3 extends AbstractController {
             idWithoutExtension = id;
         }
 
-        Optional<MediaStream> mediaFile = retrieveThumbnail(request, idWithoutExtension, extension, Integer.valueOf(size));
+        Optional<MediaStream> mediaFile;
+        try {
+            mediaFile = retrieveThumbnail(webRequest, request, idWithoutExtension, extension, width,
+                    retrievalService.newV3Deadline());
+        } catch (ThumbnailOverloadedException e) {
+            response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(retrievalService.getRetryAfterSeconds()));
+            throw e;
+        }
         if (mediaFile.isEmpty()) {
             if (LOG.isDebugEnabled()) {
                 logRequestDuration(startTime, "Id = " + id + ", status = " + HttpStatus.NOT_FOUND);
@@ -4,12 +4,14 @@ import eu.europeana.api.commons_sb3.definitions.oauth.Operations;
 import eu.europeana.api.commons_sb3.error.exceptions.ApplicationAuthenticationException;
 import eu.europeana.thumbnail.config.ApiConfig;
 import eu.europeana.thumbnail.config.StorageRoutes;
+import eu.europeana.thumbnail.exception.ImageTooLargeException;
 import eu.europeana.thumbnail.service.UploadImageService;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.validation.constraints.Pattern;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.annotation.*;
@@ -20,7 +22,8 @@ import java.util.Arrays;
 
 /**
  * Offers image upload functionality
- * Uploaded images are converted to webp and saved in 200 pixel and 400 pixel wide thumbnails in a separate S3 bucket.
+ * Uploaded images are converted to webp (or another configured format) and saved in thumbnails of all configured
+ * widths (by default 200 and 400 pixels wide) in a separate S3 bucket.
  * Retrieving those images can be done via the normal (V3) contoller.
  */
 @RestController
@@ -34,12 +37,13 @@ public class UploadControllerV3 {
     protected static final String EMPTY_FILE_ERROR_MESSAGE = "Received file is empty";
     protected static final String UNSUPPORTED_CONTENT_TYPE_ERROR_MESSAGE = "Unsupported content type";
     protected static final String ERROR_PROCESSING_ERROR_MESSAGE = "Error processing image";
+    protected static final String UPLOAD_DISABLED_ERROR_MESSAGE = "Uploading is not available, no upload storage is configured";
 
     private static final String[] SUPPORTED_IMAGE_TYPES = new String[]{"image/jpeg", "image/jpg", "image/png", "image/webp",
         "image/gif", "image/tiff", "image/bmp"};
 
     private final ApiConfig apiConfig;
-    private final UploadImageService uploadImageService;
+    private final StorageRoutes storageRoutes;
 
     /**
      * Create a new UploadControler
@@ -49,8 +53,9 @@ public class UploadControllerV3 {
     @Autowired
     public UploadControllerV3(ApiConfig apiConfig, StorageRoutes storageRoutes) {
         this.apiConfig = apiConfig;
-        this.uploadImageService = storageRoutes.getUploadImageService();
-        if (this.uploadImageService == null) {
+        // the upload service is retrieved for each request, because it changes when the configuration is reloaded
+        this.storageRoutes = storageRoutes;
+        if (storageRoutes.getUploadImageService() == null) {
             LOG.info("Uploading is disabled");
         } else if (apiConfig.isUploadAuthEnabled()) {
             LOG.info("Uploading is enabled with authorization");
@@ -66,7 +71,8 @@ public class UploadControllerV3 {
      * @param file the uploaded file
      * @param request the received upload request
      * @return empty 406 response when succesful, or 401 when authorization fails, or 400 when there's a problem reading
-     * the content, or 500 when there's a problem processing or storing the image.
+     * the content or the image has too many pixels, or 500 when there's a problem processing or storing the image, or
+     * 503 when uploading is disabled because no upload storage is configured.
      */
     @PutMapping(value = {"/v3/{id}", "/v3/{id}/", "/v3//{id}", "/v3//{id}/"})
     public ResponseEntity<String> uploadImageV3(
@@ -99,10 +105,19 @@ public class UploadControllerV3 {
                     "\nSupported types are: " + Arrays.toString(SUPPORTED_IMAGE_TYPES));
         }
 
+        // the upload storage can be removed when the configuration is reloaded
+        UploadImageService uploadImageService = storageRoutes.getUploadImageService();
+        if (uploadImageService == null) {
+            LOG.warn(UPLOAD_DISABLED_ERROR_MESSAGE + ", id {}", id);
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(UPLOAD_DISABLED_ERROR_MESSAGE);
+        }
         try {
-            this.uploadImageService.process(id, file);
+            uploadImageService.process(id, file);
             LOG.trace("Successfully uploaded image with id {} in {} ms", id, System.currentTimeMillis() - start);
             return ResponseEntity.noContent().build();
+        } catch (ImageTooLargeException e) {
+            LOG.error("Image too large, id {}, name {}: {}", id, file.getOriginalFilename(), e.getMessage());
+            return ResponseEntity.badRequest().body(e.getMessage());
         } catch (IOException e) {
             LOG.error(ERROR_PROCESSING_ERROR_MESSAGE + "id {}, name {}", id, file.getOriginalFilename(), e);
             return ResponseEntity.internalServerError().body(ERROR_PROCESSING_ERROR_MESSAGE + ":" + e.getMessage());
@@ -0,0 +1,69 @@
+package eu.europeana.thumbnail.benchmark;
+
+import eu.europeana.thumbnail.service.RateLimitService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.env.MockEnvironment;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the overhead that rate limiting adds to each thumbnail request, for a single client (all threads contend
+ * for the same bucket) and for many clients. Run with: mvn test-compile exec:exec -Pbenchmark
+ * -Dbenchmark=RateLimitBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class RateLimitBenchmark {
+
+    private static final String API_KEY = "benchmarkkey";
+    private static final int CLIENTS = 10_000;
+
+    private RateLimitService service;
+    private String[] addresses;
+
+    @Setup
+    public void setup() {
+        MockEnvironment environment = new MockEnvironment()
+                .withProperty("ratelimit.tier.benchmark.rate", "1000000")
+                .withProperty("ratelimit.tier.benchmark.burst", "1000000")
+                .withProperty("ratelimit.tier.benchmark.keys", API_KEY);
+        service = new RateLimitService(true, 65536, 1_000_000, 1_000_000, "benchmark", 0, 10_000,
+                environment);
+        addresses = new String[CLIENTS];
+        for (int i = 0; i < CLIENTS; i++) {
+            addresses[i] = "10.0." + (i / 256) + "." + (i % 256);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        service.shutdown();
+    }
+
+    @Benchmark
+    public long singleApiKey() {
+        return service.tryAcquire(API_KEY, "10.0.0.1");
+    }
+
+    @Benchmark
+    public long manyClients() {
+        return service.tryAcquire(null, addresses[ThreadLocalRandom.current().nextInt(CLIENTS)]);
+    }
+}
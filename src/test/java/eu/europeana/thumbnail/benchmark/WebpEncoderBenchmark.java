@@ -0,0 +1,163 @@
+package eu.europeana.thumbnail.benchmark;
+
+import com.sksamuel.scrimage.ImmutableImage;
+import com.sksamuel.scrimage.nio.ImageWriter;
+import eu.europeana.thumbnail.model.ImageFormat;
+import eu.europeana.thumbnail.model.WebpEncoder;
+import eu.europeana.thumbnail.service.impl.LibwebpWriter;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares encoding thumbnails as webp in-process with libwebp and with Scrimage's writer that runs cwebp, as done for
+ * each uploaded image. Besides the latency per image, the cpuMsPerImage counter reports the CPU time used per image
+ * by this JVM and its (finished) child processes, so the work done by cwebp is included. This counter is read from
+ * /proc/self/stat and is only available on Linux. Run with: mvn test-compile exec:exec -Pbenchmark
+ * -Dbenchmark=WebpEncoderBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WebpEncoderBenchmark {
+
+    private static final int SOURCE_WIDTH = 1600;
+    private static final int SOURCE_HEIGHT = 1200;
+
+    @Param({"LIBWEBP", "CWEBP"})
+    private WebpEncoder encoder;
+
+    @Param({"200", "400"})
+    private int width;
+
+    private ImmutableImage image;
+    private ImageWriter writer;
+
+    @Setup
+    public void setup() {
+        image = ImmutableImage.wrapAwt(createImage()).scaleToWidth(width);
+        int quality = ImageFormat.WEBP.getDefaultQuality();
+        int effort = ImageFormat.WEBP.getDefaultEffort();
+        if (encoder == WebpEncoder.LIBWEBP) {
+            if (!LibwebpWriter.isAvailable()) {
+                throw new IllegalStateException("libwebp is not available on this platform");
+            }
+            writer = new LibwebpWriter(quality, effort);
+        } else {
+            writer = ImageFormat.WEBP.getWriter(quality, effort);
+        }
+    }
+
+    /**
+     * Photo-like test image: gradients with some shapes and noise, so it doesn't compress unrealistically well
+     */
+    private static BufferedImage createImage() {
+        BufferedImage result = new BufferedImage(SOURCE_WIDTH, SOURCE_HEIGHT, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = result.createGraphics();
+        Random random = new Random(42);
+        try {
+            graphics.setPaint(new GradientPaint(0, 0, new Color(30, 60, 120), SOURCE_WIDTH, SOURCE_HEIGHT,
+                    new Color(220, 180, 90)));
+            graphics.fillRect(0, 0, SOURCE_WIDTH, SOURCE_HEIGHT);
+            for (int i = 0; i < 200; i++) {
+                graphics.setColor(new Color(random.nextInt(0x1000000)));
+                int size = 20 + random.nextInt(200);
+                graphics.fillOval(random.nextInt(SOURCE_WIDTH), random.nextInt(SOURCE_HEIGHT), size, size);
+            }
+        } finally {
+            graphics.dispose();
+        }
+        for (int y = 0; y < SOURCE_HEIGHT; y++) {
+            for (int x = 0; x < SOURCE_WIDTH; x++) {
+                int noise = random.nextInt(16) - 8;
+                int rgb = result.getRGB(x, y);
+                int r = clamp(((rgb >> 16) & 0xFF) + noise);
+                int g = clamp(((rgb >> 8) & 0xFF) + noise);
+                int b = clamp((rgb & 0xFF) + noise);
+                result.setRGB(x, y, (r << 16) | (g << 8) | b);
+            }
+        }
+        return result;
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+
+    @Benchmark
+    public byte[] encode(CpuCounters counters) throws IOException {
+        byte[] data = image.forWriter(writer).bytes();
+        counters.images++;
+        return data;
+    }
+
+    /**
+     * CPU time used per encoded image during an iteration, including that of finished child processes
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class CpuCounters {
+
+        // clock ticks per second used in /proc, this is 100 on practically all Linux systems
+        private static final long TICKS_PER_SECOND = 100;
+        private static final Path PROC_STAT = Path.of("/proc/self/stat");
+
+        private long startCpuMillis;
+        private long images;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            startCpuMillis = readCpuMillis();
+            images = 0;
+        }
+
+        /**
+         * Read when the iteration ends, so reading /proc doesn't add to the measured time per image
+         */
+        public double cpuMsPerImage() {
+            return images == 0 ? 0 : (double) (readCpuMillis() - startCpuMillis) / images;
+        }
+
+        /**
+         * @return the CPU time (user + system) of this process and its finished children in ms, or 0 if not available
+         */
+        static long readCpuMillis() {
+            try {
+                String stat = Files.readString(PROC_STAT);
+                // fields after the process name (which can contain spaces), starting with the state (field 3)
+                String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+                long ticks = 0;
+                // utime, stime, cutime and cstime are fields 14 to 17
+                for (int i = 11; i <= 14; i++) {
+                    ticks += Long.parseLong(fields[i]);
+                }
+                return ticks * 1000 / TICKS_PER_SECOND;
+            } catch (IOException | RuntimeException e) {
+                return 0;
+            }
+        }
+    }
+}
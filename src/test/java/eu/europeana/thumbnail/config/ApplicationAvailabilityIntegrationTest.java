@@ -1,5 +1,7 @@
 package eu.europeana.thumbnail.config;
 
+import eu.europeana.thumbnail.service.MediaReadStorageService;
+import eu.europeana.thumbnail.service.StorageHealthService;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.availability.ApplicationAvailability;
@@ -25,12 +27,15 @@ import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.
 @SpringBootTest
 @AutoConfigureMockMvc
 @TestPropertySource("classpath:testroutes.properties")
+@TestPropertySource(properties = "management.endpoint.health.show-details=always")
 @SuppressWarnings("java:S5786")
 public class ApplicationAvailabilityIntegrationTest {
 
     @Autowired private MockMvc mockMvc;
     @Autowired private ApplicationContext context;
     @Autowired private ApplicationAvailability applicationAvailability;
+    @Autowired private StorageRoutes storageRoutes;
+    @Autowired private StorageHealthService storageHealthService;
 
     @Test
     public void givenApplication_whenStarted_thenShouldBeAbleToRetrieveReadinessAndLiveness() {
@@ -71,4 +76,20 @@ public class ApplicationAvailabilityIntegrationTest {
                .andExpect(jsonPath("$.status").value("OUT_OF_SERVICE"));
     }
 
+    @Test
+    @DirtiesContext(methodMode = AFTER_METHOD)
+    public void givenOpenBreakerOfFallbackStorage_whenCheckingHealth_thenShouldStillBeUp() throws Exception {
+        MediaReadStorageService fallback = storageRoutes.getStorages().stream()
+                .filter(storage -> "prod2".equals(storage.getName()))
+                .findFirst().orElseThrow();
+        for (int i = 0; i < 100; i++) {
+            storageHealthService.recordFailure(fallback);
+        }
+
+        mockMvc.perform(get("/actuator/health"))
+               .andExpect(status().isOk())
+               .andExpect(jsonPath("$.status").value("UP"))
+               .andExpect(jsonPath("$.components.storage.components.prod2.status").value("DEGRADED"))
+               .andExpect(jsonPath("$.components.storage.components.prod2.details.circuitBreaker").value("OPEN"));
+    }
 }
@@ -2,6 +2,7 @@ package eu.europeana.thumbnail.config;
 
 import eu.europeana.thumbnail.service.MediaReadStorageService;
 import eu.europeana.thumbnail.service.StoragesService;
+import eu.europeana.thumbnail.web.RetrievalTestConfig;
 import eu.europeana.thumbnail.web.TestData;
 import eu.europeana.thumbnail.web.ThumbnailControllerV2;
 import eu.europeana.thumbnail.web.ThumbnailControllerV2Test;
@@ -9,6 +10,7 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
+import org.springframework.context.annotation.Import;
 import org.springframework.http.HttpHeaders;
 import org.springframework.test.context.TestPropertySource;
 import org.springframework.test.context.bean.override.mockito.MockitoBean;
@@ -27,7 +29,8 @@ import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.
 @TestPropertySource(properties=
         {"spring.autoconfigure.exclude=org.springframework.boot.actuate.autoconfigure.security.servlet.ManagementWebSecurityAutoConfiguration," +
                 "org.springframework.boot.autoconfigure.security.servlet.SecurityAutoConfiguration"})
-@WebMvcTest({ThumbnailControllerV2.class, ApiConfig.class})
+@WebMvcTest({ThumbnailControllerV2.class, ApiConfig.class, StorageRoutes.class})
+@Import(RetrievalTestConfig.class)
 public class CorsConfigTest {
 
     @Autowired
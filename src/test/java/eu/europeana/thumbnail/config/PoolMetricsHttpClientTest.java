@@ -0,0 +1,66 @@
+package eu.europeana.thumbnail.config;
+
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.http.ExecutableHttpRequest;
+import software.amazon.awssdk.http.HttpExecuteRequest;
+import software.amazon.awssdk.http.HttpExecuteResponse;
+import software.amazon.awssdk.http.HttpMetric;
+import software.amazon.awssdk.http.SdkHttpClient;
+import software.amazon.awssdk.http.SdkHttpFullRequest;
+import software.amazon.awssdk.http.SdkHttpMethod;
+import software.amazon.awssdk.metrics.MetricCollector;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+/**
+ * Test exposing connection pool statistics of an http client
+ */
+public class PoolMetricsHttpClientTest {
+
+    private static final String STORAGE = "pool-test";
+
+    @Test
+    public void testPoolStatistics() throws IOException {
+        SdkHttpClient delegate = mock(SdkHttpClient.class);
+        HttpExecuteResponse response = mock(HttpExecuteResponse.class);
+        when(delegate.prepareRequest(any())).thenAnswer(invocation -> {
+            HttpExecuteRequest request = invocation.getArgument(0);
+            MetricCollector collector = request.metricCollector().orElseThrow();
+            ExecutableHttpRequest executable = mock(ExecutableHttpRequest.class);
+            when(executable.call()).thenAnswer(call -> {
+                collector.reportMetric(HttpMetric.LEASED_CONCURRENCY, 7);
+                collector.reportMetric(HttpMetric.PENDING_CONCURRENCY_ACQUIRES, 2);
+                collector.reportMetric(HttpMetric.AVAILABLE_CONCURRENCY, 0);
+                return response;
+            });
+            return executable;
+        });
+
+        MetricCollector original = MetricCollector.create("test");
+        try (SdkHttpClient client = new PoolMetricsHttpClient(STORAGE, delegate)) {
+            assertSame(response, client.prepareRequest(HttpExecuteRequest.builder()
+                    .request(SdkHttpFullRequest.builder()
+                            .method(SdkHttpMethod.GET)
+                            .uri(URI.create("http://localhost/bucket/id"))
+                            .build())
+                    .metricCollector(original)
+                    .build()).call());
+        }
+
+        assertEquals(7, PoolMetricsHttpClient.getLeased(STORAGE));
+        // metrics are also passed on to the collector of the request
+        assertEquals(List.of(7), original.collect().metricValues(HttpMetric.LEASED_CONCURRENCY));
+        verify(delegate).close();
+    }
+
+    @Test
+    public void testUnknownStorage() {
+        assertEquals(-1, PoolMetricsHttpClient.getLeased("unknown"));
+    }
+}
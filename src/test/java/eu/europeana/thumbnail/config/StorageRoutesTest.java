@@ -1,17 +1,19 @@
 package eu.europeana.thumbnail.config;
 
+import eu.europeana.thumbnail.exception.ConfigurationException;
 import eu.europeana.thumbnail.service.MediaReadStorageService;
 import eu.europeana.thumbnail.service.StoragesService;
 import eu.europeana.thumbnail.service.impl.IiifImageReadServerImpl;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.context.TestPropertySource;
 
 import java.util.List;
+import java.util.Properties;
 
-import static org.junit.jupiter.api.Assertions.assertEquals;
-import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.*;
 
 @SpringBootTest(classes = {StorageRoutes.class, StoragesService.class})
 @TestPropertySource("classpath:testroutes.properties")
@@ -20,6 +22,8 @@ public class StorageRoutesTest {
 
     @Autowired
     private StoragesService storagesService;
+    @Autowired
+    private StorageRoutes storageRoutes;
 
     @Test
     public void testExactMatch() {
@@ -48,6 +52,72 @@ public class StorageRoutesTest {
         testFirstStorage(storagesService.getStorages("test2"));
     }
 
+    @Test
+    @DirtiesContext
+    public void testReload() {
+        List<MediaReadStorageService> before = storagesService.getStorages("unittest1");
+
+        Properties changed = new Properties();
+        changed.setProperty("route1.storage", "prod1,default,prod2");
+        changed.setProperty("prod2.s3.bucket", "otherbucket");
+        storageRoutes.reload(changed);
+
+        List<MediaReadStorageService> after = storagesService.getStorages("unittest1");
+        assertEquals(3, after.size());
+        assertEquals("prod1", after.get(0).getName());
+        assertEquals("default", after.get(1).getName());
+        assertEquals("prod2", after.get(2).getName());
+        // unchanged storages keep their client, changed storages get a new one
+        assertSame(before.get(1), after.get(0));
+        assertSame(before.get(0), after.get(1));
+        assertNotSame(before.get(2), after.get(2));
+        // other routes are not affected
+        testSecondStorage(storagesService.getStorages("unittest2"));
+    }
+
+    @Test
+    @DirtiesContext
+    public void testReloadInvalid() {
+        Properties invalid = new Properties();
+        invalid.setProperty("route1.storage", "default,unknown");
+        assertThrows(ConfigurationException.class, () -> storageRoutes.reload(invalid));
+
+        // old configuration should still be active
+        testFirstStorage(storagesService.getStorages("unittest1"));
+    }
+
+    @Test
+    @DirtiesContext
+    public void testStopAndStart() {
+        List<MediaReadStorageService> before = storagesService.getStorages("unittest1");
+
+        // simulate a checkpoint and restore
+        storageRoutes.stop();
+        assertFalse(storageRoutes.isRunning());
+        storageRoutes.start();
+        assertTrue(storageRoutes.isRunning());
+
+        List<MediaReadStorageService> after = storagesService.getStorages("unittest1");
+        testFirstStorage(after);
+        assertNotSame(before.get(0), after.get(0));
+    }
+
+    @Test
+    @DirtiesContext
+    public void testCacheControl() {
+        assertEquals("public, max-age=3600", storageRoutes.getCacheControl("prod1"));
+        assertNull(storageRoutes.getCacheControl("default"));
+        assertNull(storageRoutes.getCacheControl(null));
+
+        // changing the cache policy doesn't require a new client
+        List<MediaReadStorageService> before = storagesService.getStorages("unittest1");
+        Properties changed = new Properties();
+        changed.setProperty("prod1.cache.control", "no-cache");
+        storageRoutes.reload(changed);
+        assertEquals("no-cache", storageRoutes.getCacheControl("prod1"));
+        assertSame(before.get(1), storagesService.getStorages("unittest1").get(1));
+    }
+
     private void testFirstStorage(List<MediaReadStorageService> services) {
         assertNotNull(services);
         assertEquals(4, services.size());
@@ -0,0 +1,166 @@
+package eu.europeana.thumbnail.loadtest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.http.HttpHeaders;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Minimal embedded S3-compatible server for load testing. It only supports GET and HEAD requests for objects using
+ * path-style urls (http://host:port/bucket/key), which is what the S3 client uses for storages with a configured
+ * endpoint. All buckets share the same objects. Each response is delayed by a log-normally distributed latency, to
+ * simulate a real object storage.
+ */
+public class S3StandIn implements AutoCloseable {
+
+    private static final Logger LOG = LogManager.getLogger(S3StandIn.class);
+
+    private static final String NO_SUCH_KEY = """
+            <?xml version="1.0" encoding="UTF-8"?>
+            <Error><Code>NoSuchKey</Code><Message>The specified key does not exist.</Message></Error>""";
+    private static final String LAST_MODIFIED = DateTimeFormatter.RFC_1123_DATE_TIME
+            .format(Instant.parse("2024-01-01T00:00:00Z").atOffset(ZoneOffset.UTC));
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Map<String, StoredObject> objects = new ConcurrentHashMap<>();
+    private final double medianLatencyMs;
+    private final double latencySigma;
+
+    /**
+     * Start a new S3 stand-in on a random port
+     * @param threads number of threads handling requests, this limits the number of concurrent requests
+     * @param medianLatencyMs median of the latency that is added to each request (0 = no latency)
+     * @param latencySigma standard deviation of the log of the latency, higher values give a longer tail
+     * @throws IOException when the server can't be started
+     */
+    public S3StandIn(int threads, double medianLatencyMs, double latencySigma) throws IOException {
+        this.medianLatencyMs = medianLatencyMs;
+        this.latencySigma = latencySigma;
+        this.executor = Executors.newFixedThreadPool(threads);
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        this.server.setExecutor(executor);
+        this.server.createContext("/", this::handle);
+        this.server.start();
+        LOG.info("S3 stand-in started at {} with median latency {} ms", getEndpoint(), medianLatencyMs);
+    }
+
+    /**
+     * @return the url to use as s3 endpoint
+     */
+    public String getEndpoint() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+    }
+
+    /**
+     * Store an object, available in all buckets
+     * @param key the key (id) of the object
+     * @param contentType content type of the object
+     * @param data the contents of the object
+     */
+    public void put(String key, String contentType, byte[] data) {
+        objects.put(key, new StoredObject(data, contentType, "\"" + md5(data) + "\""));
+    }
+
+    /**
+     * @param key the key (id) of the object
+     * @return the ETag of the object, or null if it doesn't exist
+     */
+    public String getETag(String key) {
+        StoredObject object = objects.get(key);
+        return object == null ? null : object.eTag;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            simulateLatency();
+            // path-style url, so the first path segment is the bucket
+            String path = exchange.getRequestURI().getPath();
+            String key = path.substring(path.indexOf('/', 1) + 1);
+            boolean head = "HEAD".equals(exchange.getRequestMethod());
+            if (!head && !"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            StoredObject object = objects.get(key);
+            if (object == null) {
+                sendNotFound(exchange, head);
+                return;
+            }
+            exchange.getResponseHeaders().set(HttpHeaders.CONTENT_TYPE, object.contentType);
+            exchange.getResponseHeaders().set(HttpHeaders.ETAG, object.eTag);
+            exchange.getResponseHeaders().set(HttpHeaders.LAST_MODIFIED, LAST_MODIFIED);
+            if (head) {
+                exchange.getResponseHeaders().set(HttpHeaders.CONTENT_LENGTH, String.valueOf(object.data.length));
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, object.data.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(object.data);
+            }
+        }
+    }
+
+    private static void sendNotFound(HttpExchange exchange, boolean head) throws IOException {
+        if (head) {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        }
+        byte[] body = NO_SUCH_KEY.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set(HttpHeaders.CONTENT_TYPE, "application/xml");
+        exchange.sendResponseHeaders(404, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private void simulateLatency() {
+        if (medianLatencyMs <= 0) {
+            return;
+        }
+        double latencyMs = medianLatencyMs * Math.exp(latencySigma * ThreadLocalRandom.current().nextGaussian());
+        try {
+            TimeUnit.MICROSECONDS.sleep((long) (latencyMs * 1000));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @SuppressWarnings("java:S4790") // only used as ETag, like S3 does
+    private static String md5(byte[] data) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("MD5").digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private record StoredObject(byte[] data, String contentType, String eTag) {
+    }
+}
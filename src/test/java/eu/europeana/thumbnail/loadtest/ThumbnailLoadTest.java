@@ -0,0 +1,322 @@
+package eu.europeana.thumbnail.loadtest;
+
+import eu.europeana.thumbnail.model.ImageSize;
+import eu.europeana.thumbnail.utils.IdUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.http.HttpHeaders;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.context.TestPropertySource;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * End-to-end load test. Starts the application against an embedded S3 stand-in (see {@link S3StandIn}) that contains
+ * a synthetic corpus of thumbnails, drives a mixed workload of v2, v3, revalidation and not-found requests and reports
+ * the throughput and latency percentiles per request type. Everything runs locally, no network access is needed.
+ *
+ * This test is not part of the regular build, run it with: mvn test -Ploadtest
+ * Settings can be changed with system properties, e.g. -Dloadtest.threads=64 -Dloadtest.duration.s=120
+ */
+@Tag("loadtest")
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@TestPropertySource("classpath:testroutes.properties")
+@SuppressWarnings("java:S2925") // sleeping is intended
+public class ThumbnailLoadTest {
+
+    private static final Logger LOG = LogManager.getLogger(ThumbnailLoadTest.class);
+
+    private static final int    CORPUS_SIZE      = Integer.getInteger("loadtest.corpus", 5000);
+    private static final int    THREADS          = Integer.getInteger("loadtest.threads", 32);
+    private static final int    WARMUP_SECONDS   = Integer.getInteger("loadtest.warmup.s", 10);
+    private static final int    DURATION_SECONDS = Integer.getInteger("loadtest.duration.s", 60);
+    private static final double S3_LATENCY_MS    = Double.parseDouble(System.getProperty("loadtest.s3.latency.ms", "20"));
+    private static final double S3_LATENCY_SIGMA = Double.parseDouble(System.getProperty("loadtest.s3.latency.sigma", "0.5"));
+    private static final int    S3_THREADS       = Integer.getInteger("loadtest.s3.threads", 200);
+    private static final long   SEED             = Long.getLong("loadtest.seed", 42L);
+
+    private static final String CORPUS_URL = "https://loadtest.example.org/image/";
+    // median sizes (in bytes) of thumbnails in production, the distribution is roughly log-normal
+    private static final double MEDIAN_SIZE_MEDIUM = 12_000;
+    private static final double MEDIAN_SIZE_LARGE  = 35_000;
+    private static final double SIZE_SIGMA = 0.6;
+    private static final int    MIN_SIZE = 1_000;
+    private static final int    MAX_SIZE = 500_000;
+
+    private static final S3StandIn S3 = startS3();
+
+    @LocalServerPort
+    private int port;
+
+    private enum RequestType {
+        // type, percentage of requests, expected status
+        V3(50, 200), V2(20, 200), REVALIDATE(20, 304), V3_MISS(5, 404), V2_MISS(5, 200);
+
+        private final int percentage;
+        private final int expectedStatus;
+
+        RequestType(int percentage, int expectedStatus) {
+            this.percentage = percentage;
+            this.expectedStatus = expectedStatus;
+        }
+    }
+
+    private static S3StandIn startS3() {
+        try {
+            S3StandIn s3 = new S3StandIn(S3_THREADS, S3_LATENCY_MS, S3_LATENCY_SIGMA);
+            seed(s3);
+            return s3;
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to start S3 stand-in", e);
+        }
+    }
+
+    /**
+     * Create thumbnails for each url in the corpus, in both medium and large size
+     */
+    private static void seed(S3StandIn s3) {
+        Random random = new Random(SEED);
+        long totalBytes = 0;
+        for (int i = 0; i < CORPUS_SIZE; i++) {
+            String id = IdUtils.getMD5(getCorpusUrl(i));
+            byte[] medium = randomBytes(random, MEDIAN_SIZE_MEDIUM);
+            byte[] large = randomBytes(random, MEDIAN_SIZE_LARGE);
+            s3.put(IdUtils.getS3ObjectId(id, ImageSize.MEDIUM), "image/jpeg", medium);
+            s3.put(IdUtils.getS3ObjectId(id, ImageSize.LARGE), "image/jpeg", large);
+            totalBytes += medium.length + large.length;
+        }
+        LOG.info("Seeded S3 stand-in with {} thumbnails, {} MB in total", 2 * CORPUS_SIZE, totalBytes / 1024 / 1024);
+    }
+
+    private static byte[] randomBytes(Random random, double medianSize) {
+        double size = medianSize * Math.exp(SIZE_SIGMA * random.nextGaussian());
+        byte[] result = new byte[(int) Math.max(MIN_SIZE, Math.min(MAX_SIZE, size))];
+        random.nextBytes(result);
+        return result;
+    }
+
+    private static String getCorpusUrl(int i) {
+        return CORPUS_URL + i + ".jpg";
+    }
+
+    @DynamicPropertySource
+    static void storageProperties(DynamicPropertyRegistry registry) {
+        // all storages in the test routes use the stand-in
+        for (String storage : List.of("default", "prod1", "prod2", "test2")) {
+            registry.add(storage + ".s3.endpoint", S3::getEndpoint);
+            registry.add(storage + ".s3.max.connections", () -> THREADS * 2);
+        }
+    }
+
+    @AfterAll
+    static void stopS3() {
+        S3.close();
+    }
+
+    @Test
+    public void runLoadTest() throws Exception {
+        HttpClient client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(5))
+                .executor(Executors.newFixedThreadPool(THREADS))
+                .build();
+        String baseUrl = "http://localhost:" + port;
+
+        LOG.info("Warming up for {} s with {} threads...", WARMUP_SECONDS, THREADS);
+        run(client, baseUrl, WARMUP_SECONDS, SEED + 1);
+        LOG.info("Running load test for {} s with {} threads...", DURATION_SECONDS, THREADS);
+        List<Results> results = run(client, baseUrl, DURATION_SECONDS, SEED + 2);
+
+        Results total = report(results);
+        assertEquals(0, total.errors, "Requests with unexpected status or errors");
+    }
+
+    private List<Results> run(HttpClient client, String baseUrl, int seconds, long seed) throws Exception {
+        ExecutorService workers = Executors.newFixedThreadPool(THREADS);
+        try {
+            long endTime = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+            List<Future<Results>> futures = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                Random random = new Random(seed * 31 + i);
+                futures.add(workers.submit(() -> runWorker(client, baseUrl, random, endTime)));
+            }
+            List<Results> results = new ArrayList<>();
+            for (Future<Results> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    private Results runWorker(HttpClient client, String baseUrl, Random random, long endTime) {
+        Results results = new Results();
+        while (System.nanoTime() < endTime) {
+            RequestType type = pickType(random);
+            HttpRequest request = createRequest(baseUrl, type, random);
+            long start = System.nanoTime();
+            try {
+                HttpResponse<Void> response = client.send(request, HttpResponse.BodyHandlers.discarding());
+                results.record(type, System.nanoTime() - start, response.statusCode() == type.expectedStatus);
+            } catch (IOException e) {
+                results.record(type, System.nanoTime() - start, false);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return results;
+    }
+
+    private static RequestType pickType(Random random) {
+        int value = random.nextInt(100);
+        for (RequestType type : RequestType.values()) {
+            value -= type.percentage;
+            if (value < 0) {
+                return type;
+            }
+        }
+        return RequestType.V3;
+    }
+
+    private static HttpRequest createRequest(String baseUrl, RequestType type, Random random) {
+        // popularity is skewed, a small part of the corpus receives most requests
+        int index = (int) (CORPUS_SIZE * Math.pow(random.nextDouble(), 3));
+        boolean large = random.nextInt(4) > 0;
+        String url = getCorpusUrl(index);
+        String id = IdUtils.getMD5(url);
+        String uri = switch (type) {
+            case V3, REVALIDATE -> baseUrl + "/thumbnail/v3/" + (large ? 400 : 200) + "/" + id;
+            case V2 -> baseUrl + "/thumbnail/v2/url.json?size=" + (large ? "w400" : "w200") + "&uri="
+                    + URLEncoder.encode(url, StandardCharsets.UTF_8);
+            case V3_MISS -> baseUrl + "/thumbnail/v3/400/" + IdUtils.getMD5(url + "-missing");
+            case V2_MISS -> baseUrl + "/thumbnail/v2/url.json?uri="
+                    + URLEncoder.encode(url + "-missing", StandardCharsets.UTF_8);
+        };
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(uri)).timeout(Duration.ofSeconds(30)).GET();
+        if (type == RequestType.REVALIDATE) {
+            builder.header(HttpHeaders.IF_NONE_MATCH,
+                    S3.getETag(IdUtils.getS3ObjectId(id, large ? ImageSize.LARGE : ImageSize.MEDIUM)));
+        }
+        return builder.build();
+    }
+
+    private static Results report(List<Results> workerResults) {
+        Results total = new Results();
+        workerResults.forEach(total::add);
+        StringBuilder s = new StringBuilder(String.format("%nLoad test results (%d threads, %d s, S3 latency %.0f ms)%n",
+                THREADS, DURATION_SECONDS, S3_LATENCY_MS));
+        s.append(String.format("%-12s %10s %8s %10s %10s %10s %10s%n",
+                "type", "requests", "errors", "req/s", "p50 ms", "p99 ms", "p999 ms"));
+        for (RequestType type : RequestType.values()) {
+            appendLine(s, type.name(), total.latencies.get(type).toArray(), total.errorsPerType.get(type));
+        }
+        appendLine(s, "TOTAL", total.allLatencies(), total.errors);
+        LOG.info(s);
+        return total;
+    }
+
+    private static void appendLine(StringBuilder s, String name, long[] latencies, long errors) {
+        Arrays.sort(latencies);
+        s.append(String.format("%-12s %10d %8d %10.1f %10.2f %10.2f %10.2f%n", name, latencies.length, errors,
+                (double) latencies.length / DURATION_SECONDS, percentile(latencies, 50),
+                percentile(latencies, 99), percentile(latencies, 99.9)));
+    }
+
+    private static double percentile(long[] sortedNanos, double percentile) {
+        if (sortedNanos.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile / 100 * sortedNanos.length) - 1;
+        return sortedNanos[Math.max(0, index)] / 1_000_000.0;
+    }
+
+    /**
+     * Latencies and errors recorded by a single worker
+     */
+    private static final class Results {
+        private final Map<RequestType, LongList> latencies = new EnumMap<>(RequestType.class);
+        private final Map<RequestType, Long> errorsPerType = new EnumMap<>(RequestType.class);
+        private long errors;
+
+        Results() {
+            for (RequestType type : RequestType.values()) {
+                latencies.put(type, new LongList());
+                errorsPerType.put(type, 0L);
+            }
+        }
+
+        void record(RequestType type, long nanos, boolean success) {
+            latencies.get(type).add(nanos);
+            if (!success) {
+                errorsPerType.merge(type, 1L, Long::sum);
+                errors++;
+            }
+        }
+
+        void add(Results other) {
+            for (RequestType type : RequestType.values()) {
+                latencies.get(type).addAll(other.latencies.get(type));
+                errorsPerType.merge(type, other.errorsPerType.get(type), Long::sum);
+            }
+            errors += other.errors;
+        }
+
+        long[] allLatencies() {
+            LongList all = new LongList();
+            latencies.values().forEach(all::addAll);
+            return all.toArray();
+        }
+    }
+
+    /**
+     * Growable array of primitive longs, so recording latencies doesn't create garbage that influences the results
+     */
+    private static final class LongList {
+        private long[] values = new long[1024];
+        private int size;
+
+        void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        void addAll(LongList other) {
+            for (int i = 0; i < other.size; i++) {
+                add(other.values[i]);
+            }
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
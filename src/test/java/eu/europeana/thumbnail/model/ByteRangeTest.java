@@ -0,0 +1,40 @@
+package eu.europeana.thumbnail.model;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test parsing Range headers
+ */
+public class ByteRangeTest {
+
+    @Test
+    public void testParseValid() {
+        assertEquals(new ByteRange(0, 99), ByteRange.parse("bytes=0-99", 1000));
+        assertEquals(new ByteRange(500, 999), ByteRange.parse("bytes=500-", 1000));
+        assertEquals(new ByteRange(900, 999), ByteRange.parse("bytes=-100", 1000));
+        // ranges are limited to the content
+        assertEquals(new ByteRange(900, 999), ByteRange.parse("bytes=900-2000", 1000));
+        assertEquals(new ByteRange(0, 999), ByteRange.parse("bytes=-2000", 1000));
+        assertEquals(100, ByteRange.parse("bytes=0-99", 1000).length());
+        assertEquals("bytes 0-99/1000", ByteRange.parse("bytes=0-99", 1000).toContentRange(1000));
+    }
+
+    @Test
+    public void testParseUnsatisfiable() {
+        assertEquals(ByteRange.UNSATISFIABLE, ByteRange.parse("bytes=1000-", 1000));
+        assertEquals(ByteRange.UNSATISFIABLE, ByteRange.parse("bytes=-0", 1000));
+        assertEquals("bytes */1000", ByteRange.UNSATISFIABLE.toContentRange(1000));
+    }
+
+    @Test
+    public void testParseIgnored() {
+        assertNull(ByteRange.parse(null, 1000));
+        assertNull(ByteRange.parse("items=0-99", 1000));
+        assertNull(ByteRange.parse("bytes=0-99,200-299", 1000));
+        assertNull(ByteRange.parse("bytes=99-0", 1000));
+        assertNull(ByteRange.parse("bytes=abc-", 1000));
+        assertNull(ByteRange.parse("bytes=100", 1000));
+    }
+}
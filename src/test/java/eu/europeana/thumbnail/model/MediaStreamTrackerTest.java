@@ -0,0 +1,115 @@
+package eu.europeana.thumbnail.model;
+
+import eu.europeana.s3.S3Object;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test tracking and closing leaked media streams
+ */
+public class MediaStreamTrackerTest {
+
+    private static final long WAIT_MS = 10_000;
+
+    @Test
+    public void testClose() throws IOException {
+        AtomicBoolean closed = new AtomicBoolean();
+        MediaStream stream = createStream(closed);
+        int open = MediaStreamTracker.getOpenCount();
+
+        // closing the stream directly (as Spring does after writing a response) also stops tracking
+        stream.getS3Object().inputStream().close();
+        assertTrue(closed.get());
+        assertEquals(open - 1, MediaStreamTracker.getOpenCount());
+
+        stream.close();
+        assertEquals(open - 1, MediaStreamTracker.getOpenCount());
+    }
+
+    @Test
+    public void testReadThroughTrackedStream() throws IOException {
+        MediaStream stream = createStream(new AtomicBoolean());
+        try (InputStream in = stream.getS3Object().inputStream()) {
+            assertEquals("test", new String(in.readAllBytes()));
+        }
+    }
+
+    @Test
+    public void testCloseExpired() {
+        AtomicBoolean closed = new AtomicBoolean();
+        MediaStream stream = createStream(closed);
+
+        assertEquals(0, MediaStreamTracker.closeExpired(Long.MAX_VALUE));
+        assertFalse(closed.get());
+        assertTrue(MediaStreamTracker.closeExpired(0) >= 1);
+        assertTrue(closed.get());
+
+        // closing an expired stream should not fail
+        stream.close();
+        assertTrue(stream.isClosed());
+    }
+
+    @Test
+    public void testCloseUnreachable() throws InterruptedException {
+        AtomicBoolean closed = new AtomicBoolean();
+        createStream(closed);
+
+        long waitUntil = System.currentTimeMillis() + WAIT_MS;
+        while (!closed.get() && System.currentTimeMillis() < waitUntil) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertTrue(closed.get());
+    }
+
+    private static MediaStream createStream(AtomicBoolean closed) {
+        InputStream in = new ByteArrayInputStream("test".getBytes()) {
+            @Override
+            public void close() {
+                closed.set(true);
+            }
+        };
+        return new MediaStream("id", null, MediaStreamTracker.track("id", new S3Object("id", in, null)));
+    }
+
+    @Test
+    public void testOnRelease() throws IOException {
+        AtomicInteger released = new AtomicInteger();
+        MediaStream stream = createStream(new AtomicBoolean());
+        assertTrue(MediaStreamTracker.onRelease(stream.getS3Object().inputStream(), released::incrementAndGet));
+        assertEquals(0, released.get());
+
+        stream.getS3Object().inputStream().close();
+        stream.close();
+        assertEquals(1, released.get());
+        // already released, so run right away
+        assertTrue(MediaStreamTracker.onRelease(stream.getS3Object().inputStream(), released::incrementAndGet));
+        assertEquals(2, released.get());
+
+        // expired streams are released too
+        MediaStream expired = createStream(new AtomicBoolean());
+        MediaStreamTracker.onRelease(expired.getS3Object().inputStream(), released::incrementAndGet);
+        MediaStreamTracker.closeExpired(0);
+        assertEquals(3, released.get());
+
+        assertFalse(MediaStreamTracker.onRelease(new ByteArrayInputStream(new byte[0]), released::incrementAndGet));
+        assertEquals(3, released.get());
+    }
+
+    @Test
+    public void testInMemoryStreamNotTracked() {
+        int open = MediaStreamTracker.getOpenCount();
+        InputStream in = new ByteArrayInputStream("test".getBytes());
+        MediaStream stream = new MediaStream("id", null, new S3Object("id", in, null));
+        assertSame(in, stream.getS3Object().inputStream());
+        assertEquals(open, MediaStreamTracker.getOpenCount());
+        assertNull(MediaStreamTracker.track("id", null));
+    }
+}
@@ -0,0 +1,62 @@
+package eu.europeana.thumbnail.service;
+
+import com.github.tomakehurst.wiremock.WireMockServer;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ExecutionException;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test purging uploaded thumbnails from the CDN
+ */
+public class CdnPurgeServiceTest {
+
+    private static final String TOKEN = "secret";
+
+    private static WireMockServer server;
+
+    @BeforeAll
+    public static void startServer() {
+        server = new WireMockServer(wireMockConfig().dynamicPort());
+        server.start();
+        server.stubFor(post(urlEqualTo("/purge/logo-LARGE")).willReturn(aResponse().withStatus(200)));
+        server.stubFor(post(urlEqualTo("/purge/unknown-LARGE")).willReturn(aResponse().withStatus(403)));
+    }
+
+    @AfterAll
+    public static void stopServer() {
+        server.stop();
+    }
+
+    @Test
+    public void testPurge() throws ExecutionException, InterruptedException {
+        CdnPurgeService purgeService = createService(server.baseUrl() + "/purge/{key}");
+        assertTrue(purgeService.isEnabled());
+        assertTrue(purgeService.purge("logo-LARGE").get());
+        assertFalse(purgeService.purge("unknown-LARGE").get());
+
+        server.verify(postRequestedFor(urlEqualTo("/purge/logo-LARGE")).withHeader("Fastly-Key", equalTo(TOKEN)));
+    }
+
+    @Test
+    public void testDisabled() throws ExecutionException, InterruptedException {
+        CdnPurgeService purgeService = createService("");
+        assertFalse(purgeService.isEnabled());
+        assertFalse(purgeService.purge("logo-LARGE").get());
+        // should not fail
+        purgeService.uploaded("logos", "logo-LARGE");
+    }
+
+    private static CdnPurgeService createService(String url) {
+        return new CdnPurgeService(url, "POST", "Fastly-Key", TOKEN, 1000);
+    }
+}
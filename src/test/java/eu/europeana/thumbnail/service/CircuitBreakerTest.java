@@ -0,0 +1,65 @@
+package eu.europeana.thumbnail.service;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test circuit breaker state transitions
+ */
+public class CircuitBreakerTest {
+
+    private static final long FAST = 1_000_000L;       // 1 ms
+    private static final long SLOW = 5_000_000_000L;   // 5 s
+
+    @Test
+    public void testOpenOnFailureRate() {
+        CircuitBreaker breaker = new CircuitBreaker("test", 10, 4, 50, 1000, 60_000);
+        breaker.recordSuccess(FAST);
+        breaker.recordFailure();
+        breaker.recordSuccess(FAST);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.recordFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+    }
+
+    @Test
+    public void testOpenOnSlowCalls() {
+        CircuitBreaker breaker = new CircuitBreaker("test", 4, 4, 75, 1000, 60_000);
+        breaker.recordSuccess(SLOW);
+        breaker.recordSuccess(SLOW);
+        breaker.recordSuccess(FAST);
+        assertTrue(breaker.allowRequest());
+        breaker.recordSuccess(SLOW);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void testHalfOpenTrial() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker("test", 2, 2, 50, 1000, 10);
+        breaker.recordFailure();
+        breaker.recordFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        Thread.sleep(20);
+
+        // only one trial request allowed
+        assertTrue(breaker.allowRequest());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+        breaker.recordSuccess(FAST);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    public void testProbe() {
+        CircuitBreaker breaker = new CircuitBreaker("test", 2, 2, 50, 1000, 60_000);
+        breaker.recordFailure();
+        breaker.recordFailure();
+        breaker.recordProbe(false);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        breaker.recordProbe(true);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+}
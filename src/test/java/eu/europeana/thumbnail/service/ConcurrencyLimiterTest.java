@@ -0,0 +1,81 @@
+package eu.europeana.thumbnail.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test adapting the number of concurrent calls to a storage
+ */
+public class ConcurrencyLimiterTest {
+
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(2000);
+
+    @Test
+    public void testRejectAboveLimit() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 2, 1, 10, 1000, 0.5);
+        assertTrue(limiter.tryAcquire());
+        assertTrue(limiter.tryAcquire());
+        assertFalse(limiter.tryAcquire());
+        assertEquals(2, limiter.getInFlight());
+
+        limiter.release(FAST, true);
+        assertEquals(1, limiter.getInFlight());
+        assertTrue(limiter.tryAcquire());
+    }
+
+    @Test
+    public void testIncrease() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 4, 1, 5, 1000, 0.5);
+        // not raised when the limit isn't used
+        limiter.tryAcquire();
+        limiter.release(FAST, true);
+        assertEquals(4, limiter.getLimit());
+
+        for (int i = 0; i < 4; i++) {
+            limiter.tryAcquire();
+        }
+        limiter.release(FAST, true);
+        assertEquals(5, limiter.getLimit());
+        limiter.release(FAST, true);
+        // never above the maximum
+        assertEquals(5, limiter.getLimit());
+    }
+
+    @Test
+    public void testDecrease() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 8, 3, 10, 1000, 0.5);
+        limiter.tryAcquire();
+        limiter.release(SLOW, true);
+        assertEquals(4, limiter.getLimit());
+
+        limiter.tryAcquire();
+        limiter.release(FAST, false);
+        // never below the minimum
+        assertEquals(3, limiter.getLimit());
+    }
+
+    @Test
+    public void testCancel() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 2, 1, 10, 1000, 0.5);
+        limiter.tryAcquire();
+        limiter.tryAcquire();
+        limiter.cancel();
+        assertEquals(1, limiter.getInFlight());
+        assertEquals(2, limiter.getLimit());
+    }
+
+    @Test
+    public void testSetMaxLimit() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 8, 3, 10, 1000, 0.5);
+        limiter.setMaxLimit(5);
+        assertEquals(5, limiter.getLimit());
+        assertEquals(5, limiter.getMaxLimit());
+        // never below the minimum
+        limiter.setMaxLimit(1);
+        assertEquals(3, limiter.getMaxLimit());
+    }
+}
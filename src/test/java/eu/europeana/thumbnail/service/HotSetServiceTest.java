@@ -0,0 +1,112 @@
+package eu.europeana.thumbnail.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.boot.actuate.health.Status;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Test tracking the hot set, writing snapshots and loading them into the cache
+ */
+public class HotSetServiceTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testSnapshotRoundTrip() throws IOException {
+        Path file = tempDir.resolve("hotset.bin");
+        HotSetService.write(file, List.of(
+                new HotSetService.HotSetEntry("api", "id1-LARGE", "https://test.eu/1.jpg", "etag1", 5),
+                new HotSetService.HotSetEntry("api", "id2-MEDIUM", null, null, 3)));
+
+        List<HotSetService.HotSetEntry> read = HotSetService.read(file);
+        assertEquals(2, read.size());
+        assertEquals("api", read.get(0).getRoute());
+        assertEquals("id1-LARGE", read.get(0).getId());
+        assertEquals("https://test.eu/1.jpg", read.get(0).getOriginalUrl());
+        assertEquals("etag1", read.get(0).getETag());
+        assertEquals(5, read.get(0).getCount());
+        assertNull(read.get(1).getOriginalUrl());
+        assertNull(read.get(1).getETag());
+        assertTrue(HotSetService.read(tempDir.resolve("missing.bin")).isEmpty());
+    }
+
+    @Test
+    public void testReadPreviousVersion() throws IOException {
+        Path file = tempDir.resolve("hotset.bin");
+        try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(HotSetService.MAGIC);
+            out.writeInt(HotSetService.VERSION_WITHOUT_URL);
+            out.writeInt(1);
+            out.writeUTF("api");
+            out.writeUTF("id1-LARGE");
+            out.writeUTF("etag1");
+            out.writeLong(5);
+        }
+
+        List<HotSetService.HotSetEntry> read = HotSetService.read(file);
+        assertEquals(1, read.size());
+        assertEquals("id1-LARGE", read.get(0).getId());
+        assertNull(read.get(0).getOriginalUrl());
+        assertEquals("etag1", read.get(0).getETag());
+        assertEquals(5, read.get(0).getCount());
+    }
+
+    @Test
+    public void testUnsupportedVersion() throws IOException {
+        Path file = tempDir.resolve("hotset.bin");
+        try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(HotSetService.MAGIC);
+            out.writeInt(HotSetService.VERSION + 1);
+        }
+        assertThrows(IOException.class, () -> HotSetService.read(file));
+    }
+
+    @Test
+    public void testTrackAndPrefetch() throws IOException, InterruptedException {
+        Path file = tempDir.resolve("hotset.bin");
+        MediaReadStorageService storage = mock(MediaReadStorageService.class);
+        when(storage.getName()).thenReturn("storage");
+        StoragesService storagesService = mock(StoragesService.class);
+        when(storagesService.getStorages("api")).thenReturn(List.of(storage));
+        LocalCacheService cache = new LocalCacheService(1, 512);
+
+        // track requests and write a snapshot with only the most requested thumbnail
+        HotSetService tracker = new HotSetService(storagesService, cache, file.toString(), 1, 3_600_000, 2, 10_000);
+        tracker.record("api", "hot-LARGE", null, "etag1");
+        tracker.record("api", "hot-LARGE", "https://test.eu/hot.jpg", "etag2");
+        tracker.record("api", "cold-LARGE", null, "etag");
+        tracker.writeSnapshot();
+        tracker.shutdown();
+        List<HotSetService.HotSetEntry> snapshot = HotSetService.read(file);
+        assertEquals(1, snapshot.size());
+        assertEquals("hot-LARGE", snapshot.get(0).getId());
+        // the latest ETag and the original url of later requests are kept
+        assertEquals("https://test.eu/hot.jpg", snapshot.get(0).getOriginalUrl());
+        assertEquals("etag2", snapshot.get(0).getETag());
+
+        // load the snapshot at startup, using the original url (required by IIIF image servers)
+        when(storage.retrieve("hot-LARGE", "https://test.eu/hot.jpg"))
+                .thenReturn(LocalCacheServiceTest.createStream("hot-LARGE", 10));
+        HotSetService restarted = new HotSetService(storagesService, cache, file.toString(), 1, 3_600_000, 2, 10_000);
+        assertEquals(Status.OUT_OF_SERVICE, restarted.health().getStatus());
+        restarted.startPrefetch();
+        long waitUntil = System.currentTimeMillis() + 10_000;
+        while (restarted.health().getStatus() != Status.UP && System.currentTimeMillis() < waitUntil) {
+            Thread.sleep(50);
+        }
+        assertEquals(Status.UP, restarted.health().getStatus());
+        assertTrue(cache.contains(LocalCacheService.getKey(List.of(storage), "hot-LARGE")));
+        restarted.shutdown();
+    }
+}
@@ -0,0 +1,181 @@
+package eu.europeana.thumbnail.service;
+
+import eu.europeana.s3.S3Object;
+import eu.europeana.thumbnail.model.MediaStream;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test the in-memory thumbnail cache
+ */
+public class LocalCacheServiceTest {
+
+    private static final String KEY = "storage/test-LARGE";
+
+    @Test
+    public void testPutAndGet() throws IOException {
+        LocalCacheService cache = new LocalCacheService(1, 1);
+        assertNull(cache.get(KEY, null));
+
+        MediaStream original = createStream("test-LARGE", 100);
+        MediaStream returned = cache.put(KEY, original);
+        assertNotSame(original, returned);
+        assertEquals(100, returned.getS3Object().inputStream().readAllBytes().length);
+
+        MediaStream cached = cache.get(KEY, "https://test.eu/image.png");
+        assertNotNull(cached);
+        assertEquals("https://test.eu/image.png", cached.getOriginalUrl());
+        assertEquals("image/jpeg", cached.getContentType());
+        assertEquals(100, cached.getContentLength());
+        assertEquals(100, cached.getS3Object().inputStream().readAllBytes().length);
+        assertEquals(100, cache.getUsedBytes());
+    }
+
+    @Test
+    public void testLargeObjectNotCached() {
+        LocalCacheService cache = new LocalCacheService(1, 1);
+        MediaStream original = createStream("test-LARGE", 2000);
+        assertSame(original, cache.put(KEY, original));
+        assertFalse(cache.contains(KEY));
+    }
+
+    @Test
+    public void testEviction() {
+        LocalCacheService cache = new LocalCacheService(1, 512);
+        int size = 400 * 1024;
+        cache.put("a", createStream("a", size));
+        cache.put("b", createStream("b", size));
+        // use a, so b is least recently used
+        assertNotNull(cache.get("a", null));
+        cache.put("c", createStream("c", size));
+
+        assertTrue(cache.contains("a"));
+        assertFalse(cache.contains("b"));
+        assertTrue(cache.contains("c"));
+        assertEquals(2L * size, cache.getUsedBytes());
+    }
+
+    @Test
+    public void testDisabled() {
+        LocalCacheService cache = new LocalCacheService(0, 512);
+        MediaStream original = createStream("test-LARGE", 100);
+        assertSame(original, cache.put(KEY, original));
+        assertNull(cache.get(KEY, null));
+    }
+
+    @Test
+    public void testUploaded() {
+        LocalCacheService cache = new LocalCacheService(1, 512);
+        cache.put(KEY, createStream("test-LARGE", 100));
+        cache.put("other/test-LARGE", createStream("test-LARGE", 100));
+        cache.put("storage/test-MEDIUM", createStream("test-MEDIUM", 100));
+
+        cache.uploaded("logos", "test-LARGE");
+        assertFalse(cache.contains(KEY));
+        assertFalse(cache.contains("other/test-LARGE"));
+        assertTrue(cache.contains("storage/test-MEDIUM"));
+        assertEquals(100, cache.getUsedBytes());
+    }
+
+    @Test
+    public void testUploadStorageNotCached() {
+        LocalCacheService cache = new LocalCacheService(1, 512, 60_000, 60_000, 60_000, "logos");
+        MediaStream logo = new MediaStream("test-LARGE", null, createStream("test-LARGE", 100).getS3Object(), "logos");
+        assertSame(logo, cache.put(KEY, logo));
+        assertFalse(cache.contains(KEY));
+
+        MediaStream other = new MediaStream("test-LARGE", null, createStream("test-LARGE", 100).getS3Object(), "other");
+        assertNotSame(other, cache.put(KEY, other));
+        assertTrue(cache.contains(KEY));
+    }
+
+    @Test
+    public void testStaleWhileRevalidate() throws InterruptedException {
+        LocalCacheService cache = new LocalCacheService(1, 512, 1, 60_000, 120_000);
+        cache.put(KEY, createStream("test-LARGE", 100));
+        Thread.sleep(10);
+
+        // stale thumbnails are still returned, but only one caller should revalidate
+        assertNotNull(cache.get(KEY, null));
+        assertTrue(cache.startRevalidation(KEY));
+        assertFalse(cache.startRevalidation(KEY));
+        cache.finishRevalidation(KEY, false);
+        assertTrue(cache.startRevalidation(KEY));
+        cache.finishRevalidation(KEY, false);
+        assertFalse(cache.startRevalidation("unknown"));
+    }
+
+    @Test
+    public void testStaleIfError() throws InterruptedException {
+        LocalCacheService cache = new LocalCacheService(1, 512, 1, 0, 120_000);
+        cache.put(KEY, createStream("test-LARGE", 100));
+        Thread.sleep(10);
+
+        // too stale to serve normally, but can be used when storages fail
+        assertNull(cache.get(KEY, null));
+        assertNotNull(cache.getIfError(KEY, null));
+
+        LocalCacheService noStale = new LocalCacheService(1, 512, 1, 0, 0);
+        noStale.put(KEY, createStream("test-LARGE", 100));
+        Thread.sleep(10);
+        assertNull(noStale.getIfError(KEY, null));
+    }
+
+    @Test
+    public void testNeverStale() {
+        LocalCacheService cache = new LocalCacheService(1, 512);
+        cache.put(KEY, createStream("test-LARGE", 100));
+        assertFalse(cache.startRevalidation(KEY));
+        assertNotNull(cache.getIfError(KEY, null));
+
+        cache.remove(KEY);
+        assertFalse(cache.contains(KEY));
+        assertEquals(0, cache.getUsedBytes());
+    }
+
+    @Test
+    public void testConcurrentPutAndGet() throws InterruptedException {
+        LocalCacheService cache = new LocalCacheService(1, 512);
+        int size = 100 * 1024;
+        int threads = 8;
+        int keys = 50;
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int offset = t;
+            workers.add(new Thread(() -> {
+                for (int i = 0; i < 500; i++) {
+                    String key = "key" + ((i + offset) % keys);
+                    if (cache.get(key, null) == null) {
+                        cache.put(key, createStream(key, size));
+                    }
+                }
+            }));
+        }
+        workers.forEach(Thread::start);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        // the used bytes should match the thumbnails that are still cached
+        long cached = IntStream.range(0, keys).filter(i -> cache.contains("key" + i)).count();
+        assertTrue(cached > 0);
+        assertEquals(cached * size, cache.getUsedBytes());
+        assertTrue(cache.getUsedBytes() <= 1024 * 1024);
+    }
+
+    static MediaStream createStream(String id, int size) {
+        Map<String, Object> metadata = new HashMap<>();
+        metadata.put(S3Object.CONTENT_TYPE, "image/jpeg");
+        metadata.put(S3Object.CONTENT_LENGTH, (long) size);
+        return new MediaStream(id, null, new S3Object(id, new ByteArrayInputStream(new byte[size]), metadata));
+    }
+}
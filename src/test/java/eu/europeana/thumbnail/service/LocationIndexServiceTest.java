@@ -0,0 +1,101 @@
+package eu.europeana.thumbnail.service;
+
+import eu.europeana.thumbnail.service.impl.FileReadStorageServiceImpl;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Test keeping an index of which storages contain which thumbnails
+ */
+public class LocationIndexServiceTest {
+
+    private static final String ID1 = "0123456789abcdef0123456789abcdef-LARGE";
+    private static final String ID2 = "fedcba9876543210fedcba9876543210-LARGE";
+    private static final String ID3 = "aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa-MEDIUM";
+
+    @TempDir
+    Path dir;
+
+    private FileReadStorageServiceImpl files;
+    private MediaReadStorageService other;
+    private StoragesService storagesService;
+    private LocationIndexService service;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        Path root = dir.resolve("files");
+        for (String id : List.of(ID1, ID2)) {
+            Path file = root.resolve(id.substring(0, 2)).resolve(id);
+            Files.createDirectories(file.getParent());
+            Files.writeString(file, id);
+        }
+        files = new FileReadStorageServiceImpl("files", root, 1);
+        other = mock(MediaReadStorageService.class);
+        when(other.getName()).thenReturn("other");
+        storagesService = mock(StoragesService.class);
+        when(storagesService.getListableStorages()).thenReturn(List.of(files));
+        service = createService();
+    }
+
+    @AfterEach
+    public void shutdown() throws InterruptedException {
+        service.shutdown();
+    }
+
+    private LocationIndexService createService() {
+        // listing is triggered manually
+        return new LocationIndexService(storagesService, dir.resolve("index.bin").toString(), 1024, 1,
+                Long.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    @Test
+    public void testListed() throws InterruptedException {
+        assertNull(service.isPresent(files, ID3));
+        service.listAll();
+        assertTrue(service.isPresent(files, ID1));
+        assertTrue(service.isPresent(files, ID2));
+        assertFalse(service.isPresent(files, ID3));
+        // not indexed
+        assertNull(service.isPresent(files, "logo-LARGE"));
+        assertNull(service.isPresent(other, ID1));
+
+        // the index and listing progress are kept after a restart
+        service.shutdown();
+        service = createService();
+        assertTrue(service.isPresent(files, ID1));
+        assertFalse(service.isPresent(files, ID3));
+    }
+
+    @Test
+    public void testUpdate() {
+        service.listAll();
+        service.uploaded("files", ID3);
+        assertTrue(service.isPresent(files, ID3));
+
+        service.update(files, ID1, false, Boolean.TRUE);
+        assertFalse(service.isPresent(files, ID1));
+        service.update(files, ID1, true, Boolean.FALSE);
+        assertTrue(service.isPresent(files, ID1));
+    }
+
+    @Test
+    public void testDisabled() throws InterruptedException {
+        service.shutdown();
+        service = new LocationIndexService(storagesService, "", 1024, 1, 0, 1000);
+        assertFalse(service.isEnabled());
+        assertNull(service.isPresent(files, ID1));
+        // should not fail
+        service.update(files, ID1, true, null);
+        service.uploaded("files", ID1);
+    }
+}
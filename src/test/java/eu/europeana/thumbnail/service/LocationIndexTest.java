@@ -0,0 +1,124 @@
+package eu.europeana.thumbnail.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test the memory-mapped location index
+ */
+public class LocationIndexTest {
+
+    private static final String MD5 = "0123456789abcdef0123456789abcdef";
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void testAddRemove() throws IOException {
+        try (LocationIndex index = LocationIndex.open(dir.resolve("index.bin"), 100)) {
+            assertTrue(index.isCreated());
+            assertEquals(0L, index.get(MD5 + "-LARGE"));
+
+            assertTrue(index.add(MD5 + "-LARGE", 0));
+            assertTrue(index.add(MD5 + "-LARGE", 3));
+            assertTrue(index.add(MD5 + "-800", 1));
+            assertEquals(0b1001L, index.get(MD5 + "-LARGE"));
+            assertEquals(0b10L, index.get(MD5 + "-800"));
+            assertEquals(0L, index.get(MD5 + "-MEDIUM"));
+            assertEquals(2, index.size());
+
+            index.remove(MD5 + "-LARGE", 0);
+            assertEquals(0b1000L, index.get(MD5 + "-LARGE"));
+        }
+    }
+
+    @Test
+    public void testNotIndexable() throws IOException {
+        try (LocationIndex index = LocationIndex.open(dir.resolve("index.bin"), 100)) {
+            for (String id : new String[]{"logo-LARGE", MD5, MD5 + "-", MD5 + "-SMALL", MD5 + "-0800",
+                    MD5.toUpperCase() + "-LARGE", null}) {
+                assertFalse(index.add(id, 0), "id " + id);
+                assertEquals(LocationIndex.NOT_INDEXABLE, index.get(id), "id " + id);
+            }
+            assertEquals(0, index.size());
+        }
+    }
+
+    @Test
+    public void testResizeAndReopen() throws IOException {
+        Path file = dir.resolve("index.bin");
+        try (LocationIndex index = LocationIndex.open(file, 100)) {
+            assertEquals(1024, index.capacity());
+            for (int i = 0; i < 2000; i++) {
+                index.add(String.format("%032x-LARGE", i), i % 2);
+            }
+            assertEquals(4096, index.capacity());
+            assertEquals(2000, index.size());
+        }
+        assertFalse(Files.exists(file.resolveSibling("index.bin.tmp")));
+
+        try (LocationIndex index = LocationIndex.open(file, 100)) {
+            assertFalse(index.isCreated());
+            assertEquals(2000, index.size());
+            for (int i = 0; i < 2000; i++) {
+                assertEquals(1L << (i % 2), index.get(String.format("%032x-LARGE", i)));
+            }
+            assertEquals(0L, index.get(String.format("%032x-LARGE", 2000)));
+        }
+    }
+
+    @Test
+    public void testConcurrentAddDuringResize() throws IOException, InterruptedException {
+        Path file = dir.resolve("index.bin");
+        int threads = 4;
+        int perThread = 5000;
+        try (LocationIndex index = LocationIndex.open(file, 100)) {
+            List<Thread> workers = new ArrayList<>();
+            AtomicReference<Exception> error = new AtomicReference<>();
+            for (int t = 0; t < threads; t++) {
+                int ordinal = t;
+                workers.add(new Thread(() -> {
+                    try {
+                        for (int i = 0; i < perThread; i++) {
+                            index.add(String.format("%032x-LARGE", i), ordinal);
+                            // changes to existing entries while resizing must not get lost either
+                            index.remove(String.format("%032x-LARGE", i), ordinal);
+                            index.add(String.format("%032x-LARGE", i), ordinal);
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        error.set(e);
+                    }
+                }));
+            }
+            workers.forEach(Thread::start);
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            assertNull(error.get());
+            assertEquals(perThread, index.size());
+            for (int i = 0; i < perThread; i++) {
+                assertEquals((1L << threads) - 1, index.get(String.format("%032x-LARGE", i)), "id " + i);
+            }
+        }
+        assertFalse(Files.exists(file.resolveSibling("index.bin.tmp")));
+    }
+
+    @Test
+    public void testInvalidFile() throws IOException {
+        Path file = dir.resolve("index.bin");
+        Files.writeString(file, "not an index file, but long enough to contain a header");
+        try (LocationIndex index = LocationIndex.open(file, 100)) {
+            assertTrue(index.isCreated());
+            assertEquals(0, index.size());
+        }
+    }
+}
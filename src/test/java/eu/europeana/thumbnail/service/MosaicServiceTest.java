@@ -0,0 +1,120 @@
+package eu.europeana.thumbnail.service;
+
+import com.sksamuel.scrimage.ImmutableImage;
+import com.sksamuel.scrimage.nio.PngWriter;
+import eu.europeana.thumbnail.exception.ThumbnailDeadlineExceededException;
+import eu.europeana.thumbnail.model.Deadline;
+import eu.europeana.thumbnail.model.Mosaic;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.awt.Color;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test combining thumbnails into a mosaic
+ */
+public class MosaicServiceTest {
+
+    private static final String ID1 = "00000000000000000000000000000001";
+    private static final String ID2 = "00000000000000000000000000000002";
+    private static final String ID3 = "00000000000000000000000000000003";
+    private static final String ID_MISSING = "0000000000000000000000000000000f";
+    private static final String ID_ERROR = "0000000000000000000000000000000e";
+    private static final String ID_TALL = "0000000000000000000000000000000d";
+
+    private final Map<String, byte[]> thumbnails = new ConcurrentHashMap<>();
+    private final AtomicInteger loaded = new AtomicInteger();
+    private MosaicService service;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        thumbnails.put(ID1, createImage(200, 100));
+        thumbnails.put(ID2, createImage(200, 300));
+        // larger than requested, should be scaled
+        thumbnails.put(ID3, createImage(400, 200));
+        service = new MosaicService(4, 2, 1_000_000, 2, 1, 60_000);
+    }
+
+    @AfterEach
+    public void shutdown() {
+        service.shutdown();
+    }
+
+    private static byte[] createImage(int width, int height) throws IOException {
+        return ImmutableImage.filled(width, height, Color.RED).bytes(PngWriter.NoCompression);
+    }
+
+    private byte[] load(String id) throws ThumbnailDeadlineExceededException {
+        loaded.incrementAndGet();
+        if (ID_ERROR.equals(id)) {
+            throw new ThumbnailDeadlineExceededException(id);
+        }
+        return thumbnails.get(id);
+    }
+
+    @Test
+    public void testLayout() throws InterruptedException {
+        Mosaic mosaic = service.get("route", 200, 2, List.of(ID1, ID2, ID3, ID_MISSING), this::load, Deadline.none());
+        assertNotNull(mosaic);
+        assertTrue(mosaic.complete());
+        assertEquals(400, mosaic.width());
+        assertEquals(300 + 100, mosaic.height());
+        assertEquals(List.of(new Mosaic.Tile(ID1, 0, 0, 200, 100),
+                new Mosaic.Tile(ID2, 200, 0, 200, 300),
+                new Mosaic.Tile(ID3, 0, 300, 200, 100),
+                new Mosaic.Tile(ID_MISSING, null, null, null, null)), mosaic.tiles());
+        assertEquals("image/jpeg", mosaic.mediaType());
+        assertNotNull(mosaic.eTag());
+
+        // second time from cache
+        assertSame(mosaic, service.get("route", 200, 2, List.of(ID1, ID2, ID3, ID_MISSING), this::load,
+                Deadline.none()));
+        assertEquals(4, loaded.get());
+        assertTrue(service.getUsedBytes() > 0);
+    }
+
+    @Test
+    public void testIncompleteNotCached() throws InterruptedException {
+        Mosaic mosaic = service.get("route", 200, 8, List.of(ID1, ID_ERROR), this::load, Deadline.none());
+        assertNotNull(mosaic);
+        assertFalse(mosaic.complete());
+        assertFalse(mosaic.tiles().get(1).isPresent());
+
+        service.get("route", 200, 8, List.of(ID1, ID_ERROR), this::load, Deadline.none());
+        assertEquals(4, loaded.get());
+        assertEquals(0, service.getUsedBytes());
+    }
+
+    @Test
+    public void testTallTileCropped() throws IOException, InterruptedException {
+        thumbnails.put(ID_TALL, createImage(200, 10_000));
+        Mosaic mosaic = service.get("route", 200, 2, List.of(ID1, ID_TALL), this::load, Deadline.none());
+        assertNotNull(mosaic);
+        assertEquals(400, mosaic.height());
+        assertEquals(new Mosaic.Tile(ID_TALL, 200, 0, 200, 400), mosaic.tiles().get(1));
+    }
+
+    @Test
+    public void testPixelBudget() {
+        // 2 rows of 2 thumbnails of at most 200x400
+        assertTrue(service.fitsPixelBudget(200, 2, 4));
+        // 2 rows of 2 thumbnails of at most 400x800
+        assertFalse(service.fitsPixelBudget(400, 2, 4));
+        assertFalse(service.fitsPixelBudget(400, 1, 4));
+        // the number of columns is never more than the number of thumbnails
+        assertTrue(service.fitsPixelBudget(400, 4, 1));
+    }
+
+    @Test
+    public void testNothingFound() throws InterruptedException {
+        assertNull(service.get("route", 200, 8, List.of(ID_MISSING), this::load, Deadline.none()));
+    }
+}
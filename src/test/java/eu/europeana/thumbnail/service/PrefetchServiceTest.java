@@ -0,0 +1,146 @@
+package eu.europeana.thumbnail.service;
+
+import eu.europeana.s3.S3Object;
+import eu.europeana.thumbnail.model.MediaStream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+/**
+ * Test prefetching the other size of retrieved thumbnails
+ */
+public class PrefetchServiceTest {
+
+    private static final String ID_MEDIUM = "test-MEDIUM";
+    private static final String ID_LARGE = "test-LARGE";
+    private static final String KEY_LARGE = "storage/" + ID_LARGE;
+    private static final byte[] DATA = "large".getBytes();
+
+    private MediaReadStorageService storage;
+    private LocalCacheService localCache;
+    private StorageLimitService limitService;
+    private StorageHealthService healthService;
+    private PrefetchService prefetch;
+
+    @BeforeEach
+    public void setup() {
+        storage = mock(MediaReadStorageService.class);
+        when(storage.getName()).thenReturn("storage");
+        Map<String, Object> metadata = new HashMap<>();
+        metadata.put(S3Object.CONTENT_LENGTH, (long) DATA.length);
+        when(storage.retrieve(ID_LARGE, null)).thenAnswer(invocation -> new MediaStream(ID_LARGE, null,
+                new S3Object(ID_LARGE, new ByteArrayInputStream(DATA), metadata), "storage"));
+        localCache = new LocalCacheService(0, 512);
+        limitService = mock(StorageLimitService.class);
+        when(limitService.tryAcquire(storage)).thenReturn(true);
+        healthService = mock(StorageHealthService.class);
+        when(healthService.allowRequest(storage)).thenReturn(true);
+    }
+
+    private PrefetchService createService(boolean enabled, long ttlMillis) {
+        return new PrefetchService(limitService, healthService, enabled, 1, 10, 1, ttlMillis, 512);
+    }
+
+    @AfterEach
+    public void shutdown() throws InterruptedException {
+        prefetch.shutdown();
+    }
+
+    private void prefetchAndWait(String id) throws InterruptedException {
+        prefetch.prefetchSibling(List.of(storage), id, null, storage, localCache);
+        // wait until the background thread is done
+        prefetch.shutdown();
+    }
+
+    @Test
+    public void testPrefetch() throws InterruptedException, IOException {
+        prefetch = createService(true, 60_000);
+        prefetchAndWait(ID_MEDIUM);
+        verify(storage).retrieve(ID_LARGE, null);
+        verify(healthService).recordSuccess(eq(storage), anyLong());
+        verify(limitService).release(eq(storage), anyLong(), eq(true));
+
+        MediaStream result = prefetch.take(KEY_LARGE, null);
+        assertNotNull(result);
+        assertEquals(ID_LARGE, result.getId());
+        assertArrayEquals(DATA, result.getS3Object().inputStream().readAllBytes());
+        // used only once
+        assertNull(prefetch.take(KEY_LARGE, null));
+    }
+
+    @Test
+    public void testExpired() throws InterruptedException {
+        prefetch = createService(true, -1);
+        prefetchAndWait(ID_MEDIUM);
+        assertNull(prefetch.take(KEY_LARGE, null));
+    }
+
+    @Test
+    public void testUploaded() throws InterruptedException {
+        prefetch = createService(true, 60_000);
+        prefetchAndWait(ID_MEDIUM);
+        prefetch.uploaded("storage", ID_LARGE);
+        assertNull(prefetch.take(KEY_LARGE, null));
+    }
+
+    @Test
+    public void testNoSibling() throws InterruptedException {
+        prefetch = createService(true, 60_000);
+        prefetchAndWait("test-800");
+        verify(storage, never()).retrieve(anyString(), any());
+    }
+
+    @Test
+    public void testLimitReached() throws InterruptedException {
+        when(limitService.tryAcquire(storage)).thenReturn(false);
+        prefetch = createService(true, 60_000);
+        prefetchAndWait(ID_MEDIUM);
+        verify(storage, never()).retrieve(anyString(), any());
+        verify(healthService, never()).allowRequest(storage);
+        assertNull(prefetch.take(KEY_LARGE, null));
+    }
+
+    @Test
+    public void testBreakerOpen() throws InterruptedException {
+        when(healthService.allowRequest(storage)).thenReturn(false);
+        prefetch = createService(true, 60_000);
+        prefetchAndWait(ID_MEDIUM);
+        verify(storage, never()).retrieve(anyString(), any());
+        // the permit is given back without counting as a request
+        verify(limitService).cancel(storage);
+        verify(limitService, never()).release(any(), anyLong(), anyBoolean());
+        assertNull(prefetch.take(KEY_LARGE, null));
+    }
+
+    @Test
+    public void testFailureRecorded() throws InterruptedException {
+        when(storage.retrieve(ID_LARGE, null)).thenThrow(new IllegalStateException("test"));
+        prefetch = createService(true, 60_000);
+        prefetchAndWait(ID_MEDIUM);
+        verify(healthService).recordFailure(storage);
+        verify(limitService).release(eq(storage), anyLong(), eq(false));
+        assertNull(prefetch.take(KEY_LARGE, null));
+    }
+
+    @Test
+    public void testDisabled() throws InterruptedException {
+        prefetch = createService(false, 60_000);
+        prefetch.prefetchSibling(List.of(storage), ID_MEDIUM, null, storage, localCache);
+        verify(storage, never()).retrieve(anyString(), any());
+        assertNull(prefetch.take(KEY_LARGE, null));
+    }
+}
@@ -0,0 +1,172 @@
+package eu.europeana.thumbnail.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.env.MockEnvironment;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test limiting the number of requests per client and counting usage per API key
+ */
+public class RateLimitServiceTest {
+
+    private static final String KEY_GOLD = "goldkey";
+    private static final String KEY_UNKNOWN = "unknownkey";
+    private static final String IP1 = "10.0.0.1";
+    private static final String IP2 = "10.0.0.2";
+
+    private RateLimitService service;
+
+    @AfterEach
+    public void shutdown() throws InterruptedException {
+        if (service != null) {
+            service.shutdown();
+        }
+    }
+
+    private RateLimitService createService(boolean enabled, int maxUsageKeys) {
+        MockEnvironment environment = new MockEnvironment()
+                .withProperty("ratelimit.tier.gold.rate", "1")
+                .withProperty("ratelimit.tier.gold.burst", "5")
+                .withProperty("ratelimit.tier.gold.keys", "otherkey, " + KEY_GOLD);
+        // usage is flushed manually
+        return new RateLimitService(enabled, 65536, 1, 2, "gold", 0, maxUsageKeys, environment);
+    }
+
+    @Test
+    public void testTokenBucket() {
+        TokenBuckets buckets = new TokenBuckets(16);
+        assertEquals(16, buckets.getStripes());
+        // full at first use
+        assertEquals(0, buckets.tryAcquire("a", 2, 2, 1, 1000));
+        assertEquals(0, buckets.tryAcquire("a", 2, 2, 1, 1000));
+        assertEquals(500, buckets.tryAcquire("a", 2, 2, 1, 1000));
+        assertEquals(100, buckets.tryAcquire("a", 2, 2, 1, 1400));
+        assertEquals(0, buckets.tryAcquire("a", 2, 2, 1, 1500));
+        // never more than burst
+        assertEquals(0, buckets.tryAcquire("a", 2, 2, 1, 100_000));
+        assertEquals(0, buckets.tryAcquire("a", 2, 2, 1, 100_000));
+        assertTrue(buckets.tryAcquire("a", 2, 2, 1, 100_000) > 0);
+        // time wraps around
+        assertEquals(0, buckets.tryAcquire("b", 2, 2, 1, 0xFFFF_FF00L));
+        assertEquals(0, buckets.tryAcquire("b", 2, 2, 1, 0xFFFF_FF00L));
+        assertEquals(0, buckets.tryAcquire("b", 2, 2, 1, 0x1_0000_0100L));
+    }
+
+    @Test
+    public void testTokenBucketPermits() {
+        TokenBuckets buckets = new TokenBuckets(16);
+        assertEquals(0, buckets.tryAcquire("a", 2, 4, 3, 1000));
+        // all or nothing
+        assertEquals(1000, buckets.tryAcquire("a", 2, 4, 3, 1000));
+        assertEquals(0, buckets.tryAcquire("a", 2, 4, 1, 1000));
+        assertEquals(0, buckets.tryAcquire("a", 2, 4, 2, 2000));
+        // more than burst only needs a full bucket
+        assertEquals(2000, buckets.tryAcquire("a", 2, 4, 10, 2000));
+        assertEquals(0, buckets.tryAcquire("a", 2, 4, 10, 4000));
+        assertTrue(buckets.tryAcquire("a", 2, 4, 1, 4000) > 0);
+    }
+
+    @Test
+    public void testLimits() {
+        service = createService(true, 100);
+        // no or unknown API key, limited per ip address
+        assertEquals(0, service.tryAcquire(null, IP1));
+        assertEquals(0, service.tryAcquire(KEY_UNKNOWN, IP1));
+        assertTrue(service.tryAcquire(null, IP1) > 0);
+        assertTrue(service.tryAcquire("anotherunknownkey", IP1) > 0);
+        assertEquals(0, service.tryAcquire(null, IP2));
+
+        // known API key, limited per key regardless of ip address
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, service.tryAcquire(KEY_GOLD, IP1 + i));
+        }
+        assertTrue(service.tryAcquire(KEY_GOLD, IP2) > 0);
+    }
+
+    @Test
+    public void testTiersDoNotShareBuckets() {
+        MockEnvironment environment = new MockEnvironment()
+                .withProperty("ratelimit.tier.gold.rate", "1")
+                .withProperty("ratelimit.tier.gold.burst", "5")
+                .withProperty("ratelimit.tier.gold.keys", KEY_GOLD);
+        // all clients without API key share a single bucket
+        service = new RateLimitService(true, 1, 1, 2, "gold", 0, 100, environment);
+        assertEquals(0, service.tryAcquire(null, IP1));
+        assertEquals(0, service.tryAcquire(null, IP2));
+        assertTrue(service.tryAcquire(null, IP1) > 0);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, service.tryAcquire(KEY_GOLD, IP1));
+        }
+        assertTrue(service.tryAcquire(KEY_GOLD, IP1) > 0);
+    }
+
+    @Test
+    public void testPermits() {
+        service = createService(true, 100);
+        assertEquals(0, service.tryAcquire(KEY_GOLD, IP1, 4));
+        assertTrue(service.tryAcquire(KEY_GOLD, IP1, 2) > 0);
+        assertEquals(0, service.tryAcquire(KEY_GOLD, IP1, 1));
+        assertTrue(service.tryAcquire(KEY_GOLD, IP1, 1) > 0);
+    }
+
+    @Test
+    public void testUsage() {
+        service = createService(true, 3);
+        service.tryAcquire(null, IP1);
+        service.tryAcquire(null, IP1);
+        service.tryAcquire(null, IP1);
+        service.tryAcquire(KEY_GOLD, IP1);
+        service.tryAcquire(KEY_UNKNOWN, IP2);
+        service.tryAcquire("key3", IP2);
+
+        Map<String, RateLimitService.UsageCount> usage = service.flushUsage();
+        assertEquals(new RateLimitService.UsageCount(2, 1), usage.get(RateLimitService.ANONYMOUS));
+        assertEquals(new RateLimitService.UsageCount(1, 0), usage.get(KEY_GOLD));
+        assertEquals(new RateLimitService.UsageCount(1, 0), usage.get(KEY_UNKNOWN));
+        // maximum number of keys reached
+        assertNull(usage.get("key3"));
+        assertEquals(new RateLimitService.UsageCount(1, 0), usage.get(RateLimitService.OTHER));
+
+        // counters are reset
+        service.tryAcquire(KEY_GOLD, IP1);
+        assertEquals(Map.of(KEY_GOLD, new RateLimitService.UsageCount(1, 0)), service.flushUsage());
+    }
+
+    @Test
+    public void testUsageOfInvalidKeys() {
+        service = createService(true, 100);
+        service.tryAcquire("key\r\nkey=forged", IP1);
+        service.tryAcquire("a".repeat(65), IP2);
+
+        assertEquals(Map.of(RateLimitService.OTHER, new RateLimitService.UsageCount(2, 0)), service.flushUsage());
+    }
+
+    @Test
+    public void testTierKeysHaveOwnBucket() {
+        MockEnvironment environment = new MockEnvironment()
+                .withProperty("ratelimit.tier.gold.rate", "1")
+                .withProperty("ratelimit.tier.gold.burst", "1")
+                .withProperty("ratelimit.tier.gold.keys", "key1,key2,key3,key1");
+        service = new RateLimitService(true, 65536, 1, 2, "gold", 0, 100, environment);
+        for (String key : new String[] {"key1", "key2", "key3"}) {
+            assertEquals(0, service.tryAcquire(key, IP1));
+        }
+        for (String key : new String[] {"key1", "key2", "key3"}) {
+            assertTrue(service.tryAcquire(key, IP1) > 0);
+        }
+    }
+
+    @Test
+    public void testDisabled() {
+        service = createService(false, 100);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(0, service.tryAcquire(null, IP1));
+        }
+        // usage is still counted
+        assertEquals(new RateLimitService.UsageCount(10, 0), service.flushUsage().get(RateLimitService.ANONYMOUS));
+    }
+}
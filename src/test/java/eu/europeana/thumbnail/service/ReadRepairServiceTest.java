@@ -0,0 +1,67 @@
+package eu.europeana.thumbnail.service;
+
+import eu.europeana.s3.S3Object;
+import eu.europeana.thumbnail.model.MediaStream;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+/**
+ * Test copying files found in fallback storages
+ */
+public class ReadRepairServiceTest {
+
+    private static final String ID = "test-LARGE";
+
+    @Test
+    public void testCopyToFirstWritableStorage() throws InterruptedException {
+        MediaWriteStorageService primary = mock(MediaWriteStorageService.class);
+        when(primary.getName()).thenReturn("primary");
+        MediaReadStorageService fallback = mock(MediaReadStorageService.class);
+        when(fallback.getName()).thenReturn("fallback");
+        Map<String, Object> metadata = new HashMap<>();
+        metadata.put(S3Object.CONTENT_TYPE, "image/jpeg");
+        when(fallback.retrieve(ID, null)).thenReturn(new MediaStream(ID, null,
+                new S3Object(ID, new ByteArrayInputStream("test".getBytes()), metadata)));
+
+        ReadRepairService readRepair = new ReadRepairService(true, 1, 10);
+        readRepair.repairIfNeeded(ID, null, List.of(primary, fallback), 1);
+
+        verify(primary, timeout(5000)).store(eq(ID), eq("image/jpeg"), any(InputStream.class));
+        readRepair.shutdown();
+    }
+
+    @Test
+    public void testNoCopyWhenFoundInFirstStorage() throws InterruptedException {
+        MediaWriteStorageService primary = mock(MediaWriteStorageService.class);
+        MediaReadStorageService fallback = mock(MediaReadStorageService.class);
+
+        ReadRepairService readRepair = new ReadRepairService(true, 1, 10);
+        readRepair.repairIfNeeded(ID, null, List.of(primary, fallback), 0);
+        readRepair.shutdown();
+
+        verify(primary, never()).store(anyString(), anyString(), any(InputStream.class));
+        verify(fallback, never()).retrieve(anyString(), any());
+    }
+
+    @Test
+    public void testDisabled() throws InterruptedException {
+        MediaWriteStorageService primary = mock(MediaWriteStorageService.class);
+        MediaReadStorageService fallback = mock(MediaReadStorageService.class);
+
+        ReadRepairService readRepair = new ReadRepairService(false, 1, 10);
+        readRepair.repairIfNeeded(ID, null, List.of(primary, fallback), 1);
+        readRepair.shutdown();
+
+        verify(fallback, never()).retrieve(anyString(), any());
+    }
+}
@@ -0,0 +1,114 @@
+package eu.europeana.thumbnail.service;
+
+import eu.europeana.s3.S3Object;
+import eu.europeana.thumbnail.model.MediaStream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+/**
+ * Test revalidating stale thumbnails in the local cache
+ */
+public class RevalidationServiceTest {
+
+    private static final String ID = "test-LARGE";
+    private static final String KEY = "storage/" + ID;
+
+    private LocalCacheService cache;
+    private MediaReadStorageService storage;
+    private StorageDeadlineService deadlineService;
+    private RevalidationService revalidationService;
+
+    @BeforeEach
+    public void setup() throws InterruptedException {
+        cache = new LocalCacheService(1, 512, 1, 60_000, 60_000);
+        cache.put(KEY, createStream("old", "etag1"));
+        // make sure the cached thumbnail is stale
+        Thread.sleep(10);
+
+        storage = mock(MediaReadStorageService.class);
+        when(storage.getName()).thenReturn("storage");
+        StorageHealthService healthService = mock(StorageHealthService.class);
+        when(healthService.allowRequest(any())).thenReturn(true);
+        deadlineService = new StorageDeadlineService(0, 0, 0, 2);
+        revalidationService = new RevalidationService(cache, new ValidatorCacheService(0, 0), deadlineService,
+                healthService, 1, 10, 0);
+    }
+
+    @AfterEach
+    public void shutdown() {
+        deadlineService.shutdown();
+    }
+
+    @Test
+    public void testUnchanged() throws InterruptedException {
+        MediaStream current = createStream("old", "etag1");
+        when(storage.retrieve(ID, null)).thenReturn(current);
+
+        revalidate();
+        assertTrue(current.isClosed());
+        assertEquals("etag1", cache.get(KEY, null).getETag());
+    }
+
+    @Test
+    public void testChanged() throws InterruptedException, IOException {
+        when(storage.retrieve(ID, null)).thenReturn(createStream("new", "etag2"));
+
+        revalidate();
+        MediaStream cached = cache.get(KEY, null);
+        assertEquals("etag2", cached.getETag());
+        assertEquals("new", new String(cached.getS3Object().inputStream().readAllBytes()));
+    }
+
+    @Test
+    public void testRemoved() throws InterruptedException {
+        revalidate();
+        assertFalse(cache.contains(KEY));
+    }
+
+    @Test
+    public void testFailed() throws InterruptedException {
+        when(storage.retrieve(ID, null)).thenThrow(new IllegalStateException("test"));
+
+        revalidate();
+        // the stale version is kept and can be revalidated again
+        assertTrue(cache.contains(KEY));
+        assertTrue(cache.startRevalidation(KEY));
+    }
+
+    @Test
+    public void testFreshNotRevalidated() {
+        LocalCacheService freshCache = new LocalCacheService(1, 512, 60_000, 60_000, 60_000);
+        freshCache.put(KEY, createStream("old", "etag1"));
+        RevalidationService service = new RevalidationService(freshCache, new ValidatorCacheService(0, 0),
+                deadlineService, mock(StorageHealthService.class), 1, 10, 0);
+
+        service.revalidateIfStale(KEY, ID, null, "etag1", List.of(storage));
+        verify(storage, never()).retrieve(any(), any());
+    }
+
+    /**
+     * Revalidate the cached thumbnail and wait until that's done
+     */
+    private void revalidate() throws InterruptedException {
+        revalidationService.revalidateIfStale(KEY, ID, null, "etag1", List.of(storage));
+        revalidationService.shutdown();
+    }
+
+    private static MediaStream createStream(String content, String eTag) {
+        Map<String, Object> metadata = new HashMap<>();
+        metadata.put(S3Object.CONTENT_LENGTH, (long) content.length());
+        metadata.put(S3Object.ETAG, eTag);
+        return new MediaStream(ID, null, new S3Object(ID, new ByteArrayInputStream(content.getBytes()), metadata));
+    }
+}
@@ -0,0 +1,140 @@
+package eu.europeana.thumbnail.service;
+
+import eu.europeana.s3.S3Object;
+import eu.europeana.thumbnail.model.Deadline;
+import eu.europeana.thumbnail.model.MediaStream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.HashMap;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Test enforcing request deadlines
+ */
+public class StorageDeadlineServiceTest {
+
+    private static final String ID = "test-LARGE";
+
+    private final StorageDeadlineService deadlineService = new StorageDeadlineService(1000, 0, 0, 2);
+
+    @AfterEach
+    public void shutdown() {
+        deadlineService.shutdown();
+    }
+
+    @Test
+    public void testDeadline() {
+        assertTrue(deadlineService.newV2Deadline().hasLimit());
+        assertFalse(deadlineService.newV3Deadline().hasLimit());
+        assertFalse(Deadline.none().isExpired());
+
+        Deadline deadline = Deadline.after(1000);
+        long slice = deadline.sliceNanos(4);
+        assertTrue(slice <= TimeUnit.MILLISECONDS.toNanos(250));
+        assertTrue(slice > TimeUnit.MILLISECONDS.toNanos(200));
+    }
+
+    @Test
+    public void testDeadlineWithReserve() {
+        Deadline deadline = Deadline.after(3000, 250);
+        long slice = deadline.sliceNanos(3);
+        assertTrue(slice <= TimeUnit.MILLISECONDS.toNanos(2500));
+        assertTrue(slice > TimeUnit.MILLISECONDS.toNanos(2400));
+
+        // when there's not enough time left for all reserves, the time is divided evenly
+        deadline = Deadline.after(400, 250);
+        slice = deadline.sliceNanos(4);
+        assertTrue(slice <= TimeUnit.MILLISECONDS.toNanos(100));
+        assertTrue(slice > TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    public void testRetrieveInTime() throws TimeoutException {
+        MediaReadStorageService storage = mock(MediaReadStorageService.class);
+        MediaStream stream = createStream();
+        when(storage.retrieve(ID, null)).thenReturn(stream);
+
+        assertSame(stream, deadlineService.retrieve(storage, ID, null, TimeUnit.SECONDS.toNanos(5)));
+        assertSame(stream, deadlineService.retrieve(storage, ID, null, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testLateResultIsClosed() throws InterruptedException {
+        MediaReadStorageService storage = mock(MediaReadStorageService.class);
+        MediaStream stream = createStream();
+        when(storage.retrieve(ID, null)).thenAnswer(invocation -> {
+            Thread.sleep(300);
+            return stream;
+        });
+
+        assertThrows(TimeoutException.class,
+                () -> deadlineService.retrieve(storage, ID, null, TimeUnit.MILLISECONDS.toNanos(50)));
+        verify(storage, timeout(2000)).retrieve(ID, null);
+        long waitUntil = System.currentTimeMillis() + 2000;
+        while (!stream.isClosed() && System.currentTimeMillis() < waitUntil) {
+            Thread.sleep(10);
+        }
+        assertTrue(stream.isClosed());
+    }
+
+    @Test
+    public void testNoTimeLeft() {
+        MediaReadStorageService storage = mock(MediaReadStorageService.class);
+        assertThrows(TimeoutException.class, () -> deadlineService.retrieve(storage, ID, null, 0));
+        verify(storage, never()).retrieve(ID, null);
+
+        AtomicBoolean done = new AtomicBoolean();
+        assertThrows(TimeoutException.class, () -> deadlineService.retrieve(storage, ID, null, 0,
+                () -> done.set(true)));
+        assertTrue(done.get());
+    }
+
+    @Test
+    public void testAsyncStorage() throws TimeoutException {
+        MediaReadStorageService storage = mock(MediaReadStorageService.class,
+                withSettings().extraInterfaces(AsyncMediaReadStorageService.class));
+        MediaStream stream = createStream();
+        CompletableFuture<Optional<MediaStream>> future = new CompletableFuture<>();
+        when(((AsyncMediaReadStorageService) storage).retrieveAsync(ID, null)).thenReturn(future);
+
+        AtomicBoolean done = new AtomicBoolean();
+        assertThrows(TimeoutException.class, () -> deadlineService.retrieve(storage, ID, null,
+                TimeUnit.MILLISECONDS.toNanos(50), () -> done.set(stream.isClosed())));
+        // the abandoned call still holds its connection
+        assertFalse(done.get());
+        future.complete(Optional.of(stream));
+        assertTrue(stream.isClosed());
+        assertTrue(done.get());
+
+        when(((AsyncMediaReadStorageService) storage).retrieveAsync(ID, null))
+                .thenReturn(CompletableFuture.completedFuture(Optional.empty()));
+        assertNull(deadlineService.retrieve(storage, ID, null, TimeUnit.SECONDS.toNanos(5)));
+        verify(storage, never()).retrieve(ID, null);
+    }
+
+    @Test
+    public void testRejectedCallWithoutDeadline() throws TimeoutException {
+        MediaReadStorageService storage = mock(MediaReadStorageService.class,
+                withSettings().extraInterfaces(AsyncMediaReadStorageService.class));
+        MediaStream stream = createStream();
+        when(((AsyncMediaReadStorageService) storage).retrieveAsync(ID, null))
+                .thenReturn(CompletableFuture.failedFuture(new RejectedExecutionException("busy")));
+        when(storage.retrieve(ID, null)).thenReturn(stream);
+
+        assertSame(stream, deadlineService.retrieve(storage, ID, null, TimeUnit.SECONDS.toNanos(5)));
+    }
+
+    private static MediaStream createStream() {
+        return new MediaStream(ID, null, new S3Object(ID, new ByteArrayInputStream("test".getBytes()), new HashMap<>()));
+    }
+}
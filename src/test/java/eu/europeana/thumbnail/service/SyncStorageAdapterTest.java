@@ -0,0 +1,94 @@
+package eu.europeana.thumbnail.service;
+
+import eu.europeana.s3.S3Object;
+import eu.europeana.thumbnail.model.MediaStream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Test using a synchronous storage via the asynchronous interface
+ */
+public class SyncStorageAdapterTest {
+
+    private static final String ID = "test-LARGE";
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(2);
+
+    @AfterEach
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testAdaptAsyncStorage() {
+        MediaReadStorageService storage = mock(MediaReadStorageService.class,
+                withSettings().extraInterfaces(AsyncMediaReadStorageService.class));
+        assertSame(storage, AsyncMediaReadStorageService.adapt(storage, executor));
+    }
+
+    @Test
+    public void testRetrieve() throws ExecutionException, InterruptedException {
+        MediaReadStorageService storage = mock(MediaReadStorageService.class);
+        MediaStream stream = createStream();
+        when(storage.retrieve(ID, null)).thenReturn(stream);
+        when(storage.getName()).thenReturn("sync");
+
+        AsyncMediaReadStorageService async = AsyncMediaReadStorageService.adapt(storage, executor);
+        assertEquals("sync", async.getName());
+        assertSame(stream, async.retrieveAsync(ID, null).get().orElseThrow());
+        assertEquals(Optional.empty(), async.retrieveAsync("unknown", null).get());
+    }
+
+    @Test
+    public void testRetrieveMetadata() throws ExecutionException, InterruptedException {
+        MediaReadStorageService storage = mock(MediaReadStorageService.class);
+        MediaStream stream = createStream();
+        when(storage.retrieve(ID, null)).thenReturn(stream);
+
+        Map<String, Object> metadata = AsyncMediaReadStorageService.adapt(storage, executor)
+                .retrieveMetadataAsync(ID).get().orElseThrow();
+        assertEquals(4L, metadata.get(S3Object.CONTENT_LENGTH));
+        assertTrue(stream.isClosed());
+    }
+
+    @Test
+    public void testExists() throws ExecutionException, InterruptedException {
+        MediaReadStorageService storage = mock(MediaReadStorageService.class);
+        when(storage.checkIfExists("a")).thenReturn(true);
+        when(storage.checkIfExists("b")).thenReturn(false);
+
+        Map<String, Boolean> result = AsyncMediaReadStorageService.adapt(storage, executor)
+                .existsAsync(List.of("a", "b", "c")).get();
+        assertEquals(List.of("a", "b", "c"), List.copyOf(result.keySet()));
+        assertTrue(result.get("a"));
+        assertFalse(result.get("b"));
+        assertFalse(result.get("c"));
+    }
+
+    @Test
+    public void testRejected() {
+        MediaReadStorageService storage = mock(MediaReadStorageService.class);
+        executor.shutdown();
+        ExecutionException e = assertThrows(ExecutionException.class,
+                () -> AsyncMediaReadStorageService.adapt(storage, executor).retrieveAsync(ID, null).get());
+        assertInstanceOf(RejectedExecutionException.class, e.getCause());
+        verify(storage, never()).retrieve(ID, null);
+    }
+
+    private static MediaStream createStream() {
+        return new MediaStream(ID, null, new S3Object(ID, new ByteArrayInputStream("test".getBytes()),
+                Map.of(S3Object.CONTENT_LENGTH, 4L)));
+    }
+}
@@ -0,0 +1,104 @@
+package eu.europeana.thumbnail.service;
+
+import eu.europeana.s3.S3Object;
+import eu.europeana.thumbnail.model.MediaStream;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test the in-memory validator cache
+ */
+public class ValidatorCacheServiceTest {
+
+    private static final String KEY = "storage/test-LARGE";
+    private static final String ETAG = "\"abc123\"";
+    private static final Instant LAST_MODIFIED = Instant.parse("2025-01-01T12:00:00Z");
+
+    @Test
+    public void testPutAndGet() throws IOException {
+        ValidatorCacheService cache = new ValidatorCacheService(10, 60_000);
+        assertNull(cache.get(KEY, null));
+
+        cache.put(KEY, "storage", createStream("test-LARGE", ETAG));
+        MediaStream validators = cache.get(KEY, "https://test.eu/image.png");
+        assertNotNull(validators);
+        assertEquals("test-LARGE", validators.getId());
+        assertEquals("https://test.eu/image.png", validators.getOriginalUrl());
+        assertEquals(ETAG, validators.getETag());
+        assertEquals(LAST_MODIFIED, validators.getLastModified());
+        // only validators are cached, not the content
+        assertNull(validators.getContentLength());
+        assertEquals(0, validators.getS3Object().inputStream().readAllBytes().length);
+    }
+
+    @Test
+    public void testNoETagNotCached() {
+        ValidatorCacheService cache = new ValidatorCacheService(10, 60_000);
+        cache.put(KEY, "storage", createStream("test-LARGE", null));
+        assertNull(cache.get(KEY, null));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testExpired() throws InterruptedException {
+        ValidatorCacheService cache = new ValidatorCacheService(10, 1);
+        cache.put(KEY, "storage", createStream("test-LARGE", ETAG));
+        Thread.sleep(10);
+        assertNull(cache.get(KEY, null));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testEviction() {
+        ValidatorCacheService cache = new ValidatorCacheService(2, 60_000);
+        cache.put("a", "storage", createStream("a", ETAG));
+        cache.put("b", "storage", createStream("b", ETAG));
+        // use a, so b is least recently used
+        assertNotNull(cache.get("a", null));
+        cache.put("c", "storage", createStream("c", ETAG));
+
+        assertEquals(2, cache.size());
+        assertNotNull(cache.get("a", null));
+        assertNull(cache.get("b", null));
+        assertNotNull(cache.get("c", null));
+    }
+
+    @Test
+    public void testUploaded() {
+        ValidatorCacheService cache = new ValidatorCacheService(10, 60_000);
+        cache.put(KEY, "storage", createStream("test-LARGE", ETAG));
+        cache.put("storage/test-MEDIUM", "storage", createStream("test-MEDIUM", ETAG));
+
+        cache.uploaded("other-storage", "test-LARGE");
+        assertNotNull(cache.get(KEY, null));
+
+        cache.uploaded("storage", "test-LARGE");
+        assertNull(cache.get(KEY, null));
+        assertNotNull(cache.get("storage/test-MEDIUM", null));
+    }
+
+    @Test
+    public void testDisabled() {
+        ValidatorCacheService cache = new ValidatorCacheService(0, 60_000);
+        cache.put(KEY, "storage", createStream("test-LARGE", ETAG));
+        assertNull(cache.get(KEY, null));
+    }
+
+    private static MediaStream createStream(String id, String eTag) {
+        Map<String, Object> metadata = new HashMap<>();
+        metadata.put(S3Object.CONTENT_TYPE, "image/jpeg");
+        metadata.put(S3Object.CONTENT_LENGTH, 100L);
+        metadata.put(S3Object.LAST_MODIFIED, LAST_MODIFIED);
+        if (eTag != null) {
+            metadata.put(S3Object.ETAG, eTag);
+        }
+        return new MediaStream(id, null, new S3Object(id, new ByteArrayInputStream(new byte[100]), metadata));
+    }
+}
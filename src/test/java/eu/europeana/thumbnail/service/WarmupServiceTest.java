@@ -0,0 +1,59 @@
+package eu.europeana.thumbnail.service;
+
+import com.github.tomakehurst.wiremock.WireMockServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.actuate.health.Status;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test sending warm-up requests to a (mocked) application
+ */
+public class WarmupServiceTest {
+
+    private static final String V3_ID = "1234567890abcdef";
+
+    private WireMockServer server;
+
+    @BeforeEach
+    public void startServer() {
+        server = new WireMockServer(wireMockConfig().dynamicPort());
+        server.start();
+        server.stubFor(get(anyUrl()).willReturn(aResponse().withStatus(200).withBody("test")));
+    }
+
+    @AfterEach
+    public void stopServer() {
+        server.stop();
+    }
+
+    @Test
+    public void testWarmup() throws InterruptedException {
+        WarmupService warmup = new WarmupService(server.baseUrl(), 3, 2, 10_000, V3_ID, "https://test.eu/a.jpg");
+        assertFalse(warmup.isFinished());
+        assertEquals(Status.OUT_OF_SERVICE, warmup.health().getStatus());
+
+        warmup.startWarmup();
+        long waitUntil = System.currentTimeMillis() + 10_000;
+        while (!warmup.isFinished() && System.currentTimeMillis() < waitUntil) {
+            Thread.sleep(50);
+        }
+
+        assertTrue(warmup.isFinished());
+        assertEquals(Status.UP, warmup.health().getStatus());
+        server.verify(3, getRequestedFor(urlEqualTo("/thumbnail/v3/200/" + V3_ID)));
+        server.verify(3, getRequestedFor(urlEqualTo("/thumbnail/v3/400/" + V3_ID)));
+        server.verify(6, getRequestedFor(urlPathEqualTo("/thumbnail/v2/url.json")));
+    }
+
+    @Test
+    public void testDisabled() {
+        WarmupService warmup = new WarmupService(server.baseUrl(), 0, 2, 10_000, V3_ID, "https://test.eu/a.jpg");
+        assertTrue(warmup.isFinished());
+        assertEquals(Status.UP, warmup.health().getStatus());
+    }
+}
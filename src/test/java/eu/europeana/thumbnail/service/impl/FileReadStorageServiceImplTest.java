@@ -0,0 +1,119 @@
+package eu.europeana.thumbnail.service.impl;
+
+import eu.europeana.s3.S3Object;
+import eu.europeana.thumbnail.model.FileMediaStream;
+import eu.europeana.thumbnail.model.MediaStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test retrieving files from a local file storage
+ */
+public class FileReadStorageServiceImplTest {
+
+    private static final String ID = "0123456789abcdef-LARGE";
+    private static final byte[] DATA = "test thumbnail".getBytes();
+    private static final Instant LAST_MODIFIED = Instant.parse("2025-01-01T12:00:00Z");
+
+    @TempDir
+    Path root;
+
+    private Path createFile(String id) throws IOException {
+        Path file = root.resolve(id.substring(0, 2)).resolve(id.substring(2, 4)).resolve(id);
+        Files.createDirectories(file.getParent());
+        Files.write(file, DATA);
+        Files.setLastModifiedTime(file, FileTime.from(LAST_MODIFIED));
+        return file;
+    }
+
+    @Test
+    public void testRetrieve() throws IOException {
+        Path file = createFile(ID);
+        FileReadStorageServiceImpl storage = new FileReadStorageServiceImpl("files", root, 2);
+
+        assertTrue(storage.checkIfExists(ID));
+        MediaStream result = storage.retrieve(ID, "https://test.eu/image.jpg");
+        assertNotNull(result);
+        assertInstanceOf(FileMediaStream.class, result);
+        assertEquals(file.toAbsolutePath(), ((FileMediaStream) result).getFile());
+        assertEquals(ID, result.getId());
+        assertEquals("https://test.eu/image.jpg", result.getOriginalUrl());
+        assertEquals(DATA.length, result.getContentLength());
+        assertEquals(LAST_MODIFIED, result.getLastModified());
+        assertEquals("\"" + Long.toHexString(LAST_MODIFIED.toEpochMilli()) + "-" + Long.toHexString(DATA.length) + "\"",
+                result.getETag());
+        assertArrayEquals(DATA, result.getS3Object().inputStream().readAllBytes());
+        result.close();
+    }
+
+    @Test
+    public void testNotFound() throws IOException {
+        createFile(ID);
+        FileReadStorageServiceImpl storage = new FileReadStorageServiceImpl("files", root, 2);
+        assertFalse(storage.checkIfExists("0123456789abcdef-MEDIUM"));
+        assertNull(storage.retrieve("0123456789abcdef-MEDIUM", null));
+        // shard directories are not files
+        assertNull(storage.retrieve("01", null));
+    }
+
+    @Test
+    public void testAsync() throws Exception {
+        createFile(ID);
+        FileReadStorageServiceImpl storage = new FileReadStorageServiceImpl("files", root, 2);
+
+        Map<String, Object> metadata = storage.retrieveMetadataAsync(ID).get().orElseThrow();
+        assertEquals((long) DATA.length, metadata.get(S3Object.CONTENT_LENGTH));
+        assertEquals(LAST_MODIFIED, metadata.get(S3Object.LAST_MODIFIED));
+        assertTrue(storage.retrieveMetadataAsync("0123456789abcdef-MEDIUM").get().isEmpty());
+
+        Map<String, Boolean> exists = storage.existsAsync(List.of(ID, "0123456789abcdef-MEDIUM")).get();
+        assertTrue(exists.get(ID));
+        assertFalse(exists.get("0123456789abcdef-MEDIUM"));
+
+        MediaStream result = storage.retrieveAsync(ID, null).get().orElseThrow();
+        assertArrayEquals(DATA, result.getS3Object().inputStream().readAllBytes());
+        result.close();
+    }
+
+    @Test
+    public void testNoShards() throws IOException {
+        Files.write(root.resolve(ID), DATA);
+        FileReadStorageServiceImpl storage = new FileReadStorageServiceImpl("files", root, 0);
+        assertTrue(storage.checkIfExists(ID));
+    }
+
+    @Test
+    public void testInvalidId() {
+        FileReadStorageServiceImpl storage = new FileReadStorageServiceImpl("files", root, 2);
+        assertNull(storage.getPath("../../etc/passwd"));
+        assertNull(storage.getPath("0123/../../x"));
+        assertNull(storage.getPath("..123456"));
+        assertNull(storage.getPath("012"));
+        assertNull(storage.retrieve("../../etc/passwd", null));
+        assertFalse(storage.checkIfExists("../../etc/passwd"));
+    }
+
+    @Test
+    public void testListIds() throws IOException {
+        createFile("aa00-LARGE");
+        createFile("0123456789abcdef-MEDIUM");
+        createFile(ID);
+        createFile("ab01-LARGE");
+        FileReadStorageServiceImpl storage = new FileReadStorageServiceImpl("files", root, 2);
+
+        assertEquals(List.of("0123456789abcdef-LARGE", "0123456789abcdef-MEDIUM"), storage.listIds(null, 2));
+        assertEquals(List.of("aa00-LARGE", "ab01-LARGE"), storage.listIds("0123456789abcdef-MEDIUM", 2));
+        assertEquals(List.of("ab01-LARGE"), storage.listIds("aa00-LARGE", 2));
+        assertTrue(storage.listIds("ab01-LARGE", 2).isEmpty());
+    }
+}
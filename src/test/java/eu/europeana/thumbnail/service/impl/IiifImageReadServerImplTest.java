@@ -0,0 +1,149 @@
+package eu.europeana.thumbnail.service.impl;
+
+import com.github.tomakehurst.wiremock.WireMockServer;
+import eu.europeana.thumbnail.model.MediaStream;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test retrieving images from a (mocked) IIIF image server
+ */
+public class IiifImageReadServerImplTest {
+
+    private static final byte[] IMAGE = "iiif test image data".getBytes();
+
+    private static WireMockServer server;
+
+    @BeforeAll
+    public static void startServer() {
+        server = new WireMockServer(wireMockConfig().dynamicPort());
+        server.start();
+        server.stubFor(get(urlEqualTo("/image/full/400,/0/default.jpg"))
+                .willReturn(aResponse().withStatus(200).withHeader("Content-Type", "image/jpeg").withBody(IMAGE)));
+        server.stubFor(get(urlEqualTo("/slow/full/400,/0/default.jpg"))
+                .willReturn(aResponse().withStatus(200).withFixedDelay(2000).withBody(IMAGE)));
+        server.stubFor(get(urlEqualTo("/error/full/400,/0/default.jpg"))
+                .willReturn(aResponse().withStatus(520).withBody("unknown error")));
+        server.stubFor(get(urlEqualTo("/dribble/full/400,/0/default.jpg"))
+                .willReturn(aResponse().withStatus(200).withBody(IMAGE).withChunkedDribbleDelay(5, 3000)));
+    }
+
+    @AfterAll
+    public static void stopServer() {
+        server.stop();
+    }
+
+    @Test
+    public void testDownloadWithContentLength() throws Exception {
+        IiifImageReadServerImpl iiif = new IiifImageReadServerImpl();
+        MediaStream result = iiif.download("test-LARGE", server.baseUrl() + "/image/full/400,/0/default.jpg");
+        assertNotNull(result);
+        assertEquals(IMAGE.length, result.getContentLength());
+        assertEquals("image/jpeg", result.getContentType());
+        assertArrayEquals(IMAGE, result.getS3Object().inputStream().readAllBytes());
+        result.close();
+    }
+
+    @Test
+    public void testDownloadNotFound() {
+        IiifImageReadServerImpl iiif = new IiifImageReadServerImpl();
+        assertNull(iiif.download("test-LARGE", server.baseUrl() + "/unknown/full/400,/0/default.jpg"));
+    }
+
+    @Test
+    public void testDownloadTimeout() {
+        IiifImageReadServerImpl iiif = new IiifImageReadServerImpl(Duration.ofMillis(500), Duration.ofMillis(500), 1);
+        assertNull(iiif.download("test-LARGE", server.baseUrl() + "/slow/full/400,/0/default.jpg"));
+        // the connection permit should have been released again
+        assertNotNull(iiif.download("test-LARGE", server.baseUrl() + "/image/full/400,/0/default.jpg"));
+    }
+
+    @Test
+    public void testDownloadUnknownServerError() throws Exception {
+        IiifImageReadServerImpl iiif = new IiifImageReadServerImpl(Duration.ofMillis(500), Duration.ofMillis(500), 1);
+        assertNull(iiif.download("test-LARGE", server.baseUrl() + "/error/full/400,/0/default.jpg"));
+        assertNull(iiif.downloadAsync("test-LARGE", server.baseUrl() + "/error/full/400,/0/default.jpg")
+                .get(5, TimeUnit.SECONDS));
+        // the connection permit should have been released again
+        MediaStream result = iiif.download("test-LARGE", server.baseUrl() + "/image/full/400,/0/default.jpg");
+        assertNotNull(result);
+        result.close();
+    }
+
+    @Test
+    public void testDownloadBodyTimeout() throws Exception {
+        IiifImageReadServerImpl iiif = new IiifImageReadServerImpl(Duration.ofMillis(500), Duration.ofMillis(500), 1);
+        MediaStream result = iiif.download("test-LARGE", server.baseUrl() + "/dribble/full/400,/0/default.jpg");
+        assertNotNull(result);
+        InputStream in = result.getS3Object().inputStream();
+        assertThrows(IOException.class, in::readAllBytes);
+        // the connection permit was released when the body was closed
+        MediaStream next = iiif.download("test-LARGE", server.baseUrl() + "/image/full/400,/0/default.jpg");
+        assertNotNull(next);
+        next.close();
+    }
+
+    @Test
+    public void testDownloadSlowlyRead() throws Exception {
+        IiifImageReadServerImpl iiif = new IiifImageReadServerImpl(Duration.ofMillis(500), Duration.ofMillis(500), 1);
+        MediaStream result = iiif.download("test-LARGE", server.baseUrl() + "/image/full/400,/0/default.jpg");
+        assertNotNull(result);
+        InputStream in = result.getS3Object().inputStream();
+        // in total reading takes longer than the read timeout, but there's never a long pause between reads
+        for (int i = 0; i < 4; i++) {
+            assertEquals(IMAGE[i], in.read());
+            Thread.sleep(250);
+        }
+        byte[] rest = in.readAllBytes();
+        assertEquals(IMAGE.length - 4, rest.length);
+        result.close();
+    }
+
+    @Test
+    public void testDownloadAsync() throws Exception {
+        IiifImageReadServerImpl iiif = new IiifImageReadServerImpl();
+        MediaStream result = iiif.downloadAsync("test-LARGE", server.baseUrl() + "/image/full/400,/0/default.jpg")
+                .get(5, TimeUnit.SECONDS);
+        assertNotNull(result);
+        assertEquals(IMAGE.length, result.getContentLength());
+        assertArrayEquals(IMAGE, result.getS3Object().inputStream().readAllBytes());
+        result.close();
+
+        assertNull(iiif.downloadAsync("test-LARGE", server.baseUrl() + "/unknown/full/400,/0/default.jpg")
+                .get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testDownloadAsyncTimeout() throws Exception {
+        IiifImageReadServerImpl iiif = new IiifImageReadServerImpl(Duration.ofMillis(500), Duration.ofMillis(500), 1);
+        assertNull(iiif.downloadAsync("test-LARGE", server.baseUrl() + "/slow/full/400,/0/default.jpg")
+                .get(5, TimeUnit.SECONDS));
+        // the connection permit should have been released again
+        MediaStream result = iiif.downloadAsync("test-LARGE", server.baseUrl() + "/image/full/400,/0/default.jpg")
+                .get(5, TimeUnit.SECONDS);
+        assertNotNull(result);
+        // while the stream is open, the only connection is in use
+        assertNull(iiif.downloadAsync("test-LARGE", server.baseUrl() + "/image/full/400,/0/default.jpg")
+                .get(5, TimeUnit.SECONDS));
+        result.close();
+    }
+
+    @Test
+    public void testRetrieveAsyncNoIiifUrl() throws Exception {
+        IiifImageReadServerImpl iiif = new IiifImageReadServerImpl();
+        assertTrue(iiif.retrieveAsync("test-LARGE", "https://test.eu/image.jpg").get().isEmpty());
+        assertTrue(iiif.retrieveAsync("test-LARGE", null).get().isEmpty());
+    }
+}
@@ -0,0 +1,148 @@
+package eu.europeana.thumbnail.service.impl;
+
+import com.sksamuel.scrimage.ImmutableImage;
+import eu.europeana.thumbnail.exception.ImageTooLargeException;
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test decoding uploaded images with bounded memory use
+ */
+public class ImageDecoderTest {
+
+    private static BufferedImage createImage(int width, int height, Color color) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setColor(color);
+        graphics.fillRect(0, 0, width, height);
+        graphics.dispose();
+        return image;
+    }
+
+    private static byte[] encodePng(BufferedImage image) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testSubsampling() throws IOException {
+        byte[] png = encodePng(createImage(2000, 1000, Color.RED));
+        ImmutableImage image = new ImageDecoder(10_000_000).decode(png, 400);
+        assertEquals(1000, image.width);
+        assertEquals(500, image.height);
+
+        // no subsampling if that would make the image smaller than twice the target width
+        image = new ImageDecoder(10_000_000).decode(png, 2000);
+        assertEquals(2000, image.width);
+    }
+
+    @Test
+    public void testTooLarge() throws IOException {
+        byte[] png = encodePng(createImage(2000, 1000, Color.RED));
+        ImageDecoder decoder = new ImageDecoder(1_000_000);
+        assertThrows(ImageTooLargeException.class, () -> decoder.decode(png, 400));
+    }
+
+    @Test
+    public void testWebpTooLargeForFullDecode() {
+        // 6000x5000 extended webp header, below the general maximum but it can't be subsampled
+        byte[] data = createWebpHeader("VP8X");
+        data[24] = (byte) 0x6F; // 5999
+        data[25] = 0x17;
+        data[27] = (byte) 0x87; // 4999
+        data[28] = 0x13;
+        ImageDecoder decoder = new ImageDecoder(100_000_000, 25_000_000);
+        assertThrows(ImageTooLargeException.class, () -> decoder.decode(data, 400));
+    }
+
+    @Test
+    public void testFirstFrameOnly() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("gif").next();
+        try (ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(ios);
+            writer.prepareWriteSequence(null);
+            writer.writeToSequence(new IIOImage(createImage(100, 100, Color.RED), null, null), null);
+            writer.writeToSequence(new IIOImage(createImage(100, 100, Color.BLUE), null, null), null);
+            writer.endWriteSequence();
+        } finally {
+            writer.dispose();
+        }
+        ImmutableImage image = new ImageDecoder(10_000_000).decode(out.toByteArray(), 100);
+        assertEquals(Color.RED.getRGB(), image.awt().getRGB(50, 50));
+    }
+
+    @Test
+    public void testUnsupportedFormat() {
+        ImageDecoder decoder = new ImageDecoder(10_000_000);
+        byte[] data = "this is not an image".getBytes(StandardCharsets.UTF_8);
+        assertThrows(IOException.class, () -> decoder.decode(data, 400));
+    }
+
+    @Test
+    public void testGetSubsampling() {
+        assertEquals(1, ImageDecoder.getSubsampling(400, 400));
+        assertEquals(1, ImageDecoder.getSubsampling(1000, 400));
+        assertEquals(25, ImageDecoder.getSubsampling(20000, 400));
+    }
+
+    private static byte[] createWebpHeader(String chunk) {
+        byte[] data = new byte[30];
+        System.arraycopy("RIFF".getBytes(StandardCharsets.US_ASCII), 0, data, 0, 4);
+        System.arraycopy("WEBP".getBytes(StandardCharsets.US_ASCII), 0, data, 8, 4);
+        System.arraycopy(chunk.getBytes(StandardCharsets.US_ASCII), 0, data, 12, 4);
+        return data;
+    }
+
+    @Test
+    public void testGetWebpSizeLossy() {
+        byte[] data = createWebpHeader("VP8 ");
+        data[23] = (byte) 0x9D;
+        data[24] = 0x01;
+        data[25] = 0x2A;
+        data[26] = (byte) 0x90; // 400
+        data[27] = 0x01;
+        data[28] = 0x2C; // 300
+        data[29] = 0x01;
+        assertArrayEquals(new int[]{400, 300}, ImageDecoder.getWebpSize(data));
+    }
+
+    @Test
+    public void testGetWebpSizeLossless() {
+        byte[] data = createWebpHeader("VP8L");
+        data[20] = 0x2F;
+        data[21] = (byte) 0x8F; // 14 bits 399, followed by 14 bits 299
+        data[22] = (byte) 0xC1;
+        data[23] = 0x4A;
+        assertArrayEquals(new int[]{400, 300}, ImageDecoder.getWebpSize(data));
+    }
+
+    @Test
+    public void testGetWebpSizeExtended() {
+        byte[] data = createWebpHeader("VP8X");
+        data[24] = 0x1F; // 19999
+        data[25] = 0x4E;
+        data[27] = 0x1F;
+        data[28] = 0x4E;
+        assertArrayEquals(new int[]{20000, 20000}, ImageDecoder.getWebpSize(data));
+    }
+
+    @Test
+    public void testGetWebpSizeNoWebp() {
+        assertNull(ImageDecoder.getWebpSize(createWebpHeader("ABCD")));
+        assertNull(ImageDecoder.getWebpSize("this is not a webp image".getBytes(StandardCharsets.UTF_8)));
+    }
+}
@@ -0,0 +1,26 @@
+package eu.europeana.thumbnail.service.impl;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Test encoding webp images in-process (only if libwebp is available on this platform)
+ */
+public class LibwebpWriterTest {
+
+    @Test
+    public void testWrite() throws IOException {
+        assumeTrue(LibwebpWriter.isAvailable(), "libwebp is not available on this platform");
+        BufferedImage image = new BufferedImage(400, 300, BufferedImage.TYPE_INT_ARGB);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new LibwebpWriter(75, 4).write(image, out);
+
+        assertArrayEquals(new int[]{400, 300}, ImageDecoder.getWebpSize(out.toByteArray()));
+    }
+}
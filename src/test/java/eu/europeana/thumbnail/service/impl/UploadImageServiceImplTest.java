@@ -0,0 +1,123 @@
+package eu.europeana.thumbnail.service.impl;
+
+import eu.europeana.s3.S3ObjectStorageClient;
+import eu.europeana.thumbnail.model.ImageEncoding;
+import eu.europeana.thumbnail.model.ImageFormat;
+import eu.europeana.thumbnail.service.UploadListener;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockMultipartFile;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+/**
+ * Test generating and storing thumbnails of uploaded images
+ */
+public class UploadImageServiceImplTest {
+
+    private static final String ID = "test";
+
+    private S3ObjectStorageClient s3Client;
+    private UploadListener listener;
+    // stored data and media type per key
+    private final Map<String, byte[]> stored = new HashMap<>();
+    private final Map<String, String> mediaTypes = new HashMap<>();
+
+    @BeforeEach
+    public void setup() {
+        s3Client = mock(S3ObjectStorageClient.class);
+        listener = mock(UploadListener.class);
+        doAnswer(invocation -> {
+            String key = invocation.getArgument(0);
+            mediaTypes.put(key, invocation.getArgument(1));
+            try (InputStream in = invocation.getArgument(2)) {
+                stored.put(key, in.readAllBytes());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return null;
+        }).when(s3Client).putObject(anyString(), anyString(), any(InputStream.class));
+    }
+
+    private UploadImageServiceImpl createService(List<Integer> widths, List<ImageEncoding> encodings) {
+        return new UploadImageServiceImpl("upload", s3Client, Runnable::run, widths, encodings,
+                new ImageDecoder(10_000_000), List.of(listener));
+    }
+
+    private static MockMultipartFile createUpload() throws IOException {
+        BufferedImage image = new BufferedImage(1000, 500, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setColor(Color.BLUE);
+        graphics.fillRect(0, 0, 1000, 500);
+        graphics.dispose();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        return new MockMultipartFile("file", "logo.png", "image/png", out.toByteArray());
+    }
+
+    private static int getWidth(byte[] data) throws IOException {
+        return ImageIO.read(new ByteArrayInputStream(data)).getWidth();
+    }
+
+    @Test
+    public void testSmallestEncodingStoredUnderPlainKey() throws IOException {
+        createService(List.of(400), List.of(ImageEncoding.of(ImageFormat.JPEG), ImageEncoding.of(ImageFormat.PNG)))
+                .process(ID, createUpload());
+
+        byte[] jpeg = stored.get("test-LARGE.jpeg");
+        byte[] png = stored.get("test-LARGE.png");
+        assertNotNull(jpeg);
+        assertNotNull(png);
+        assertEquals("image/jpeg", mediaTypes.get("test-LARGE.jpeg"));
+        assertEquals("image/png", mediaTypes.get("test-LARGE.png"));
+        assertEquals(400, getWidth(jpeg));
+
+        // the smallest encoding is also stored under the plain key, with its own media type
+        boolean pngSmallest = png.length < jpeg.length;
+        assertArrayEquals(pngSmallest ? png : jpeg, stored.get("test-LARGE"));
+        assertEquals(pngSmallest ? "image/png" : "image/jpeg", mediaTypes.get("test-LARGE"));
+        assertEquals(3, stored.size());
+
+        verify(listener).uploaded("upload", "test-LARGE");
+        verify(listener).uploaded("upload", "test-LARGE.jpeg");
+        verify(listener).uploaded("upload", "test-LARGE.png");
+    }
+
+    @Test
+    public void testSingleEncodingStoredUnderPlainKeyOnly() throws IOException {
+        createService(List.of(400), List.of(ImageEncoding.of(ImageFormat.JPEG))).process(ID, createUpload());
+
+        assertEquals(1, stored.size());
+        assertEquals("image/jpeg", mediaTypes.get("test-LARGE"));
+        verify(listener, times(1)).uploaded(anyString(), anyString());
+    }
+
+    @Test
+    public void testAllWidthsStored() throws IOException {
+        createService(List.of(200, 400, 800), List.of(ImageEncoding.of(ImageFormat.JPEG))).process(ID, createUpload());
+
+        assertEquals(3, stored.size());
+        assertEquals(200, getWidth(stored.get("test-MEDIUM")));
+        assertEquals(400, getWidth(stored.get("test-LARGE")));
+        assertEquals(800, getWidth(stored.get("test-800")));
+        verify(listener).uploaded("upload", "test-MEDIUM");
+        verify(listener).uploaded("upload", "test-LARGE");
+        verify(listener).uploaded("upload", "test-800");
+    }
+}
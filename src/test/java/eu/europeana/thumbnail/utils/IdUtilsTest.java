@@ -0,0 +1,36 @@
+package eu.europeana.thumbnail.utils;
+
+import eu.europeana.thumbnail.model.ImageSize;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Test class for IdUtils
+ */
+public class IdUtilsTest {
+
+    private static final String ID = "7463a193a468a1ff1a0c0f7d5933e54b";
+
+    @Test
+    public void testGetMD5() {
+        assertEquals(ID, IdUtils.getMD5("https://test.europeana.eu/thumbnail.jpg"));
+    }
+
+    @Test
+    public void testGetS3ObjectId() {
+        assertEquals(ID + "-MEDIUM", IdUtils.getS3ObjectId(ID, 200));
+        assertEquals(ID + "-LARGE", IdUtils.getS3ObjectId(ID, 400));
+        assertEquals(ID + "-LARGE", IdUtils.getS3ObjectId(ID, (Integer) null));
+        assertEquals(ID + "-800", IdUtils.getS3ObjectId(ID, 800));
+        assertEquals(ID + "-MEDIUM", IdUtils.getS3ObjectId(ID, ImageSize.MEDIUM));
+    }
+
+    @Test
+    public void testGetSiblingId() {
+        assertEquals(ID + "-LARGE", IdUtils.getSiblingId(ID + "-MEDIUM"));
+        assertEquals(ID + "-MEDIUM", IdUtils.getSiblingId(ID + "-LARGE"));
+        assertNull(IdUtils.getSiblingId(ID + "-800"));
+    }
+}
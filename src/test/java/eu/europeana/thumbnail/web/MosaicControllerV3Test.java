@@ -0,0 +1,157 @@
+package eu.europeana.thumbnail.web;
+
+import eu.europeana.thumbnail.config.ApiConfig;
+import eu.europeana.thumbnail.config.StorageRoutes;
+import eu.europeana.thumbnail.model.Mosaic;
+import eu.europeana.thumbnail.service.MediaReadStorageService;
+import eu.europeana.thumbnail.service.MosaicService;
+import eu.europeana.thumbnail.service.StoragesService;
+import org.hamcrest.Matchers;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.bean.override.mockito.MockitoBean;
+import org.springframework.test.web.servlet.MockMvc;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+
+/**
+ * Test validating mosaic requests
+ */
+@TestPropertySource("classpath:testroutes.properties")
+@TestPropertySource(properties=
+        {"spring.autoconfigure.exclude=org.springframework.boot.actuate.autoconfigure.security.servlet.ManagementWebSecurityAutoConfiguration," +
+                "org.springframework.boot.autoconfigure.security.servlet.SecurityAutoConfiguration"})
+@WebMvcTest({MosaicControllerV3.class, StorageRoutes.class, ApiConfig.class})
+@Import(RetrievalTestConfig.class)
+@AutoConfigureMockMvc
+@SuppressWarnings("java:S5786")
+public class MosaicControllerV3Test {
+
+    private static final String MOSAIC_ENDPOINT = "/thumbnail/v3/{size}/mosaic.json";
+    private static final String ID1 = "0123456789abcdef";
+    private static final String ID2 = "fedcba9876543210";
+    private static final int MAX_TILES = 4;
+
+    @Autowired
+    private MockMvc mockMvc;
+    @Autowired
+    private MosaicControllerV3 controller;
+    @MockitoBean
+    private StoragesService storagesService;
+    @MockitoBean
+    private MediaReadStorageService mediaStorage;
+    @MockitoBean
+    private MosaicService mosaicService;
+
+    @BeforeEach
+    public void setup() {
+        TestData.defaultSetup(storagesService, mediaStorage);
+        given(mosaicService.getMaxTiles()).willReturn(MAX_TILES);
+        given(mosaicService.fitsPixelBudget(anyInt(), anyInt(), anyInt())).willReturn(true);
+    }
+
+    @Test
+    public void testValidRequest() throws Exception {
+        Mosaic mosaic = new Mosaic(new byte[0], "image/jpeg", "\"etag\"", true, 0, 400, 200,
+                List.of(new Mosaic.Tile(ID1, 0, 0, 200, 200), new Mosaic.Tile(ID2, 200, 0, 200, 200)));
+        given(mosaicService.get(anyString(), eq(200), eq(2), eq(List.of(ID1, ID2)), any(), any()))
+                .willReturn(mosaic);
+
+        this.mockMvc.perform(get(MOSAIC_ENDPOINT, 200).param("ids", ID1 + "," + ID2).param("columns", "2"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.tiles[1].id").value(ID2));
+    }
+
+    @Test
+    public void testInvalidSize() throws Exception {
+        this.mockMvc.perform(get(MOSAIC_ENDPOINT, "abc").param("ids", ID1))
+                .andExpect(status().isBadRequest())
+                .andExpect(jsonPath("$.message", Matchers.containsString(MosaicControllerV3.SIZE_ERROR_MESSAGE)));
+        this.mockMvc.perform(get(MOSAIC_ENDPOINT, 12345).param("ids", ID1))
+                .andExpect(status().isBadRequest());
+        assertNotGenerated();
+    }
+
+    @Test
+    public void testUnsupportedSize() throws Exception {
+        this.mockMvc.perform(get(MOSAIC_ENDPOINT, 456).param("ids", ID1))
+                .andExpect(status().isBadRequest())
+                .andExpect(jsonPath("$.message", Matchers.containsString(MosaicControllerV3.SIZE_ERROR_MESSAGE)));
+        assertNotGenerated();
+    }
+
+    @Test
+    public void testInvalidIds() throws Exception {
+        for (String ids : List.of("", "xyz", ID1 + ",", ID1 + ",," + ID2, ID1 + ".jpg", "0123")) {
+            this.mockMvc.perform(get(MOSAIC_ENDPOINT, 200).param("ids", ids))
+                    .andExpect(status().isBadRequest());
+        }
+        this.mockMvc.perform(get(MOSAIC_ENDPOINT, 200).param("ids", "xyz"))
+                .andExpect(jsonPath("$.message", Matchers.containsString(MosaicControllerV3.IDS_ERROR_MESSAGE)));
+        assertNotGenerated();
+    }
+
+    @Test
+    public void testTooManyIds() throws Exception {
+        String ids = String.join(",", Collections.nCopies(MAX_TILES + 1, ID1));
+        this.mockMvc.perform(get(MOSAIC_ENDPOINT, 200).param("ids", ids).param("columns", "2"))
+                .andExpect(status().isBadRequest())
+                .andExpect(jsonPath("$.message", Matchers.containsString("Too many ids")));
+        assertNotGenerated();
+    }
+
+    @Test
+    public void testInvalidColumns() throws Exception {
+        for (String columns : List.of("0", "-1", String.valueOf(MAX_TILES + 1))) {
+            this.mockMvc.perform(get(MOSAIC_ENDPOINT, 200).param("ids", ID1).param("columns", columns))
+                    .andExpect(status().isBadRequest())
+                    .andExpect(jsonPath("$.message", Matchers.containsString("Invalid number of columns")));
+        }
+        // the default (8) is more than the maximum number of tiles
+        this.mockMvc.perform(get(MOSAIC_ENDPOINT, 200).param("ids", ID1))
+                .andExpect(status().isBadRequest());
+        assertNotGenerated();
+    }
+
+    @Test
+    public void testTooLarge() throws Exception {
+        given(mosaicService.fitsPixelBudget(400, 2, 2)).willReturn(false);
+        this.mockMvc.perform(get(MOSAIC_ENDPOINT, 400).param("ids", ID1 + "," + ID2).param("columns", "2"))
+                .andExpect(status().isBadRequest())
+                .andExpect(jsonPath("$.message", Matchers.containsString("Mosaic too large")));
+        assertNotGenerated();
+    }
+
+    @Test
+    public void testRateLimitCost() {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        assertEquals(1, controller.getRateLimitCost(request));
+        request.setParameter("ids", ID1);
+        assertEquals(1, controller.getRateLimitCost(request));
+        request.setParameter("ids", ID1 + "," + ID2 + "," + ID1);
+        assertEquals(3, controller.getRateLimitCost(request));
+    }
+
+    private void assertNotGenerated() throws InterruptedException {
+        verify(mosaicService, never()).get(anyString(), anyInt(), anyInt(), anyList(), any(), any());
+    }
+}
@@ -0,0 +1,26 @@
+package eu.europeana.thumbnail.web;
+
+import eu.europeana.thumbnail.service.HotSetService;
+import eu.europeana.thumbnail.service.LocalCacheService;
+import eu.europeana.thumbnail.service.LocationIndexService;
+import eu.europeana.thumbnail.service.PrefetchService;
+import eu.europeana.thumbnail.service.ReadRepairService;
+import eu.europeana.thumbnail.service.RevalidationService;
+import eu.europeana.thumbnail.service.StorageDeadlineService;
+import eu.europeana.thumbnail.service.StorageHealthService;
+import eu.europeana.thumbnail.service.StorageLimitService;
+import eu.europeana.thumbnail.service.ThumbnailRetrievalService;
+import eu.europeana.thumbnail.service.ValidatorCacheService;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Import;
+
+/**
+ * Adds the thumbnail retrieval service and the services it uses to controller tests (@WebMvcTest), so these tests
+ * only need to list the controller itself
+ */
+@TestConfiguration
+@Import({ThumbnailRetrievalService.class, ReadRepairService.class, StorageHealthService.class,
+        StorageDeadlineService.class, LocalCacheService.class, HotSetService.class, ValidatorCacheService.class,
+        RevalidationService.class, LocationIndexService.class, StorageLimitService.class, PrefetchService.class})
+public class RetrievalTestConfig {
+}
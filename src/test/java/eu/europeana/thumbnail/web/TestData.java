@@ -73,6 +73,8 @@ public class TestData {
                     .willReturn(new MediaStream(TestData.URI_HASH + TestData.SIZE_MEDIUM, null,
                             new S3Object(TestData.URI_HASH + TestData.SIZE_MEDIUM, TestData.MEDIUM_STREAM, metaDataMedium)));
 
+            given(mediaStorage.getName()).willReturn("test-storage");
+
             List<MediaReadStorageService> storages = new ArrayList<>();
             storages.add(mediaStorage);
             given(storagesService.getStorages(anyString()))
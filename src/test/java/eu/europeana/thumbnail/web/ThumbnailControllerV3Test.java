@@ -3,21 +3,38 @@ package eu.europeana.thumbnail.web;
 import eu.europeana.s3.S3Object;
 import eu.europeana.thumbnail.config.ApiConfig;
 import eu.europeana.thumbnail.config.StorageRoutes;
+import eu.europeana.thumbnail.model.ImageEncoding;
+import eu.europeana.thumbnail.model.ImageFormat;
+import eu.europeana.thumbnail.model.MediaStream;
 import eu.europeana.thumbnail.service.MediaReadStorageService;
+import eu.europeana.thumbnail.service.StorageLimitService;
 import eu.europeana.thumbnail.service.StoragesService;
+import eu.europeana.thumbnail.service.impl.FileReadStorageServiceImpl;
+import eu.europeana.thumbnail.utils.ControllerUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.hamcrest.Matchers;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.test.context.TestPropertySource;
 import org.springframework.test.context.bean.override.mockito.MockitoBean;
 import org.springframework.test.web.servlet.MockMvc;
 
+import java.io.ByteArrayInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.mockito.BDDMockito.given;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.head;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
@@ -33,6 +50,7 @@ import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.
         {"spring.autoconfigure.exclude=org.springframework.boot.actuate.autoconfigure.security.servlet.ManagementWebSecurityAutoConfiguration," +
                 "org.springframework.boot.autoconfigure.security.servlet.SecurityAutoConfiguration"})
 @WebMvcTest({ThumbnailControllerV3.class, StorageRoutes.class, ApiConfig.class})
+@Import(RetrievalTestConfig.class)
 @AutoConfigureMockMvc
 @SuppressWarnings("java:S5786")
 public class ThumbnailControllerV3Test {
@@ -47,6 +65,8 @@ public class ThumbnailControllerV3Test {
     private StoragesService storageService;
     @MockitoBean
     private MediaReadStorageService mediaStorage;
+    @Autowired
+    private StorageLimitService storageLimitService;
 
     // KNOWN ISSUES: ever since migrating to SB3 and using streams there are 2 weird issues with reading the body in
     // unit tests.
@@ -125,6 +145,19 @@ public class ThumbnailControllerV3Test {
                 .andExpect(status().isBadRequest());
     }
 
+    /**
+     * Test if we accept sizes that are configured as upload size (but not present in this case)
+     */
+    @Test
+    public void test_404_ConfiguredSize() throws Exception {
+        this.mockMvc.perform(get(V3_ENDPOINT, 800, TestData.URI_HASH))
+                .andExpect(status().isNotFound());
+
+        this.mockMvc.perform(get(V3_ENDPOINT, 100, TestData.URI_HASH))
+                .andExpect(status().isBadRequest())
+                .andExpect(jsonPath("$.message", Matchers.containsString(ThumbnailControllerV3.SIZE_ERROR_MESSAGE)));
+    }
+
     @Test
     public void test_400_NoId() throws Exception {
         this.mockMvc.perform(get("/thumbnail/v3/"))
@@ -210,4 +243,176 @@ public class ThumbnailControllerV3Test {
         this.mockMvc.perform(head(V3_ENDPOINT, "", ""))
                 .andExpect(status().is4xxClientError());
     }
+
+    /**
+     * Test Cache-Control and Surrogate-Key headers, including content-versioned urls
+     */
+    @Test
+    public void test_200_CacheHeaders() throws Exception {
+        this.mockMvc.perform(get(V3_ENDPOINT, 400, TestData.URI_HASH))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.CACHE_CONTROL,
+                        "public, max-age=604800, stale-while-revalidate=86400, stale-if-error=604800"))
+                .andExpect(header().string("Surrogate-Key",
+                        TestData.URI_HASH + TestData.SIZE_LARGE + " " + TestData.URI_HASH));
+
+        String version = ControllerUtils.getVersion(TestData.ETAG_VALUE);
+        this.mockMvc.perform(get(V3_ENDPOINT, 400, TestData.URI_HASH).param("v", version))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.CACHE_CONTROL, "public, max-age=31536000, immutable"));
+
+        // an outdated version is served with the current content, but only cached briefly
+        this.mockMvc.perform(get(V3_ENDPOINT, 400, TestData.URI_HASH).param("v", "00000000"))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.CACHE_CONTROL, "public, max-age=60"));
+
+        // policy of the storage the thumbnail was retrieved from
+        String id = "0123456789abcdef0123456789abcdef";
+        given(mediaStorage.retrieve(id + TestData.SIZE_LARGE, null)).willAnswer(invocation -> {
+            Map<String, Object> metadata = new HashMap<>();
+            metadata.put(S3Object.CONTENT_LENGTH, 4L);
+            metadata.put(S3Object.ETAG, TestData.ETAG);
+            return new MediaStream(id + TestData.SIZE_LARGE, null,
+                    new S3Object(id, new ByteArrayInputStream("logo".getBytes()), metadata), "logos");
+        });
+        given(storageService.getCacheControl("logos")).willReturn("public, max-age=86400");
+        this.mockMvc.perform(get(V3_ENDPOINT, 400, id))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.CACHE_CONTROL, "public, max-age=86400"))
+                .andExpect(header().string("Surrogate-Key", id + TestData.SIZE_LARGE + " " + id + " logos"));
+    }
+
+    /**
+     * Test that thumbnails stored in multiple encodings are returned in a format that the client accepts
+     */
+    @Test
+    public void test_200_AcceptedEncoding() throws Exception {
+        String id = "fedcba9876543210fedcba9876543210";
+        String s3Id = id + TestData.SIZE_LARGE;
+        given(mediaStorage.retrieve(s3Id, null))
+                .willAnswer(invocation -> createLogo(s3Id, "webp-data", ImageFormat.WEBP));
+        given(mediaStorage.retrieve(s3Id + ".jpeg", null))
+                .willAnswer(invocation -> createLogo(s3Id + ".jpeg", "jpeg-data", ImageFormat.JPEG));
+        given(storageService.getUploadEncodings("logos"))
+                .willReturn(List.of(ImageEncoding.of(ImageFormat.WEBP), ImageEncoding.of(ImageFormat.JPEG)));
+
+        this.mockMvc.perform(get(V3_ENDPOINT, 400, id).header(HttpHeaders.ACCEPT, "image/avif,image/webp,*/*"))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.CONTENT_TYPE, "image/webp"))
+                .andExpect(header().stringValues(HttpHeaders.VARY, Matchers.hasItem(HttpHeaders.ACCEPT)))
+                .andExpect(content().bytes("webp-data".getBytes()));
+
+        this.mockMvc.perform(get(V3_ENDPOINT, 400, id))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.CONTENT_TYPE, "image/webp"));
+
+        // wildcards don't count for webp
+        this.mockMvc.perform(get(V3_ENDPOINT, 400, id).header(HttpHeaders.ACCEPT, "image/png,image/*;q=0.8,*/*;q=0.5"))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.CONTENT_TYPE, MediaType.IMAGE_JPEG_VALUE))
+                .andExpect(header().stringValues(HttpHeaders.VARY, Matchers.hasItem(HttpHeaders.ACCEPT)))
+                .andExpect(content().bytes("jpeg-data".getBytes()));
+
+        this.mockMvc.perform(get(V3_ENDPOINT, 400, id).header(HttpHeaders.ACCEPT, "image/webp;q=0,image/jpeg"))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.CONTENT_TYPE, MediaType.IMAGE_JPEG_VALUE));
+    }
+
+    private static MediaStream createLogo(String id, String content, ImageFormat format) {
+        Map<String, Object> metadata = new HashMap<>();
+        metadata.put(S3Object.CONTENT_LENGTH, (long) content.length());
+        metadata.put(S3Object.CONTENT_TYPE, format.getMediaType());
+        metadata.put(S3Object.ETAG, format.getExtension() + TestData.ETAG);
+        return new MediaStream(id, null, new S3Object(id, new ByteArrayInputStream(content.getBytes()), metadata),
+                "logos");
+    }
+
+    /**
+     * Test requesting only part of a thumbnail
+     */
+    @Test
+    public void test_206_Range() throws Exception {
+        String id = "0123456789abcdef0123456789abcdef";
+        byte[] data = "0123456789".getBytes();
+        given(mediaStorage.retrieve(id + TestData.SIZE_LARGE, null)).willAnswer(invocation -> {
+            Map<String, Object> metadata = new HashMap<>();
+            metadata.put(S3Object.CONTENT_LENGTH, (long) data.length);
+            metadata.put(S3Object.ETAG, TestData.ETAG);
+            return new MediaStream(id, null, new S3Object(id, new ByteArrayInputStream(data), metadata));
+        });
+
+        this.mockMvc.perform(get(V3_ENDPOINT, 400, id).header(HttpHeaders.RANGE, "bytes=2-5"))
+                .andExpect(status().isPartialContent())
+                .andExpect(header().string(HttpHeaders.ACCEPT_RANGES, "bytes"))
+                .andExpect(header().string(HttpHeaders.CONTENT_RANGE, "bytes 2-5/10"))
+                .andExpect(header().string(HttpHeaders.CONTENT_LENGTH, "4"))
+                .andExpect(content().bytes("2345".getBytes()));
+
+        this.mockMvc.perform(get(V3_ENDPOINT, 400, id).header(HttpHeaders.RANGE, "bytes=-3"))
+                .andExpect(status().isPartialContent())
+                .andExpect(header().string(HttpHeaders.CONTENT_RANGE, "bytes 7-9/10"))
+                .andExpect(content().bytes("789".getBytes()));
+
+        this.mockMvc.perform(get(V3_ENDPOINT, 400, id).header(HttpHeaders.RANGE, "bytes=20-"))
+                .andExpect(status().isRequestedRangeNotSatisfiable())
+                .andExpect(header().string(HttpHeaders.CONTENT_RANGE, "bytes */10"));
+
+        // If-Range with a different ETag means the full thumbnail should be returned
+        this.mockMvc.perform(get(V3_ENDPOINT, 400, id).header(HttpHeaders.RANGE, "bytes=2-5")
+                        .header(HttpHeaders.IF_RANGE, "\"otheretag\""))
+                .andExpect(status().isOk())
+                .andExpect(content().bytes(data));
+
+        this.mockMvc.perform(get(V3_ENDPOINT, 400, id).header(HttpHeaders.RANGE, "bytes=2-5")
+                        .header(HttpHeaders.IF_RANGE, TestData.ETAG_VALUE))
+                .andExpect(status().isPartialContent())
+                .andExpect(content().bytes("2345".getBytes()));
+    }
+
+    /**
+     * Test that local files are sent by the servlet container if it supports sendfile, and streamed otherwise
+     */
+    @Test
+    public void test_200_SendFile(@TempDir Path root) throws Exception {
+        String id = "0123456789abcdef0123456789abcdef";
+        String s3Id = id + TestData.SIZE_LARGE;
+        byte[] data = new byte[64 * 1024];
+        Path file = root.resolve("01").resolve("23").resolve(s3Id);
+        Files.createDirectories(file.getParent());
+        Files.write(file, data);
+        FileReadStorageServiceImpl fileStorage = new FileReadStorageServiceImpl("files", root, 2);
+        given(mediaStorage.retrieve(s3Id, null)).willAnswer(invocation -> fileStorage.retrieve(s3Id, null));
+
+        this.mockMvc.perform(get(V3_ENDPOINT, 400, id).requestAttr("org.apache.tomcat.sendfile.support", true))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.CONTENT_LENGTH, String.valueOf(data.length)))
+                .andExpect(request().attribute("org.apache.tomcat.sendfile.filename", file.toAbsolutePath().toString()))
+                .andExpect(request().attribute("org.apache.tomcat.sendfile.start", 0L))
+                .andExpect(request().attribute("org.apache.tomcat.sendfile.end", (long) data.length));
+
+        this.mockMvc.perform(get(V3_ENDPOINT, 400, id))
+                .andExpect(status().isOk())
+                .andExpect(request().attribute("org.apache.tomcat.sendfile.filename", Matchers.nullValue()))
+                .andExpect(content().bytes(data));
+    }
+
+    /**
+     * Test that requests are rejected right away when the concurrency limit of a storage is reached
+     */
+    @Test
+    public void test_503_Overloaded() throws Exception {
+        int acquired = 0;
+        while (storageLimitService.tryAcquire(mediaStorage)) {
+            acquired++;
+        }
+        try {
+            this.mockMvc.perform(get(V3_ENDPOINT, 400, "dfbf02e00c4bc7c737a4479a6bcc2662"))
+                    .andExpect(status().isServiceUnavailable())
+                    .andExpect(header().string(HttpHeaders.RETRY_AFTER, "1"));
+        } finally {
+            for (int i = 0; i < acquired; i++) {
+                storageLimitService.release(mediaStorage, 0, true);
+            }
+        }
+    }
 }
@@ -101,4 +101,20 @@ public class UploadControllerV3Test {
                 .andExpect(content().string(Matchers.containsString(UploadControllerV3.UNSUPPORTED_CONTENT_TYPE_ERROR_MESSAGE)));
     }
 
+    /**
+     * The test routes configure an upload storage that doesn't exist, so uploading is not available
+     */
+    @Test
+    public void test_503_NoUploadStorage() throws Exception {
+        MockMultipartHttpServletRequestBuilder builder = MockMvcRequestBuilders.multipart(ENDPOINT, "12345678");
+        // we should do a PUT instead of a POST
+        builder.with(request -> {
+            request.setMethod("PUT");
+            return request;
+        });
+        this.mockMvc.perform(builder.file(fakeImageFile))
+                .andExpect(status().isServiceUnavailable())
+                .andExpect(content().string(UploadControllerV3.UPLOAD_DISABLED_ERROR_MESSAGE));
+    }
+
 }